@@ -0,0 +1,126 @@
+package com.yolo.CDC.java.cdc;
+
+import com.yolo.CDC.java.knnsearch.index.IndexBase;
+import com.yolo.CDC.java.knnsearch.index.SearchParamsBase;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Multi-threaded versions of the per-point stages of single-node CDC: kNN
+ * search, neighbour angles and the DCM value. Every point is independent, so
+ * the point range is split recursively across a {@link ForkJoinPool} until a
+ * chunk is at most {@link #getGrainSize()} points. Each chunk gets its own
+ * result set and scratch buffers and writes only its own rows, so the output
+ * is the same as a sequential run regardless of the parallelism.
+ * <p>
+ * The DCM uses the atan ladder and the 2π/k inner even gap of
+ * {@code CDC_v2}, so that the results match its original sequential loops
+ * bit for bit.
+ */
+public class CDCLocalParallel {
+    private static final int DEFAULT_GRAIN_SIZE = 1024;
+
+    private final ForkJoinPool pool;
+    private int grainSize = DEFAULT_GRAIN_SIZE;
+
+    public CDCLocalParallel(int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        }
+        this.pool = new ForkJoinPool(parallelism);
+    }
+
+    public int getParallelism() {
+        return pool.getParallelism();
+    }
+
+    public int getGrainSize() {
+        return grainSize;
+    }
+
+    public void setGrainSize(int grainSize) {
+        if (grainSize < 1) {
+            throw new IllegalArgumentException("grainSize must be positive: " + grainSize);
+        }
+        this.grainSize = grainSize;
+    }
+
+    /**
+     * Searches the {@code searchParams.maxNeighbors} nearest neighbours of
+     * every query; same contract as
+     * {@link IndexBase#knnSearch(double[][], int[][], double[][], SearchParamsBase)}.
+     */
+    public void knnSearch(final IndexBase index, final double[][] queries, final int[][] indices,
+                          final double[][] distances, final SearchParamsBase searchParams) {
+        forEachRange(queries.length, new RangeBody() {
+            @Override
+            public void apply(int from, int to) {
+                index.knnSearch(queries, from, to, indices, distances, searchParams);
+            }
+        });
+    }
+
+    /**
+     * Normalised DCM of every point from the angles to its k neighbours (the
+     * first of which is the point itself). Each chunk reuses one
+     * {@link DirectionCentrality}, so no per-point array is allocated.
+     *
+     * @param data    point coordinates (2-D)
+     * @param indices neighbour ids of every point, as returned by the kNN search
+     */
+    public double[] computeDCM(final double[][] data, final int[][] indices) {
+        final double[] dcmValue = new double[indices.length];
+        forEachRange(indices.length, new RangeBody() {
+            @Override
+            public void apply(int from, int to) {
+                DirectionCentrality centrality = null;
+                for (int i = from; i < to; i++) {
+                    int k = indices[i].length;
+                    if (centrality == null || centrality.getK() != k) {
+                        centrality = new DirectionCentrality(k, DirectionCentrality.AngleMethod.LADDER, DirectionCentrality.EvenGap.K);
+                    }
+                    for (int j = 0; j < k; j++) {
+                        centrality.setAngle(j, data[indices[i][j]][0] - data[i][0], data[indices[i][j]][1] - data[i][1]);
+                    }
+                    dcmValue[i] = centrality.dcm();
+                }
+            }
+        });
+        return dcmValue;
+    }
+
+    public void shutdown() {
+        pool.shutdown();
+    }
+
+    private interface RangeBody {
+        void apply(int from, int to);
+    }
+
+    private void forEachRange(int length, final RangeBody body) {
+        pool.invoke(new RangeTask(body, 0, length));
+    }
+
+    private final class RangeTask extends RecursiveAction {
+        private final RangeBody body;
+        private final int from;
+        private final int to;
+
+        RangeTask(RangeBody body, int from, int to) {
+            this.body = body;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= grainSize) {
+                body.apply(from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new RangeTask(body, from, middle), new RangeTask(body, middle, to));
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package com.yolo.CDC.java.cdc;
+
+import com.yolo.CDC.java.knnsearch.index.IndexBase;
+import com.yolo.CDC.java.knnsearch.index.SearchParamsBase;
+import com.yolo.CDC.java.rdd.CDCPoint;
+import org.roaringbitmap.RoaringBitmap;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The points of one spatial partition in columnar form, for the stages of
+ * HKCDC.
+ * <p>
+ * One object per partition holds every per-point value in a primitive array
+ * instead of a {@link CDCPoint}, a tuple and a boxed key per point; row i is
+ * the point with the i-th smallest index id. Every stage returns a new block
+ * that shares the arrays it leaves unchanged, so a cached block is never
+ * modified. The neighbour lists are only needed until the reachable
+ * distances are known, and {@link #reach} drops them.
+ */
+public class CDCPartitionBlock implements Serializable {
+    private static final byte INNER = (byte) CDCPoint.Flag.Inner.ordinal();
+    private static final byte BORDER = (byte) CDCPoint.Flag.Border.ordinal();
+    private static final CDCPoint.Flag[] FLAGS = CDCPoint.Flag.values();
+
+    private final int k;
+    private final int[] indexId;
+    private final double[] xy;
+    // Neighbours of row i at [i * k, i * k + k), nearest first; null once
+    // the reachable distances are known.
+    private final int[] knn;
+    private final double[] knnDistance;
+    private final double[] dcm;
+    private final byte[] flag;
+    // Squared distance to the nearest border point, for inner points.
+    private final double[] reach;
+    // Cluster label of inner points; index id of the nearest inner point for
+    // border points until they are labelled.
+    private final int[] cluster;
+
+    CDCPartitionBlock(int k, int[] indexId, double[] xy, int[] knn, double[] knnDistance, double[] dcm,
+                      byte[] flag, double[] reach, int[] cluster) {
+        this.k = k;
+        this.indexId = indexId;
+        this.xy = xy;
+        this.knn = knn;
+        this.knnDistance = knnDistance;
+        this.dcm = dcm;
+        this.flag = flag;
+        this.reach = reach;
+        this.cluster = cluster;
+    }
+
+    /**
+     * Block of points without neighbours yet.
+     */
+    CDCPartitionBlock(int k, int[] indexId, double[] xy, int[] knn, double[] knnDistance, double[] dcm) {
+        this(k, indexId, xy, knn, knnDistance, dcm, notFlagged(indexId.length),
+                new double[indexId.length], new int[indexId.length]);
+    }
+
+    private static byte[] notFlagged(int n) {
+        byte[] flag = new byte[n];
+        Arrays.fill(flag, (byte) CDCPoint.Flag.NotFlagged.ordinal());
+        return flag;
+    }
+
+    /**
+     * Builds the block of one partition; the rows are sorted by index id.
+     *
+     * @param indexId index ids of the points, non-negative
+     * @param xy      coordinates of the points, (x, y) pairs
+     * @param k       number of neighbours of every point
+     */
+    public static CDCPartitionBlock of(int[] indexId, double[] xy, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be positive: " + k);
+        }
+        if (xy.length != 2 * indexId.length) {
+            throw new IllegalArgumentException("xy must hold two coordinates per point");
+        }
+        int n = indexId.length;
+        // Ids are non-negative, so (id << 32 | row) orders rows by id.
+        long[] keys = new long[n];
+        for (int i = 0; i < n; i++) {
+            keys[i] = ((long) indexId[i] << 32) | i;
+        }
+        Arrays.sort(keys);
+        int[] sortedIds = new int[n];
+        double[] sortedXy = new double[2 * n];
+        for (int i = 0; i < n; i++) {
+            int row = (int) keys[i];
+            sortedIds[i] = indexId[row];
+            sortedXy[2 * i] = xy[2 * row];
+            sortedXy[2 * i + 1] = xy[2 * row + 1];
+        }
+        return new CDCPartitionBlock(k, sortedIds, sortedXy, null, null, new double[n]);
+    }
+
+    /**
+     * Searches the k nearest neighbours of every point in a global index and
+     * computes their DCM values.
+     *
+     * @param index        index over 'dataArray'
+     * @param dataArray    coordinates of all points, indexed by index id
+     * @param searchParams search parameters of the index
+     * @return the block with its neighbours and DCM values
+     */
+    public CDCPartitionBlock searchNeighbors(IndexBase index, double[][] dataArray, SearchParamsBase searchParams) {
+        int n = indexId.length;
+        double[][] queries = new double[n][];
+        for (int i = 0; i < n; i++) {
+            queries[i] = new double[]{xy[2 * i], xy[2 * i + 1]};
+        }
+        int[] neighbors = new int[n * k];
+        double[] distances = new double[n * k];
+        index.knnSearchBatch(queries, neighbors, distances, k, searchParams, 1);
+        double[] dcmValue = new double[n];
+        DirectionCentrality centrality = new DirectionCentrality(k);
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < k; j++) {
+                double[] neighbor = dataArray[neighbors[i * k + j]];
+                centrality.setAngle(j, neighbor[0] - xy[2 * i], neighbor[1] - xy[2 * i + 1]);
+            }
+            dcmValue[i] = centrality.dcm();
+        }
+        return new CDCPartitionBlock(k, indexId, xy, neighbors, distances, dcmValue);
+    }
+
+    /**
+     * Index ids of the points whose DCM value is below the threshold.
+     */
+    public int[] innerIndexIds(double dcmThreshold) {
+        int[] ids = new int[indexId.length];
+        int count = 0;
+        for (int i = 0; i < indexId.length; i++) {
+            if (dcm[i] < dcmThreshold) {
+                ids[count++] = indexId[i];
+            }
+        }
+        return Arrays.copyOf(ids, count);
+    }
+
+    /**
+     * Coordinates of the inner or the border points, in row order.
+     *
+     * @param dcmThreshold DCM values below it are inner points
+     * @param inner        whether to take the inner or the border points
+     */
+    public double[][] coordinates(double dcmThreshold, boolean inner) {
+        double[][] coordinates = new double[indexId.length][];
+        int count = 0;
+        for (int i = 0; i < indexId.length; i++) {
+            if ((dcm[i] < dcmThreshold) == inner) {
+                coordinates[count++] = new double[]{xy[2 * i], xy[2 * i + 1]};
+            }
+        }
+        return Arrays.copyOf(coordinates, count);
+    }
+
+    /**
+     * Splits the points into inner and border points and finds, for every
+     * inner point, the squared distance to its nearest border point and, for
+     * every border point, its nearest inner point. Both are taken from the
+     * neighbour list when it holds one, else from the given index.
+     *
+     * @param dcmThreshold DCM values below it are inner points
+     * @param innerPoints  index ids of all inner points
+     * @param borderIndex  index over the coordinates of all border points
+     * @param innerIndex   index over the coordinates of all inner points
+     * @param innerIds     index id of every point of 'innerIndex'
+     * @return the block with flags, reachable distances and, for border
+     * points, the index id of the nearest inner point; without neighbours
+     */
+    public CDCPartitionBlock reach(double dcmThreshold, RoaringBitmap innerPoints, IndexBase borderIndex,
+                                   IndexBase innerIndex, int[] innerIds) {
+        int n = indexId.length;
+        byte[] nextFlag = new byte[n];
+        double[] nextReach = new double[n];
+        int[] nextCluster = new int[n];
+        int[] nearest = new int[1];
+        double[] distance = new double[1];
+        double[] query = new double[2];
+        for (int i = 0; i < n; i++) {
+            boolean inner = dcm[i] < dcmThreshold;
+            nextFlag[i] = inner ? INNER : BORDER;
+            int found = -1;
+            for (int j = 0; j < k; j++) {
+                // A point of the other kind ends the search.
+                if (innerPoints.contains(knn[i * k + j]) != inner) {
+                    found = j;
+                    break;
+                }
+            }
+            if (found < 0) {
+                query[0] = xy[2 * i];
+                query[1] = xy[2 * i + 1];
+                (inner ? borderIndex : innerIndex).knnSearch(query, nearest, distance);
+            }
+            if (inner) {
+                nextReach[i] = found >= 0 ? knnDistance[i * k + found] : distance[0];
+            } else {
+                nextCluster[i] = found >= 0 ? knn[i * k + found] : innerIds[nearest[0]];
+            }
+        }
+        return new CDCPartitionBlock(k, indexId, xy, null, null, dcm, nextFlag, nextReach, nextCluster);
+    }
+
+    public boolean isInner(int row) {
+        return flag[row] == INNER;
+    }
+
+    /**
+     * Writes the cluster labels of the inner points.
+     *
+     * @param ids    index ids of inner points of this block, ascending
+     * @param labels their cluster labels
+     * @return the block with the labels; the labels of border points are kept
+     */
+    public CDCPartitionBlock withInnerClusters(int[] ids, int[] labels) {
+        int[] nextCluster = cluster.clone();
+        int row = 0;
+        for (int i = 0; i < ids.length; i++) {
+            while (indexId[row] != ids[i]) {
+                row++;
+            }
+            nextCluster[row] = labels[i];
+        }
+        return new CDCPartitionBlock(k, indexId, xy, knn, knnDistance, dcm, flag, reach, nextCluster);
+    }
+
+    private int innerRow(int id) {
+        int row = Arrays.binarySearch(indexId, id);
+        return row >= 0 && flag[row] == INNER ? row : -1;
+    }
+
+    /**
+     * Rows of the border points whose nearest inner point is in another
+     * partition.
+     */
+    public int[] remoteBorderRows() {
+        int[] rows = new int[indexId.length];
+        int count = 0;
+        for (int i = 0; i < indexId.length; i++) {
+            if (flag[i] == BORDER && innerRow(cluster[i]) < 0) {
+                rows[count++] = i;
+            }
+        }
+        return Arrays.copyOf(rows, count);
+    }
+
+    /**
+     * Labels every border point with the cluster of its nearest inner point:
+     * from this block, else from the labels given, else 0.
+     *
+     * @param rows   rows of border points, as from {@link #remoteBorderRows}
+     * @param labels cluster labels of their nearest inner points
+     */
+    public CDCPartitionBlock labelBorderPoints(int[] rows, int[] labels) {
+        int[] nextCluster = cluster.clone();
+        boolean[] remote = new boolean[indexId.length];
+        for (int i = 0; i < rows.length; i++) {
+            nextCluster[rows[i]] = labels[i];
+            remote[rows[i]] = true;
+        }
+        for (int i = 0; i < indexId.length; i++) {
+            if (flag[i] != BORDER || remote[i]) {
+                continue;
+            }
+            int row = innerRow(cluster[i]);
+            nextCluster[i] = row >= 0 ? cluster[row] : 0;
+        }
+        return new CDCPartitionBlock(k, indexId, xy, knn, knnDistance, dcm, flag, reach, nextCluster);
+    }
+
+    /**
+     * The points of the block as CDCPoint objects, for the output.
+     *
+     * @param partitionId id of the partition, written as grid id
+     */
+    public CDCPoint[] toPoints(int partitionId) {
+        CDCPoint[] points = new CDCPoint[indexId.length];
+        for (int i = 0; i < indexId.length; i++) {
+            CDCPoint point = new CDCPoint(xy[2 * i], xy[2 * i + 1], 0);
+            point.setNeighborsNum(k);
+            if (knn != null) {
+                point.setNeighborsIndexID(Arrays.copyOfRange(knn, i * k, i * k + k));
+                point.setNeighborsDistance(Arrays.copyOfRange(knnDistance, i * k, i * k + k));
+            }
+            point.setIndexID(indexId[i]);
+            point.setGridID(partitionId);
+            point.setDcmValue(dcm[i]);
+            point.setFlag(FLAGS[flag[i]]);
+            point.setReachDistance(reach[i]);
+            point.setClusterID(cluster[i]);
+            points[i] = point;
+        }
+        return points;
+    }
+
+    public int size() {
+        return indexId.length;
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    public int[] getIndexId() {
+        return indexId;
+    }
+
+    public double[] getXy() {
+        return xy;
+    }
+
+    public int[] getKnn() {
+        return knn;
+    }
+
+    public double[] getKnnDistance() {
+        return knnDistance;
+    }
+
+    public double[] getDcm() {
+        return dcm;
+    }
+
+    public double[] getReach() {
+        return reach;
+    }
+
+    public int[] getCluster() {
+        return cluster;
+    }
+}
@@ -0,0 +1,233 @@
+package com.yolo.CDC.java.cdc;
+
+import java.util.Arrays;
+
+/**
+ * Direction centrality metric (DCM) of a point from the directions to its k
+ * nearest neighbours, the first of which is the point itself.
+ * <p>
+ * The angles are sorted and the squared deviations of the gaps between
+ * consecutive neighbours from an even gap are summed and normalised by
+ * 4π²(k-2)/(k-1), as in the CDC drivers; see {@link EvenGap} for the two
+ * even gaps in use. One instance holds the angle buffer of one thread, so
+ * computing the DCM of a point allocates nothing: set the k angles with
+ * {@link #setAngle} and call {@link #dcm()}.
+ * <p>
+ * Angles come from {@link Math#atan2} by default; see {@link AngleMethod}
+ * for the trig-free approximation and for the atan ladder of the original
+ * drivers.
+ */
+public final class DirectionCentrality {
+    /**
+     * Bound on the absolute error of {@link #approximateAngle}, in radians.
+     */
+    public static final double APPROXIMATE_ANGLE_ERROR = 2e-6;
+
+    /**
+     * How the angle of a neighbour direction is computed.
+     */
+    public enum AngleMethod {
+        /**
+         * {@link #angle}, one {@link Math#atan2} call.
+         */
+        ATAN2,
+        /**
+         * {@link #approximateAngle}, no trigonometric call, within
+         * {@link #APPROXIMATE_ANGLE_ERROR} radians of the exact angle.
+         */
+        APPROXIMATE,
+        /**
+         * {@link #ladderAngle}, the atan(deltaY/deltaX) ladder of the original
+         * drivers, whose angles may differ from atan2 in the last bit; for
+         * results that match {@code CDC_v2} bit for bit.
+         */
+        LADDER
+    }
+
+    /**
+     * Even gap that the gaps between consecutive sorted angles are measured
+     * against. The closing gap, from the last angle round to the first
+     * neighbour, and the normaliser use k-1 in both cases.
+     */
+    public enum EvenGap {
+        /**
+         * 2π/(k-1) for every gap, as in the Spark drivers.
+         */
+        K_MINUS_ONE,
+        /**
+         * 2π/k for the inner gaps, as in {@code CDC_v2}.
+         */
+        K
+    }
+
+    private static final double TWO_PI = 2 * Math.PI;
+    // Below this length insertion sort beats Arrays.sort on the angles.
+    private static final int INSERTION_SORT_THRESHOLD = 48;
+
+    private final int k;
+    private final AngleMethod angleMethod;
+    private final double[] angles;
+    private final double innerGap;
+    private final double closingGap;
+    private final double normaliser;
+
+    public DirectionCentrality(int k) {
+        this(k, AngleMethod.ATAN2, EvenGap.K_MINUS_ONE);
+    }
+
+    /**
+     * @param k           number of neighbours of every point, including the
+     *                    point itself
+     * @param angleMethod how {@link #setAngle} computes the angles
+     * @param evenGap     even gap of the inner gaps
+     */
+    public DirectionCentrality(int k, AngleMethod angleMethod, EvenGap evenGap) {
+        if (k < 3) {
+            throw new IllegalArgumentException("k must be at least 3: " + k);
+        }
+        this.k = k;
+        this.angleMethod = angleMethod;
+        this.angles = new double[k];
+        this.closingGap = TWO_PI / (k - 1);
+        this.innerGap = evenGap == EvenGap.K ? TWO_PI / k : closingGap;
+        this.normaliser = normaliser(k);
+    }
+
+    public int getK() {
+        return k;
+    }
+
+    /**
+     * Sets the direction to the j-th neighbour, given by its offset from the
+     * point; a zero offset (the point itself) has angle 0.
+     */
+    public void setAngle(int j, double deltaX, double deltaY) {
+        switch (angleMethod) {
+            case APPROXIMATE:
+                angles[j] = approximateAngle(deltaX, deltaY);
+                break;
+            case LADDER:
+                angles[j] = ladderAngle(deltaX, deltaY);
+                break;
+            default:
+                angles[j] = angle(deltaX, deltaY);
+        }
+    }
+
+    /**
+     * DCM of the point whose k angles were set last; sorts them in place.
+     */
+    public double dcm() {
+        return dcm(angles, innerGap, closingGap, normaliser);
+    }
+
+    /**
+     * DCM from k neighbour angles in [0, 2π); sorts 'angles' in place.
+     */
+    public static double dcm(double[] angles) {
+        int k = angles.length;
+        if (k < 3) {
+            throw new IllegalArgumentException("k must be at least 3: " + k);
+        }
+        double evenGap = TWO_PI / (k - 1);
+        return dcm(angles, evenGap, evenGap, normaliser(k));
+    }
+
+    private static double dcm(double[] angles, double innerGap, double closingGap, double normaliser) {
+        int k = angles.length;
+        sort(angles);
+        // angles[0] is the point itself; the gaps start at its first neighbour.
+        double dcmValue = 0;
+        for (int j = 1; j < k - 1; j++) {
+            double deviation = angles[j + 1] - angles[j] - innerGap;
+            dcmValue += deviation * deviation;
+        }
+        double deviation = angles[1] - angles[k - 1] + TWO_PI - closingGap;
+        dcmValue += deviation * deviation;
+        return dcmValue / normaliser;
+    }
+
+    // Same operation order as the drivers' (k - 2) * 4 * pow(π, 2) / (k - 1).
+    private static double normaliser(int k) {
+        return (k - 2) * 4 * (Math.PI * Math.PI) / (k - 1);
+    }
+
+    /**
+     * Angle in [0, 2π) of the direction (deltaX, deltaY).
+     */
+    public static double angle(double deltaX, double deltaY) {
+        if (deltaX == 0 && deltaY == 0) {
+            return 0;
+        }
+        double angle = Math.atan2(deltaY, deltaX);
+        return angle < 0 ? angle + TWO_PI : angle;
+    }
+
+    /**
+     * Angle in [0, 2π) of the direction (deltaX, deltaY) by the atan ladder
+     * of the original drivers.
+     */
+    public static double ladderAngle(double deltaX, double deltaY) {
+        if (deltaX == 0) {
+            if (deltaY == 0) {
+                return 0;
+            } else if (deltaY > 0) {
+                return Math.PI / 2;
+            } else {
+                return 3 * Math.PI / 2;
+            }
+        } else if (deltaX > 0) {
+            double angle = Math.atan(deltaY / deltaX);
+            return angle >= 0 ? angle : TWO_PI + angle;
+        } else {
+            return Math.PI + Math.atan(deltaY / deltaX);
+        }
+    }
+
+    /**
+     * Angle in [0, 2π) of the direction (deltaX, deltaY) without a
+     * trigonometric call: the direction is folded into the first octant and
+     * atan is evaluated there by an odd minimax polynomial.
+     */
+    public static double approximateAngle(double deltaX, double deltaY) {
+        double ax = Math.abs(deltaX);
+        double ay = Math.abs(deltaY);
+        if (ax == 0 && ay == 0) {
+            return 0;
+        }
+        boolean steep = ay > ax;
+        double t = steep ? ax / ay : ay / ax;
+        double t2 = t * t;
+        double angle = t * (0.99997726 + t2 * (-0.33262347 + t2 * (0.19354346
+                + t2 * (-0.11643287 + t2 * (0.05265332 + t2 * -0.01172120)))));
+        if (steep) {
+            angle = Math.PI / 2 - angle;
+        }
+        if (deltaX < 0) {
+            angle = Math.PI - angle;
+        }
+        if (deltaY < 0) {
+            angle = TWO_PI - angle;
+        }
+        return angle >= TWO_PI ? 0 : angle;
+    }
+
+    /**
+     * Sorts in place, by insertion for the short arrays of one point.
+     */
+    static void sort(double[] values) {
+        if (values.length >= INSERTION_SORT_THRESHOLD) {
+            Arrays.sort(values);
+            return;
+        }
+        for (int i = 1; i < values.length; i++) {
+            double value = values[i];
+            int j = i - 1;
+            while (j >= 0 && values[j] > value) {
+                values[j + 1] = values[j];
+                j--;
+            }
+            values[j + 1] = value;
+        }
+    }
+}
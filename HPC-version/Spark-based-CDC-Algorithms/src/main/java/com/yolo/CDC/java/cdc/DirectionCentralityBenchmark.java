@@ -0,0 +1,97 @@
+package com.yolo.CDC.java.cdc;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the DCM computation of the CDC drivers before
+ * {@link DirectionCentrality} (atan ladder, boxed sort and Math.pow on a
+ * fresh array per point) with the kernel, using exact and approximate
+ * angles, for k in {10, 30, 60, 100}. Prints the time per point and the
+ * largest DCM difference from the baseline.
+ * <p>
+ * Usage: DirectionCentralityBenchmark [points] [rounds]
+ */
+public class DirectionCentralityBenchmark {
+    private static final int[] KS = {10, 30, 60, 100};
+
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        Random random = new Random(42);
+        for (int k : KS) {
+            // Offsets of the k neighbours of every point; the first is the point itself.
+            double[][] dx = new double[n][k];
+            double[][] dy = new double[n][k];
+            for (int i = 0; i < n; i++) {
+                for (int j = 1; j < k; j++) {
+                    dx[i][j] = random.nextGaussian();
+                    dy[i][j] = random.nextGaussian();
+                }
+            }
+            double[] expected = new double[n];
+            double[] exact = new double[n];
+            double[] approximate = new double[n];
+            DirectionCentrality exactKernel = new DirectionCentrality(k);
+            DirectionCentrality approximateKernel = new DirectionCentrality(k, DirectionCentrality.AngleMethod.APPROXIMATE, DirectionCentrality.EvenGap.K_MINUS_ONE);
+            // The first rounds warm up the JIT and are not timed.
+            long baselineTime = 0;
+            long exactTime = 0;
+            long approximateTime = 0;
+            for (int round = -rounds; round < rounds; round++) {
+                long start = System.nanoTime();
+                baseline(dx, dy, k, expected);
+                long mid = System.nanoTime();
+                kernel(dx, dy, exactKernel, exact);
+                long end = System.nanoTime();
+                kernel(dx, dy, approximateKernel, approximate);
+                long last = System.nanoTime();
+                if (round >= 0) {
+                    baselineTime += mid - start;
+                    exactTime += end - mid;
+                    approximateTime += last - end;
+                }
+            }
+            double points = (double) n * rounds;
+            System.out.printf("k=%3d baseline %8.1f ns/point, exact %8.1f ns/point (max diff %.2e), "
+                            + "approximate %8.1f ns/point (max diff %.2e)%n",
+                    k, baselineTime / points, exactTime / points, maxDifference(expected, exact),
+                    approximateTime / points, maxDifference(expected, approximate));
+        }
+    }
+
+    private static void kernel(double[][] dx, double[][] dy, DirectionCentrality centrality, double[] dcm) {
+        int k = centrality.getK();
+        for (int i = 0; i < dx.length; i++) {
+            for (int j = 0; j < k; j++) {
+                centrality.setAngle(j, dx[i][j], dy[i][j]);
+            }
+            dcm[i] = centrality.dcm();
+        }
+    }
+
+    private static void baseline(double[][] dx, double[][] dy, int k, double[] dcm) {
+        for (int i = 0; i < dx.length; i++) {
+            Double[] angleOrder = new Double[k];
+            for (int j = 0; j < k; j++) {
+                angleOrder[j] = DirectionCentrality.ladderAngle(dx[i][j], dy[i][j]);
+            }
+            Arrays.sort(angleOrder);
+            double dcmValue = 0;
+            for (int j = 1; j < k - 1; j++) {
+                dcmValue += Math.pow(angleOrder[j + 1] - angleOrder[j] - 2 * Math.PI / (k - 1), 2);
+            }
+            dcmValue += Math.pow(angleOrder[1] - angleOrder[k - 1] + 2 * Math.PI - 2 * Math.PI / (k - 1), 2);
+            dcmValue /= ((k - 2) * 4 * Math.pow(Math.PI, 2) / (k - 1));
+            dcm[i] = dcmValue;
+        }
+    }
+
+    private static double maxDifference(double[] a, double[] b) {
+        double max = 0;
+        for (int i = 0; i < a.length; i++) {
+            max = Math.max(max, Math.abs(a[i] - b[i]));
+        }
+        return max;
+    }
+}
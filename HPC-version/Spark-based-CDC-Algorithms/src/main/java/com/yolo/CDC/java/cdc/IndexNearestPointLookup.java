@@ -0,0 +1,49 @@
+package com.yolo.CDC.java.cdc;
+
+import com.yolo.CDC.java.knnsearch.index.IndexBase;
+import com.yolo.CDC.java.knnsearch.index.IndexKDTreeSingle;
+import com.yolo.CDC.java.knnsearch.metric.MetricEuclideanSquared;
+
+/**
+ * {@link NearestPointLookup} backed by an {@link IndexKDTreeSingle} built
+ * over a packed copy of the coordinates of the target subset. The tree returns positions in
+ * the subset, which map back to global ids through {@code targetIds}; since
+ * those are increasing, the index's lowest-position tie break is also the
+ * lowest global id.
+ */
+public class IndexNearestPointLookup implements NearestPointLookup {
+    private final double[][] data;
+    private final int[] targetIds;
+    private final IndexBase index;
+
+    public IndexNearestPointLookup(double[][] data, int[] targetIds) {
+        this.data = data;
+        this.targetIds = targetIds;
+        if (targetIds.length == 0) {
+            this.index = null;
+            return;
+        }
+        int dims = data[targetIds[0]].length;
+        double[] targets = new double[targetIds.length * dims];
+        for (int i = 0; i < targetIds.length; i++) {
+            System.arraycopy(data[targetIds[i]], 0, targets, i * dims, dims);
+        }
+        this.index = new IndexKDTreeSingle(new MetricEuclideanSquared(), targets, dims,
+                new IndexKDTreeSingle.BuildParams());
+        this.index.buildIndex();
+    }
+
+    @Override
+    public void nearest(int[] queryIds, int[] nearestIds, double[] nearestDistances) {
+        if (index == null) {
+            return;
+        }
+        int[] position = new int[1];
+        double[] distance = new double[1];
+        for (int q = 0; q < queryIds.length; q++) {
+            index.knnSearch(data[queryIds[q]], position, distance);
+            nearestIds[q] = targetIds[position[0]];
+            nearestDistances[q] = distance[0];
+        }
+    }
+}
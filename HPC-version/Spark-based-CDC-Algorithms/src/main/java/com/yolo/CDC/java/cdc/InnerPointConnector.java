@@ -0,0 +1,185 @@
+package com.yolo.CDC.java.cdc;
+
+import com.yolo.CDC.java.index.UniformGrid2D;
+import com.yolo.CDC.java.utils.UnionFind;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntConsumer;
+
+/**
+ * Connection stage of CDC: links inner points whose reachable circles
+ * overlap, i.e. {@code dist(i, j) <= sqrt(r_i) + sqrt(r_j)}, and labels the
+ * resulting clusters.
+ * <p>
+ * The reference implementation scans every inner point against every other
+ * point and relabels the whole cluster array on each merge. Here the
+ * candidates of a seed point come from a range query of radius
+ * {@code sqrt(r_i) + max(sqrt(r))} over a uniform grid of the inner points,
+ * and merges are unions in a disjoint-set forest.
+ * <p>
+ * The labels are identical to the reference loop. That loop only expands
+ * from "seed" points (inner points not yet labelled when reached in index
+ * order), so a cluster is a connected component of the seed-to-neighbour
+ * edges, not of all overlapping pairs; and a cluster ends up with the mark
+ * of the last seed that touched it. Both properties are reproduced exactly.
+ */
+public final class InnerPointConnector {
+    public static final int INNER = 1;
+
+    private InnerPointConnector() {
+    }
+
+    /**
+     * @param data          point coordinates (2-D)
+     * @param category      {@link #INNER} for inner points, anything else for border points
+     * @param reachDistance squared reachable distance of every inner point
+     * @return cluster mark per point, starting at 1; 0 for border points
+     */
+    public static int[] connect(double[][] data, int[] category, double[] reachDistance) {
+        int length = data.length;
+        int innerCount = 0;
+        for (int i = 0; i < length; i++) {
+            if (category[i] == INNER) {
+                innerCount++;
+            }
+        }
+        int[] innerIds = new int[innerCount];
+        double[] reachRadius = new double[length];
+        double maxReachRadius = 0;
+        for (int i = 0, c = 0; i < length; i++) {
+            if (category[i] == INNER) {
+                innerIds[c++] = i;
+                reachRadius[i] = Math.sqrt(reachDistance[i]);
+                if (reachRadius[i] > maxReachRadius) {
+                    maxReachRadius = reachRadius[i];
+                }
+            }
+        }
+
+        UniformGrid2D grid = new UniformGrid2D(data, innerIds, maxReachRadius);
+        SeedExpansion expansion = new SeedExpansion(data, reachRadius, new UnionFind(length), new boolean[length]);
+        // Mark of the last seed merged into each set, stored at its root.
+        int[] rootMark = new int[length];
+        int mark = 1;
+        for (int i : innerIds) {
+            if (expansion.labelled[i]) {
+                continue;
+            }
+            expansion.labelled[i] = true;
+            expansion.seed = i;
+            grid.forEachCandidate(data[i][0], data[i][1], reachRadius[i] + maxReachRadius, expansion);
+            rootMark[expansion.unionFind.find(i)] = mark;
+            mark++;
+        }
+
+        int[] clusterArray = new int[length];
+        for (int i : innerIds) {
+            clusterArray[i] = rootMark[expansion.unionFind.find(i)];
+        }
+        return clusterArray;
+    }
+
+    /**
+     * Breadth-first expansion used inside one partition by the Spark drivers:
+     * unlike {@link #connect}, every overlapping pair is linked, so the
+     * clusters are the connected components of the overlap graph.
+     *
+     * @param data          point coordinates (2-D)
+     * @param innerIds      inner points, in the order in which they start a cluster
+     * @param reachDistance squared reachable distance of every inner point
+     * @return for every point, the first point of {@code innerIds} in its
+     * component; -1 for points not in {@code innerIds}
+     */
+    public static int[] components(double[][] data, int[] innerIds, double[] reachDistance) {
+        int length = data.length;
+        double[] reachRadius = new double[length];
+        double maxReachRadius = 0;
+        for (int i : innerIds) {
+            reachRadius[i] = Math.sqrt(reachDistance[i]);
+            if (reachRadius[i] > maxReachRadius) {
+                maxReachRadius = reachRadius[i];
+            }
+        }
+
+        UniformGrid2D grid = new UniformGrid2D(data, innerIds, maxReachRadius);
+        int[] component = new int[length];
+        Arrays.fill(component, -1);
+        BreadthFirstExpansion expansion = new BreadthFirstExpansion(data, reachRadius, innerIds.length, length);
+        for (int start : innerIds) {
+            if (expansion.visited.get(start)) {
+                continue;
+            }
+            expansion.visit(start);
+            int head = 0;
+            while (head < expansion.tail) {
+                int i = expansion.queue[head++];
+                component[i] = start;
+                expansion.current = i;
+                grid.forEachCandidate(data[i][0], data[i][1], reachRadius[i] + maxReachRadius, expansion);
+            }
+            expansion.tail = 0;
+        }
+        return component;
+    }
+
+    private static final class BreadthFirstExpansion implements IntConsumer {
+        final double[][] data;
+        final double[] reachRadius;
+        final BitSet visited;
+        // Every point enters the queue once, when it is first visited.
+        final int[] queue;
+        int tail;
+        int current;
+
+        BreadthFirstExpansion(double[][] data, double[] reachRadius, int innerCount, int length) {
+            this.data = data;
+            this.reachRadius = reachRadius;
+            this.visited = new BitSet(length);
+            this.queue = new int[innerCount];
+        }
+
+        void visit(int i) {
+            visited.set(i);
+            queue[tail++] = i;
+        }
+
+        @Override
+        public void accept(int j) {
+            if (visited.get(j)) {
+                return;
+            }
+            double[] p = data[current];
+            double[] q = data[j];
+            if (Math.sqrt(Math.pow(p[0] - q[0], 2) + Math.pow(p[1] - q[1], 2)) <= reachRadius[current] + reachRadius[j]) {
+                visit(j);
+            }
+        }
+    }
+
+    private static final class SeedExpansion implements IntConsumer {
+        final double[][] data;
+        final double[] reachRadius;
+        final UnionFind unionFind;
+        final boolean[] labelled;
+        int seed;
+
+        SeedExpansion(double[][] data, double[] reachRadius, UnionFind unionFind, boolean[] labelled) {
+            this.data = data;
+            this.reachRadius = reachRadius;
+            this.unionFind = unionFind;
+            this.labelled = labelled;
+        }
+
+        @Override
+        public void accept(int j) {
+            double[] p = data[seed];
+            double[] q = data[j];
+            // Same expression as the reference loop, so ties resolve identically.
+            if (Math.sqrt(Math.pow(p[0] - q[0], 2) + Math.pow(p[1] - q[1], 2)) <= reachRadius[seed] + reachRadius[j]) {
+                labelled[j] = true;
+                unionFind.union(seed, j);
+            }
+        }
+    }
+}
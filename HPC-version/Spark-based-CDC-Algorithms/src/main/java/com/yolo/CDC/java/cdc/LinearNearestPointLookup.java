@@ -0,0 +1,41 @@
+package com.yolo.CDC.java.cdc;
+
+/**
+ * {@link NearestPointLookup} that scans the whole target subset for every
+ * query. Kept as the reference for {@link IndexNearestPointLookup}.
+ */
+public class LinearNearestPointLookup implements NearestPointLookup {
+    private final double[][] data;
+    private final int[] targetIds;
+
+    public LinearNearestPointLookup(double[][] data, int[] targetIds) {
+        this.data = data;
+        this.targetIds = targetIds;
+    }
+
+    @Override
+    public void nearest(int[] queryIds, int[] nearestIds, double[] nearestDistances) {
+        if (targetIds.length == 0) {
+            return;
+        }
+        for (int q = 0; q < queryIds.length; q++) {
+            double[] query = data[queryIds[q]];
+            double best = Double.MAX_VALUE;
+            int bestId = -1;
+            for (int id : targetIds) {
+                double[] target = data[id];
+                double distance = 0;
+                for (int d = 0; d < query.length; d++) {
+                    double diff = query[d] - target[d];
+                    distance += diff * diff;
+                }
+                if (bestId < 0 || distance < best) {
+                    best = distance;
+                    bestId = id;
+                }
+            }
+            nearestIds[q] = bestId;
+            nearestDistances[q] = best;
+        }
+    }
+}
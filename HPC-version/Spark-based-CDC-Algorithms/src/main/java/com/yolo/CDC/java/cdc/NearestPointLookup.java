@@ -0,0 +1,42 @@
+package com.yolo.CDC.java.cdc;
+
+/**
+ * Nearest-point queries against a fixed subset of a data set, used by the
+ * reachable-distance stage of CDC to find the nearest point of the opposite
+ * class (border for inner points, inner for border points).
+ * <p>
+ * Target points are addressed by their global id. When several targets are
+ * equally near, the one with the lowest id is returned, which is what a
+ * sequential scan in id order yields.
+ */
+public interface NearestPointLookup {
+    String KD_TREE_SINGLE = "KDTreeSingle";
+    String LINEAR = "Linear";
+
+    /**
+     * For every query point, stores the global id of the nearest target point
+     * and its squared Euclidean distance. Entries are left untouched when the
+     * target subset is empty.
+     *
+     * @param queryIds         global ids of the query points
+     * @param nearestIds       output, one entry per query
+     * @param nearestDistances output, one entry per query
+     */
+    void nearest(int[] queryIds, int[] nearestIds, double[] nearestDistances);
+
+    /**
+     * @param type      {@link #KD_TREE_SINGLE} or {@link #LINEAR}
+     * @param data      the full data set, indexed by global id
+     * @param targetIds global ids of the target subset, in increasing order
+     */
+    static NearestPointLookup create(String type, double[][] data, int[] targetIds) {
+        switch (type) {
+            case KD_TREE_SINGLE:
+                return new IndexNearestPointLookup(data, targetIds);
+            case LINEAR:
+                return new LinearNearestPointLookup(data, targetIds);
+            default:
+                throw new IllegalArgumentException("Unknown nearest point lookup: " + type);
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package com.yolo.CDC.java.cdc;
+
+import com.yolo.CDC.java.rdd.CDCPoint;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.index.strtree.STRtree;
+
+import java.io.Serializable;
+import java.util.List;
+
+/**
+ * Compact description of a cluster found inside one partition, for the
+ * driver-side merge of the clusters of all partitions.
+ * <p>
+ * Two partial clusters are merged when the reachable circles of their
+ * representatives (their points with the largest reachable distance)
+ * overlap. {@link #label} finds the merged clusters through an
+ * {@link STRtree} over the envelopes of the partial clusters, so only the
+ * summaries, not the points, have to reach the driver.
+ */
+public class PartialClusterSummary implements Serializable {
+    private final int clusterId;
+    private final int partitionId;
+    private final double x;
+    private final double y;
+    private final double maxReachDistance;
+    private final Envelope envelope;
+    private final long count;
+
+    private PartialClusterSummary(int clusterId, int partitionId, double x, double y, double maxReachDistance,
+                                  Envelope envelope, long count) {
+        this.clusterId = clusterId;
+        this.partitionId = partitionId;
+        this.x = x;
+        this.y = y;
+        this.maxReachDistance = maxReachDistance;
+        this.envelope = envelope;
+        this.count = count;
+    }
+
+    /**
+     * Summary of a partial cluster holding a single point.
+     */
+    public static PartialClusterSummary of(CDCPoint point, int partitionId) {
+        return new PartialClusterSummary(point.getClusterID(), partitionId, point.getX(), point.getY(),
+                point.getReachDistance(), new Envelope(point.getX(), point.getX(), point.getY(), point.getY()), 1);
+    }
+
+    /**
+     * Summary of the union of two parts of the same partial cluster. On equal
+     * reachable distances the representative of {@code b} is kept, as the
+     * last of the points sorted by reachable distance would be.
+     */
+    public static PartialClusterSummary merge(PartialClusterSummary a, PartialClusterSummary b) {
+        Envelope envelope = new Envelope(a.envelope);
+        envelope.expandToInclude(b.envelope);
+        PartialClusterSummary representative = b.maxReachDistance >= a.maxReachDistance ? b : a;
+        return new PartialClusterSummary(a.clusterId, a.partitionId, representative.x, representative.y,
+                representative.maxReachDistance, envelope, a.count + b.count);
+    }
+
+    private boolean reaches(PartialClusterSummary other) {
+        // Same expression as the reference loop, so ties resolve identically.
+        double distanceSquared = Math.pow(x - other.x, 2) + Math.pow(y - other.y, 2);
+        return Math.sqrt(distanceSquared) <= Math.sqrt(maxReachDistance) + Math.sqrt(other.maxReachDistance);
+    }
+
+    /**
+     * Merges the partial clusters whose representatives reach each other,
+     * transitively.
+     *
+     * @param summaries partial clusters; the first one of each merged cluster
+     *                  gives its label
+     * @return the label of every partial cluster: -1, -2, ... in the order in
+     * which the merged clusters are first met
+     */
+    public static int[] label(PartialClusterSummary[] summaries) {
+        int n = summaries.length;
+        STRtree tree = new STRtree();
+        double maxReachRadius = 0;
+        for (int i = 0; i < n; i++) {
+            tree.insert(summaries[i].envelope, i);
+            maxReachRadius = Math.max(maxReachRadius, Math.sqrt(summaries[i].maxReachDistance));
+        }
+        tree.build();
+
+        int[] labels = new int[n];
+        int[] queue = new int[n];
+        int cluster = -1;
+        for (int start = 0; start < n; start++) {
+            if (labels[start] != 0) {
+                continue;
+            }
+            labels[start] = cluster;
+            queue[0] = start;
+            int head = 0;
+            int tail = 1;
+            while (head < tail) {
+                PartialClusterSummary summary = summaries[queue[head++]];
+                // A representative lies in its cluster's envelope, so every
+                // reachable one is found within r + max r of this one; padded
+                // by a few ulps so rounding cannot drop one exactly on it.
+                double reach = Math.sqrt(summary.maxReachDistance) + maxReachRadius;
+                Envelope search = new Envelope(summary.x, summary.x, summary.y, summary.y);
+                search.expandBy(reach + 4 * Math.ulp(Math.max(Math.abs(summary.x), Math.abs(summary.y)) + reach));
+                @SuppressWarnings("unchecked")
+                List<Integer> candidates = tree.query(search);
+                for (int j : candidates) {
+                    if (labels[j] == 0 && summary.reaches(summaries[j])) {
+                        labels[j] = cluster;
+                        queue[tail++] = j;
+                    }
+                }
+            }
+            cluster--;
+        }
+        return labels;
+    }
+
+    public int getClusterId() {
+        return clusterId;
+    }
+
+    public int getPartitionId() {
+        return partitionId;
+    }
+
+    public double getX() {
+        return x;
+    }
+
+    public double getY() {
+        return y;
+    }
+
+    public double getMaxReachDistance() {
+        return maxReachDistance;
+    }
+
+    public Envelope getEnvelope() {
+        return envelope;
+    }
+
+    public long getCount() {
+        return count;
+    }
+}
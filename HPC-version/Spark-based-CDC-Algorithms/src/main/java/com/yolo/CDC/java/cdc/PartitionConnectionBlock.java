@@ -0,0 +1,610 @@
+package com.yolo.CDC.java.cdc;
+
+import com.yolo.CDC.java.index.UniformGrid2D;
+import com.yolo.CDC.java.utils.UnionFind;
+import org.locationtech.jts.geom.Envelope;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The inner points of one spatial partition, for the distributed connection
+ * stage of CDC.
+ * <p>
+ * Two inner points are linked when their reachable circles overlap,
+ * {@code dist(i, j) <= sqrt(r_i) + sqrt(r_j)}. Every partition sends its
+ * points as {@link Probes} to the partitions whose points they may overlap,
+ * so {@link #link} finds all the links of the points of a partition, also
+ * those to other partitions.
+ * <p>
+ * The links are resolved as {@link InnerPointConnector} does on one node: in
+ * index order, a point that no earlier seed has reached becomes a seed and is
+ * joined to every point it overlaps. Whether a point is a seed depends only
+ * on its lower neighbours, so {@link #sweep} settles every point whose lower
+ * neighbours are settled, and the partitions exchange the status of their
+ * boundary points ({@link StatusMessages}) until every point is settled.
+ * {@link #cluster} then joins the seed links inside the partition; the seed
+ * links that cross partitions ({@link #clusterEdges}) are merged by
+ * connected components outside. The label of a cluster is the id of its
+ * last seed, which orders the clusters as the marks of {@code CDC_v2}.
+ */
+public class PartitionConnectionBlock implements Serializable {
+    private static final byte UNDECIDED = 0;
+    private static final byte SEED = 1;
+    private static final byte NOT_SEED = 2;
+
+    private final int partitionId;
+    private final int numPartitions;
+    // Index ids of the inner points, ascending.
+    private final int[] ids;
+    // Links of point v at [linkStart[v], linkStart[v + 1]): a local index,
+    // or -(r + 1) for the r-th remote point.
+    private final int[] linkStart;
+    private final int[] links;
+    private final int[] remoteIds;
+    private final int[] remotePartitions;
+
+    private final byte[] status;
+    private final byte[] remoteStatus;
+    // Status before the last sweep, to tell which points it settled.
+    private final byte[] previousStatus;
+    private final int undecided;
+
+    // Set by cluster(): smallest id of the local cluster of every point and
+    // the id of the last seed of that cluster, -1 if it has no local seed.
+    private final int[] clusterOf;
+    private final int[] clusterLabel;
+
+    private PartitionConnectionBlock(PartitionConnectionBlock block, byte[] status, byte[] remoteStatus,
+                                     byte[] previousStatus, int[] clusterOf, int[] clusterLabel) {
+        this.partitionId = block.partitionId;
+        this.numPartitions = block.numPartitions;
+        this.ids = block.ids;
+        this.linkStart = block.linkStart;
+        this.links = block.links;
+        this.remoteIds = block.remoteIds;
+        this.remotePartitions = block.remotePartitions;
+        this.status = status;
+        this.remoteStatus = remoteStatus;
+        this.previousStatus = previousStatus;
+        this.clusterOf = clusterOf;
+        this.clusterLabel = clusterLabel;
+        int count = 0;
+        for (byte s : status) {
+            if (s == UNDECIDED) {
+                count++;
+            }
+        }
+        this.undecided = count;
+    }
+
+    private PartitionConnectionBlock(int partitionId, int numPartitions, int[] ids,
+                                     int[] linkStart, int[] links, int[] remoteIds, int[] remotePartitions) {
+        this.partitionId = partitionId;
+        this.numPartitions = numPartitions;
+        this.ids = ids;
+        this.linkStart = linkStart;
+        this.links = links;
+        this.remoteIds = remoteIds;
+        this.remotePartitions = remotePartitions;
+        this.status = new byte[ids.length];
+        this.remoteStatus = new byte[remoteIds.length];
+        this.previousStatus = status;
+        this.clusterOf = null;
+        this.clusterLabel = null;
+        this.undecided = ids.length;
+    }
+
+    /**
+     * Same expression as the reference loop, so ties resolve identically; it
+     * is symmetric in the two points.
+     */
+    private static boolean overlaps(double x1, double y1, double r1, double x2, double y2, double r2) {
+        return Math.sqrt(Math.pow(x1 - x2, 2) + Math.pow(y1 - y2, 2)) <= r1 + r2;
+    }
+
+    /**
+     * Splits the inner points of a partition into the probes for every
+     * partition whose points they may overlap.
+     *
+     * @param block          points of this partition; only the inner ones are sent
+     * @param envelopes      envelope of the inner points of every partition
+     * @param maxReachRadius largest reachable radius in every partition
+     * @param partitionId    id of this partition
+     * @return the probes for partition j at index j; null where there are none
+     */
+    public static Probes[] probes(CDCPartitionBlock block, Envelope[] envelopes, double[] maxReachRadius,
+                                  int partitionId) {
+        int n = block.size();
+        double[] xy = block.getXy();
+        double[] reachDistance = block.getReach();
+        int[] counts = new int[envelopes.length];
+        boolean[][] sendTo = new boolean[envelopes.length][];
+        for (int i = 0; i < n; i++) {
+            if (!block.isInner(i)) {
+                continue;
+            }
+            double x = xy[2 * i];
+            double y = xy[2 * i + 1];
+            double r = Math.sqrt(reachDistance[i]);
+            for (int j = 0; j < envelopes.length; j++) {
+                if (j == partitionId || envelopes[j] == null || envelopes[j].isNull()) {
+                    continue;
+                }
+                // Padded so that rounding can never drop an overlap lying
+                // exactly on the circle; link() makes the exact test.
+                double reach = (r + maxReachRadius[j]) * (1 + 1e-12) + 1e-12;
+                if (distanceSquared(x, y, envelopes[j]) <= reach * reach) {
+                    if (sendTo[j] == null) {
+                        sendTo[j] = new boolean[n];
+                    }
+                    sendTo[j][i] = true;
+                    counts[j]++;
+                }
+            }
+        }
+        Probes[] probes = new Probes[envelopes.length];
+        for (int j = 0; j < envelopes.length; j++) {
+            if (counts[j] == 0) {
+                continue;
+            }
+            Probes p = new Probes(partitionId, counts[j]);
+            int c = 0;
+            for (int i = 0; i < n; i++) {
+                if (sendTo[j][i]) {
+                    p.ids[c] = block.getIndexId()[i];
+                    p.xy[2 * c] = xy[2 * i];
+                    p.xy[2 * c + 1] = xy[2 * i + 1];
+                    p.reachRadius[c] = Math.sqrt(reachDistance[i]);
+                    c++;
+                }
+            }
+            probes[j] = p;
+        }
+        return probes;
+    }
+
+    private static double distanceSquared(double x, double y, Envelope envelope) {
+        double dx = Math.max(0, Math.max(envelope.getMinX() - x, x - envelope.getMaxX()));
+        double dy = Math.max(0, Math.max(envelope.getMinY() - y, y - envelope.getMaxY()));
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Builds the block of a partition and finds every link of its inner
+     * points, among themselves and to the probes received from the other
+     * partitions.
+     *
+     * @param block         points of this partition
+     * @param partitionId   id of this partition
+     * @param numPartitions number of partitions
+     * @param probes        every probe set sent to this partition
+     */
+    public static PartitionConnectionBlock link(CDCPartitionBlock block, int partitionId, int numPartitions,
+                                                List<Probes> probes) {
+        double[] xy = block.getXy();
+        double[] reachDistance = block.getReach();
+        int n = 0;
+        for (int row = 0; row < block.size(); row++) {
+            if (block.isInner(row)) {
+                n++;
+            }
+        }
+        // The rows of a block are sorted by id, so are its inner points.
+        int[] ids = new int[n];
+        double[][] coordinates = new double[n][];
+        double[] radius = new double[n];
+        int[] all = new int[n];
+        double maxRadius = 0;
+        for (int row = 0, i = 0; row < block.size(); row++) {
+            if (!block.isInner(row)) {
+                continue;
+            }
+            ids[i] = block.getIndexId()[row];
+            coordinates[i] = new double[]{xy[2 * row], xy[2 * row + 1]};
+            radius[i] = Math.sqrt(reachDistance[row]);
+            all[i] = i;
+            if (radius[i] > maxRadius) {
+                maxRadius = radius[i];
+            }
+            i++;
+        }
+        final double localMaxRadius = maxRadius;
+        UniformGrid2D grid = new UniformGrid2D(coordinates, all, localMaxRadius);
+
+        // Links as (local point, target) pairs, target encoded as in 'links'
+        // but with remote points numbered in arrival order for now.
+        final LinkList found = new LinkList();
+        for (int v = 0; v < n; v++) {
+            final int from = v;
+            grid.forEachCandidate(coordinates[v][0], coordinates[v][1], radius[v] + localMaxRadius, j -> {
+                if (j != from && overlaps(coordinates[from][0], coordinates[from][1], radius[from],
+                        coordinates[j][0], coordinates[j][1], radius[j])) {
+                    found.add(from, j);
+                }
+            });
+        }
+        int remoteCount = 0;
+        for (Probes p : probes) {
+            remoteCount += p.size();
+        }
+        int[] arrivalIds = new int[remoteCount];
+        int[] arrivalPartitions = new int[remoteCount];
+        int r = 0;
+        for (Probes p : probes) {
+            for (int i = 0; i < p.size(); i++, r++) {
+                final int remote = r;
+                final double x = p.xy[2 * i];
+                final double y = p.xy[2 * i + 1];
+                final double reach = p.reachRadius[i];
+                arrivalIds[r] = p.ids[i];
+                arrivalPartitions[r] = p.partitionId;
+                grid.forEachCandidate(x, y, reach + localMaxRadius, j -> {
+                    if (overlaps(x, y, reach, coordinates[j][0], coordinates[j][1], radius[j])) {
+                        found.add(j, -(remote + 1));
+                    }
+                });
+            }
+        }
+
+        // Keep only the remote points that are linked, sorted by id.
+        boolean[] linked = new boolean[remoteCount];
+        for (int e = 0; e < found.size; e++) {
+            if (found.targets[e] < 0) {
+                linked[-found.targets[e] - 1] = true;
+            }
+        }
+        long[] keys = new long[remoteCount];
+        int linkedCount = 0;
+        for (int i = 0; i < remoteCount; i++) {
+            if (linked[i]) {
+                keys[linkedCount++] = ((long) arrivalIds[i] << 32) | i;
+            }
+        }
+        keys = Arrays.copyOf(keys, linkedCount);
+        Arrays.sort(keys);
+        int[] remoteIds = new int[linkedCount];
+        int[] remotePartitions = new int[linkedCount];
+        int[] renumber = new int[remoteCount];
+        for (int i = 0; i < linkedCount; i++) {
+            int arrival = (int) keys[i];
+            remoteIds[i] = arrivalIds[arrival];
+            remotePartitions[i] = arrivalPartitions[arrival];
+            renumber[arrival] = i;
+        }
+
+        int[] linkStart = new int[n + 1];
+        for (int e = 0; e < found.size; e++) {
+            linkStart[found.sources[e] + 1]++;
+        }
+        for (int v = 0; v < n; v++) {
+            linkStart[v + 1] += linkStart[v];
+        }
+        int[] fill = Arrays.copyOf(linkStart, n);
+        int[] links = new int[found.size];
+        for (int e = 0; e < found.size; e++) {
+            int target = found.targets[e];
+            links[fill[found.sources[e]]++] = target >= 0 ? target : -(renumber[-target - 1] + 1);
+        }
+        return new PartitionConnectionBlock(partitionId, numPartitions, ids, linkStart, links,
+                remoteIds, remotePartitions);
+    }
+
+    private int linkId(int target) {
+        return target >= 0 ? ids[target] : remoteIds[-target - 1];
+    }
+
+    private byte linkStatus(byte[] status, byte[] remoteStatus, int target) {
+        return target >= 0 ? status[target] : remoteStatus[-target - 1];
+    }
+
+    /**
+     * Applies the statuses received from the other partitions and settles,
+     * in index order, every point whose lower neighbours are all settled: it
+     * is not a seed if one of them is a seed, and a seed otherwise.
+     *
+     * @param received every status message sent to this partition
+     * @return the block after the sweep; this block is left unchanged
+     */
+    public PartitionConnectionBlock sweep(List<StatusMessages> received) {
+        byte[] nextStatus = status.clone();
+        byte[] nextRemoteStatus = receive(received);
+        for (int v = 0; v < ids.length; v++) {
+            if (nextStatus[v] != UNDECIDED) {
+                continue;
+            }
+            byte decision = SEED;
+            for (int e = linkStart[v]; e < linkStart[v + 1]; e++) {
+                if (linkId(links[e]) > ids[v]) {
+                    continue;
+                }
+                byte s = linkStatus(nextStatus, nextRemoteStatus, links[e]);
+                if (s == SEED) {
+                    decision = NOT_SEED;
+                    break;
+                }
+                if (s == UNDECIDED) {
+                    decision = UNDECIDED;
+                }
+            }
+            nextStatus[v] = decision;
+        }
+        return new PartitionConnectionBlock(this, nextStatus, nextRemoteStatus, status, null, null);
+    }
+
+    private byte[] receive(List<StatusMessages> received) {
+        byte[] nextRemoteStatus = remoteStatus.clone();
+        for (StatusMessages m : received) {
+            for (int i = 0; i < m.ids.length; i++) {
+                int r = Arrays.binarySearch(remoteIds, m.ids[i]);
+                if (r >= 0) {
+                    nextRemoteStatus[r] = m.status[i];
+                }
+            }
+        }
+        return nextRemoteStatus;
+    }
+
+    /**
+     * The statuses settled by the sweep that produced this block, for the
+     * partitions holding a linked point: the higher points need them to be
+     * settled, the lower ones to know their seed links in {@link #cluster}.
+     *
+     * @return the messages for partition j at index j; null where there are none
+     */
+    public StatusMessages[] statusMessages() {
+        int[] counts = new int[numPartitions];
+        // Last point counted for every partition, so each point is sent once.
+        int[] lastSent = new int[numPartitions];
+        Arrays.fill(lastSent, -1);
+        for (int pass = 0; pass < 2; pass++) {
+            StatusMessages[] messages = pass == 0 ? null : new StatusMessages[numPartitions];
+            if (pass == 1) {
+                for (int j = 0; j < numPartitions; j++) {
+                    if (counts[j] > 0) {
+                        messages[j] = new StatusMessages(counts[j]);
+                        counts[j] = 0;
+                    }
+                }
+                Arrays.fill(lastSent, -1);
+            }
+            for (int v = 0; v < ids.length; v++) {
+                if (previousStatus[v] != UNDECIDED || status[v] == UNDECIDED) {
+                    continue;
+                }
+                for (int e = linkStart[v]; e < linkStart[v + 1]; e++) {
+                    int target = links[e];
+                    if (target >= 0) {
+                        continue;
+                    }
+                    int j = remotePartitions[-target - 1];
+                    if (lastSent[j] == v) {
+                        continue;
+                    }
+                    lastSent[j] = v;
+                    if (pass == 1) {
+                        messages[j].ids[counts[j]] = ids[v];
+                        messages[j].status[counts[j]] = status[v];
+                    }
+                    counts[j]++;
+                }
+            }
+            if (pass == 1) {
+                return messages;
+            }
+        }
+        throw new IllegalStateException();
+    }
+
+    /**
+     * Number of points of the partition not settled yet.
+     */
+    public int undecidedCount() {
+        return undecided;
+    }
+
+    /**
+     * Joins every settled seed to the points of this partition it overlaps.
+     *
+     * @param received the status messages of the last sweep
+     * @return the block with its local clusters; this block is left unchanged
+     */
+    public PartitionConnectionBlock cluster(List<StatusMessages> received) {
+        if (undecided > 0) {
+            throw new IllegalStateException(undecided + " points are not settled yet");
+        }
+        byte[] lastRemoteStatus = receive(received);
+        int n = ids.length;
+        UnionFind unionFind = new UnionFind(n);
+        for (int v = 0; v < n; v++) {
+            if (status[v] != SEED) {
+                continue;
+            }
+            for (int e = linkStart[v]; e < linkStart[v + 1]; e++) {
+                if (links[e] >= 0) {
+                    unionFind.union(v, links[e]);
+                }
+            }
+        }
+        int[] rootMin = new int[n];
+        int[] rootLabel = new int[n];
+        Arrays.fill(rootLabel, -1);
+        // Ids ascend with v, so the first point of a set is its smallest and
+        // the last seed is its label.
+        for (int v = n - 1; v >= 0; v--) {
+            int root = unionFind.find(v);
+            rootMin[root] = ids[v];
+        }
+        for (int v = 0; v < n; v++) {
+            if (status[v] == SEED) {
+                rootLabel[unionFind.find(v)] = ids[v];
+            }
+        }
+        int[] of = new int[n];
+        int[] label = new int[n];
+        for (int v = 0; v < n; v++) {
+            int root = unionFind.find(v);
+            of[v] = rootMin[root];
+            label[v] = rootLabel[root];
+        }
+        return new PartitionConnectionBlock(this, status, lastRemoteStatus, status, of, label);
+    }
+
+    private boolean isBoundary(int v) {
+        for (int e = linkStart[v]; e < linkStart[v + 1]; e++) {
+            if (links[e] < 0 && (status[v] == SEED || remoteStatus[-links[e] - 1] == SEED)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Edges of the graph whose connected components are the clusters,
+     * flattened as (a, b) pairs of point ids: a point joined by a seed link to
+     * another partition is connected to its local cluster, named by the
+     * cluster's smallest id, and the local cluster to the linked point.
+     */
+    public int[] clusterEdges() {
+        LinkList edges = new LinkList();
+        for (int v = 0; v < ids.length; v++) {
+            if (!isBoundary(v)) {
+                continue;
+            }
+            if (ids[v] != clusterOf[v]) {
+                edges.add(ids[v], clusterOf[v]);
+            }
+            for (int e = linkStart[v]; e < linkStart[v + 1]; e++) {
+                int target = links[e];
+                if (target < 0 && (status[v] == SEED || remoteStatus[-target - 1] == SEED)) {
+                    edges.add(clusterOf[v], remoteIds[-target - 1]);
+                }
+            }
+        }
+        int[] flat = new int[2 * edges.size];
+        for (int e = 0; e < edges.size; e++) {
+            flat[2 * e] = edges.sources[e];
+            flat[2 * e + 1] = edges.targets[e];
+        }
+        return flat;
+    }
+
+    /**
+     * The local clusters that have an edge in {@link #clusterEdges}, flattened
+     * as (cluster, label) pairs; the label is -1 for a cluster whose seeds
+     * are all in other partitions.
+     */
+    public int[] boundaryClusters() {
+        Map<Integer, Integer> labels = new HashMap<>();
+        for (int v = 0; v < ids.length; v++) {
+            if (isBoundary(v)) {
+                labels.put(clusterOf[v], clusterLabel[v]);
+            }
+        }
+        int[] flat = new int[2 * labels.size()];
+        int c = 0;
+        for (Map.Entry<Integer, Integer> entry : labels.entrySet()) {
+            flat[c++] = entry.getKey();
+            flat[c++] = entry.getValue();
+        }
+        return flat;
+    }
+
+    /**
+     * The cluster label of every point: the merged label for the clusters
+     * given, the local label for the others.
+     *
+     * @param clusters boundary clusters of this partition
+     * @param labels   their labels after the merge
+     * @return the labels of the points, in the order of {@link #getIds}
+     */
+    public int[] label(int[] clusters, int[] labels) {
+        Map<Integer, Integer> merged = new HashMap<>();
+        for (int i = 0; i < clusters.length; i++) {
+            merged.put(clusters[i], labels[i]);
+        }
+        int[] pointLabels = new int[ids.length];
+        for (int v = 0; v < ids.length; v++) {
+            Integer label = merged.get(clusterOf[v]);
+            pointLabels[v] = label != null ? label : clusterLabel[v];
+        }
+        return pointLabels;
+    }
+
+    public int getPartitionId() {
+        return partitionId;
+    }
+
+    /**
+     * Index ids of the inner points of the partition, ascending.
+     */
+    public int[] getIds() {
+        return ids;
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    /**
+     * Growable list of (source, target) int pairs.
+     */
+    private static final class LinkList {
+        int[] sources = new int[16];
+        int[] targets = new int[16];
+        int size;
+
+        void add(int source, int target) {
+            if (size == sources.length) {
+                sources = Arrays.copyOf(sources, 2 * size);
+                targets = Arrays.copyOf(targets, 2 * size);
+            }
+            sources[size] = source;
+            targets[size] = target;
+            size++;
+        }
+    }
+
+    /**
+     * Inner points of one partition sent to another to find the links
+     * between them.
+     */
+    public static class Probes implements Serializable {
+        final int partitionId;
+        final int[] ids;
+        final double[] xy;
+        final double[] reachRadius;
+
+        Probes(int partitionId, int size) {
+            this.partitionId = partitionId;
+            this.ids = new int[size];
+            this.xy = new double[2 * size];
+            this.reachRadius = new double[size];
+        }
+
+        public int size() {
+            return ids.length;
+        }
+    }
+
+    /**
+     * Statuses of points settled in one partition, for a partition holding
+     * points linked to them.
+     */
+    public static class StatusMessages implements Serializable {
+        final int[] ids;
+        final byte[] status;
+
+        StatusMessages(int size) {
+            this.ids = new int[size];
+            this.status = new byte[size];
+        }
+
+        public int size() {
+            return ids.length;
+        }
+    }
+}
@@ -0,0 +1,395 @@
+package com.yolo.CDC.java.cdc;
+
+import com.yolo.CDC.java.knnsearch.index.IndexBase;
+import com.yolo.CDC.java.knnsearch.index.IndexKDTreeSingle;
+import com.yolo.CDC.java.knnsearch.index.SearchParamsBase;
+import com.yolo.CDC.java.knnsearch.metric.MetricEuclideanSquared;
+import com.yolo.CDC.java.partitioner.DedupParams;
+import org.locationtech.jts.geom.Envelope;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The points of one spatial partition and their k nearest neighbours, for the
+ * distributed kNN stage.
+ * <p>
+ * {@link #search} answers every point from an index over the partition alone.
+ * A local k-th neighbour distance is an upper bound of the true one, so a
+ * point whose local k-th distance does not reach the envelope of any other
+ * partition already has its exact neighbours. The others are the boundary
+ * points; {@link #haloEnvelopes} covers their k-th neighbour circles in each
+ * partition they reach, the points of those partitions inside it are shipped
+ * to this one as ghosts, and {@link #resolve} merges the nearest ghosts into
+ * the local lists. When the partitioning already copied the points near
+ * each extent into it, {@link #resolveOwned} needs no exchange at all. Both
+ * return the {@link CDCPartitionBlock} of the partition with its neighbours
+ * and DCM values.
+ * <p>
+ * Distances are squared Euclidean and ties are broken by the lower index id,
+ * so the graph is the same as an exact search over one global index.
+ */
+public class PartitionKNNBlock implements Serializable {
+    private final int[] ids;
+    private final double[] xy;
+    private final int k;
+    // Neighbours of point i at [i * k, i * k + k), nearest first; -1 and
+    // Double.MAX_VALUE when the partition has fewer than k points.
+    private final int[] neighbors;
+    private final double[] distances;
+    private final Envelope envelope;
+    private int beyondHalo;
+
+    private PartitionKNNBlock(int[] ids, double[] xy, int k) {
+        int n = ids.length;
+        this.k = k;
+        this.ids = ids;
+        this.xy = xy;
+        this.neighbors = new int[n * k];
+        this.distances = new double[n * k];
+        this.envelope = new Envelope();
+        for (int i = 0; i < n; i++) {
+            envelope.expandToInclude(xy[2 * i], xy[2 * i + 1]);
+        }
+    }
+
+    /**
+     * Builds the block of one partition and searches the k nearest
+     * neighbours of every point among the points of the partition.
+     */
+    public static PartitionKNNBlock search(CDCPartitionBlock points, int k) {
+        if (k < 1) {
+            throw new IllegalArgumentException("k must be positive: " + k);
+        }
+        // Rows of a partition block are in id order, so the index's
+        // lowest-position tie break is also the lowest id.
+        PartitionKNNBlock block = new PartitionKNNBlock(points.getIndexId(), points.getXy(), k);
+        int n = points.size();
+        if (n == 0) {
+            return block;
+        }
+        // The queries are the indexed points themselves: one dual-tree
+        // traversal answers them all.
+        IndexKDTreeSingle index = new IndexKDTreeSingle(new MetricEuclideanSquared(), block.xy, 2,
+                new IndexKDTreeSingle.BuildParams());
+        index.buildIndex();
+        index.allKnnDualTree(k, block.neighbors, block.distances);
+        for (int j = 0; j < n * k; j++) {
+            if (block.neighbors[j] >= 0) {
+                block.neighbors[j] = block.ids[block.neighbors[j]];
+            }
+        }
+        return block;
+    }
+
+    /**
+     * Bounding box of the points of the partition; a null envelope when it is
+     * empty.
+     */
+    public Envelope getEnvelope() {
+        return envelope;
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    private static double distanceSquared(double x, double y, Envelope envelope) {
+        double dx = Math.max(0, Math.max(envelope.getMinX() - x, x - envelope.getMaxX()));
+        double dy = Math.max(0, Math.max(envelope.getMinY() - y, y - envelope.getMaxY()));
+        return dx * dx + dy * dy;
+    }
+
+    /**
+     * Whether the local k-th neighbour circle of point i reaches the envelope
+     * of partition j.
+     */
+    private boolean reaches(int i, Envelope[] envelopes, int j) {
+        return envelopes[j] != null && !envelopes[j].isNull()
+                && distanceSquared(xy[2 * i], xy[2 * i + 1], envelopes[j]) <= distances[i * k + k - 1];
+    }
+
+    private boolean isBoundary(int i, Envelope[] envelopes, int partitionId) {
+        for (int j = 0; j < envelopes.length; j++) {
+            if (j != partitionId && reaches(i, envelopes, j)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * For every other partition j, an envelope that contains each point of j
+     * that may be among the k nearest neighbours of a point of this one: the
+     * union of the k-th neighbour circles of this partition that reach j.
+     *
+     * @param envelopes   envelope of every partition, indexed by partition id
+     * @param partitionId id of this partition
+     * @return the halo in partition j at index j; null where there is none
+     */
+    public Envelope[] haloEnvelopes(Envelope[] envelopes, int partitionId) {
+        Envelope[] halos = new Envelope[envelopes.length];
+        for (int i = 0; i < ids.length; i++) {
+            double reach = distances[i * k + k - 1];
+            // Padded so that rounding of the square root can never drop a
+            // point lying exactly on the circle.
+            double r = Math.sqrt(reach) * (1 + 1e-12) + 1e-12;
+            for (int j = 0; j < envelopes.length; j++) {
+                if (j == partitionId || !reaches(i, envelopes, j)) {
+                    continue;
+                }
+                if (reach == Double.MAX_VALUE) {
+                    // Fewer than k local points: any point may be a neighbour.
+                    halos[j] = new Envelope(envelopes[j]);
+                    continue;
+                }
+                if (halos[j] == null) {
+                    halos[j] = new Envelope();
+                }
+                halos[j].expandToInclude(xy[2 * i] - r, xy[2 * i + 1] - r);
+                halos[j].expandToInclude(xy[2 * i] + r, xy[2 * i + 1] + r);
+            }
+        }
+        return halos;
+    }
+
+    /**
+     * The points of this partition inside 'halo', or null if there are none.
+     */
+    public GhostPoints ghostsIn(Envelope halo) {
+        if (halo == null || !halo.intersects(envelope)) {
+            return null;
+        }
+        int count = 0;
+        int[] ghostIds = new int[ids.length];
+        double[] ghostXy = new double[2 * ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            if (halo.covers(xy[2 * i], xy[2 * i + 1])) {
+                ghostIds[count] = ids[i];
+                ghostXy[2 * count] = xy[2 * i];
+                ghostXy[2 * count + 1] = xy[2 * i + 1];
+                count++;
+            }
+        }
+        if (count == 0) {
+            return null;
+        }
+        return new GhostPoints(Arrays.copyOf(ghostIds, count), Arrays.copyOf(ghostXy, 2 * count));
+    }
+
+    /**
+     * Merges the ghosts received from the other partitions into the
+     * neighbour lists of the boundary points.
+     *
+     * @param envelopes   the envelopes passed to {@link #haloEnvelopes}
+     * @param partitionId id of this partition
+     * @param ghosts      every ghost set sent to this partition
+     * @return the points of the partition with their neighbours
+     */
+    public CDCPartitionBlock resolve(Envelope[] envelopes, int partitionId, List<GhostPoints> ghosts) {
+        GhostPoints all = GhostPoints.merge(ghosts);
+        int g = all.ids.length;
+        if (g > 0) {
+            IndexBase index = new IndexKDTreeSingle(new MetricEuclideanSquared(), all.xy, 2,
+                    new IndexKDTreeSingle.BuildParams());
+            index.buildIndex();
+            SearchParamsBase searchParams = new SearchParamsBase();
+            searchParams.maxNeighbors = Math.min(k, g);
+            int[] ghostNeighbors = new int[searchParams.maxNeighbors];
+            double[] ghostDistances = new double[searchParams.maxNeighbors];
+            int[] mergedNeighbors = new int[k];
+            double[] mergedDistances = new double[k];
+            double[] query = new double[2];
+            for (int i = 0; i < ids.length; i++) {
+                if (!isBoundary(i, envelopes, partitionId)) {
+                    continue;
+                }
+                query[0] = xy[2 * i];
+                query[1] = xy[2 * i + 1];
+                index.knnSearch(query, ghostNeighbors, ghostDistances, searchParams);
+                for (int j = 0; j < ghostNeighbors.length; j++) {
+                    ghostNeighbors[j] = all.ids[ghostNeighbors[j]];
+                }
+                merge(i, ghostNeighbors, ghostDistances, mergedNeighbors, mergedDistances);
+            }
+        }
+
+        int[] rows = new int[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            rows[i] = i;
+        }
+        return partitionBlock(rows, all);
+    }
+
+    /**
+     * For a partition that also holds a copy of every point within the halo
+     * distance of its extent (see
+     * {@link com.yolo.CDC.java.partitioner.SpatialPartitioner#placeObjectWithHalo}), keeps the local
+     * neighbours of the points this partition owns. A list whose k-th
+     * distance is within the halo distance is exact, as every missing point
+     * is farther than that from the extent; the owned points whose lists may
+     * miss points of other partitions are counted in
+     * {@link #getBeyondHaloCount()}.
+     *
+     * @param dedupParams the de-dup information of the partitioning
+     * @param partitionId id of this partition
+     * @return the owned points of the partition with their neighbours
+     */
+    public CDCPartitionBlock resolveOwned(DedupParams dedupParams, int partitionId) {
+        double haloDistance = dedupParams.getHaloDistance();
+        double haloSquared = haloDistance * haloDistance;
+        // The overflow partition has no extent, so nothing was copied into it.
+        boolean hasExtent = partitionId < dedupParams.getPartitionExtents().size();
+        int[] owned = new int[ids.length];
+        int count = 0;
+        beyondHalo = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (!dedupParams.isOwner(partitionId, xy[2 * i], xy[2 * i + 1])) {
+                continue;
+            }
+            if (!hasExtent || distances[i * k + k - 1] > haloSquared) {
+                beyondHalo++;
+            }
+            owned[count++] = i;
+        }
+        return partitionBlock(Arrays.copyOf(owned, count), null);
+    }
+
+    /**
+     * Number of owned points whose k-th neighbour found by the last
+     * {@link #resolveOwned} lies beyond the halo distance.
+     */
+    public int getBeyondHaloCount() {
+        return beyondHalo;
+    }
+
+    /**
+     * The given rows as a partition block with their neighbour ids, squared
+     * distances and the DCM values from the neighbour angles; neighbours
+     * that are not local are looked up in 'ghosts'.
+     */
+    private CDCPartitionBlock partitionBlock(int[] rows, GhostPoints ghosts) {
+        int m = rows.length;
+        int[] blockIds = new int[m];
+        double[] blockXy = new double[2 * m];
+        int[] blockNeighbors = new int[m * k];
+        double[] blockDistances = new double[m * k];
+        double[] dcm = new double[m];
+        DirectionCentrality centrality = new DirectionCentrality(k);
+        for (int r = 0; r < m; r++) {
+            int i = rows[r];
+            blockIds[r] = ids[i];
+            blockXy[2 * r] = xy[2 * i];
+            blockXy[2 * r + 1] = xy[2 * i + 1];
+            System.arraycopy(neighbors, i * k, blockNeighbors, r * k, k);
+            System.arraycopy(distances, i * k, blockDistances, r * k, k);
+            int j = 0;
+            for (; j < k && neighbors[i * k + j] >= 0; j++) {
+                int id = neighbors[i * k + j];
+                int local = Arrays.binarySearch(ids, id);
+                double nx, ny;
+                if (local >= 0) {
+                    nx = xy[2 * local];
+                    ny = xy[2 * local + 1];
+                } else {
+                    int ghost = Arrays.binarySearch(ghosts.ids, id);
+                    nx = ghosts.xy[2 * ghost];
+                    ny = ghosts.xy[2 * ghost + 1];
+                }
+                centrality.setAngle(j, nx - xy[2 * i], ny - xy[2 * i + 1]);
+            }
+            // Missing neighbours count as the point itself, at angle 0.
+            for (; j < k; j++) {
+                centrality.setAngle(j, 0, 0);
+            }
+            dcm[r] = centrality.dcm();
+        }
+        return new CDCPartitionBlock(k, blockIds, blockXy, blockNeighbors, blockDistances, dcm);
+    }
+
+    /**
+     * Replaces the neighbours of point i by the k smallest (distance, id)
+     * pairs of its local list and 'ghostNeighbors'; both are sorted.
+     */
+    private void merge(int i, int[] ghostNeighbors, double[] ghostDistances,
+                       int[] mergedNeighbors, double[] mergedDistances) {
+        int base = i * k;
+        int a = 0, b = 0;
+        for (int j = 0; j < k; j++) {
+            boolean takeLocal;
+            if (b >= ghostNeighbors.length) {
+                takeLocal = true;
+            } else if (a >= k || neighbors[base + a] < 0) {
+                takeLocal = false;
+            } else {
+                double da = distances[base + a];
+                double db = ghostDistances[b];
+                takeLocal = da < db || (da == db && neighbors[base + a] < ghostNeighbors[b]);
+            }
+            if (takeLocal) {
+                mergedNeighbors[j] = neighbors[base + a];
+                mergedDistances[j] = distances[base + a];
+                a++;
+            } else {
+                mergedNeighbors[j] = ghostNeighbors[b];
+                mergedDistances[j] = ghostDistances[b];
+                b++;
+            }
+        }
+        System.arraycopy(mergedNeighbors, 0, neighbors, base, k);
+        System.arraycopy(mergedDistances, 0, distances, base, k);
+    }
+
+    /**
+     * Points of one partition copied into the halo of another, sorted by
+     * index id.
+     */
+    public static class GhostPoints implements Serializable {
+        final int[] ids;
+        final double[] xy;
+
+        GhostPoints(int[] ids, double[] xy) {
+            this.ids = ids;
+            this.xy = xy;
+        }
+
+        public int size() {
+            return ids.length;
+        }
+
+        /**
+         * Concatenates ghost sets into one, sorted by index id.
+         */
+        static GhostPoints merge(List<GhostPoints> ghosts) {
+            int total = 0;
+            for (GhostPoints g : ghosts) {
+                total += g.ids.length;
+            }
+            long[] keys = new long[total];
+            int[] ids = new int[total];
+            double[] xy = new double[2 * total];
+            int c = 0;
+            for (GhostPoints g : ghosts) {
+                System.arraycopy(g.ids, 0, ids, c, g.ids.length);
+                System.arraycopy(g.xy, 0, xy, 2 * c, g.xy.length);
+                c += g.ids.length;
+            }
+            // Sort positions by id; ids are non-negative, so (id << 32 | pos)
+            // orders by id.
+            for (int i = 0; i < total; i++) {
+                keys[i] = ((long) ids[i] << 32) | i;
+            }
+            Arrays.sort(keys);
+            int[] sortedIds = new int[total];
+            double[] sortedXy = new double[2 * total];
+            for (int i = 0; i < total; i++) {
+                int p = (int) keys[i];
+                sortedIds[i] = ids[p];
+                sortedXy[2 * i] = xy[2 * p];
+                sortedXy[2 * i + 1] = xy[2 * p + 1];
+            }
+            return new GhostPoints(sortedIds, sortedXy);
+        }
+    }
+}
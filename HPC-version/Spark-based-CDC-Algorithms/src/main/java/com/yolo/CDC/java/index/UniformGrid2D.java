@@ -0,0 +1,133 @@
+package com.yolo.CDC.java.index;
+
+import java.io.Serializable;
+import java.util.function.IntConsumer;
+
+/**
+ * Uniform grid over a subset of 2-D points in CSR layout: {@code cellStart}
+ * holds the offset of every cell in the packed {@code cellPoints} array, so a
+ * range query touches only the cells overlapping the query square and scans
+ * their point ids sequentially.
+ * <p>
+ * The grid only returns candidates; callers apply their own exact distance
+ * test, which lets the same grid serve queries with per-point radii.
+ */
+public class UniformGrid2D implements Serializable {
+    // Upper bound on cells per point, so a tiny cell size on a wide extent
+    // cannot blow up the offset array.
+    private static final int MAX_CELLS_PER_POINT = 4;
+
+    private final double minX;
+    private final double minY;
+    private final double cellSize;
+    private final int cols;
+    private final int rows;
+    private final int[] cellStart;
+    private final int[] cellPoints;
+
+    /**
+     * @param data     point coordinates, indexed by point id
+     * @param pointIds ids of the points to insert
+     * @param cellSize requested cell width; enlarged when the extent would
+     *                 otherwise need too many cells
+     */
+    public UniformGrid2D(double[][] data, int[] pointIds, double cellSize) {
+        int n = pointIds.length;
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY;
+        for (int id : pointIds) {
+            double x = data[id][0];
+            double y = data[id][1];
+            if (x < minX) minX = x;
+            if (x > maxX) maxX = x;
+            if (y < minY) minY = y;
+            if (y > maxY) maxY = y;
+        }
+        if (n == 0) {
+            minX = minY = maxX = maxY = 0;
+        }
+        double width = maxX - minX;
+        double height = maxY - minY;
+        double maxCells = Math.max(1.0, (double) n * MAX_CELLS_PER_POINT);
+        double minCellSize = Math.sqrt(width * height / maxCells);
+        minCellSize = Math.max(minCellSize, Math.max(width, height) / maxCells);
+        if (!(cellSize > minCellSize)) {
+            cellSize = minCellSize;
+        }
+        if (!(cellSize > 0)) {
+            cellSize = 1.0;
+        }
+
+        this.minX = minX;
+        this.minY = minY;
+        this.cellSize = cellSize;
+        this.cols = (int) Math.min(Integer.MAX_VALUE / 2, (long) (width / cellSize) + 1);
+        this.rows = (int) Math.min(Integer.MAX_VALUE / 2, (long) (height / cellSize) + 1);
+
+        // Counting sort of the point ids by cell.
+        int[] cellOfPoint = new int[n];
+        cellStart = new int[cols * rows + 1];
+        for (int i = 0; i < n; i++) {
+            int id = pointIds[i];
+            int cell = cellIndex(column(data[id][0]), row(data[id][1]));
+            cellOfPoint[i] = cell;
+            cellStart[cell + 1]++;
+        }
+        for (int c = 0; c < cols * rows; c++) {
+            cellStart[c + 1] += cellStart[c];
+        }
+        int[] fill = new int[cols * rows];
+        cellPoints = new int[n];
+        for (int i = 0; i < n; i++) {
+            int cell = cellOfPoint[i];
+            cellPoints[cellStart[cell] + fill[cell]++] = pointIds[i];
+        }
+    }
+
+    private int column(double x) {
+        int c = (int) ((x - minX) / cellSize);
+        return c < 0 ? 0 : (c >= cols ? cols - 1 : c);
+    }
+
+    private int row(double y) {
+        int r = (int) ((y - minY) / cellSize);
+        return r < 0 ? 0 : (r >= rows ? rows - 1 : r);
+    }
+
+    private int cellIndex(int column, int row) {
+        return row * cols + column;
+    }
+
+    /**
+     * Visits the id of every point lying in a cell that overlaps the square
+     * of half-width {@code radius} centred on (x, y). Every point within
+     * {@code radius} of (x, y) is visited; others may be visited too.
+     */
+    public void forEachCandidate(double x, double y, double radius, IntConsumer consumer) {
+        if (cellPoints.length == 0) {
+            return;
+        }
+        // Pad the radius so that rounding in the cell arithmetic can never
+        // drop a point lying exactly on the query circle.
+        double r = radius * (1 + 1e-12) + 1e-12;
+        int c0 = column(x - r), c1 = column(x + r);
+        int r0 = row(y - r), r1 = row(y + r);
+        for (int row = r0; row <= r1; row++) {
+            int rowBase = row * cols;
+            // Cells of one row are adjacent in the packed array.
+            int from = cellStart[rowBase + c0];
+            int to = cellStart[rowBase + c1 + 1];
+            for (int p = from; p < to; p++) {
+                consumer.accept(cellPoints[p]);
+            }
+        }
+    }
+
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    public int size() {
+        return cellPoints.length;
+    }
+}
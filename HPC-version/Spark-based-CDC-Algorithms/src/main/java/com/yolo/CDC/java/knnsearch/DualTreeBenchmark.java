@@ -0,0 +1,82 @@
+package com.yolo.CDC.java.knnsearch;
+
+import com.yolo.CDC.java.knnsearch.index.IndexKDTreeSingle;
+import com.yolo.CDC.java.knnsearch.index.SearchParamsBase;
+import com.yolo.CDC.java.knnsearch.metric.MetricEuclideanSquared;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compares the kNN self-join of {@link IndexKDTreeSingle} answered by one
+ * search per point ({@code knnSearchBatch}) with
+ * {@link IndexKDTreeSingle#allKnnDualTree}, on the DS*-100000 synthetic data
+ * sets (x and y in the first two columns). Prints the time of each and
+ * whether the neighbour lists are identical.
+ * <p>
+ * Usage: DualTreeBenchmark [data directory] [k] [rounds] [threads]
+ */
+public class DualTreeBenchmark {
+    public static void main(String[] args) throws IOException {
+        File directory = new File(args.length > 0 ? args[0] : "../DCDC/data/synthetic");
+        int k = args.length > 1 ? Integer.parseInt(args[1]) : 31;
+        int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        int threads = args.length > 3 ? Integer.parseInt(args[3]) : 1;
+        File[] files = directory.listFiles((dir, name) -> name.matches("DS\\d+-100000-new\\.csv"));
+        if (files == null || files.length == 0) {
+            System.out.println("No DS*-100000-new.csv file in " + directory.getAbsolutePath());
+            return;
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            double[][] points = read(file);
+            int n = points.length;
+            IndexKDTreeSingle index = new IndexKDTreeSingle(new MetricEuclideanSquared(), points,
+                    new IndexKDTreeSingle.BuildParams());
+            index.buildIndex();
+            int[] expectedIndices = new int[n * k];
+            double[] expectedDistances = new double[n * k];
+            int[] indices = new int[n * k];
+            double[] distances = new double[n * k];
+            // The first rounds warm up the JIT and are not timed.
+            long perQueryTime = 0;
+            long dualTreeTime = 0;
+            for (int round = -rounds; round < rounds; round++) {
+                long start = System.nanoTime();
+                index.knnSearchBatch(points, expectedIndices, expectedDistances, k, new SearchParamsBase(), threads);
+                long mid = System.nanoTime();
+                index.allKnnDualTree(k, indices, distances, threads);
+                long end = System.nanoTime();
+                if (round >= 0) {
+                    perQueryTime += mid - start;
+                    dualTreeTime += end - mid;
+                }
+            }
+            boolean identical = Arrays.equals(expectedIndices, indices) && Arrays.equals(expectedDistances, distances);
+            System.out.printf("%s n=%d k=%d: per-query %8.1f ms, dual-tree %8.1f ms (%.2fx), identical=%b%n",
+                    file.getName(), n, k, perQueryTime / 1e6 / rounds, dualTreeTime / 1e6 / rounds,
+                    (double) perQueryTime / dualTreeTime, identical);
+        }
+    }
+
+    private static double[][] read(File file) throws IOException {
+        List<double[]> points = new ArrayList<double[]>();
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] split = line.split(",");
+                points.add(new double[]{Double.parseDouble(split[0]), Double.parseDouble(split[1])});
+            }
+        }
+        return points.toArray(new double[0][]);
+    }
+}
@@ -5,16 +5,17 @@ import com.yolo.CDC.java.knnsearch.util.UniqueRandom;
 import com.yolo.CDC.java.knnsearch.util.Utils;
 
 import java.util.ArrayList;
+import java.util.Random;
 
 public class CenterChooser {
 	public enum Algorithm {
 		FLANN_CENTERS_RANDOM, FLANN_CENTERS_GONZALES, FLANN_CENTERS_KMEANSPP
 	}
 
-	public static void Random(Metric metric, double[][] data, int k,
-			ArrayList<Integer> objectsIndices, int start, int count,
-			ArrayList<Integer> centers) {
-		UniqueRandom r = new UniqueRandom(count);
+	public static void Random(Metric metric, double[] data,
+			int numberOfDimensions, int k, int[] objectsIndices, int start, int count,
+			ArrayList<Integer> centers, Random random) {
+		UniqueRandom r = new UniqueRandom(count, random);
 
 		int index;
 		for (index = 0; index < k; index++) {
@@ -26,11 +27,11 @@ public class CenterChooser {
 				if (rnd < 0)
 					return;
 
-				centers.add(objectsIndices.get(start + rnd));
+				centers.add(objectsIndices[start + rnd]);
 
 				for (int j = 0; j < index; j++) {
-					double sq = metric.distance(data[centers.get(index)],
-							data[centers.get(j)]);
+					double sq = distance(metric, data, numberOfDimensions,
+							centers.get(index), centers.get(j));
 					if (sq < 1E-16) {
 						duplicate = true;
 					}
@@ -39,23 +40,23 @@ public class CenterChooser {
 		}
 	}
 
-	public static void Gonzales(Metric metric, double[][] data, int k,
-			ArrayList<Integer> objectsIndices, int start, int count,
-			ArrayList<Integer> centers) {
+	public static void Gonzales(Metric metric, double[] data,
+			int numberOfDimensions, int k, int[] objectsIndices, int start, int count,
+			ArrayList<Integer> centers, Random random) {
 		// Pick the first center randomly.
-		int rnd = Utils.genRandomNumberInRange(0, count - 1);
-		centers.add(objectsIndices.get(start + rnd));
+		int rnd = Utils.genRandomNumberInRange(random, 0, count - 1);
+		centers.add(objectsIndices[start + rnd]);
 
 		int index;
 		for (index = 1; index < k; index++) {
 			int bestIndex = -1;
 			double bestValue = 0;
 			for (int j = 0; j < count; j++) {
-				double dist = metric.distance(data[centers.get(0)],
-						data[objectsIndices.get(start + j)]);
+				double dist = distance(metric, data, numberOfDimensions,
+						centers.get(0), objectsIndices[start + j]);
 				for (int i = 1; i < index; i++) {
-					double tmpDist = metric.distance(data[centers.get(i)],
-							data[objectsIndices.get(start + j)]);
+					double tmpDist = distance(metric, data, numberOfDimensions,
+							centers.get(i), objectsIndices[start + j]);
 					if (tmpDist < dist) {
 						dist = tmpDist;
 					}
@@ -66,28 +67,27 @@ public class CenterChooser {
 				}
 			}
 			if (bestIndex != -1) {
-				centers.add(objectsIndices.get(start + bestIndex));
+				centers.add(objectsIndices[start + bestIndex]);
 			} else {
 				break;
 			}
 		}
 	}
 
-	public static void KMeansPP(Metric metric, double[][] data, int k,
-			ArrayList<Integer> objectsIndices, int start, int count,
-			ArrayList<Integer> centers) {
+	public static void KMeansPP(Metric metric, double[] data,
+			int numberOfDimensions, int k, int[] objectsIndices, int start, int count,
+			ArrayList<Integer> centers, Random random) {
 		int n = count;
 		double currentPotential = 0;
 		double[] closestDistSq = new double[n];
 
 		// Chose one random center and set the closestDistSq values.
-		int index = Utils.genRandomNumberInRange(0, n - 1);
-		centers.add(objectsIndices.get(start + index));
+		int index = Utils.genRandomNumberInRange(random, 0, n - 1);
+		centers.add(objectsIndices[start + index]);
 
 		for (int i = 0; i < n; i++) {
-			closestDistSq[i] = metric.distance(
-					data[objectsIndices.get(start + i)],
-					data[objectsIndices.get(start + index)]);
+			closestDistSq[i] = distance(metric, data, numberOfDimensions,
+					objectsIndices[start + i], objectsIndices[start + index]);
 			currentPotential += closestDistSq[i];
 		}
 
@@ -100,7 +100,7 @@ public class CenterChooser {
 			int bestNewIndex = 0;
 
 			for (int localTrial = 0; localTrial < NUM_LOCAL_TRIES; localTrial++) {
-				double randVal = Utils.genRandomNumberInRange(0.0,
+				double randVal = Utils.genRandomNumberInRange(random, 0.0,
 						currentPotential);
 				for (index = 0; index < n - 1; index++) {
 					if (randVal <= closestDistSq[index])
@@ -112,9 +112,8 @@ public class CenterChooser {
 				// Compute the new potential.
 				double newPotential = 0;
 				for (int i = 0; i < n; i++) {
-					double d = metric.distance(
-							data[objectsIndices.get(start + i)],
-							data[objectsIndices.get(start + index)]);
+					double d = distance(metric, data, numberOfDimensions,
+							objectsIndices[start + i], objectsIndices[start + index]);
 					newPotential += Math.min(d, closestDistSq[i]);
 				}
 
@@ -125,18 +124,18 @@ public class CenterChooser {
 				}
 			}
 
-			centers.add(objectsIndices.get(start + bestNewIndex));
+			centers.add(objectsIndices[start + bestNewIndex]);
 			currentPotential = bestNewPotential;
 			for (int i = 0; i < n; i++) {
-				double d = metric.distance(data[objectsIndices.get(start + i)],
-						data[objectsIndices.get(start + bestNewIndex)]);
+				double d = distance(metric, data, numberOfDimensions,
+						objectsIndices[start + i], objectsIndices[start + bestNewIndex]);
 				closestDistSq[i] = Math.min(d, closestDistSq[i]);
 			}
 		}
 	}
 
 	public static void Random(Metric metric, int[][] data, int k,
-			ArrayList<Integer> objectsIndices, int start, int count,
+			int[] objectsIndices, int start, int count,
 			ArrayList<Integer> centers) {
 		UniqueRandom r = new UniqueRandom(count);
 
@@ -150,7 +149,7 @@ public class CenterChooser {
 				if (rnd < 0)
 					return;
 
-				centers.add(objectsIndices.get(start + rnd));
+				centers.add(objectsIndices[start + rnd]);
 
 				for (int j = 0; j < index; j++) {
 					double sq = metric.distance(data[centers.get(index)],
@@ -164,11 +163,11 @@ public class CenterChooser {
 	}
 
 	public static void Gonzales(Metric metric, int[][] data, int k,
-			ArrayList<Integer> objectsIndices, int start, int count,
+			int[] objectsIndices, int start, int count,
 			ArrayList<Integer> centers) {
 		// Pick the first center randomly.
 		int rnd = Utils.genRandomNumberInRange(0, count - 1);
-		centers.add(objectsIndices.get(start + rnd));
+		centers.add(objectsIndices[start + rnd]);
 
 		int index;
 		for (index = 1; index < k; index++) {
@@ -176,10 +175,10 @@ public class CenterChooser {
 			double bestValue = 0;
 			for (int j = 0; j < count; j++) {
 				double dist = metric.distance(data[centers.get(0)],
-						data[objectsIndices.get(start + j)]);
+						data[objectsIndices[start + j]]);
 				for (int i = 1; i < index; i++) {
 					double tmpDist = metric.distance(data[centers.get(i)],
-							data[objectsIndices.get(start + j)]);
+							data[objectsIndices[start + j]]);
 					if (tmpDist < dist) {
 						dist = tmpDist;
 					}
@@ -190,7 +189,7 @@ public class CenterChooser {
 				}
 			}
 			if (bestIndex != -1) {
-				centers.add(objectsIndices.get(start + bestIndex));
+				centers.add(objectsIndices[start + bestIndex]);
 			} else {
 				break;
 			}
@@ -198,7 +197,7 @@ public class CenterChooser {
 	}
 
 	public static void KMeansPP(Metric metric, int[][] data, int k,
-			ArrayList<Integer> objectsIndices, int start, int count,
+			int[] objectsIndices, int start, int count,
 			ArrayList<Integer> centers) {
 		int n = count;
 		double currentPotential = 0;
@@ -206,12 +205,12 @@ public class CenterChooser {
 
 		// Chose one random center and set the closestDistSq values.
 		int index = Utils.genRandomNumberInRange(0, n - 1);
-		centers.add(objectsIndices.get(start + index));
+		centers.add(objectsIndices[start + index]);
 
 		for (int i = 0; i < n; i++) {
 			closestDistSq[i] = metric.distance(
-					data[objectsIndices.get(start + i)],
-					data[objectsIndices.get(start + index)]);
+					data[objectsIndices[start + i]],
+					data[objectsIndices[start + index]]);
 			currentPotential += closestDistSq[i];
 		}
 
@@ -237,8 +236,8 @@ public class CenterChooser {
 				double newPotential = 0;
 				for (int i = 0; i < n; i++) {
 					double d = metric.distance(
-							data[objectsIndices.get(start + i)],
-							data[objectsIndices.get(start + index)]);
+							data[objectsIndices[start + i]],
+							data[objectsIndices[start + index]]);
 					newPotential += Math.min(d, closestDistSq[i]);
 				}
 
@@ -249,13 +248,22 @@ public class CenterChooser {
 				}
 			}
 
-			centers.add(objectsIndices.get(start + bestNewIndex));
+			centers.add(objectsIndices[start + bestNewIndex]);
 			currentPotential = bestNewPotential;
 			for (int i = 0; i < n; i++) {
-				double d = metric.distance(data[objectsIndices.get(start + i)],
-						data[objectsIndices.get(start + bestNewIndex)]);
+				double d = metric.distance(data[objectsIndices[start + i]],
+						data[objectsIndices[start + bestNewIndex]]);
 				closestDistSq[i] = Math.min(d, closestDistSq[i]);
 			}
 		}
 	}
+
+	/**
+	 * Distance between the points with ids a and b of a row-major data array.
+	 */
+	private static double distance(Metric metric, double[] data,
+			int numberOfDimensions, int a, int b) {
+		return metric.distance(data, a * numberOfDimensions, data, b
+				* numberOfDimensions, numberOfDimensions);
+	}
 }
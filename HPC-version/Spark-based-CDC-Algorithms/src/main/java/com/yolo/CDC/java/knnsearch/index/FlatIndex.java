@@ -0,0 +1,18 @@
+package com.yolo.CDC.java.knnsearch.index;
+
+import java.io.Serializable;
+
+/**
+ * An index as a handful of primitive arrays, for broadcasting and caching:
+ * the points and the permutation of their indices here, the search structure
+ * in the subclass of each index (e.g. {@link IndexKDTreeSingle.Flat}).
+ * Nodes refer to each other by their number in the node arrays.
+ * The points and their permutation are not copied on export or import, so
+ * they are shared with the index they come from or go to.
+ */
+public class FlatIndex implements Serializable {
+	public int numberOfDimensions;
+	// Points in row-major order, as in IndexBase; null for an empty index.
+	public double[] data;
+	public int[] objectsIndices;
+}
@@ -56,6 +56,8 @@ public class IndexAutotuned extends IndexBase {
 
 	IndexBase bestIndex;
 
+	// Original rows; the base class only keeps the flattened copy.
+	double[][] dataset;
 	double[][] sampledData;
 	double[][] testData;
 
@@ -67,6 +69,7 @@ public class IndexAutotuned extends IndexBase {
 	public IndexAutotuned(Metric metric, double[][] data,
 			BuildParams buildParams) {
 		super(metric, data);
+		this.dataset = data;
 
 		this.targetPrecision = buildParams.targetPrecision;
 		this.buildWeight = buildParams.buildWeight;
@@ -235,7 +238,7 @@ public class IndexAutotuned extends IndexBase {
 	private void estimateBuildParams() {
 		ArrayList<CostData> costs = new ArrayList<CostData>();
 
-		int sampleSize = (int) (sampleFraction * data.length);
+		int sampleSize = (int) (sampleFraction * dataset.length);
 		int testSampleSize = Math.min(sampleSize / 10, 1000);
 
 		if (testSampleSize < 10) {
@@ -244,7 +247,7 @@ public class IndexAutotuned extends IndexBase {
 
 		// We use a fraction of the original dataset to speedup the autotune
 		// algorithm.
-		sampledData = Utils.randomSample(data, sampleSize, false);
+		sampledData = Utils.randomSample(dataset, sampleSize, false);
 		testData = Utils.randomSample(sampledData, testSampleSize, true);
 
 		// We compute the ground truth using linear search.
@@ -315,10 +318,10 @@ public class IndexAutotuned extends IndexBase {
 
 		float speedup = 0;
 
-		int samples = Math.min(data.length / 10, SAMPLE_COUNT);
+		int samples = Math.min(dataset.length / 10, SAMPLE_COUNT);
 
 		if (samples > 0) {
-			double[][] testDataset = Utils.randomSample(data, samples, false);
+			double[][] testDataset = Utils.randomSample(dataset, samples, false);
 			int[][] gtMatches = new int[testDataset.length][1];
 			StopWatch timer = new StopWatch();
 			int repeats = 0;
@@ -341,7 +344,7 @@ public class IndexAutotuned extends IndexBase {
 				for (cbIndex = 0; cbIndex < 1.1f; cbIndex += 0.2f) {
 					kmeans.setCbIndex(cbIndex);
 					IndexTesting testing = new IndexTesting();
-					searchTime = testing.testIndexPrecision(kmeans, data,
+					searchTime = testing.testIndexPrecision(kmeans, dataset,
 							testDataset, gtMatches, targetPrecision, checks,
 							metric, nn, 1);
 					if (searchTime < bestSearchTime || bestSearchTime == -1) {
@@ -357,7 +360,7 @@ public class IndexAutotuned extends IndexBase {
 				bestSearchParams.cbIndex = cbIndex;
 			} else {
 				IndexTesting testing = new IndexTesting();
-				searchTime = testing.testIndexPrecision(bestIndex, data,
+				searchTime = testing.testIndexPrecision(bestIndex, dataset,
 						testDataset, gtMatches, targetPrecision, checks,
 						metric, nn, 1);
 			}
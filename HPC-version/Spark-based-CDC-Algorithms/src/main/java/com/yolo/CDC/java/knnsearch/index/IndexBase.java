@@ -1,18 +1,20 @@
 package com.yolo.CDC.java.knnsearch.index;
 
+import com.yolo.CDC.java.knnsearch.exception.ExceptionFLANN;
 import com.yolo.CDC.java.knnsearch.metric.Metric;
 import com.yolo.CDC.java.knnsearch.result_set.*;
 
 import java.io.Serializable;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * Base class for all index structures.
  */
 public abstract class IndexBase implements Serializable {
 	public enum IndexFLANN {
-		LINEAR, KDTREE_SINGLE, KDTREE, KMEANS, LSH, HIERARCHICAL, AUTOTUNED, SAVED, COMPOSITE
+		LINEAR, KDTREE_SINGLE, KDTREE, KMEANS, LSH, HIERARCHICAL, AUTOTUNED, SAVED, COMPOSITE, GRID_2D
 	}
 
 	protected IndexFLANN type;
@@ -22,18 +24,69 @@ public abstract class IndexBase implements Serializable {
 	}
 
 	protected Metric metric;
-	protected double[][] data;
+	// Points in row-major order: coordinate j of point i is
+	// data[i * numberOfDimensions + j].
+	protected double[] data;
 	protected int[][] dataBinary; // binary feature vectors
-	public ArrayList<Integer> objectsIndices;
+	// Permutation of the point indices that tree construction reorders.
+	public int[] objectsIndices;
 
 	public int numberOfObjects;
 	public int numberOfDimensions;
 
+	private transient volatile ThreadLocal<KNNResultSet> resultSetPool;
+	// Best-bin-first scratch state of each thread; see pooledSearchContext.
+	private transient volatile ThreadLocal<SearchContext<?>> searchContextPool;
+
+	/**
+	 * Copies the points into a flat row-major array.
+	 */
 	public IndexBase(Metric metric, double[][] data) {
 		this.metric = metric;
 		setDataset(data);
 	}
 
+	/**
+	 * Uses 'data', a row-major array of points with 'numberOfDimensions'
+	 * coordinates each, without copying it. The caller must not modify the
+	 * array while the index is in use.
+	 */
+	public IndexBase(Metric metric, double[] data, int numberOfDimensions) {
+		this.metric = metric;
+		if (numberOfDimensions <= 0 || data.length % numberOfDimensions != 0) {
+			throw new ExceptionFLANN("Data length " + data.length
+					+ " is not a multiple of the number of dimensions "
+					+ numberOfDimensions);
+		}
+		if (data.length == 0) {
+			return;
+		}
+		this.data = data;
+		this.numberOfObjects = data.length / numberOfDimensions;
+		this.numberOfDimensions = numberOfDimensions;
+	}
+
+	/**
+	 * Uses the points and the permutation of 'flat' without copying them;
+	 * the subclass restores its search structure from the rest of it.
+	 */
+	protected IndexBase(Metric metric, FlatIndex flat) {
+		this.metric = metric;
+		this.objectsIndices = flat.objectsIndices;
+		if (flat.data == null || flat.data.length == 0) {
+			return;
+		}
+		if (flat.numberOfDimensions <= 0
+				|| flat.data.length % flat.numberOfDimensions != 0) {
+			throw new ExceptionFLANN("Data length " + flat.data.length
+					+ " is not a multiple of the number of dimensions "
+					+ flat.numberOfDimensions);
+		}
+		this.data = flat.data;
+		this.numberOfObjects = data.length / flat.numberOfDimensions;
+		this.numberOfDimensions = flat.numberOfDimensions;
+	}
+
 	public IndexBase(Metric metric, int[][] dataBinary) {
 		this.metric = metric;
 		setDataset(dataBinary);
@@ -46,15 +99,12 @@ public abstract class IndexBase implements Serializable {
 
 		numberOfObjects = data.length;
 		numberOfDimensions = data[0].length;
-//		System.out.println("numberOfObjects:"+numberOfObjects);
-//		System.out.println("numberOfDimensions:"+numberOfDimensions);
 
 		// Copy data.
-		this.data = new double[numberOfObjects][numberOfDimensions];
+		this.data = new double[numberOfObjects * numberOfDimensions];
 		for (int i = 0; i < numberOfObjects; i++) {
-			for (int j = 0; j < numberOfDimensions; j++) {
-				this.data[i][j] = data[i][j];
-			}
+			System.arraycopy(data[i], 0, this.data, i * numberOfDimensions,
+					numberOfDimensions);
 		}
 	}
 
@@ -75,14 +125,76 @@ public abstract class IndexBase implements Serializable {
 		}
 	}
 
+	public Metric getMetric() {
+		return metric;
+	}
+
+	/**
+	 * Fills the part of 'flat' common to all indexes, sharing the arrays.
+	 */
+	protected <F extends FlatIndex> F exportTo(F flat) {
+		flat.numberOfDimensions = numberOfDimensions;
+		flat.data = data;
+		flat.objectsIndices = objectsIndices;
+		return flat;
+	}
+
+	/**
+	 * Offset of point 'index' in 'data'.
+	 */
+	protected final int offset(int index) {
+		return index * numberOfDimensions;
+	}
+
+	/**
+	 * Coordinate 'dimension' of point 'index'.
+	 */
+	protected final double coordinate(int index, int dimension) {
+		return data[index * numberOfDimensions + dimension];
+	}
+
+	/**
+	 * Distance from 'query' to point 'index'.
+	 */
+	protected final double distanceTo(double[] query, int index) {
+		return metric.distance(query, 0, data, index * numberOfDimensions,
+				numberOfDimensions);
+	}
+
+	/**
+	 * Copy of the coordinates of point 'index'.
+	 */
+	public double[] getPoint(int index) {
+		double[] point = new double[numberOfDimensions];
+		System.arraycopy(data, index * numberOfDimensions, point, 0,
+				numberOfDimensions);
+		return point;
+	}
+
+	/**
+	 * Resets 'objectsIndices' to the identity permutation.
+	 */
+	protected void initObjectsIndices() {
+		objectsIndices = new int[numberOfObjects];
+		for (int i = 0; i < numberOfObjects; i++) {
+			objectsIndices[i] = i;
+		}
+	}
+
+	protected static void swap(int[] array, int i, int j) {
+		int temp = array[i];
+		array[i] = array[j];
+		array[j] = temp;
+	}
+
 	/**
 	 * Hyperplane partitioning. Subdivide the list of points by a plane
 	 * perpendicular to the axis corresponding to 'cutDimension' at value
 	 * 'cutValue'. On return:
-	 * data[objectsIndices.get(start..start+lim1-1)][cutDimension] < cutValue
-	 * data[objectsIndices.get(start+lim1..start+lim2-1)][cutDimension] ==
-	 * cutValue data[objectsIndices.get(start+lim2..start + count -
-	 * 1)][cutDimension] > cutValue
+	 * coordinate(objectsIndices[start..start+lim1-1], cutDimension) < cutValue
+	 * coordinate(objectsIndices[start+lim1..start+lim2-1], cutDimension) ==
+	 * cutValue coordinate(objectsIndices[start+lim2..start + count -
+	 * 1], cutDimension) > cutValue
 	 */
 	protected void planeSplit(int start, int count, int cutDimension,
 			double cutValue, int[] lim1Andlim2Wrapper) {
@@ -91,17 +203,17 @@ public abstract class IndexBase implements Serializable {
 		int right = start + count - 1;
 		for (;;) {
 			while (left <= right
-					&& data[objectsIndices.get(left)][cutDimension] < cutValue) {
+					&& coordinate(objectsIndices[left], cutDimension) < cutValue) {
 				left++;
 			}
 			while (left <= right
-					&& data[objectsIndices.get(right)][cutDimension] >= cutValue) {
+					&& coordinate(objectsIndices[right], cutDimension) >= cutValue) {
 				right--;
 			}
 			if (left > right) {
 				break;
 			}
-			Collections.swap(objectsIndices, left, right);
+			swap(objectsIndices, left, right);
 			left++;
 			right--;
 		}
@@ -110,17 +222,17 @@ public abstract class IndexBase implements Serializable {
 		right = start + count - 1;
 		for (;;) {
 			while (left <= right
-					&& data[objectsIndices.get(left)][cutDimension] <= cutValue) {
+					&& coordinate(objectsIndices[left], cutDimension) <= cutValue) {
 				left++;
 			}
 			while (left <= right
-					&& data[objectsIndices.get(right)][cutDimension] > cutValue) {
+					&& coordinate(objectsIndices[right], cutDimension) > cutValue) {
 				right--;
 			}
 			if (left > right) {
 				break;
 			}
-			Collections.swap(objectsIndices, left, right);
+			swap(objectsIndices, left, right);
 			left++;
 			right--;
 		}
@@ -138,9 +250,21 @@ public abstract class IndexBase implements Serializable {
 
 	public void knnSearch(double[][] queries, int[][] indices,
 			double[][] distances, SearchParamsBase searchParams) {
+		knnSearch(queries, 0, queries.length, indices, distances,
+				searchParams);
+	}
+
+	/**
+	 * Searches the queries in [from, to) only, writing rows [from, to) of
+	 * 'indices' and 'distances'. The search structures are read-only once
+	 * built, so disjoint ranges may be searched from different threads.
+	 */
+	public void knnSearch(double[][] queries, int from, int to,
+			int[][] indices, double[][] distances,
+			SearchParamsBase searchParams) {
 		int k = searchParams.maxNeighbors;
-		KNNSimpleResultSet resultSet = new KNNSimpleResultSet(k);
-		for (int i = 0; i < queries.length; i++) {
+		KNNResultSet resultSet = pooledResultSet(k);
+		for (int i = from; i < to; i++) {
 			resultSet.clear();
 			findNeighbors(resultSet, queries[i], searchParams);
 			int n = Math.min(resultSet.size(), k);
@@ -150,7 +274,7 @@ public abstract class IndexBase implements Serializable {
 	public void knnSearch(double[] queries, int[] indices,
 						  double[] distances, SearchParamsBase searchParams) {
 		int k = searchParams.maxNeighbors;
-		KNNSimpleResultSet resultSet = new KNNSimpleResultSet(k);
+		KNNResultSet resultSet = pooledResultSet(k);
 		findNeighbors(resultSet, queries, searchParams);
 		int n = Math.min(resultSet.size(), k);
 		resultSet.copy(distances, indices, n);
@@ -158,11 +282,164 @@ public abstract class IndexBase implements Serializable {
 	public void knnSearch(double[] queries, int[] indices,
 						  double[] distances) {
 		int k = 1;
-		KNNSimpleResultSet resultSet = new KNNSimpleResultSet(k);
+		KNNResultSet resultSet = pooledResultSet(k);
 		findNeighbor(resultSet, queries);
 		int n = Math.min(resultSet.size(), k);
 		resultSet.copy(distances, indices, n);
 	}
+
+	/**
+	 * Searches the k nearest neighbours of every query using up to 'threads'
+	 * threads. The neighbours of query i are written to
+	 * indices[i * k .. i * k + k - 1] and distances[i * k .. i * k + k - 1],
+	 * nearest first; unused positions are set to -1 and Double.MAX_VALUE.
+	 * Each thread reuses its own result set across queries and calls.
+	 */
+	public void knnSearchBatch(double[][] queries, int[] indices,
+			double[] distances, int k, SearchParamsBase searchParams,
+			int threads) {
+		if (k < 1) {
+			throw new ExceptionFLANN("k must be positive");
+		}
+		long required = (long) queries.length * k;
+		if (indices.length < required || distances.length < required) {
+			throw new ExceptionFLANN("Output buffers must hold queries.length * k elements");
+		}
+		if (threads <= 1 || queries.length <= BATCH_GRAIN_SIZE) {
+			knnSearchBatch(queries, 0, queries.length, indices, distances, k,
+					searchParams);
+			return;
+		}
+		batchPool(threads).invoke(new BatchTask(this, queries, 0,
+				queries.length, indices, distances, k, searchParams));
+	}
+
+	private void knnSearchBatch(double[][] queries, int from, int to,
+			int[] indices, double[] distances, int k,
+			SearchParamsBase searchParams) {
+		KNNResultSet resultSet = pooledResultSet(k);
+		for (int i = from; i < to; i++) {
+			resultSet.clear();
+			findNeighbors(resultSet, queries[i], searchParams);
+			int offset = i * k;
+			int n = Math.min(resultSet.size(), k);
+			resultSet.copy(distances, indices, offset, n);
+			for (int j = n; j < k; j++) {
+				distances[offset + j] = Double.MAX_VALUE;
+				indices[offset + j] = -1;
+			}
+		}
+	}
+
+	private static final int BATCH_GRAIN_SIZE = 256;
+
+	// One pool per requested thread count, shared by all indexes, so that
+	// repeated batches run on the same threads and reuse their result sets.
+	// Parallel index builds use the same pools.
+	private static final ConcurrentHashMap<Integer, ForkJoinPool> BATCH_POOLS = new ConcurrentHashMap<Integer, ForkJoinPool>();
+
+	static ForkJoinPool batchPool(int threads) {
+		ForkJoinPool pool = BATCH_POOLS.get(threads);
+		if (pool == null) {
+			ForkJoinPool created = new ForkJoinPool(threads);
+			pool = BATCH_POOLS.putIfAbsent(threads, created);
+			if (pool == null) {
+				pool = created;
+			} else {
+				created.shutdown();
+			}
+		}
+		return pool;
+	}
+
+	private static class BatchTask extends RecursiveAction {
+		private final IndexBase index;
+		private final double[][] queries;
+		private final int from, to;
+		private final int[] indices;
+		private final double[] distances;
+		private final int k;
+		private final SearchParamsBase searchParams;
+
+		BatchTask(IndexBase index, double[][] queries, int from, int to,
+				int[] indices, double[] distances, int k,
+				SearchParamsBase searchParams) {
+			this.index = index;
+			this.queries = queries;
+			this.from = from;
+			this.to = to;
+			this.indices = indices;
+			this.distances = distances;
+			this.k = k;
+			this.searchParams = searchParams;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= BATCH_GRAIN_SIZE) {
+				index.knnSearchBatch(queries, from, to, indices, distances, k,
+						searchParams);
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new BatchTask(index, queries, from, middle, indices,
+					distances, k, searchParams), new BatchTask(index, queries,
+					middle, to, indices, distances, k, searchParams));
+		}
+	}
+
+	/**
+	 * Returns this thread's result set of the given capacity, cleared. The
+	 * pool is transient and created on first use, also after
+	 * deserialization.
+	 */
+	protected KNNResultSet pooledResultSet(int capacity) {
+		ThreadLocal<KNNResultSet> pool = resultSetPool;
+		if (pool == null) {
+			synchronized (this) {
+				pool = resultSetPool;
+				if (pool == null) {
+					pool = new ThreadLocal<KNNResultSet>();
+					resultSetPool = pool;
+				}
+			}
+		}
+		KNNResultSet resultSet = pool.get();
+		if (resultSet == null || resultSet.capacity() != capacity) {
+			resultSet = KNNResultSet.create(capacity);
+			pool.set(resultSet);
+		}
+		resultSet.clear();
+		return resultSet;
+	}
+
+	/**
+	 * Returns this thread's search context, started for a new query whose
+	 * branch heap holds at most 'capacity' branches and whose visited set
+	 * covers 'numberOfObjects' ids (0 for none). Like the result sets, the
+	 * pool is transient and created on first use.
+	 */
+	@SuppressWarnings("unchecked")
+	<NodeType> SearchContext<NodeType> pooledSearchContext(int capacity,
+			int numberOfObjects) {
+		ThreadLocal<SearchContext<?>> pool = searchContextPool;
+		if (pool == null) {
+			synchronized (this) {
+				pool = searchContextPool;
+				if (pool == null) {
+					pool = new ThreadLocal<SearchContext<?>>();
+					searchContextPool = pool;
+				}
+			}
+		}
+		SearchContext<NodeType> context = (SearchContext<NodeType>) pool.get();
+		if (context == null) {
+			context = new SearchContext<NodeType>();
+			pool.set(context);
+		}
+		context.begin(capacity, numberOfObjects);
+		return context;
+	}
 	public int radiusSearch(double[][] queries, int[][] indices,
 			double[][] distances, SearchParamsBase searchParams) {
 		double radius = searchParams.radius;
@@ -229,7 +506,7 @@ public abstract class IndexBase implements Serializable {
 	public void knnSearch(int[][] queries, int[][] indices,
 			double[][] distances, SearchParamsBase searchParams) {
 		int k = searchParams.maxNeighbors;
-		KNNSimpleResultSet resultSet = new KNNSimpleResultSet(k);
+		KNNResultSet resultSet = KNNResultSet.create(k);
 		for (int i = 0; i < queries.length; i++) {
 			resultSet.clear();
 			findNeighbors(resultSet, queries[i], searchParams);
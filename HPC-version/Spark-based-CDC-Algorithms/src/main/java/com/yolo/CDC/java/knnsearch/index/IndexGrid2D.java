@@ -0,0 +1,399 @@
+package com.yolo.CDC.java.knnsearch.index;
+
+import com.yolo.CDC.java.knnsearch.exception.ExceptionFLANN;
+import com.yolo.CDC.java.knnsearch.metric.Metric;
+import com.yolo.CDC.java.knnsearch.result_set.KNNResultSet;
+import com.yolo.CDC.java.knnsearch.result_set.ResultSet;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Exact kNN index for 2-D points on a uniform grid in CSR layout:
+ * cellStart[c] is the offset of cell c in 'objectsIndices', which holds the
+ * point ids sorted by cell, and 'cellCoordinates' holds their coordinates in
+ * the same order, so a cell is scanned sequentially.
+ * <p>
+ * The cell size adapts to the density of the occupied part of the bounding
+ * box: a first grid sized for {@link BuildParams#pointsPerCell} points per
+ * cell over the whole box is shrunk by the square root of the fraction of its
+ * cells that are occupied. A query visits rings of cells around its own cell
+ * and stops once the distance to the next ring exceeds the current k-th
+ * neighbour, so results are the same as a linear scan, ties included.
+ * <p>
+ * {@link #allKnn} answers the self-join of all indexed points, walking them
+ * in cell order so that consecutive queries scan the same cells.
+ * <p>
+ * 'cellCoordinates' follows from the points and the order of their ids, so
+ * it is not serialized but rebuilt on import.
+ */
+public class IndexGrid2D extends IndexBase {
+	// Upper bound on cells per point, so that a tiny cell size on a wide
+	// extent cannot blow up the offset array.
+	private static final int MAX_CELLS_PER_POINT = 4;
+	private static final int ALL_KNN_GRAIN_SIZE = 256;
+
+	private final int pointsPerCell;
+	private double minX, minY;
+	private double cellSize;
+	private int cols, rows;
+	private int[] cellStart;
+	private transient double[] cellCoordinates;
+
+	public static class BuildParams extends BuildParamsBase {
+		// Mean number of points per occupied cell.
+		public int pointsPerCell;
+
+		public BuildParams() {
+			this.pointsPerCell = 8;
+		}
+
+		public BuildParams(int pointsPerCell) {
+			this.pointsPerCell = pointsPerCell;
+		}
+	}
+
+	public static class SearchParams extends SearchParamsBase {
+	}
+
+	/**
+	 * The grid in flat form: 'cols' x 'rows' square cells of side
+	 * 'cellSize' from (minX, minY), cell c holding the points
+	 * objectsIndices[cellStart[c] .. cellStart[c + 1]).
+	 */
+	public static class Flat extends FlatIndex {
+		public int pointsPerCell;
+		public double minX, minY;
+		public double cellSize;
+		public int cols, rows;
+		public int[] cellStart;
+	}
+
+	public IndexGrid2D(Metric metric, double[][] data, BuildParams buildParams) {
+		super(metric, data);
+		this.pointsPerCell = Math.max(1, buildParams.pointsPerCell);
+		this.type = IndexFLANN.GRID_2D;
+	}
+
+	public IndexGrid2D(Metric metric, double[] data, int numberOfDimensions,
+			BuildParams buildParams) {
+		super(metric, data, numberOfDimensions);
+		this.pointsPerCell = Math.max(1, buildParams.pointsPerCell);
+		this.type = IndexFLANN.GRID_2D;
+	}
+
+	/**
+	 * The index exported by {@link #toFlat}, ready to search.
+	 */
+	public IndexGrid2D(Metric metric, Flat flat) {
+		super(metric, flat);
+		this.pointsPerCell = flat.pointsPerCell;
+		this.minX = flat.minX;
+		this.minY = flat.minY;
+		this.cellSize = flat.cellSize;
+		this.cols = flat.cols;
+		this.rows = flat.rows;
+		this.cellStart = flat.cellStart;
+		this.type = IndexFLANN.GRID_2D;
+		packCoordinates();
+	}
+
+	/**
+	 * The index in flat form; shares its arrays.
+	 */
+	public Flat toFlat() {
+		Flat flat = exportTo(new Flat());
+		flat.pointsPerCell = pointsPerCell;
+		flat.minX = minX;
+		flat.minY = minY;
+		flat.cellSize = cellSize;
+		flat.cols = cols;
+		flat.rows = rows;
+		flat.cellStart = cellStart;
+		return flat;
+	}
+
+	/**
+	 * Copies the coordinates into 'cellCoordinates' in objectsIndices order.
+	 */
+	private void packCoordinates() {
+		if (objectsIndices == null) {
+			return;
+		}
+		cellCoordinates = new double[2 * objectsIndices.length];
+		for (int p = 0; p < objectsIndices.length; p++) {
+			cellCoordinates[2 * p] = data[2 * objectsIndices[p]];
+			cellCoordinates[2 * p + 1] = data[2 * objectsIndices[p] + 1];
+		}
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		packCoordinates();
+	}
+
+	@Override
+	protected void buildIndexImpl() {
+		int n = numberOfObjects;
+		if (n > 0 && numberOfDimensions != 2) {
+			throw new ExceptionFLANN("IndexGrid2D only indexes 2-D points, got "
+					+ numberOfDimensions + " dimensions");
+		}
+		double maxX = 0, maxY = 0;
+		minX = minY = 0;
+		if (n > 0) {
+			minX = maxX = data[0];
+			minY = maxY = data[1];
+			for (int i = 1; i < n; i++) {
+				double x = data[2 * i];
+				double y = data[2 * i + 1];
+				if (x < minX) minX = x;
+				if (x > maxX) maxX = x;
+				if (y < minY) minY = y;
+				if (y > maxY) maxY = y;
+			}
+		}
+		double width = maxX - minX;
+		double height = maxY - minY;
+
+		// Sized for the whole box first, then for its occupied part.
+		double size = Math.sqrt(width * height * pointsPerCell / Math.max(1, n));
+		if (!(size > 0)) {
+			size = Math.max(width, height) * pointsPerCell / Math.max(1, n);
+		}
+		setCellSize(size, width, height, n);
+		if (n > 0) {
+			boolean[] occupied = new boolean[cols * rows];
+			int occupiedCells = 0;
+			for (int i = 0; i < n; i++) {
+				int cell = cellOf(data[2 * i], data[2 * i + 1]);
+				if (!occupied[cell]) {
+					occupied[cell] = true;
+					occupiedCells++;
+				}
+			}
+			setCellSize(cellSize * Math.sqrt((double) occupiedCells / (cols * rows)),
+					width, height, n);
+		}
+
+		// Counting sort of the point ids by cell.
+		int cells = cols * rows;
+		int[] cellOfPoint = new int[n];
+		cellStart = new int[cells + 1];
+		for (int i = 0; i < n; i++) {
+			int cell = cellOf(data[2 * i], data[2 * i + 1]);
+			cellOfPoint[i] = cell;
+			cellStart[cell + 1]++;
+		}
+		for (int c = 0; c < cells; c++) {
+			cellStart[c + 1] += cellStart[c];
+		}
+		int[] fill = new int[cells];
+		objectsIndices = new int[n];
+		for (int i = 0; i < n; i++) {
+			int cell = cellOfPoint[i];
+			objectsIndices[cellStart[cell] + fill[cell]++] = i;
+		}
+		packCoordinates();
+	}
+
+	/**
+	 * Sets the cell size, enlarged when the extent would otherwise need more
+	 * than MAX_CELLS_PER_POINT cells per point, and the grid shape.
+	 */
+	private void setCellSize(double size, double width, double height, int n) {
+		double maxCells = Math.max(1.0, (double) n * MAX_CELLS_PER_POINT);
+		double minCellSize = Math.sqrt(width * height / maxCells);
+		minCellSize = Math.max(minCellSize, Math.max(width, height) / maxCells);
+		if (!(size > minCellSize)) {
+			size = minCellSize;
+		}
+		if (!(size > 0)) {
+			size = 1.0;
+		}
+		cellSize = size;
+		cols = (int) Math.min(Integer.MAX_VALUE / 2, (long) (width / size) + 1);
+		rows = (int) Math.min(Integer.MAX_VALUE / 2, (long) (height / size) + 1);
+	}
+
+	private int column(double x) {
+		int c = (int) ((x - minX) / cellSize);
+		return c < 0 ? 0 : (c >= cols ? cols - 1 : c);
+	}
+
+	private int row(double y) {
+		int r = (int) ((y - minY) / cellSize);
+		return r < 0 ? 0 : (r >= rows ? rows - 1 : r);
+	}
+
+	private int cellOf(double x, double y) {
+		return row(y) * cols + column(x);
+	}
+
+	@Override
+	protected void findNeighbors(ResultSet resultSet, double[] query,
+			SearchParamsBase searchParams) {
+		search(query, resultSet, 1 + searchParams.eps);
+	}
+
+	@Override
+	protected void findNeighbor(ResultSet resultSet, double[] query) {
+		search(query, resultSet, 1);
+	}
+
+	/**
+	 * Scans rings of cells around the query's cell, nearest ring first,
+	 * until every unvisited cell is farther than the worst distance kept.
+	 */
+	private void search(double[] query, ResultSet resultSet, float epsError) {
+		if (numberOfObjects == 0) {
+			return;
+		}
+		double x = query[0];
+		double y = query[1];
+		int cx = column(x);
+		int cy = row(y);
+		int maxRing = Math.max(Math.max(cx, cols - 1 - cx), Math.max(cy, rows - 1 - cy));
+		for (int ring = 0; ring <= maxRing; ring++) {
+			int r0 = cy - ring, r1 = cy + ring;
+			int c0 = Math.max(cx - ring, 0), c1 = Math.min(cx + ring, cols - 1);
+			for (int row = Math.max(r0, 0); row <= Math.min(r1, rows - 1); row++) {
+				int rowBase = row * cols;
+				if (row == r0 || row == r1) {
+					// Cells of one row are adjacent in the packed array.
+					scan(query, resultSet, cellStart[rowBase + c0], cellStart[rowBase + c1 + 1]);
+				} else {
+					if (cx - ring >= 0) {
+						scan(query, resultSet, cellStart[rowBase + cx - ring], cellStart[rowBase + cx - ring + 1]);
+					}
+					if (cx + ring < cols) {
+						scan(query, resultSet, cellStart[rowBase + cx + ring], cellStart[rowBase + cx + ring + 1]);
+					}
+				}
+			}
+			// Every point beyond this ring lies past one of the sides of the
+			// block of visited cells that still has cells behind it.
+			double gap = Double.POSITIVE_INFINITY;
+			if (cx - ring > 0) {
+				gap = Math.min(gap, x - (minX + (cx - ring) * cellSize));
+			}
+			if (cx + ring < cols - 1) {
+				gap = Math.min(gap, minX + (cx + ring + 1) * cellSize - x);
+			}
+			if (cy - ring > 0) {
+				gap = Math.min(gap, y - (minY + (cy - ring) * cellSize));
+			}
+			if (cy + ring < rows - 1) {
+				gap = Math.min(gap, minY + (cy + ring + 1) * cellSize - y);
+			}
+			if (gap == Double.POSITIVE_INFINITY) {
+				return;
+			}
+			// Shrink the bound so that rounding in the cell arithmetic can
+			// never skip a point tied with the worst distance.
+			gap = Math.max(0, gap - 1e-9 * cellSize);
+			if (metric.distance(gap, 0) * epsError > resultSet.worstDistance()) {
+				return;
+			}
+		}
+	}
+
+	private void scan(double[] query, ResultSet resultSet, int from, int to) {
+		for (int p = from; p < to; p++) {
+			double dist = metric.distance(query, 0, cellCoordinates, 2 * p, 2);
+			// Ties are passed on so the result set can order them by index.
+			if (dist <= resultSet.worstDistance()) {
+				resultSet.addPoint(dist, objectsIndices[p]);
+			}
+		}
+	}
+
+	/**
+	 * k nearest neighbours of every indexed point, itself included, with up
+	 * to 'threads' threads. Same layout and results as
+	 * {@link #knnSearchBatch} with the indexed points as queries: the
+	 * neighbours of point i are written to indices[i * k .. i * k + k - 1]
+	 * and distances[i * k .. i * k + k - 1], nearest first; unused positions
+	 * are set to -1 and Double.MAX_VALUE.
+	 */
+	public void allKnn(int k, int[] indices, double[] distances, int threads) {
+		if (k < 1) {
+			throw new ExceptionFLANN("k must be positive");
+		}
+		long required = (long) numberOfObjects * k;
+		if (indices.length < required || distances.length < required) {
+			throw new ExceptionFLANN("Output buffers must hold numberOfObjects * k elements");
+		}
+		if (threads <= 1 || numberOfObjects <= ALL_KNN_GRAIN_SIZE) {
+			allKnn(0, numberOfObjects, k, indices, distances);
+			return;
+		}
+		batchPool(threads).invoke(new AllKnnTask(0, numberOfObjects, k, indices, distances));
+	}
+
+	/**
+	 * Queries the points at packed positions [from, to), i.e. in cell order.
+	 */
+	private void allKnn(int from, int to, int k, int[] indices, double[] distances) {
+		KNNResultSet resultSet = pooledResultSet(k);
+		double[] query = new double[2];
+		for (int p = from; p < to; p++) {
+			resultSet.clear();
+			query[0] = cellCoordinates[2 * p];
+			query[1] = cellCoordinates[2 * p + 1];
+			search(query, resultSet, 1);
+			int offset = objectsIndices[p] * k;
+			int n = Math.min(resultSet.size(), k);
+			resultSet.copy(distances, indices, offset, n);
+			for (int j = n; j < k; j++) {
+				distances[offset + j] = Double.MAX_VALUE;
+				indices[offset + j] = -1;
+			}
+		}
+	}
+
+	private class AllKnnTask extends RecursiveAction {
+		private final int from, to;
+		private final int k;
+		private final int[] indices;
+		private final double[] distances;
+
+		AllKnnTask(int from, int to, int k, int[] indices, double[] distances) {
+			this.from = from;
+			this.to = to;
+			this.k = k;
+			this.indices = indices;
+			this.distances = distances;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from <= ALL_KNN_GRAIN_SIZE) {
+				allKnn(from, to, k, indices, distances);
+				return;
+			}
+			int middle = (from + to) >>> 1;
+			invokeAll(new AllKnnTask(from, middle, k, indices, distances),
+					new AllKnnTask(middle, to, k, indices, distances));
+		}
+	}
+
+	public double getCellSize() {
+		return cellSize;
+	}
+
+	@Override
+	protected void findNeighbors(ResultSet resultSet, int[] query,
+			SearchParamsBase searchParams) {
+		throw new ExceptionFLANN("Unsupported types");
+	}
+
+	@Override
+	public int usedMemory() {
+		int cells = cellStart == null ? 0 : cellStart.length;
+		int points = objectsIndices == null ? 0 : objectsIndices.length;
+		return 4 * (cells + points) + 8 * 2 * points;
+	}
+}
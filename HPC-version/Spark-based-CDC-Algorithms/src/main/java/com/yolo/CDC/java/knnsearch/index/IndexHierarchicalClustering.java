@@ -3,11 +3,9 @@ package com.yolo.CDC.java.knnsearch.index;
 import com.yolo.CDC.java.knnsearch.exception.ExceptionFLANN;
 import com.yolo.CDC.java.knnsearch.metric.Metric;
 import com.yolo.CDC.java.knnsearch.result_set.ResultSet;
-import com.yolo.CDC.java.knnsearch.util.Utils;
 
 import java.util.ArrayList;
 import java.util.BitSet;
-import java.util.Collections;
 import java.util.PriorityQueue;
 
 public class IndexHierarchicalClustering extends IndexBase {
@@ -79,15 +77,12 @@ public class IndexHierarchicalClustering extends IndexBase {
 		}
 
 		// Prepare objectsIndices.
-		objectsIndices = new ArrayList<Integer>();
-		for (int i = 0; i < numberOfObjects; i++) {
-			objectsIndices.add(i);
-		}
+		objectsIndices = new int[numberOfObjects];
 
 		treeRoots = new ArrayList<Node>();
 		for (int i = 0; i < trees; i++) {
 			for (int j = 0; j < numberOfObjects; j++) {
-				objectsIndices.set(j, j);
+				objectsIndices[j] = j;
 			}
 			Node node = new Node();
 			treeRoots.add(node);
@@ -99,7 +94,7 @@ public class IndexHierarchicalClustering extends IndexBase {
 		// Leaf node.
 		if (count < leafMaxSize) {
 			for (int i = 0; i < count; i++) {
-				int x = objectsIndices.get(start + i);
+				int x = objectsIndices[start + i];
 				PointInfo pi = new PointInfo();
 				pi.index = x;
 				pi.point = dataBinary[x];
@@ -131,7 +126,7 @@ public class IndexHierarchicalClustering extends IndexBase {
 		// If necessary, make this a terminal node.
 		if (centersLength < branching) {
 			for (int i = 0; i < count; i++) {
-				int x = objectsIndices.get(start + i);
+				int x = objectsIndices[start + i];
 				PointInfo pi = new PointInfo();
 				pi.index = x;
 				pi.point = dataBinary[x];
@@ -141,7 +136,7 @@ public class IndexHierarchicalClustering extends IndexBase {
 			return;
 		}
 		double cost[] = new double[1];
-		Integer[] labels = new Integer[count];
+		int[] labels = new int[count];
 		computeLabels(start, count, centers, labels, cost);
 
 		int start2 = 0;
@@ -149,8 +144,9 @@ public class IndexHierarchicalClustering extends IndexBase {
 		for (int i = 0; i < branching; i++) {
 			for (int j = 0; j < count; j++) {
 				if (labels[j] == i) {
-					Collections.swap(objectsIndices, j, end);
-					Utils.swapArray(labels, j, end);
+					// 'j' and 'end' are relative to 'start'.
+					swap(objectsIndices, start + j, start + end);
+					swap(labels, j, end);
 					end++;
 				}
 			}
@@ -166,11 +162,11 @@ public class IndexHierarchicalClustering extends IndexBase {
 	}
 
 	private void computeLabels(int start, int count,
-			ArrayList<Integer> centers, Integer[] labels, double[] cost) {
+			ArrayList<Integer> centers, int[] labels, double[] cost) {
 		cost[0] = 0.0;
 		int centersLength = centers.size();
 		for (int i = 0; i < count; i++) {
-			int[] point = dataBinary[objectsIndices.get(start + i)];
+			int[] point = dataBinary[objectsIndices[start + i]];
 			double dist = metric.distance(point, dataBinary[centers.get(0)]);
 			labels[i] = 0;
 			for (int j = 1; j < centersLength; j++) {
@@ -4,13 +4,14 @@ import com.yolo.CDC.java.knnsearch.metric.Metric;
 import com.yolo.CDC.java.knnsearch.result_set.ResultSet;
 import com.yolo.CDC.java.knnsearch.util.Utils;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.ArrayList;
-import java.util.BitSet;
-import java.util.Collections;
-import java.util.PriorityQueue;
 
 public class IndexKDTree extends IndexBase {
-	ArrayList<Node> treeRootNodes;
+	// Serialized through toFlat.
+	transient ArrayList<Node> treeRootNodes;
 	int trees;
 
 	int SAMPLE_MEAN = 100;
@@ -31,9 +32,22 @@ public class IndexKDTree extends IndexBase {
 	public static class SearchParams extends SearchParamsBase {
 	}
 
+	/**
+	 * The trees in flat form, one after the other, tree t starting at node
+	 * roots[t]. Node i is a leaf if rightChildren[i] is -1, and then holds
+	 * point cutDimensions[i]; otherwise its children are node i + 1 and
+	 * rightChildren[i] and it is cut at cutValues[i] in dimension
+	 * cutDimensions[i].
+	 */
+	public static class Flat extends FlatIndex {
+		public int[] roots;
+		public int[] rightChildren;
+		public int[] cutDimensions;
+		public double[] cutValues;
+	}
+
 	private class Node {
 		public Node child1, child2;
-		public double[] point;
 		public int cutDimension;
 		public double cutDimensionValue;
 	}
@@ -41,14 +55,29 @@ public class IndexKDTree extends IndexBase {
 	public IndexKDTree(Metric metric, double[][] data,
 			BuildParamsBase buildParams) {
 		super(metric, data);
+		init(buildParams);
+	}
+
+	public IndexKDTree(Metric metric, double[] data, int numberOfDimensions,
+			BuildParamsBase buildParams) {
+		super(metric, data, numberOfDimensions);
+		init(buildParams);
+	}
+
+	/**
+	 * The index exported by {@link #toFlat}, ready to search.
+	 */
+	public IndexKDTree(Metric metric, Flat flat) {
+		super(metric, flat);
+		this.type = IndexFLANN.KDTREE;
+		importTrees(flat);
+	}
 
+	private void init(BuildParamsBase buildParams) {
 		this.trees = ((BuildParams) buildParams).trees;
 		treeRootNodes = new ArrayList<Node>();
 
-		objectsIndices = new ArrayList<Integer>();
-		for (int i = 0; i < numberOfObjects; i++) {
-			objectsIndices.add(i);
-		}
+		initObjectsIndices();
 
 		this.type = IndexFLANN.KDTREE;
 	}
@@ -58,21 +87,92 @@ public class IndexKDTree extends IndexBase {
 		// Construct the randomized trees.
 		for (int i = 0; i < trees; i++) {
 			// Randomize the order of objects to allow for unbiased sampling.
-			Collections.shuffle(objectsIndices);
+			Utils.shuffle(objectsIndices);
 			treeRootNodes.add(divideTree(0, numberOfObjects));
 		}
 	}
 
+	/**
+	 * The index in flat form; shares the points and their permutation.
+	 */
+	public Flat toFlat() {
+		Flat flat = exportTo(new Flat());
+		int numberOfNodes = 0;
+		for (Node root : treeRootNodes) {
+			numberOfNodes += countNodes(root);
+		}
+		flat.roots = new int[treeRootNodes.size()];
+		flat.rightChildren = new int[numberOfNodes];
+		flat.cutDimensions = new int[numberOfNodes];
+		flat.cutValues = new double[numberOfNodes];
+		int next = 0;
+		for (int i = 0; i < treeRootNodes.size(); i++) {
+			flat.roots[i] = next;
+			next = exportNode(treeRootNodes.get(i), flat, next);
+		}
+		return flat;
+	}
+
+	private static int countNodes(Node node) {
+		return node.child1 == null ? 1
+				: 1 + countNodes(node.child1) + countNodes(node.child2);
+	}
+
+	/**
+	 * Stores the subtree of 'node' from node 'id' on; returns the number
+	 * following its last node.
+	 */
+	private static int exportNode(Node node, Flat flat, int id) {
+		flat.cutDimensions[id] = node.cutDimension;
+		flat.cutValues[id] = node.cutDimensionValue;
+		if (node.child1 == null) {
+			flat.rightChildren[id] = -1;
+			return id + 1;
+		}
+		int right = exportNode(node.child1, flat, id + 1);
+		flat.rightChildren[id] = right;
+		return exportNode(node.child2, flat, right);
+	}
+
+	private void importTrees(Flat flat) {
+		trees = flat.roots.length;
+		treeRootNodes = new ArrayList<Node>(trees);
+		for (int root : flat.roots) {
+			treeRootNodes.add(importNode(flat, root));
+		}
+	}
+
+	private Node importNode(Flat flat, int id) {
+		Node node = new Node();
+		node.cutDimension = flat.cutDimensions[id];
+		node.cutDimensionValue = flat.cutValues[id];
+		if (flat.rightChildren[id] >= 0) {
+			node.child1 = importNode(flat, id + 1);
+			node.child2 = importNode(flat, flat.rightChildren[id]);
+		}
+		return node;
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeObject(toFlat());
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		importTrees((Flat) in.readObject());
+	}
+
 	private Node divideTree(int start, int count) {
 		Node node = new Node();
 
 		// If too few objects remain, then make this a leaf node.
 		if (count == 1) {
 			node.child1 = node.child2 = null;
-			int index = objectsIndices.get(start);
+			int index = objectsIndices[start];
 			node.cutDimension = index; // Use cutDimension to store the point
 										// index.
-			node.point = data[index];
 		} else {
 			meanSplitResult out = new meanSplitResult();
 			meanSplit(start, count, out);
@@ -112,9 +212,9 @@ public class IndexKDTree extends IndexBase {
 		// SAMPLE_MEAN values.
 		int cnt = Math.min(SAMPLE_MEAN + 1, count);
 		for (int j = 0; j < cnt; j++) {
-			double[] v = data[objectsIndices.get(start + j)];
+			int v = offset(objectsIndices[start + j]);
 			for (int k = 0; k < numberOfDimensions; k++) {
-				mean[k] += v[k];
+				mean[k] += data[v + k];
 			}
 		}
 		double divFactor = 1.0 / cnt;
@@ -124,9 +224,9 @@ public class IndexKDTree extends IndexBase {
 
 		// Compute variances (no need to divide by count).
 		for (int j = 0; j < cnt; j++) {
-			double[] v = data[objectsIndices.get(start + j)];
+			int v = offset(objectsIndices[start + j]);
 			for (int k = 0; k < numberOfDimensions; k++) {
-				double dist = v[k] - mean[k];
+				double dist = data[v + k] - mean[k];
 				var[k] += dist * dist;
 			}
 		}
@@ -227,25 +327,28 @@ public class IndexKDTree extends IndexBase {
 	 */
 	private void getNeighbors(ResultSet resultSet, double[] query,
 			int maxChecks, float epsError) {
-		Branch<Node> branch;
 		int[] checkCount = new int[1];
 		checkCount[0] = 0;
 
-		PriorityQueue<Branch<Node>> heap = new PriorityQueue<Branch<Node>>(
+		// Branches still to explore. A point is a leaf of every tree and a
+		// descent that ends at a point visited through another tree uses no
+		// check, so the search may pop one branch per point and tree.
+		SearchContext<Node> context = pooledSearchContext(trees
+				* SearchContext.branchCapacity(maxChecks, resultSet),
 				numberOfObjects);
-		BitSet checked = new BitSet(numberOfObjects);
 
 		// Search once through each tree.
 		for (int i = 0; i < trees; i++) {
 			searchLevel(resultSet, query, treeRootNodes.get(i), 0, checkCount,
-					maxChecks, epsError, heap, checked);
+					maxChecks, epsError, context);
 		}
 
 		// Keep searching other branches from heap until finished.
-		while ((branch = heap.poll()) != null
+		while (!context.isEmpty()
 				&& (checkCount[0] < maxChecks || !resultSet.full())) {
-			searchLevel(resultSet, query, branch.node, branch.mindist,
-					checkCount, maxChecks, epsError, heap, checked);
+			double mindist = context.minKey();
+			searchLevel(resultSet, query, context.poll(), mindist,
+					checkCount, maxChecks, epsError, context);
 		}
 	}
 
@@ -254,7 +357,7 @@ public class IndexKDTree extends IndexBase {
 		// If this is a leaf node.
 		if (node.child1 == null && node.child2 == null) {
 			int index = node.cutDimension;
-			double dist = metric.distance(node.point, query);
+			double dist = distanceTo(query, index);
 			resultSet.addPoint(dist, index);
 			return;
 		}
@@ -283,7 +386,7 @@ public class IndexKDTree extends IndexBase {
 	 */
 	private void searchLevel(ResultSet resultSet, double[] query, Node node,
 			double mindist, int[] checkCount, int maxChecks, float epsError,
-			PriorityQueue<Branch<Node>> heap, BitSet checked) {
+			SearchContext<Node> context) {
 		// Ignore branch.
 		if (resultSet.worstDistance() < mindist) {
 			return;
@@ -295,13 +398,12 @@ public class IndexKDTree extends IndexBase {
 
 			// Do not check the same node more than once when
 			// searching multiple trees.
-			if (checked.get(index)
-					|| (checkCount[0] >= maxChecks && resultSet.full())) {
+			if ((checkCount[0] >= maxChecks && resultSet.full())
+					|| !context.visit(index)) {
 				return;
 			}
-			checked.set(index);
 			checkCount[0]++;
-			double dist = metric.distance(node.point, query);
+			double dist = distanceTo(query, index);
 			resultSet.addPoint(dist, index);
 			return;
 		}
@@ -316,12 +418,12 @@ public class IndexKDTree extends IndexBase {
 				+ metric.distance(val, node.cutDimensionValue);
 		if (newDistSq * epsError < resultSet.worstDistance()
 				|| !resultSet.full()) {
-			heap.add(new Branch<Node>(otherChild, newDistSq));
+			context.add(otherChild, newDistSq);
 		}
 
 		// Call recursively to search next level down.
 		searchLevel(resultSet, query, bestChild, mindist, checkCount,
-				maxChecks, epsError, heap, checked);
+				maxChecks, epsError, context);
 	}
 
 	@Override
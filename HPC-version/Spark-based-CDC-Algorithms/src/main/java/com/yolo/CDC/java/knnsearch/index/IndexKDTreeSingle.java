@@ -1,15 +1,38 @@
 package com.yolo.CDC.java.knnsearch.index;
 
+import com.yolo.CDC.java.knnsearch.exception.ExceptionFLANN;
 import com.yolo.CDC.java.knnsearch.metric.Metric;
 import com.yolo.CDC.java.knnsearch.result_set.ResultSet;
 import com.yolo.CDC.java.knnsearch.util.BoundingBox;
 
-import java.util.ArrayList;
-
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Single kd-tree with leaves of up to {@link BuildParams#maxPointsInOneLeafNode}
+ * points, split at the middle of the widest dimension of each node.
+ * <p>
+ * Every node caches the bounding box of its points, which
+ * {@link #allKnnDualTree} uses to answer the self-join of all indexed points
+ * by traversing the tree against itself.
+ * <p>
+ * The nodes are not serialized as such: {@link #toFlat} exports the tree as
+ * a few int arrays, from which the boxes are recomputed on import.
+ */
 public class IndexKDTreeSingle extends IndexBase {
+	// Query subtrees of at most this many points are not split across threads.
+	private static final int DUAL_TREE_GRAIN_SIZE = 1024;
+
 	int maxPointsInOneLeafNode;
-	Node root;
-	BoundingBox rootBBox;
+	transient Node root;
+	transient BoundingBox rootBBox;
+	int numberOfNodes;
+
+	// Search stack of each thread, reused across queries.
+	private transient volatile ThreadLocal<SearchStack> stackPool;
 
 	public static class BuildParams extends BuildParamsBase {
 		public int maxPointsInOneLeafNode;
@@ -29,124 +52,349 @@ public class IndexKDTreeSingle extends IndexBase {
 	public static class SearchParams extends SearchParamsBase {
 	}
 
-	private class Node {
+	/**
+	 * The tree in flat form. Node i is a leaf if rightChildren[i] is -1;
+	 * otherwise its children are node i + 1 and rightChildren[i]. It is cut
+	 * in dimension
+	 * cutDimensions[i] and holds the points objectsIndices[leafRanges[2 * i]
+	 * .. leafRanges[2 * i + 1]). The node boxes and the bounds of the cuts
+	 * follow from the points.
+	 */
+	public static class Flat extends FlatIndex {
+		public int maxPointsInOneLeafNode;
+		public int[] rightChildren;
+		public int[] cutDimensions;
+		public int[] leafRanges;
+	}
+
+	class Node {
 		public Node child1, child2;
 		public int cutDimension;
 		public double cutDimensionLow, cutDimensionHigh;
 
-		// Indices of points contained in this node (if it is a leaf node).
+		// Points of this node are objectsIndices[leftObjectIndex ..
+		// rightObjectIndex); only leaves are scanned.
 		public int leftObjectIndex, rightObjectIndex;
+
+		// Position of this node in the per-node arrays of a dual-tree search.
+		public int id;
+		// Bounding box of the points of this node.
+		public double[] low, high;
 	}
 
 	public IndexKDTreeSingle(Metric metric, double[][] data,
 			BuildParams buildParams) {
 		super(metric, data);
+		init(buildParams);
+	}
 
+	public IndexKDTreeSingle(Metric metric, double[] data,
+			int numberOfDimensions, BuildParams buildParams) {
+		super(metric, data, numberOfDimensions);
+		init(buildParams);
+	}
+
+	/**
+	 * The index exported by {@link #toFlat}, ready to search.
+	 */
+	public IndexKDTreeSingle(Metric metric, Flat flat) {
+		super(metric, flat);
+		this.maxPointsInOneLeafNode = flat.maxPointsInOneLeafNode;
+		this.type = IndexFLANN.KDTREE_SINGLE;
+		importTree(flat);
+	}
+
+	private void init(BuildParams buildParams) {
 		this.maxPointsInOneLeafNode = buildParams.maxPointsInOneLeafNode;
 		this.root = null;
 		this.rootBBox = new BoundingBox();
 
-		objectsIndices = new ArrayList<Integer>();
-		for (int i = 0; i < numberOfObjects; i++) {
-			objectsIndices.add(i);
-		}
+		initObjectsIndices();
 
 		this.type = IndexFLANN.KDTREE_SINGLE;
 	}
 
 	@Override
 	protected void buildIndexImpl() {
-		rootBBox.fitToData(data);
+		rootBBox.fitToData(data, numberOfDimensions);
+		numberOfNodes = 0;
 		root = divideTree(0, numberOfObjects, rootBBox);
 	}
 
+	/**
+	 * The index in flat form; shares the points and their permutation.
+	 */
+	public Flat toFlat() {
+		Flat flat = exportTo(new Flat());
+		flat.maxPointsInOneLeafNode = maxPointsInOneLeafNode;
+		flat.rightChildren = new int[numberOfNodes];
+		flat.cutDimensions = new int[numberOfNodes];
+		flat.leafRanges = new int[2 * numberOfNodes];
+		if (root != null) {
+			exportNode(root, flat);
+		}
+		return flat;
+	}
+
+	private void exportNode(Node node, Flat flat) {
+		int id = node.id;
+		flat.cutDimensions[id] = node.cutDimension;
+		flat.leafRanges[2 * id] = node.leftObjectIndex;
+		flat.leafRanges[2 * id + 1] = node.rightObjectIndex;
+		if (node.child1 == null) {
+			flat.rightChildren[id] = -1;
+			return;
+		}
+		flat.rightChildren[id] = node.child2.id;
+		exportNode(node.child1, flat);
+		exportNode(node.child2, flat);
+	}
+
+	private void importTree(Flat flat) {
+		numberOfNodes = flat.cutDimensions.length;
+		root = numberOfNodes == 0 ? null : importNode(flat, 0);
+		rootBBox = new BoundingBox();
+		if (root != null) {
+			for (int i = 0; i < numberOfDimensions; i++) {
+				rootBBox.add(root.low[i], root.high[i]);
+			}
+		}
+	}
+
+	/**
+	 * Rebuilds node 'id' and its subtree; the boxes are computed as in
+	 * divideTree, so they come out the same.
+	 */
+	private Node importNode(Flat flat, int id) {
+		Node node = new Node();
+		node.id = id;
+		node.cutDimension = flat.cutDimensions[id];
+		node.leftObjectIndex = flat.leafRanges[2 * id];
+		node.rightObjectIndex = flat.leafRanges[2 * id + 1];
+		node.low = new double[numberOfDimensions];
+		node.high = new double[numberOfDimensions];
+		if (flat.rightChildren[id] < 0) {
+			for (int i = 0; i < numberOfDimensions; i++) {
+				node.low[i] = node.high[i] = coordinate(
+						objectsIndices[node.leftObjectIndex], i);
+			}
+			for (int k = node.leftObjectIndex + 1; k < node.rightObjectIndex; k++) {
+				for (int i = 0; i < numberOfDimensions; i++) {
+					double value = coordinate(objectsIndices[k], i);
+					if (value < node.low[i])
+						node.low[i] = value;
+					if (value > node.high[i])
+						node.high[i] = value;
+				}
+			}
+			return node;
+		}
+		node.child1 = importNode(flat, id + 1);
+		node.child2 = importNode(flat, flat.rightChildren[id]);
+		node.cutDimensionLow = node.child1.high[node.cutDimension];
+		node.cutDimensionHigh = node.child2.low[node.cutDimension];
+		for (int i = 0; i < numberOfDimensions; i++) {
+			node.low[i] = Math.min(node.child1.low[i], node.child2.low[i]);
+			node.high[i] = Math.max(node.child1.high[i], node.child2.high[i]);
+		}
+		return node;
+	}
+
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		out.defaultWriteObject();
+		out.writeObject(toFlat());
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		importTree((Flat) in.readObject());
+	}
+
 	@Override
 	protected void findNeighbors(ResultSet resultSet, double[] query,
 			SearchParamsBase searchParams) {
-		int k = searchParams.maxNeighbors;
-		float eps = searchParams.eps;
-		float epsError = 1 + eps;
-		ArrayList<Double> distances = new ArrayList<Double>();
-		for (int i = 0; i < numberOfDimensions; i++) {
-			distances.add(0.0);
-		}
-		double distsq = rootBBox.getBoxPointDistancesPerDimension(query,
-				distances, metric);
-		searchLevel(root, query, resultSet, k, epsError, distsq, distances);
+		search(query, resultSet, 1 + searchParams.eps);
 	}
 
 	@Override
 	protected void findNeighbor(ResultSet resultSet, double[] query) {
-
+		search(query, resultSet, 1);
 	}
 
-	private void searchLevel(Node node, double[] query, ResultSet resultSet,
-							 int k, float eps, Double mindistsq, ArrayList<Double> dists) {
-		// If this is a leaf node.
-		if (node.child1 == null && node.child2 == null) {
+	/**
+	 * Descends to the leaf on the query's side of every cut, then backs up
+	 * through the stack of cuts and descends into each other side whose cell
+	 * may still hold a point within the worst distance, deepest cut first,
+	 * in the order of the recursive search.
+	 * 'dists' holds the distance from the query to the cell of the current
+	 * node in every dimension and 'mindistsq' their sum.
+	 */
+	private void search(double[] query, ResultSet resultSet, float eps) {
+		SearchStack stack = pooledStack();
+		double[] dists = stack.dists;
+		double mindistsq = 0.0;
+		for (int i = 0; i < numberOfDimensions; i++) {
+			dists[i] = 0.0;
+			if (query[i] < root.low[i]) {
+				dists[i] = metric.distance(query[i], root.low[i]);
+				mindistsq += dists[i];
+			}
+			if (query[i] > root.high[i]) {
+				dists[i] = metric.distance(query[i], root.high[i]);
+				mindistsq += dists[i];
+			}
+		}
+
+		Node node = root;
+		while (node != null) {
+			while (node.child1 != null || node.child2 != null) {
+				// Which child branch should be taken first?
+				int cutDimension = node.cutDimension;
+				double queryValueInCutDimension = query[cutDimension];
+				double diff1 = queryValueInCutDimension - node.cutDimensionLow;
+				double diff2 = queryValueInCutDimension - node.cutDimensionHigh;
+				if (diff1 + diff2 < 0) {
+					stack.push(node.child2, cutDimension, metric.distance(
+							queryValueInCutDimension, node.cutDimensionHigh), mindistsq);
+					node = node.child1;
+				} else {
+					stack.push(node.child1, cutDimension, metric.distance(
+							queryValueInCutDimension, node.cutDimensionLow), mindistsq);
+					node = node.child2;
+				}
+			}
+
 			double worstDistance = resultSet.worstDistance();
 			for (int i = node.leftObjectIndex; i < node.rightObjectIndex; i++) {
-				double dist = metric.distance(query,
-						data[objectsIndices.get(i)]);
-				if (dist < worstDistance) {
-					resultSet.addPoint(dist, objectsIndices.get(i));
+				int index = objectsIndices[i];
+				double dist = distanceTo(query, index);
+				// Ties are passed on so the result set can order them by index.
+				if (dist <= worstDistance) {
+					resultSet.addPoint(dist, index);
+					worstDistance = resultSet.worstDistance();
 				}
 			}
-			return;
+
+			// Back up to the nearest cut whose other side is worth a visit,
+			// restoring the distance of the cuts left behind.
+			node = null;
+			while (stack.size > 0) {
+				int top = stack.size - 1;
+				int cutDimension = stack.cutDimensions[top];
+				if (stack.entered[top]) {
+					dists[cutDimension] = stack.savedDists[top];
+					stack.size--;
+					continue;
+				}
+				double dst = dists[cutDimension];
+				double otherMindistsq = stack.mindists[top] - dst + stack.cutDistances[top];
+				if (otherMindistsq * eps <= resultSet.worstDistance()) {
+					dists[cutDimension] = stack.cutDistances[top];
+					stack.savedDists[top] = dst;
+					stack.entered[top] = true;
+					mindistsq = otherMindistsq;
+					node = stack.others[top];
+					break;
+				}
+				stack.size--;
+			}
 		}
+	}
 
-		// Which child branch should be taken first?
-		int cutDimension = node.cutDimension;
-		double queryValueInCutDimension = query[cutDimension];
-		double diff1 = queryValueInCutDimension - node.cutDimensionLow;
-		double diff2 = queryValueInCutDimension - node.cutDimensionHigh;
-		Node bestChild, otherChild;
-		double cutDistance;
-		if (diff1 + diff2 < 0) {
-			bestChild = node.child1;
-			otherChild = node.child2;
-			cutDistance = metric.distance(queryValueInCutDimension,
-					node.cutDimensionHigh);
-		} else {
-			bestChild = node.child2;
-			otherChild = node.child1;
-			cutDistance = metric.distance(queryValueInCutDimension,
-					node.cutDimensionLow);
+	/**
+	 * Returns this thread's search stack, emptied; created on first use,
+	 * also after deserialization.
+	 */
+	private SearchStack pooledStack() {
+		ThreadLocal<SearchStack> pool = stackPool;
+		if (pool == null) {
+			synchronized (this) {
+				pool = stackPool;
+				if (pool == null) {
+					pool = new ThreadLocal<SearchStack>();
+					stackPool = pool;
+				}
+			}
+		}
+		SearchStack stack = pool.get();
+		if (stack == null) {
+			stack = new SearchStack(numberOfDimensions);
+			pool.set(stack);
 		}
+		stack.size = 0;
+		return stack;
+	}
 
-		// Call recursively to search next level down.
-		searchLevel(bestChild, query, resultSet, k, eps, mindistsq, dists);
-		double dst = dists.get(cutDimension);
-		mindistsq = mindistsq - dst + cutDistance;
-		dists.set(cutDimension, cutDistance);
-		if (mindistsq * eps <= resultSet.worstDistance()) {
-			searchLevel(otherChild, query, resultSet, k, eps, mindistsq, dists);
+	/**
+	 * Cuts passed on the way down a search, each with the child not taken,
+	 * the distance from the query to the cut, the cell distance of the node
+	 * and, once the other child is entered, the distance it replaced.
+	 */
+	private static class SearchStack {
+		final double[] dists;
+		Node[] others;
+		int[] cutDimensions;
+		double[] cutDistances;
+		double[] mindists;
+		double[] savedDists;
+		boolean[] entered;
+		int size;
+
+		SearchStack(int numberOfDimensions) {
+			dists = new double[numberOfDimensions];
+			others = new Node[64];
+			cutDimensions = new int[64];
+			cutDistances = new double[64];
+			mindists = new double[64];
+			savedDists = new double[64];
+			entered = new boolean[64];
+		}
+
+		void push(Node other, int cutDimension, double cutDistance,
+				double mindistsq) {
+			if (size == others.length) {
+				int capacity = 2 * size;
+				others = Arrays.copyOf(others, capacity);
+				cutDimensions = Arrays.copyOf(cutDimensions, capacity);
+				cutDistances = Arrays.copyOf(cutDistances, capacity);
+				mindists = Arrays.copyOf(mindists, capacity);
+				savedDists = Arrays.copyOf(savedDists, capacity);
+				entered = Arrays.copyOf(entered, capacity);
+			}
+			others[size] = other;
+			cutDimensions[size] = cutDimension;
+			cutDistances[size] = cutDistance;
+			mindists[size] = mindistsq;
+			entered[size] = false;
+			size++;
 		}
-		dists.set(cutDimension, dst);
 	}
 
 	/**
 	 * Construct a tree node that subdivides the list of objects/points from
-	 * objectsIndices.get(left) to objectsIndices.get(right). The routine is
+	 * objectsIndices[left] to objectsIndices[right]. The routine is
 	 * called recursively on each sublist.
 	 */
 	private Node divideTree(int left, int right, BoundingBox bbox) {
 		Node node = new Node();
+		node.id = numberOfNodes++;
+		node.leftObjectIndex = left;
+		node.rightObjectIndex = right;
 
 		// If too few objects remain, then make this a leaf node.
 		if (right - left <= maxPointsInOneLeafNode) {
 			node.child1 = node.child2 = null;
-			node.leftObjectIndex = left;
-			node.rightObjectIndex = right;
 
 			// Compute bounding box for the objects in this leaf node.
 			for (int i = 0; i < numberOfDimensions; i++) {
-				double val = data[objectsIndices.get(left)][i];
-				bbox.add(val, val);
+				double val = coordinate(objectsIndices[left], i);
+				bbox.setMin(i, val);
+				bbox.setMax(i, val);
 			}
 			for (int k = left + 1; k < right; k++) {
 				for (int i = 0; i < numberOfDimensions; i++) {
-					double objectKInDimensionI = data[objectsIndices.get(k)][i];
+					double objectKInDimensionI = coordinate(objectsIndices[k], i);
 					if (objectKInDimensionI < bbox.getMin(i))
 						bbox.setMin(i, objectKInDimensionI);
 					if (objectKInDimensionI > bbox.getMax(i))
@@ -181,9 +429,252 @@ public class IndexKDTreeSingle extends IndexBase {
 			}
 		}
 
+		node.low = new double[numberOfDimensions];
+		node.high = new double[numberOfDimensions];
+		for (int i = 0; i < numberOfDimensions; i++) {
+			node.low[i] = bbox.getMin(i);
+			node.high[i] = bbox.getMax(i);
+		}
 		return node;
 	}
 
+	/**
+	 * k nearest neighbours of every indexed point, itself included, by a
+	 * dual-tree traversal: the tree is walked against itself and a pair of
+	 * query and reference nodes is skipped once the distance between their
+	 * boxes exceeds the worst k-th neighbour distance of the query node, so
+	 * whole blocks of points are discarded at once instead of per query.
+	 * Same layout and results as {@link #knnSearchBatch} with the indexed
+	 * points as queries and no eps: the neighbours of point i are written to
+	 * indices[i * k .. i * k + k - 1] and distances[i * k .. i * k + k - 1],
+	 * nearest first, ties by lower index; unused positions are set to -1 and
+	 * Double.MAX_VALUE.
+	 */
+	public void allKnnDualTree(int k, int[] indices, double[] distances) {
+		allKnnDualTree(k, indices, distances, 1);
+	}
+
+	/**
+	 * {@link #allKnnDualTree(int, int[], double[])} with up to 'threads'
+	 * threads, each owning the query points of one subtree.
+	 */
+	public void allKnnDualTree(int k, int[] indices, double[] distances,
+			int threads) {
+		if (k < 1) {
+			throw new ExceptionFLANN("k must be positive");
+		}
+		long required = (long) numberOfObjects * k;
+		if (indices.length < required || distances.length < required) {
+			throw new ExceptionFLANN("Output buffers must hold numberOfObjects * k elements");
+		}
+		Arrays.fill(indices, 0, (int) required, -1);
+		Arrays.fill(distances, 0, (int) required, Double.MAX_VALUE);
+		if (numberOfObjects == 0) {
+			return;
+		}
+		if (root == null) {
+			throw new ExceptionFLANN("The index must be built before searching");
+		}
+		DualTreeSearch search = new DualTreeSearch(k, indices, distances);
+		if (threads <= 1 || numberOfObjects <= DUAL_TREE_GRAIN_SIZE) {
+			search.visit(root, root);
+			return;
+		}
+		batchPool(threads).invoke(new DualTreeTask(search, root));
+	}
+
+	/**
+	 * State of one dual-tree search. The neighbours found so far of every
+	 * query point are kept sorted in its row of the output buffers, and
+	 * 'bounds' holds for every query node the largest k-th neighbour
+	 * distance of its points, Double.MAX_VALUE while one of them has fewer
+	 * than k.
+	 */
+	private class DualTreeSearch {
+		final int k;
+		final int[] indices;
+		final double[] distances;
+		final double[] bounds;
+
+		DualTreeSearch(int k, int[] indices, double[] distances) {
+			this.k = k;
+			this.indices = indices;
+			this.distances = distances;
+			this.bounds = new double[numberOfNodes];
+			Arrays.fill(bounds, Double.MAX_VALUE);
+		}
+
+		void visit(Node query, Node reference) {
+			boolean queryLeaf = query.child1 == null;
+			boolean referenceLeaf = reference.child1 == null;
+			if (queryLeaf && referenceLeaf) {
+				scan(query, reference);
+			} else if (queryLeaf) {
+				visitNearestFirst(query, reference.child1, reference.child2);
+			} else if (referenceLeaf) {
+				visitIfReachable(query.child1, reference);
+				visitIfReachable(query.child2, reference);
+				updateBound(query);
+			} else {
+				visitNearestFirst(query.child1, reference.child1, reference.child2);
+				visitNearestFirst(query.child2, reference.child1, reference.child2);
+				updateBound(query);
+			}
+		}
+
+		void visitIfReachable(Node query, Node reference) {
+			// Ties are kept: a pair is only skipped when strictly farther.
+			if (boxDistance(query, reference) <= bounds[query.id]) {
+				visit(query, reference);
+			}
+		}
+
+		void visitNearestFirst(Node query, Node reference1, Node reference2) {
+			double distance1 = boxDistance(query, reference1);
+			double distance2 = boxDistance(query, reference2);
+			if (distance2 < distance1) {
+				Node swapped = reference1;
+				reference1 = reference2;
+				reference2 = swapped;
+				double swappedDistance = distance1;
+				distance1 = distance2;
+				distance2 = swappedDistance;
+			}
+			if (distance1 <= bounds[query.id]) {
+				visit(query, reference1);
+			}
+			// The bound may have shrunk while visiting the nearer node.
+			if (distance2 <= bounds[query.id]) {
+				visit(query, reference2);
+			}
+		}
+
+		void updateBound(Node query) {
+			bounds[query.id] = Math.max(bounds[query.child1.id],
+					bounds[query.child2.id]);
+		}
+
+		/**
+		 * Distance between the boxes of two nodes, summed per dimension like
+		 * the metric, so that it never exceeds the distance of any pair of
+		 * their points.
+		 */
+		double boxDistance(Node a, Node b) {
+			double distance = 0;
+			for (int i = 0; i < numberOfDimensions; i++) {
+				if (b.low[i] > a.high[i]) {
+					distance += metric.distance(b.low[i], a.high[i]);
+				} else if (a.low[i] > b.high[i]) {
+					distance += metric.distance(a.low[i], b.high[i]);
+				}
+			}
+			return distance;
+		}
+
+		/**
+		 * Distance from the point at 'offset' in 'data' to the box of a node.
+		 */
+		double pointBoxDistance(int offset, Node node) {
+			double distance = 0;
+			for (int i = 0; i < numberOfDimensions; i++) {
+				double value = data[offset + i];
+				if (value < node.low[i]) {
+					distance += metric.distance(node.low[i], value);
+				} else if (value > node.high[i]) {
+					distance += metric.distance(value, node.high[i]);
+				}
+			}
+			return distance;
+		}
+
+		/**
+		 * Compares every point of the query leaf with every point of the
+		 * reference leaf.
+		 */
+		void scan(Node query, Node reference) {
+			double bound = 0;
+			for (int i = query.leftObjectIndex; i < query.rightObjectIndex; i++) {
+				int queryIndex = objectsIndices[i];
+				int queryOffset = queryIndex * numberOfDimensions;
+				int row = queryIndex * k;
+				double worstDistance = distances[row + k - 1];
+				if (pointBoxDistance(queryOffset, reference) > worstDistance) {
+					bound = Math.max(bound, worstDistance);
+					continue;
+				}
+				for (int j = reference.leftObjectIndex; j < reference.rightObjectIndex; j++) {
+					int index = objectsIndices[j];
+					double dist = metric.distance(data, queryOffset, data,
+							index * numberOfDimensions, numberOfDimensions);
+					// Ties are passed on so they can be ordered by index.
+					if (dist <= worstDistance) {
+						addPoint(row, dist, index);
+						worstDistance = distances[row + k - 1];
+					}
+				}
+				bound = Math.max(bound, worstDistance);
+			}
+			bounds[query.id] = bound;
+		}
+
+		/**
+		 * Inserts (dist, index) into the sorted row starting at 'row', in
+		 * the (distance, index) order of
+		 * {@link com.yolo.CDC.java.knnsearch.result_set.KNNSimpleResultSet};
+		 * most inserts land near the end, so shifting from there is cheaper
+		 * than a binary search and two array copies.
+		 */
+		void addPoint(int row, double dist, int index) {
+			int last = row + k - 1;
+			double worstDistance = distances[last];
+			if (dist > worstDistance)
+				return;
+			// On a tie with the current worst, keep the lower index.
+			if (dist == worstDistance && (indices[last] < 0
+					|| index >= indices[last]))
+				return;
+
+			// Shifts the greater entries up by one, from the end; the unused
+			// positions hold Double.MAX_VALUE and sort last.
+			int low = last;
+			while (low > row && (distances[low - 1] > dist
+					|| (distances[low - 1] == dist && indices[low - 1] > index))) {
+				distances[low] = distances[low - 1];
+				indices[low] = indices[low - 1];
+				low--;
+			}
+			distances[low] = dist;
+			indices[low] = index;
+		}
+	}
+
+	/**
+	 * Searches the query points of one subtree against the whole tree,
+	 * splitting the subtree while it is larger than DUAL_TREE_GRAIN_SIZE.
+	 * Tasks write disjoint rows and bounds, so no locking is needed.
+	 */
+	private class DualTreeTask extends RecursiveAction {
+		private final DualTreeSearch search;
+		private final Node query;
+
+		DualTreeTask(DualTreeSearch search, Node query) {
+			this.search = search;
+			this.query = query;
+		}
+
+		@Override
+		protected void compute() {
+			if (query.child1 == null
+					|| query.rightObjectIndex - query.leftObjectIndex <= DUAL_TREE_GRAIN_SIZE) {
+				search.visit(query, root);
+				return;
+			}
+			invokeAll(new DualTreeTask(search, query.child1),
+					new DualTreeTask(search, query.child2));
+			search.updateBound(query);
+		}
+	}
+
 	private class middleSplitResult {
 		public int cutObjectIndex;
 		public int cutDimension;
@@ -198,6 +689,22 @@ public class IndexKDTreeSingle extends IndexBase {
 		double max = bbox.getMax(out.cutDimension);
 		out.cutDimensionValue = (min + max) / 2;
 
+		// Keep the cut inside the range actually spanned by the points, so
+		// that neither side of the split can be empty.
+		double minValue = Double.MAX_VALUE;
+		double maxValue = -Double.MAX_VALUE;
+		for (int i = start; i < start + count; i++) {
+			double value = coordinate(objectsIndices[i], out.cutDimension);
+			if (value < minValue)
+				minValue = value;
+			if (value > maxValue)
+				maxValue = value;
+		}
+		if (out.cutDimensionValue < minValue)
+			out.cutDimensionValue = minValue;
+		else if (out.cutDimensionValue > maxValue)
+			out.cutDimensionValue = maxValue;
+
 		// Hyperplane partitioning.
 		int[] lim1Andlim2Wrapper = new int[2];
 		planeSplit(start, count, out.cutDimension, out.cutDimensionValue,
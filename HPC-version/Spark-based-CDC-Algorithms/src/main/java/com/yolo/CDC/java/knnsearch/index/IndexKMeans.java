@@ -3,13 +3,17 @@ package com.yolo.CDC.java.knnsearch.index;
 import com.yolo.CDC.java.knnsearch.exception.ExceptionFLANN;
 import com.yolo.CDC.java.knnsearch.metric.Metric;
 import com.yolo.CDC.java.knnsearch.result_set.ResultSet;
-import com.yolo.CDC.java.knnsearch.util.Utils;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collections;
-import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 public class IndexKMeans extends IndexBase implements Serializable {
     // Parameters and tree root.
@@ -29,33 +33,95 @@ public class IndexKMeans extends IndexBase implements Serializable {
     }
 
     CenterChooser.Algorithm centersInit;
-    Node root;
+    // Serialized through toFlat.
+    transient Node root;
+
+    // Copy the coordinates of every leaf into one contiguous block.
+    boolean reorder;
+    // Coordinates in objectsIndices order when 'reorder' is set, so the
+    // points of a leaf occupy leafData[pointsStart * numberOfDimensions ..
+    // (pointsStart + size) * numberOfDimensions); null otherwise.
+    transient double[] leafData;
+
+    // Seed of the center selection; negative for a random seed.
+    long seed;
+    // Threads used to build the tree; 1 builds it on the calling thread.
+    int buildThreads;
+    // Pool of the running parallel build, null otherwise.
+    private transient ForkJoinPool buildPool;
+
+    // Smallest node whose children are built as separate tasks.
+    private static final int PARALLEL_SUBTREE_MIN = 4096;
+    // Smallest node whose assignment step is split across tasks, and the
+    // number of points per task.
+    private static final int PARALLEL_ASSIGN_MIN = 8192;
+    private static final int ASSIGN_GRAIN_SIZE = 2048;
 
     public static class BuildParams extends BuildParamsBase {
         public int branching;
         public int iterations;
         public float cbIndex;
         public CenterChooser.Algorithm centersInit;
+        public boolean reorder;
+        // A non-negative seed makes the tree reproducible, whatever the
+        // number of build threads.
+        public long seed;
+        public int buildThreads;
 
         public BuildParams() {
             this.branching = 32;
             this.iterations = 11;
             this.cbIndex = 0.2f;
             this.centersInit = CenterChooser.Algorithm.FLANN_CENTERS_RANDOM;
+            this.reorder = false;
+            this.seed = -1;
+            this.buildThreads = 1;
         }
 
         public BuildParams(int branching, int iterations, float cbIndex,
                            CenterChooser.Algorithm centersInit) {
+            this(branching, iterations, cbIndex, centersInit, false);
+        }
+
+        public BuildParams(int branching, int iterations, float cbIndex,
+                           CenterChooser.Algorithm centersInit, boolean reorder) {
             this.branching = branching;
             this.iterations = iterations;
             this.cbIndex = cbIndex;
             this.centersInit = centersInit;
+            this.reorder = reorder;
+            this.seed = -1;
+            this.buildThreads = 1;
         }
     }
 
     public static class SearchParams extends SearchParamsBase {
     }
 
+    /**
+     * The tree in flat form, nodes in breadth-first order. Node i has the
+     * center pivots[i * numberOfDimensions .. (i + 1) * numberOfDimensions),
+     * radius radii[i], variance variances[i] and sizes[i] points. Its
+     * children are the nodes childStart[i] .. childStart[i + 1] - 1; without
+     * children it holds the points objectsIndices[pointsStart[i] ..
+     * pointsStart[i] + sizes[i]). 'leafData' follows from the points.
+     */
+    public static class Flat extends FlatIndex {
+        public int branching;
+        public int iterations;
+        public float cbIndex;
+        public CenterChooser.Algorithm centersInit;
+        public boolean reorder;
+        public long seed;
+        public int buildThreads;
+        public double[] pivots;
+        public double[] radii;
+        public double[] variances;
+        public int[] sizes;
+        public int[] childStart;
+        public int[] pointsStart;
+    }
+
     private class Node implements Serializable {
         // The cluster center.
         public double[] pivot;
@@ -67,18 +133,40 @@ public class IndexKMeans extends IndexBase implements Serializable {
         public int size;
         // Children nodes (only for non-terminal nodes).
         public ArrayList<Node> children = new ArrayList<Node>();
-        // Node points (only for terminal nodes).
-        public ArrayList<PointInfo> points = new ArrayList<PointInfo>();
-    }
-
-    private class PointInfo implements Serializable {
-        int index;
-        double[] point;
+        // Position of the node points in objectsIndices (only for terminal
+        // nodes); they occupy objectsIndices[pointsStart .. pointsStart + size).
+        public int pointsStart;
     }
 
     public IndexKMeans(Metric metric, double[][] data,
                        BuildParamsBase buildParams) {
         super(metric, data);
+        init(buildParams);
+    }
+
+    public IndexKMeans(Metric metric, double[] data, int numberOfDimensions,
+                       BuildParamsBase buildParams) {
+        super(metric, data, numberOfDimensions);
+        init(buildParams);
+    }
+
+    /**
+     * The index exported by {@link #toFlat}, ready to search.
+     */
+    public IndexKMeans(Metric metric, Flat flat) {
+        super(metric, flat);
+        branching = flat.branching;
+        iterations = flat.iterations;
+        cbIndex = flat.cbIndex;
+        centersInit = flat.centersInit;
+        reorder = flat.reorder;
+        seed = flat.seed;
+        buildThreads = flat.buildThreads;
+        this.type = IndexFLANN.KMEANS;
+        importTree(flat);
+    }
+
+    private void init(BuildParamsBase buildParams) {
         root = null;
 
         // Get parameters.
@@ -87,6 +175,9 @@ public class IndexKMeans extends IndexBase implements Serializable {
         iterations = bp.iterations;
         centersInit = bp.centersInit;
         cbIndex = bp.cbIndex;
+        reorder = bp.reorder;
+        seed = bp.seed;
+        buildThreads = bp.buildThreads;
         if (iterations < 0) {
             iterations = Integer.MAX_VALUE;
         }
@@ -101,14 +192,142 @@ public class IndexKMeans extends IndexBase implements Serializable {
         }
 
         // Prepare objectsIndices.
-        objectsIndices = new ArrayList<Integer>();
-        for (int i = 0; i < numberOfObjects; i++) {
-            objectsIndices.add(i);
-        }
+        initObjectsIndices();
 
+        long rootSeed = seed < 0 ? new Random().nextLong() : seed;
         root = new Node();
         computeRootNodeStatistics();
-        computeClustering(root, 0, numberOfObjects);
+        if (buildThreads > 1) {
+            buildPool = batchPool(buildThreads);
+            try {
+                buildPool.invoke(new ClusteringTask(root, 0, numberOfObjects,
+                        rootSeed));
+            } finally {
+                buildPool = null;
+            }
+        } else {
+            computeClustering(root, 0, numberOfObjects, rootSeed);
+        }
+
+        leafData = null;
+        if (reorder) {
+            reorderLeafPoints();
+        }
+    }
+
+    /**
+     * The index in flat form; shares the points and their permutation.
+     */
+    public Flat toFlat() {
+        Flat flat = exportTo(new Flat());
+        flat.branching = branching;
+        flat.iterations = iterations;
+        flat.cbIndex = cbIndex;
+        flat.centersInit = centersInit;
+        flat.reorder = reorder;
+        flat.seed = seed;
+        flat.buildThreads = buildThreads;
+
+        ArrayList<Node> nodes = new ArrayList<Node>();
+        if (root != null) {
+            nodes.add(root);
+        }
+        for (int i = 0; i < nodes.size(); i++) {
+            nodes.addAll(nodes.get(i).children);
+        }
+        int numberOfNodes = nodes.size();
+        flat.pivots = new double[numberOfNodes * numberOfDimensions];
+        flat.radii = new double[numberOfNodes];
+        flat.variances = new double[numberOfNodes];
+        flat.sizes = new int[numberOfNodes];
+        flat.childStart = new int[numberOfNodes + 1];
+        flat.pointsStart = new int[numberOfNodes];
+        int nextChild = 1;
+        for (int i = 0; i < numberOfNodes; i++) {
+            Node node = nodes.get(i);
+            System.arraycopy(node.pivot, 0, flat.pivots, i * numberOfDimensions,
+                    numberOfDimensions);
+            flat.radii[i] = node.radius;
+            flat.variances[i] = node.variance;
+            flat.sizes[i] = node.size;
+            flat.pointsStart[i] = node.pointsStart;
+            flat.childStart[i] = nextChild;
+            nextChild += node.children.size();
+        }
+        flat.childStart[numberOfNodes] = nextChild;
+        return flat;
+    }
+
+    private void importTree(Flat flat) {
+        int numberOfNodes = flat.sizes.length;
+        Node[] nodes = new Node[numberOfNodes];
+        for (int i = 0; i < numberOfNodes; i++) {
+            Node node = new Node();
+            node.pivot = Arrays.copyOfRange(flat.pivots, i * numberOfDimensions,
+                    (i + 1) * numberOfDimensions);
+            node.radius = flat.radii[i];
+            node.variance = flat.variances[i];
+            node.size = flat.sizes[i];
+            node.pointsStart = flat.pointsStart[i];
+            nodes[i] = node;
+        }
+        for (int i = 0; i < numberOfNodes; i++) {
+            int from = flat.childStart[i];
+            int to = flat.childStart[i + 1];
+            nodes[i].children = new ArrayList<Node>(to - from);
+            for (int c = from; c < to; c++) {
+                nodes[i].children.add(nodes[c]);
+            }
+        }
+        root = numberOfNodes == 0 ? null : nodes[0];
+
+        leafData = null;
+        if (reorder && root != null) {
+            reorderLeafPoints();
+        }
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        out.defaultWriteObject();
+        out.writeObject(toFlat());
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException,
+            ClassNotFoundException {
+        in.defaultReadObject();
+        importTree((Flat) in.readObject());
+    }
+
+    /**
+     * Copies the coordinates into 'leafData' in objectsIndices order. The
+     * clustering leaves the points of every leaf contiguous in
+     * objectsIndices, so each leaf becomes one contiguous block.
+     */
+    private void reorderLeafPoints() {
+        leafData = new double[numberOfObjects * numberOfDimensions];
+        for (int i = 0; i < numberOfObjects; i++) {
+            System.arraycopy(data, offset(objectsIndices[i]), leafData,
+                    i * numberOfDimensions, numberOfDimensions);
+        }
+    }
+
+    /**
+     * Adds every point of the terminal node 'node' to the result set.
+     */
+    private void searchLeaf(Node node, ResultSet resultSet, double[] query) {
+        int end = node.pointsStart + node.size;
+        if (leafData != null) {
+            for (int i = node.pointsStart; i < end; i++) {
+                double dist = metric.distance(query, 0, leafData,
+                        i * numberOfDimensions, numberOfDimensions);
+                resultSet.addPoint(dist, objectsIndices[i]);
+            }
+        } else {
+            for (int i = node.pointsStart; i < end; i++) {
+                int index = objectsIndices[i];
+                resultSet.addPoint(distanceTo(query, index), index);
+            }
+        }
     }
 
     private void computeRootNodeStatistics() {
@@ -117,7 +336,7 @@ public class IndexKMeans extends IndexBase implements Serializable {
         for (int i = 0; i < numberOfDimensions; i++) {
             mean[i] = 0;
             for (int j = 0; j < numberOfObjects; j++) {
-                mean[i] += data[j][i];
+                mean[i] += coordinate(j, i);
             }
         }
         double divFactor = 1.0 / numberOfObjects;
@@ -128,7 +347,7 @@ public class IndexKMeans extends IndexBase implements Serializable {
         double radius = 0;
         double variance = 0;
         for (int i = 0; i < numberOfObjects; i++) {
-            double dist = metric.distance(mean, data[i]);
+            double dist = distanceTo(mean, i);
             variance += dist;
             if (dist > radius) {
                 radius = dist;
@@ -143,40 +362,39 @@ public class IndexKMeans extends IndexBase implements Serializable {
         root.radius = radius;
     }
 
-    private void computeClustering(Node node, int start, int count) {
+    /**
+     * Builds the subtree of 'node' over objectsIndices[start .. start + count).
+     * All random choices of the subtree derive from 'nodeSeed'.
+     */
+    private void computeClustering(Node node, int start, int count,
+                                   long nodeSeed) {
         // The number of points represented by this node.
         node.size = count;
 
         // Construct a terminal node if not enough points
         // are left for further partitioning.
         if (count < branching) {
-            for (int i = 0; i < count; i++) {
-                int x = objectsIndices.get(start + i);
-                PointInfo pi = new PointInfo();
-                pi.index = x;
-                pi.point = data[x];
-                node.points.add(pi);
-//                System.out.println("terminal node 第" + i + "个点：" + Arrays.toString(pi.point));
-            }
+            node.pointsStart = start;
             node.children.clear();
             return;
         }
 
         // Choose initial cluster centers according to the specified algorithm
         // in the build parameters.
+        Random random = new Random(nodeSeed);
         ArrayList<Integer> centersIdx = new ArrayList<Integer>(branching);
         switch (centersInit) {
             case FLANN_CENTERS_RANDOM:
-                CenterChooser.Random(metric, data, branching, objectsIndices,
-                        start, count, centersIdx);
+                CenterChooser.Random(metric, data, numberOfDimensions, branching, objectsIndices,
+                        start, count, centersIdx, random);
                 break;
             case FLANN_CENTERS_GONZALES:
-                CenterChooser.Gonzales(metric, data, branching, objectsIndices,
-                        start, count, centersIdx);
+                CenterChooser.Gonzales(metric, data, numberOfDimensions, branching, objectsIndices,
+                        start, count, centersIdx, random);
                 break;
             case FLANN_CENTERS_KMEANSPP:
-                CenterChooser.KMeansPP(metric, data, branching, objectsIndices,
-                        start, count, centersIdx);
+                CenterChooser.KMeansPP(metric, data, numberOfDimensions, branching, objectsIndices,
+                        start, count, centersIdx, random);
                 break;
             default:
                 throw new IllegalStateException("Unexpected value: " + centersInit);
@@ -187,13 +405,7 @@ public class IndexKMeans extends IndexBase implements Serializable {
 
         // If necessary, make this a terminal node.
         if (centersLength < branching) {
-            for (int i = 0; i < count; i++) {
-                int x = objectsIndices.get(start + i);
-                PointInfo pi = new PointInfo();
-                pi.index = x;
-                pi.point = data[x];
-                node.points.add(pi);
-            }
+            node.pointsStart = start;
             node.children.clear();
             return;
         }
@@ -207,10 +419,10 @@ public class IndexKMeans extends IndexBase implements Serializable {
 //        System.out.println("dcenters:" + dcenters.length);
         for (int i = 0; i < centersLength; i++) {
 //			System.out.println("i:"+i);
-            double[] vec = data[centersIdx.get(i)];
+            int vec = offset(centersIdx.get(i));
             for (int k = 0; k < numberOfDimensions; k++) {
 //				System.out.println("k:"+k);
-                dcenters[i][k] = vec[k];
+                dcenters[i][k] = data[vec + k];
             }
         }
 
@@ -224,23 +436,14 @@ public class IndexKMeans extends IndexBase implements Serializable {
             radiuses[i] = 0;
             count2[i] = 0;
         }
-        Integer[] belongsTo = new Integer[count];
+        int[] belongsTo = new int[count];
+        int[] nearest = new int[count];
+        double[] nearestDist = new double[count];
 
         // Assign points to clusters.
+        assignToCenters(start, count, dcenters, belongsTo, nearestDist);
         for (int i = 0; i < count; i++) {
-            // Get the point and compute initial distance to the first cluster
-            // center.
-            double[] p = data[objectsIndices.get(start + i)];
-            double sqDist = metric.distance(p, dcenters[0]);
-            belongsTo[i] = 0;
-            // Find the closest cluster center to this point and the distance.
-            for (int j = 0; j < branching; j++) {
-                double newSqDist = metric.distance(p, dcenters[j]);
-                if (sqDist > newSqDist) {
-                    belongsTo[i] = j;
-                    sqDist = newSqDist;
-                }
-            }
+            double sqDist = nearestDist[i];
             // If the newly added point 'p' to the cluster 'belongsTo[i]' is
             // further away from the cluster center, than its current radius,
             // then expand the current cluster radius.
@@ -268,10 +471,10 @@ public class IndexKMeans extends IndexBase implements Serializable {
             }
 
             for (int i = 0; i < count; i++) {
-                double[] vec = data[objectsIndices.get(start + i)];
+                int vec = offset(objectsIndices[start + i]);
                 double[] center = dcenters[belongsTo[i]];
                 for (int k = 0; k < numberOfDimensions; k++) {
-                    center[k] += vec[k];
+                    center[k] += data[vec + k];
                 }
             }
 
@@ -285,19 +488,11 @@ public class IndexKMeans extends IndexBase implements Serializable {
             // ------------------------------------------------------
 
             // Reassign points to clusters --------------------------
+            assignToCenters(start, count, dcenters, nearest, nearestDist);
             for (int i = 0; i < count; i++) {
-                double[] p = data[objectsIndices.get(start + i)];
-
-                // Find the closest centroid to the current point 'p'.
-                double sqDist = metric.distance(p, dcenters[0]);
-                int newCentroid = 0;
-                for (int j = 0; j < branching; j++) {
-                    double newSqDist = metric.distance(p, dcenters[j]);
-                    if (newSqDist < sqDist) {
-                        newCentroid = j;
-                        sqDist = newSqDist;
-                    }
-                }
+                // The closest centroid to the current point.
+                int newCentroid = nearest[i];
+                double sqDist = nearestDist[i];
 
                 // If necessary, expand the radius for the cluster
                 // that this point was assigned to.
@@ -347,22 +542,25 @@ public class IndexKMeans extends IndexBase implements Serializable {
             }
         }
 
-        // Compute k-means clustering for each of the resulting clusters.
-        int start2 = 0;
+        // Partition the points by cluster: those of cluster 'c' end up in
+        // objectsIndices[start + childStart[c] .. start + childStart[c + 1]).
+        int[] childStart = new int[branching + 1];
         int end = 0;
         for (int c = 0; c < branching; c++) {
+            childStart[c] = end;
             // The number of points the cluster 'c' has.
             int s = count2[c];
 
             double variance = 0;
             for (int i = 0; i < count; i++) {
-                double[] p = data[objectsIndices.get(start + i)];
+                int p = objectsIndices[start + i];
                 // If the current point 'p' belongs to cluster 'c'.
                 if (belongsTo[i] == c) {
-                    variance += metric.distance(centers[c], p);
+                    variance += distanceTo(centers[c], p);
 
-                    Collections.swap(objectsIndices, i, end);
-                    Utils.swapArray(belongsTo, i, end);
+                    // 'i' and 'end' are relative to 'start'.
+                    swap(objectsIndices, start + i, start + end);
+                    swap(belongsTo, i, end);
                     end++;
                 }
             }
@@ -373,11 +571,114 @@ public class IndexKMeans extends IndexBase implements Serializable {
             newNode.pivot = centers[c];
             newNode.variance = variance;
             node.children.add(newNode);
-//			System.out.println("parentNode:"+Arrays.toString(node.pivot));
-//			System.out.println("childrenNode:"+Arrays.toString(newNode.pivot));
-            computeClustering(newNode, start + start2, end - start2);
+        }
+        childStart[branching] = end;
+
+        // The child seeds are drawn in order before any child is built, so
+        // the tree does not depend on the order in which subtrees finish.
+        long[] childSeeds = new long[branching];
+        for (int c = 0; c < branching; c++) {
+            childSeeds[c] = random.nextLong();
+        }
+
+        // Compute k-means clustering for each of the resulting clusters.
+        // They cover disjoint ranges of objectsIndices, so large nodes build
+        // them in parallel.
+        if (buildPool != null && count >= PARALLEL_SUBTREE_MIN) {
+            ClusteringTask[] tasks = new ClusteringTask[branching];
+            for (int c = 0; c < branching; c++) {
+                tasks[c] = new ClusteringTask(node.children.get(c),
+                        start + childStart[c], childStart[c + 1] - childStart[c],
+                        childSeeds[c]);
+            }
+            ForkJoinTask.invokeAll(tasks);
+        } else {
+            for (int c = 0; c < branching; c++) {
+                computeClustering(node.children.get(c), start + childStart[c],
+                        childStart[c + 1] - childStart[c], childSeeds[c]);
+            }
+        }
+    }
+
+    /**
+     * For each point objectsIndices[start + i], i < count, stores the index
+     * of the closest of 'centers' in nearest[i] (the first one on ties) and
+     * the distance to it in nearestDist[i]. Points are independent, so
+     * during a parallel build large nodes split them across tasks.
+     */
+    private void assignToCenters(int start, int count, double[][] centers,
+                                 int[] nearest, double[] nearestDist) {
+        if (buildPool != null && count >= PARALLEL_ASSIGN_MIN) {
+            new AssignTask(start, centers, nearest, nearestDist, 0, count)
+                    .invoke();
+        } else {
+            assignToCenters(start, centers, nearest, nearestDist, 0, count);
+        }
+    }
 
-            start2 = end;
+    private void assignToCenters(int start, double[][] centers, int[] nearest,
+                                 double[] nearestDist, int from, int to) {
+        for (int i = from; i < to; i++) {
+            int p = objectsIndices[start + i];
+            double sqDist = distanceTo(centers[0], p);
+            int best = 0;
+            for (int j = 1; j < centers.length; j++) {
+                double newSqDist = distanceTo(centers[j], p);
+                if (newSqDist < sqDist) {
+                    best = j;
+                    sqDist = newSqDist;
+                }
+            }
+            nearest[i] = best;
+            nearestDist[i] = sqDist;
+        }
+    }
+
+    private class ClusteringTask extends RecursiveAction {
+        private final Node node;
+        private final int start, count;
+        private final long nodeSeed;
+
+        ClusteringTask(Node node, int start, int count, long nodeSeed) {
+            this.node = node;
+            this.start = start;
+            this.count = count;
+            this.nodeSeed = nodeSeed;
+        }
+
+        @Override
+        protected void compute() {
+            computeClustering(node, start, count, nodeSeed);
+        }
+    }
+
+    private class AssignTask extends RecursiveAction {
+        private final int start;
+        private final double[][] centers;
+        private final int[] nearest;
+        private final double[] nearestDist;
+        private final int from, to;
+
+        AssignTask(int start, double[][] centers, int[] nearest,
+                   double[] nearestDist, int from, int to) {
+            this.start = start;
+            this.centers = centers;
+            this.nearest = nearest;
+            this.nearestDist = nearestDist;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= ASSIGN_GRAIN_SIZE) {
+                assignToCenters(start, centers, nearest, nearestDist, from, to);
+                return;
+            }
+            int middle = (from + to) >>> 1;
+            invokeAll(new AssignTask(start, centers, nearest, nearestDist,
+                    from, middle), new AssignTask(start, centers, nearest,
+                    nearestDist, middle, to));
         }
     }
 
@@ -388,19 +689,19 @@ public class IndexKMeans extends IndexBase implements Serializable {
         if (maxChecks == -1) {
             findExactNN(root, resultSet, query);
         } else {
-            // Priority queue storing intermediate branches in the
-            // best-bin-first search.
-            PriorityQueue<Branch<Node>> heap = new PriorityQueue<Branch<Node>>(
-                    numberOfObjects);
+            // Branches still to explore in the best-bin-first search. A
+            // descent may end in a pruned cluster without any check, so the
+            // heap keeps room for the siblings of every descent it may take.
+            SearchContext<Node> heap = pooledSearchContext(branching
+                    * SearchContext.branchCapacity(maxChecks, resultSet), 0);
 
             int checks[] = new int[1];
             checks[0] = 0;
             findNN(root, resultSet, query, checks, maxChecks, heap);
 
-            Branch<Node> branch;
-            while ((branch = heap.poll()) != null
+            while (!heap.isEmpty()
                     && (checks[0] < maxChecks || !resultSet.full())) {
-                findNN(branch.node, resultSet, query, checks, maxChecks, heap);
+                findNN(heap.poll(), resultSet, query, checks, maxChecks, heap);
             }
         }
     }
@@ -428,14 +729,7 @@ public class IndexKMeans extends IndexBase implements Serializable {
 
         // Terminal node.
         if (node.children.isEmpty()) {
-            for (int i = 0; i < node.size; i++) {
-                PointInfo pointInfo = node.points.get(i);
-                int index = pointInfo.index;
-                double dist = metric.distance(pointInfo.point, query);
-                resultSet.addPoint(dist, index);
-//                System.out.println("index:"+pointInfo.index);
-//                System.out.println("point:"+ Arrays.toString(pointInfo.point));
-            }
+            searchLeaf(node, resultSet, query);
         }
         // Internal node.
         else {
@@ -473,7 +767,7 @@ public class IndexKMeans extends IndexBase implements Serializable {
     }
 
     private void findNN(Node node, ResultSet resultSet, double[] query,
-                        int[] checks, int maxChecks, PriorityQueue<Branch<Node>> heap) {
+                        int[] checks, int maxChecks, SearchContext<Node> heap) {
         // Pruning. Ignore those clusters that are too far away -----
         double bsq = metric.distance(query, node.pivot);
         double rsq = node.radius;
@@ -493,13 +787,8 @@ public class IndexKMeans extends IndexBase implements Serializable {
                 return;
             }
 
-            for (int i = 0; i < node.size; i++) {
-                PointInfo pointInfo = node.points.get(i);
-                int index = pointInfo.index;
-                double dist = metric.distance(pointInfo.point, query);
-                resultSet.addPoint(dist, index);
-                checks[0]++;
-            }
+            searchLeaf(node, resultSet, query);
+            checks[0] += node.size;
         }
         // Internal node.
         else {
@@ -515,8 +804,8 @@ public class IndexKMeans extends IndexBase implements Serializable {
      * query point.
      */
     private int exploreNodeBranches(Node node, double[] q,
-                                    PriorityQueue<Branch<Node>> heap) {
-        double[] domainDistances = new double[branching];
+                                    SearchContext<Node> heap) {
+        double[] domainDistances = heap.scratch(branching);
         domainDistances[0] = metric.distance(q, node.children.get(0).pivot);
 
         // Compute and record the smallest among the distance values from
@@ -534,7 +823,7 @@ public class IndexKMeans extends IndexBase implements Serializable {
             if (i != bestIndex) {
                 Node child = node.children.get(i);
                 domainDistances[i] -= cbIndex * child.variance;
-                heap.add(new Branch<Node>(child, domainDistances[i]));
+                heap.add(child, domainDistances[i]);
             }
         }
 
@@ -560,13 +849,11 @@ public class IndexKMeans extends IndexBase implements Serializable {
                 System.out.println("child:" + Arrays.toString(childNode.pivot));
                 printTree(childNode);
             });
-        }else if(node!=null &&!node.points.isEmpty()){
+        }else if(node!=null && node.size > 0){
             System.out.println("terminalNode:"+Arrays.toString(node.pivot));
-            node.points.forEach(childNode ->
-            {
-                System.out.println("point:" + Arrays.toString(childNode.point));
-//                printTree(childNode);
-            });
+            for (int i = 0; i < node.size; i++) {
+                System.out.println("point:" + Arrays.toString(getPoint(objectsIndices[node.pointsStart + i])));
+            }
         }
         return;
     }
@@ -11,6 +11,27 @@ public class IndexLinear extends IndexBase {
 		this.type = IndexFLANN.LINEAR;
 	}
 
+	public IndexLinear(Metric metric, double[] data, int numberOfDimensions,
+			BuildParams buildParams) {
+		super(metric, data, numberOfDimensions);
+		this.type = IndexFLANN.LINEAR;
+	}
+
+	/**
+	 * The index exported by {@link #toFlat}.
+	 */
+	public IndexLinear(Metric metric, FlatIndex flat) {
+		super(metric, flat);
+		this.type = IndexFLANN.LINEAR;
+	}
+
+	/**
+	 * The points in flat form, shared with the index.
+	 */
+	public FlatIndex toFlat() {
+		return exportTo(new FlatIndex());
+	}
+
 	public static class BuildParams extends BuildParamsBase {
 	}
 
@@ -25,9 +46,8 @@ public class IndexLinear extends IndexBase {
 	@Override
 	protected void findNeighbors(ResultSet resultSet, double[] query,
 			SearchParamsBase searchParams) {
-		int size = data.length;
-		for (int i = 0; i < size; i++) {
-			double distance = metric.distance(data[i], query);
+		for (int i = 0; i < numberOfObjects; i++) {
+			double distance = distanceTo(query, i);
 			resultSet.addPoint(distance, i);
 		}
 	}
@@ -40,7 +60,7 @@ public class IndexLinear extends IndexBase {
 
 	@Override
 	protected void findNeighbor(ResultSet resultSet, double[] query) {
-
+		findNeighbors(resultSet, query, null);
 	}
 
 	@Override
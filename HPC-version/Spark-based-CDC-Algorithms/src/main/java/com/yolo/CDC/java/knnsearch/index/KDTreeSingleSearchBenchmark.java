@@ -0,0 +1,145 @@
+package com.yolo.CDC.java.knnsearch.index;
+
+import com.yolo.CDC.java.knnsearch.metric.MetricEuclideanSquared;
+import com.yolo.CDC.java.knnsearch.result_set.KNNResultSet;
+import com.yolo.CDC.java.knnsearch.result_set.ResultSet;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the search of {@link IndexKDTreeSingle} with the recursive search
+ * it replaced, which kept the per-dimension cell distances of every query in
+ * a fresh ArrayList of boxed doubles. Both run on the same tree over uniform
+ * random points, with the points themselves as queries; prints the time and
+ * the bytes allocated per query and whether the neighbour lists are
+ * bit-identical.
+ * <p>
+ * Usage: KDTreeSingleSearchBenchmark [points] [k] [rounds]
+ */
+public class KDTreeSingleSearchBenchmark {
+	private static final int[] DIMENSIONS = {2, 3, 8};
+
+	public static void main(String[] args) {
+		int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+		int k = args.length > 1 ? Integer.parseInt(args[1]) : 31;
+		int rounds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		Random random = new Random(42);
+		for (int d : DIMENSIONS) {
+			double[][] points = new double[n][d];
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j < d; j++) {
+					points[i][j] = random.nextDouble();
+				}
+			}
+			IndexKDTreeSingle index = new IndexKDTreeSingle(new MetricEuclideanSquared(), points,
+					new IndexKDTreeSingle.BuildParams());
+			index.buildIndex();
+			SearchParamsBase searchParams = new SearchParamsBase();
+			int[] expectedIndices = new int[n * k];
+			double[] expectedDistances = new double[n * k];
+			int[] indices = new int[n * k];
+			double[] distances = new double[n * k];
+			// The first rounds warm up the JIT and are not timed.
+			long baselineTime = 0;
+			long searchTime = 0;
+			long baselineBytes = 0;
+			long searchBytes = 0;
+			for (int round = -rounds; round < rounds; round++) {
+				long startBytes = allocatedBytes();
+				long start = System.nanoTime();
+				baseline(index, points, k, expectedIndices, expectedDistances);
+				long mid = System.nanoTime();
+				long midBytes = allocatedBytes();
+				index.knnSearchBatch(points, indices, distances, k, searchParams, 1);
+				long end = System.nanoTime();
+				long endBytes = allocatedBytes();
+				if (round >= 0) {
+					baselineTime += mid - start;
+					searchTime += end - mid;
+					baselineBytes += midBytes - startBytes;
+					searchBytes += endBytes - midBytes;
+				}
+			}
+			boolean identical = Arrays.equals(expectedIndices, indices)
+					&& Arrays.equals(expectedDistances, distances);
+			double queries = (double) n * rounds;
+			System.out.printf("d=%d n=%d k=%d: recursive %8.1f ns/query %6.1f B/query, "
+							+ "iterative %8.1f ns/query %6.1f B/query (%.2fx), identical=%b%n",
+					d, n, k, baselineTime / queries, baselineBytes / queries,
+					searchTime / queries, searchBytes / queries,
+					(double) baselineTime / searchTime, identical);
+		}
+	}
+
+	private static long allocatedBytes() {
+		return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	private static void baseline(IndexKDTreeSingle index, double[][] queries, int k,
+			int[] indices, double[] distances) {
+		KNNResultSet resultSet = KNNResultSet.create(k);
+		for (int i = 0; i < queries.length; i++) {
+			resultSet.clear();
+			ArrayList<Double> dists = new ArrayList<Double>();
+			for (int j = 0; j < index.numberOfDimensions; j++) {
+				dists.add(0.0);
+			}
+			double distsq = index.rootBBox.getBoxPointDistancesPerDimension(queries[i],
+					dists, index.metric);
+			searchLevel(index, index.root, queries[i], resultSet, 1, distsq, dists);
+			int n = Math.min(resultSet.size(), k);
+			resultSet.copy(distances, indices, i * k, n);
+			for (int j = n; j < k; j++) {
+				distances[i * k + j] = Double.MAX_VALUE;
+				indices[i * k + j] = -1;
+			}
+		}
+	}
+
+	private static void searchLevel(IndexKDTreeSingle index, IndexKDTreeSingle.Node node,
+			double[] query, ResultSet resultSet, float eps, Double mindistsq,
+			ArrayList<Double> dists) {
+		if (node.child1 == null && node.child2 == null) {
+			double worstDistance = resultSet.worstDistance();
+			for (int i = node.leftObjectIndex; i < node.rightObjectIndex; i++) {
+				int objectIndex = index.objectsIndices[i];
+				double dist = index.distanceTo(query, objectIndex);
+				if (dist <= worstDistance) {
+					resultSet.addPoint(dist, objectIndex);
+				}
+			}
+			return;
+		}
+
+		int cutDimension = node.cutDimension;
+		double queryValueInCutDimension = query[cutDimension];
+		double diff1 = queryValueInCutDimension - node.cutDimensionLow;
+		double diff2 = queryValueInCutDimension - node.cutDimensionHigh;
+		IndexKDTreeSingle.Node bestChild, otherChild;
+		double cutDistance;
+		if (diff1 + diff2 < 0) {
+			bestChild = node.child1;
+			otherChild = node.child2;
+			cutDistance = index.metric.distance(queryValueInCutDimension,
+					node.cutDimensionHigh);
+		} else {
+			bestChild = node.child2;
+			otherChild = node.child1;
+			cutDistance = index.metric.distance(queryValueInCutDimension,
+					node.cutDimensionLow);
+		}
+
+		searchLevel(index, bestChild, query, resultSet, eps, mindistsq, dists);
+		double dst = dists.get(cutDimension);
+		mindistsq = mindistsq - dst + cutDistance;
+		dists.set(cutDimension, cutDistance);
+		if (mindistsq * eps <= resultSet.worstDistance()) {
+			searchLevel(index, otherChild, query, resultSet, eps, mindistsq, dists);
+		}
+		dists.set(cutDimension, dst);
+	}
+}
@@ -0,0 +1,170 @@
+package com.yolo.CDC.java.knnsearch.index;
+
+import com.yolo.CDC.java.knnsearch.result_set.KNNResultSet;
+import com.yolo.CDC.java.knnsearch.result_set.ResultSet;
+
+import java.util.Arrays;
+
+/**
+ * Scratch state of one thread's best-bin-first searches, reused across
+ * queries so that a query allocates nothing.
+ * <p>
+ * The visited set is an int per object stamped with the number of the
+ * current query, so starting a query never clears it. The branch heap is a
+ * binary min-heap on primitive keys: once it is full, a new branch only gets
+ * in by replacing the farthest one. The search pops branches in order of
+ * distance and stops at the first one it prunes, so a capacity at least the
+ * number of branches it may pop before that keeps every branch the search
+ * would reach. Each index derives that number from {@link #branchCapacity}
+ * and the descents that end without a check: a pruned cluster in
+ * {@link IndexKMeans}, a point already visited through another tree in
+ * {@link IndexKDTree}. Branches at the same distance have no set order, so
+ * with ties the search may take them in another order than an unbounded
+ * queue would.
+ */
+final class SearchContext<NodeType> {
+	private int[] visited = new int[0];
+	private int epoch;
+
+	private Object[] nodes = new Object[16];
+	private double[] keys = new double[16];
+	private int size;
+	private int capacity;
+
+	private double[] scratch = new double[0];
+
+	/**
+	 * Most points a search of at most 'maxChecks' checks visits: a query
+	 * still short of neighbours after its checks goes on until it has them
+	 * all.
+	 */
+	static int branchCapacity(int maxChecks, ResultSet resultSet) {
+		if (resultSet instanceof KNNResultSet) {
+			return Math.max(maxChecks, ((KNNResultSet) resultSet).capacity());
+		}
+		return maxChecks;
+	}
+
+	/**
+	 * Starts a query.
+	 *
+	 * @param capacity        most branches kept in the heap
+	 * @param numberOfObjects size of the visited set; 0 when it is not used
+	 */
+	void begin(int capacity, int numberOfObjects) {
+		this.capacity = Math.max(1, capacity);
+		size = 0;
+		if (visited.length < numberOfObjects) {
+			visited = new int[numberOfObjects];
+			epoch = 0;
+		}
+		if (epoch == Integer.MAX_VALUE) {
+			Arrays.fill(visited, 0);
+			epoch = 0;
+		}
+		epoch++;
+	}
+
+	/**
+	 * Marks object 'index' as visited by the current query; false if it
+	 * already was.
+	 */
+	boolean visit(int index) {
+		if (visited[index] == epoch) {
+			return false;
+		}
+		visited[index] = epoch;
+		return true;
+	}
+
+	/**
+	 * A buffer of at least 'length' doubles, the same for every call.
+	 */
+	double[] scratch(int length) {
+		if (scratch.length < length) {
+			scratch = new double[length];
+		}
+		return scratch;
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Key of the nearest branch; the heap must not be empty.
+	 */
+	double minKey() {
+		return keys[0];
+	}
+
+	/**
+	 * Removes and returns the nearest branch; the heap must not be empty.
+	 */
+	@SuppressWarnings("unchecked")
+	NodeType poll() {
+		NodeType node = (NodeType) nodes[0];
+		size--;
+		Object lastNode = nodes[size];
+		double lastKey = keys[size];
+		nodes[size] = null;
+		if (size > 0) {
+			siftDown(0, lastNode, lastKey);
+		}
+		return node;
+	}
+
+	void add(NodeType node, double key) {
+		if (size < capacity) {
+			if (size == nodes.length) {
+				int grown = Math.min(capacity, 2 * size);
+				nodes = Arrays.copyOf(nodes, grown);
+				keys = Arrays.copyOf(keys, grown);
+			}
+			siftUp(size++, node, key);
+			return;
+		}
+		// Full: the farthest branch is one of the leaves.
+		int farthest = size >>> 1;
+		for (int i = farthest + 1; i < size; i++) {
+			if (keys[i] > keys[farthest]) {
+				farthest = i;
+			}
+		}
+		if (key < keys[farthest]) {
+			siftUp(farthest, node, key);
+		}
+	}
+
+	private void siftUp(int position, Object node, double key) {
+		while (position > 0) {
+			int parent = (position - 1) >>> 1;
+			if (keys[parent] <= key) {
+				break;
+			}
+			nodes[position] = nodes[parent];
+			keys[position] = keys[parent];
+			position = parent;
+		}
+		nodes[position] = node;
+		keys[position] = key;
+	}
+
+	private void siftDown(int position, Object node, double key) {
+		int half = size >>> 1;
+		while (position < half) {
+			int child = 2 * position + 1;
+			if (child + 1 < size && keys[child + 1] < keys[child]) {
+				child++;
+			}
+			if (key <= keys[child]) {
+				break;
+			}
+			nodes[position] = nodes[child];
+			keys[position] = keys[child];
+			position = child;
+		}
+		nodes[position] = node;
+		keys[position] = key;
+	}
+}
@@ -5,6 +5,13 @@ public interface Metric {
 
 	public double distance(double a, double b);
 
+	/**
+	 * Distance between the vectors a[aOffset .. aOffset + length) and
+	 * b[bOffset .. bOffset + length), for points stored in flat arrays.
+	 */
+	public double distance(double[] a, int aOffset, double[] b, int bOffset,
+			int length);
+
 	public int distance(int[] a, int[] b);
 
 	public int distance(int a, int b);
@@ -17,6 +17,17 @@ public class MetricEuclideanSquared implements Metric, Serializable {
 		return result;
 	}
 
+	@Override
+	public double distance(double[] a, int aOffset, double[] b, int bOffset,
+			int length) {
+		double result = 0.0;
+		for (int i = 0; i < length; i++) {
+			double diff = a[aOffset + i] - b[bOffset + i];
+			result += diff * diff;
+		}
+		return result;
+	}
+
 	@Override
 	public double distance(double a, double b) {
 		double diff = a - b;
@@ -8,6 +8,12 @@ public class MetricHamming implements Metric {
 		throw new ExceptionFLANN("Unsupported types");
 	}
 
+	@Override
+	public double distance(double[] a, int aOffset, double[] b, int bOffset,
+			int length) {
+		throw new ExceptionFLANN("Unsupported types");
+	}
+
 	@Override
 	public double distance(double a, double b) {
 		throw new ExceptionFLANN("Unsupported types");
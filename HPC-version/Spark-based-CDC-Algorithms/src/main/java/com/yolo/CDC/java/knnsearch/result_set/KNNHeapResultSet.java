@@ -0,0 +1,117 @@
+package com.yolo.CDC.java.knnsearch.result_set;
+
+
+
+/**
+ * Neighbors kept in a bounded max-heap on (distance, index), so that adding
+ * a point costs O(log k) instead of the O(k) shift of the sorted array.
+ * Keeps exactly the same neighbors as {@link KNNSimpleResultSet}; the heap
+ * is only sorted when copied out.
+ */
+public class KNNHeapResultSet extends KNNResultSet {
+	int capacity;
+	int count;
+	double[] distances;
+	int[] indices;
+	// Scratch space for the sorted copy.
+	double[] sortedDistances;
+	int[] sortedIndices;
+
+	public KNNHeapResultSet (int capacity) {
+		this.capacity = capacity;
+		distances = new double[capacity];
+		indices = new int[capacity];
+		sortedDistances = new double[capacity];
+		sortedIndices = new int[capacity];
+		clear();
+	}
+
+	@Override
+	public void clear () {
+		count = 0;
+	}
+
+	@Override
+	public int size () {
+		return count;
+	}
+
+	@Override
+	public int capacity () {
+		return capacity;
+	}
+
+	@Override
+	public double worstDistance() {
+		return count < capacity ? Double.MAX_VALUE : distances[0];
+	}
+
+	@Override
+	public void addPoint (double distance, int index) {
+		if (count < capacity) {
+			if (distance == Double.MAX_VALUE)
+				return;
+			// Sift up from the new leaf.
+			int i = count++;
+			while (i > 0) {
+				int parent = (i - 1) >>> 1;
+				if (!greater (distance, index, distances[parent], indices[parent]))
+					break;
+				distances[i] = distances[parent];
+				indices[i] = indices[parent];
+				i = parent;
+			}
+			distances[i] = distance;
+			indices[i] = index;
+			return;
+		}
+
+		if (!greater (distances[0], indices[0], distance, index))
+			return;
+		siftDown (distances, indices, distance, index, 0, count);
+	}
+
+	@Override
+	public void copy (double[] distances, int[] indices, int offset, int numElements) {
+		int n = Math.min (count, numElements);
+		System.arraycopy (this.distances, 0, sortedDistances, 0, count);
+		System.arraycopy (this.indices, 0, sortedIndices, 0, count);
+		// Heap sort: move the maximum behind the shrinking heap.
+		for (int end = count - 1; end > 0; end--) {
+			double d = sortedDistances[end];
+			int ix = sortedIndices[end];
+			sortedDistances[end] = sortedDistances[0];
+			sortedIndices[end] = sortedIndices[0];
+			siftDown (sortedDistances, sortedIndices, d, ix, 0, end);
+		}
+		System.arraycopy (sortedDistances, 0, distances, offset, n);
+		System.arraycopy (sortedIndices, 0, indices, offset, n);
+	}
+
+	/**
+	 * Places (distance, index) at position i of the heap of the given size,
+	 * moving larger children up.
+	 */
+	private static void siftDown (double[] distances, int[] indices,
+			double distance, int index, int i, int size) {
+		for (;;) {
+			int child = 2 * i + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && greater (distances[child + 1], indices[child + 1],
+					distances[child], indices[child]))
+				child++;
+			if (!greater (distances[child], indices[child], distance, index))
+				break;
+			distances[i] = distances[child];
+			indices[i] = indices[child];
+			i = child;
+		}
+		distances[i] = distance;
+		indices[i] = index;
+	}
+
+	private static boolean greater (double d1, int i1, double d2, int i2) {
+		return d1 > d2 || (d1 == d2 && i1 > i2);
+	}
+}
@@ -0,0 +1,42 @@
+package com.yolo.CDC.java.knnsearch.result_set;
+
+
+
+/**
+ * Result set holding at most 'capacity' nearest neighbors. Implementations
+ * keep the neighbors that are smallest by (distance, index), so equal
+ * distances are resolved towards the lower index whatever the order in which
+ * the points are visited.
+ */
+public abstract class KNNResultSet implements ResultSet {
+	// From this capacity on a heap beats the sorted array's insertion shifts.
+	public static final int HEAP_THRESHOLD = 64;
+
+	public static KNNResultSet create (int capacity) {
+		if (capacity >= HEAP_THRESHOLD) {
+			return new KNNHeapResultSet (capacity);
+		}
+		return new KNNSimpleResultSet (capacity);
+	}
+
+	public abstract void clear ();
+
+	public abstract int size ();
+
+	public abstract int capacity ();
+
+	@Override
+	public boolean full () {
+		return size() == capacity();
+	}
+
+	/**
+	 * Copies the first 'numElements' neighbors, nearest first, to
+	 * distances[offset..] and indices[offset..].
+	 */
+	public abstract void copy (double[] distances, int[] indices, int offset, int numElements);
+
+	public void copy (double[] distances, int[] indices, int numElements) {
+		copy (distances, indices, 0, numElements);
+	}
+}
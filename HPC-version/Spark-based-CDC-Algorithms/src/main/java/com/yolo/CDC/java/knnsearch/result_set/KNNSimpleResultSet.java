@@ -1,39 +1,48 @@
 package com.yolo.CDC.java.knnsearch.result_set;
 
-import java.util.ArrayList;
 
 
-public class KNNSimpleResultSet implements ResultSet {
+/**
+ * Neighbors kept sorted in parallel primitive arrays; a new point is placed
+ * by binary search and the tail is shifted with one array copy.
+ */
+public class KNNSimpleResultSet extends KNNResultSet {
 	int capacity;
 	int count;
+	double maxDistance;
 	double worstDistance;
-	ArrayList<DistanceIndex> distanceIndexArray;
+	double[] distances;
+	int[] indices;
 
 	public KNNSimpleResultSet (int capacity) {
-		this.capacity = capacity;
-
-		distanceIndexArray = new ArrayList<DistanceIndex>();
-		for (int i = 0; i < capacity; i++) {
-			distanceIndexArray.add (new DistanceIndex (Double.MAX_VALUE, -1));
-		}
+		this (capacity, Double.MAX_VALUE);
+	}
 
+	/**
+	 * @param maxDistance only points closer than this are accepted
+	 */
+	protected KNNSimpleResultSet (int capacity, double maxDistance) {
+		this.capacity = capacity;
+		this.maxDistance = maxDistance;
+		distances = new double[capacity];
+		indices = new int[capacity];
 		clear();
 	}
 
+	@Override
 	public void clear () {
-		worstDistance = Double.MAX_VALUE;
-		DistanceIndex di = new DistanceIndex (worstDistance, -1);
-		distanceIndexArray.set (capacity-1, di);
+		worstDistance = maxDistance;
 		count = 0;
 	}
 
+	@Override
 	public int size () {
 		return count;
 	}
 
 	@Override
-	public boolean full() {
-		return count == capacity;
+	public int capacity () {
+		return capacity;
 	}
 
 	@Override
@@ -43,32 +52,46 @@ public class KNNSimpleResultSet implements ResultSet {
 
 	@Override
 	public void addPoint (double distance, int index) {
-		if (distance >= worstDistance)
+		if (distance > worstDistance)
+			return;
+		// On a tie with the current worst, keep the lower index.
+		if (distance == worstDistance && (count < capacity
+				|| index >= indices[capacity-1]))
 			return;
 
+		// First position whose entry is greater than (distance, index).
+		int low = 0;
+		int high = count;
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			if (distances[middle] > distance ||
+				(distances[middle] == distance && indices[middle] > index)) {
+				high = middle;
+			} else {
+				low = middle + 1;
+			}
+		}
+
 		if (count < capacity) {
 			count++;
 		}
+		int moved = count - 1 - low;
+		if (moved > 0) {
+			System.arraycopy (distances, low, distances, low + 1, moved);
+			System.arraycopy (indices, low, indices, low + 1, moved);
+		}
+		distances[low] = distance;
+		indices[low] = index;
 
-		int i;
-		for (i = count-1; i > 0; i--) {
-			if (distanceIndexArray.get(i-1).distance > distance ||
-				(distanceIndexArray.get(i-1).distance == distance && distanceIndexArray.get(i-1).index > index)) {
-				distanceIndexArray.set (i, distanceIndexArray.get (i-1));
-			} else {
-				break;
-			}
+		if (count == capacity) {
+			worstDistance = distances[capacity-1];
 		}
-		distanceIndexArray.set (i, new DistanceIndex (distance, index));
-		
-        worstDistance = distanceIndexArray.get(capacity-1).distance;
 	}
 
-	public void copy (double[] distances, int[] indices, int numElements) {
+	@Override
+	public void copy (double[] distances, int[] indices, int offset, int numElements) {
 		int n = Math.min (count, numElements);
-		for (int i = 0; i < n; i++) {
-			distances[i] = distanceIndexArray.get(i).distance;
-			indices[i] = distanceIndexArray.get(i).index;
-		}
+		System.arraycopy (this.distances, 0, distances, offset, n);
+		System.arraycopy (this.indices, 0, indices, offset, n);
 	}
-}
\ No newline at end of file
+}
@@ -1,29 +1,31 @@
 package com.yolo.CDC.java.knnsearch.result_set;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
 
 
 /**
- * 
+ * All neighbors closer than 'radius', in growable primitive arrays.
  */
 public class RadiusResultSet implements ResultSet {
 	double radius;
-	ArrayList<DistanceIndex> distanceIndexArray;
+	int count;
+	double[] distances;
+	int[] indices;
 
 	public RadiusResultSet (double radius) {
 		this.radius = radius;
 		// Reserve some memory to decrease the number of reallocations.
-		distanceIndexArray.ensureCapacity (1024);
+		distances = new double[1024];
+		indices = new int[1024];
 		clear ();
 	}
 
 	public void clear () {
-		distanceIndexArray.clear ();
+		count = 0;
 	}
 
 	public int size () {
-		return distanceIndexArray.size ();
+		return count;
 	}
 
 	@Override
@@ -33,22 +35,25 @@ public class RadiusResultSet implements ResultSet {
 
 	@Override
 	public void addPoint (double distance, int index) {
-		if (distance < worstDistance())
-			distanceIndexArray.add (new DistanceIndex (distance, index));
+		if (distance < worstDistance()) {
+			if (count == distances.length) {
+				distances = Arrays.copyOf (distances, 2 * count);
+				indices = Arrays.copyOf (indices, 2 * count);
+			}
+			distances[count] = distance;
+			indices[count] = index;
+			count++;
+		}
 	}
 
 	public void copy (double[] distances, int[] indices, int numElements, boolean sorted) {
 		if (sorted) {
-			Collections.sort (distanceIndexArray);
-		} else {
-			// TODO: Not clear what is going on.
+			sort (0, count - 1);
 		}
 
 		int n = Math.min (size(), numElements);
-		for (int i = 0; i < n; i++) {
-			distances[i] = distanceIndexArray.get(i).distance;
-			indices[i] = distanceIndexArray.get(i).index;
-		}
+		System.arraycopy (this.distances, 0, distances, 0, n);
+		System.arraycopy (this.indices, 0, indices, 0, n);
 	}
 
 	public void copy (double[] distances, int[] indices, int numElements) {
@@ -59,4 +64,49 @@ public class RadiusResultSet implements ResultSet {
 	public double worstDistance () {
 		return radius;
 	}
-}
\ No newline at end of file
+
+	/**
+	 * Quicksort of both arrays by (distance, index).
+	 */
+	private void sort (int low, int high) {
+		while (low < high) {
+			int middle = (low + high) >>> 1;
+			double pivotDistance = distances[middle];
+			int pivotIndex = indices[middle];
+			int i = low;
+			int j = high;
+			while (i <= j) {
+				while (less (distances[i], indices[i], pivotDistance, pivotIndex))
+					i++;
+				while (less (pivotDistance, pivotIndex, distances[j], indices[j]))
+					j--;
+				if (i <= j) {
+					swap (i, j);
+					i++;
+					j--;
+				}
+			}
+			// Recurse into the smaller part, loop on the larger one.
+			if (j - low < high - i) {
+				sort (low, j);
+				low = i;
+			} else {
+				sort (i, high);
+				high = j;
+			}
+		}
+	}
+
+	private void swap (int i, int j) {
+		double d = distances[i];
+		distances[i] = distances[j];
+		distances[j] = d;
+		int ix = indices[i];
+		indices[i] = indices[j];
+		indices[j] = ix;
+	}
+
+	private static boolean less (double d1, int i1, double d2, int i2) {
+		return d1 < d2 || (d1 == d2 && i1 < i2);
+	}
+}
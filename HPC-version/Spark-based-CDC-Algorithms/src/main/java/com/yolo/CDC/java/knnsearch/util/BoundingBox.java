@@ -58,6 +58,31 @@ public class BoundingBox {
 		return maxSpanDimension;
 	}
 
+	/**
+	 * Fits the box to points stored row-major in a flat array.
+	 */
+	public void fitToData (double[] data, int numberOfDimensions) {
+		min.clear();
+		max.clear();
+
+		int numberOfObjects = data.length / numberOfDimensions;
+
+		for (int i = 0; i < numberOfDimensions; i++) {
+			add (data[i], data[i]);
+		}
+
+		for (int k = 1; k < numberOfObjects; k++) {
+			int offset = k * numberOfDimensions;
+			for (int i = 0; i < numberOfDimensions; i++) {
+				double objectKInDimensionI = data[offset + i];
+				if (objectKInDimensionI < min.get(i))
+					min.set (i, objectKInDimensionI);
+				if (objectKInDimensionI > max.get(i))
+					max.set (i, objectKInDimensionI);
+			}
+		}
+	}
+
 	public void fitToData (double[][] data) {
 		min.clear();
 		max.clear();
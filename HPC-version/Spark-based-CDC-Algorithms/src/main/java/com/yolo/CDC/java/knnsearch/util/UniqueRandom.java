@@ -2,6 +2,7 @@ package com.yolo.CDC.java.knnsearch.util;
 
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Random;
 
 /**
  * Random number generator that returns a distinct number from the [0,n)
@@ -16,14 +17,25 @@ public class UniqueRandom {
 		init(n);
 	}
 
+	/**
+	 * Draws the order from 'random', so that the sequence is reproducible.
+	 */
+	public UniqueRandom(int n, Random random) {
+		init(n, random);
+	}
+
 	public void init(int n) {
+		init(n, new Random());
+	}
+
+	public void init(int n, Random random) {
 		size = n;
 		counter = 0;
 		vals = new ArrayList<Integer>();
 		for (int i = 0; i < size; i++) {
 			vals.add(i);
 		}
-		Collections.shuffle(vals);
+		Collections.shuffle(vals, random);
 	}
 
 	/**
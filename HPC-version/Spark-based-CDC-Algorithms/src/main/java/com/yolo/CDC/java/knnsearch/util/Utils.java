@@ -1,6 +1,7 @@
 package com.yolo.CDC.java.knnsearch.util;
 
 import java.util.Arrays;
+import java.util.Random;
 
 public class Utils {
 	// Generate a random number min <= x <= max.
@@ -13,6 +14,27 @@ public class Utils {
 		return min + Math.random() * (max - min);
 	}
 
+	// Generate a random number min <= x <= max from the given generator.
+	public static int genRandomNumberInRange(Random random, int min, int max) {
+		return min + random.nextInt((max - min) + 1);
+	}
+
+	// Generate a random number min <= x < max from the given generator.
+	public static double genRandomNumberInRange(Random random, double min,
+			double max) {
+		return min + random.nextDouble() * (max - min);
+	}
+
+	// Shuffle the array in place (Fisher-Yates).
+	public static void shuffle(int[] array) {
+		for (int i = array.length - 1; i > 0; i--) {
+			int j = genRandomNumberInRange(0, i);
+			int temp = array[i];
+			array[i] = array[j];
+			array[j] = temp;
+		}
+	}
+
 	public static <T> boolean swapArray(T[] array, int i, int j) {
 		int size = array.length;
 		if (size < 2 || i == j || i < 0 || i >= size || j < 0 || j >= size) {
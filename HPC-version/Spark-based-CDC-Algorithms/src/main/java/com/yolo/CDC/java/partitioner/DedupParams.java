@@ -1,6 +1,7 @@
 package com.yolo.CDC.java.partitioner;
 
 import com.yolo.CDC.java.partitioner.JudgementBase;
+import com.yolo.CDC.java.utils.HalfOpenRectangle;
 import org.locationtech.jts.geom.Envelope;
 
 import java.io.Serializable;
@@ -9,23 +10,90 @@ import java.util.Objects;
 
 /**
  * Contains information necessary to activate de-dup logic in sub-classes of {@link JudgementBase}.
+ * <p>
+ * When points are replicated into neighbouring partitions (see
+ * {@link SpatialPartitioner#placeObjectWithHalo}), it also tells which copy of a point
+ * is the owner: the one in the partition returned by {@link #ownerPartition}.
  */
 public final class DedupParams
         implements Serializable
 {
     private final List<Envelope> partitionExtents;
+    private final double haloDistance;
 
     /**
      * @param partitionExtents A list of partition extents in such an order that
      * an index of an element in this list matches partition ID.
      */
     public DedupParams(List<Envelope> partitionExtents)
+    {
+        this(partitionExtents, 0);
+    }
+
+    /**
+     * @param partitionExtents A list of partition extents in such an order that
+     * an index of an element in this list matches partition ID.
+     * @param haloDistance Distance within which points of other partitions were
+     * copied into each partition.
+     */
+    public DedupParams(List<Envelope> partitionExtents, double haloDistance)
     {
         this.partitionExtents = Objects.requireNonNull(partitionExtents, "partitionExtents");
+        this.haloDistance = haloDistance;
     }
 
     public List<Envelope> getPartitionExtents()
     {
         return partitionExtents;
     }
+
+    public double getHaloDistance()
+    {
+        return haloDistance;
+    }
+
+    /**
+     * Returns the partition that owns the point (x, y): the first extent whose half-open
+     * rectangle contains it or, for a point on the top or right edge of the extents, the
+     * first extent that covers it. Returns -1 if no extent covers the point, i.e. it
+     * belongs to the overflow partition.
+     */
+    public int ownerPartition(double x, double y)
+    {
+        return ownerPartition(partitionExtents, null, x, y);
+    }
+
+    /**
+     * Tells whether the copy of the point (x, y) in the given partition is the owner.
+     */
+    public boolean isOwner(int partitionId, double x, double y)
+    {
+        final int owner = ownerPartition(x, y);
+        if (owner < 0) {
+            return partitionId >= partitionExtents.size();
+        }
+        return owner == partitionId;
+    }
+
+    /**
+     * Same as {@link #ownerPartition(double, double)}, looking only at the given
+     * partitions (in ascending order), or at all of them if candidates is null.
+     */
+    static int ownerPartition(List<Envelope> extents, int[] candidates, double x, double y)
+    {
+        final int count = candidates == null ? extents.size() : candidates.length;
+        for (int i = 0; i < count; i++) {
+            final int id = candidates == null ? i : candidates[i];
+            if (new HalfOpenRectangle(extents.get(id)).contains(x, y)) {
+                return id;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            final int id = candidates == null ? i : candidates[i];
+            if (extents.get(id).covers(x, y)) {
+                return id;
+            }
+        }
+        return -1;
+    }
 }
@@ -73,6 +73,18 @@ public class KDBTreePartitioner
         return result.iterator();
     }
 
+    @Override
+    protected int[] haloCandidates(Envelope searchEnvelope)
+    {
+        final List<KDBTree> matchedPartitions = tree.findLeafNodes(searchEnvelope);
+        final int[] candidates = new int[matchedPartitions.size()];
+        for (int i = 0; i < candidates.length; i++) {
+            candidates[i] = matchedPartitions.get(i).getLeafId();
+        }
+        Arrays.sort(candidates);
+        return candidates;
+    }
+
     @Nullable
     @Override
     public DedupParams getDedupParams()
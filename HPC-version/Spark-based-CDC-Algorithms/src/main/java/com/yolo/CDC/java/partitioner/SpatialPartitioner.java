@@ -4,10 +4,13 @@ import com.yolo.CDC.java.type.GridType;
 import org.apache.spark.Partitioner;
 import org.locationtech.jts.geom.Envelope;
 import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.Point;
 import scala.Tuple2;
 
 import javax.annotation.Nullable;
 import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Objects;
@@ -19,6 +22,8 @@ abstract public class SpatialPartitioner
 
     protected final GridType gridType;
     protected final List<Envelope> grids;
+    // Points closer than this to a partition are also copied into it
+    protected double haloDistance = 0;
 
     protected SpatialPartitioner(GridType gridType, List<Envelope> grids)
     {
@@ -39,6 +44,94 @@ abstract public class SpatialPartitioner
     @Nullable
     abstract public DedupParams getDedupParams();
 
+    /**
+     * Given a point, returns its owner partition (see {@link DedupParams#ownerPartition})
+     * followed by every other partition whose extent lies within the halo distance of it,
+     * so that each partition holds all the points near its extent.
+     * <p>
+     * Other geometry types are placed by {@link #placeObject}.
+     */
+    public <T extends Geometry> Iterator<Tuple2<Integer, T>> placeObjectWithHalo(T spatialObject)
+            throws Exception
+    {
+        Objects.requireNonNull(spatialObject, "spatialObject");
+
+        if (!(spatialObject instanceof Point)) {
+            return placeObject(spatialObject);
+        }
+
+        final Point point = (Point) spatialObject;
+        final Envelope envelope = point.getEnvelopeInternal();
+        final Envelope searchEnvelope = new Envelope(envelope);
+        // Padded by a few ulps, so that rounding can never drop an extent lying exactly at
+        // the halo distance; the distance test below makes the final decision
+        final double padding = 4 * Math.ulp(Math.max(Math.abs(point.getX()), Math.abs(point.getY())) + haloDistance);
+        searchEnvelope.expandBy(haloDistance + padding);
+        final int[] candidates = haloCandidates(searchEnvelope);
+
+        final List<Tuple2<Integer, T>> result = new ArrayList<>();
+        final int owner = DedupParams.ownerPartition(grids, candidates, point.getX(), point.getY());
+        if (owner < 0) {
+            // Not covered by any extent: goes where placeObject puts it (the overflow partition)
+            final Iterator<Tuple2<Integer, T>> placed = placeObject(spatialObject);
+            while (placed.hasNext()) {
+                result.add(placed.next());
+            }
+        }
+        else {
+            result.add(new Tuple2<>(owner, spatialObject));
+        }
+
+        for (int id : candidates) {
+            if (id != owner && grids.get(id).distance(envelope) <= haloDistance) {
+                result.add(new Tuple2<>(id, spatialObject));
+            }
+        }
+
+        return result.iterator();
+    }
+
+    /**
+     * Returns, in ascending order, the IDs of all the partitions whose extent intersects
+     * the given envelope. Subclasses backed by a tree override this to avoid the linear scan.
+     */
+    protected int[] haloCandidates(Envelope searchEnvelope)
+    {
+        final int[] candidates = new int[grids.size()];
+        int count = 0;
+        for (int i = 0; i < grids.size(); i++) {
+            if (grids.get(i).intersects(searchEnvelope)) {
+                candidates[count++] = i;
+            }
+        }
+        return Arrays.copyOf(candidates, count);
+    }
+
+    /**
+     * De-dup information for a partitioning done with {@link #placeObjectWithHalo}.
+     */
+    public DedupParams getHaloDedupParams()
+    {
+        return new DedupParams(grids, haloDistance);
+    }
+
+    public double getHaloDistance()
+    {
+        return haloDistance;
+    }
+
+    /**
+     * Sets the halo distance. A positive value makes SpatialRDD place points with
+     * {@link #placeObjectWithHalo} instead of {@link #placeObject}.
+     */
+    public void setHaloDistance(double haloDistance)
+    {
+        if (haloDistance < 0) {
+            throw new IllegalArgumentException("Halo distance must be >= 0");
+        }
+        this.haloDistance = haloDistance;
+    }
+
     public GridType getGridType()
     {
         return gridType;
@@ -65,6 +65,18 @@ public class QuadTreePartitioner
         return result.iterator();
     }
 
+    @Override
+    protected int[] haloCandidates(Envelope searchEnvelope)
+    {
+        final List<QuadRectangle> matchedPartitions = quadTree.findZones(new QuadRectangle(searchEnvelope));
+        final int[] candidates = new int[matchedPartitions.size()];
+        for (int i = 0; i < candidates.length; i++) {
+            candidates[i] = matchedPartitions.get(i).partitionId;
+        }
+        Arrays.sort(candidates);
+        return candidates;
+    }
+
     @Nullable
     @Override
     public DedupParams getDedupParams()
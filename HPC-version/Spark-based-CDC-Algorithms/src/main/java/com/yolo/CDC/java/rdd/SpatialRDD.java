@@ -250,6 +250,23 @@ public class SpatialRDD<T extends Geometry>
         this.spatialPartitionedRDD = partition(partitioner);
     }
 
+    /**
+     * Spatial partitioning that also copies every point into each partition whose extent
+     * lies within haloDistance of it. The copy that owns a point is given by
+     * getPartitioner().getHaloDedupParams().
+     *
+     * @param gridType      the grid type
+     * @param numPartitions the number of partitions
+     * @param haloDistance  the halo distance
+     * @throws Exception the exception
+     */
+    public void spatialPartitioning(GridType gridType, int numPartitions, double haloDistance)
+            throws Exception {
+        spatialPartitioning(gridType, numPartitions);
+        partitioner.setHaloDistance(haloDistance);
+        this.spatialPartitionedRDD = partition(partitioner);
+    }
+
     public SpatialPartitioner getPartitioner() {
         return partitioner;
     }
@@ -285,6 +302,9 @@ public class SpatialRDD<T extends Geometry>
                             @Override
                             public Iterator<Tuple2<Integer, T>> call(T spatialObject)
                                     throws Exception {
+                                if (partitioner.getHaloDistance() > 0) {
+                                    return partitioner.placeObjectWithHalo(spatialObject);
+                                }
                                 return partitioner.placeObject(spatialObject);
                             }
                         }
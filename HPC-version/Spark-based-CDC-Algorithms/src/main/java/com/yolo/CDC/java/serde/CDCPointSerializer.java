@@ -0,0 +1,220 @@
+package com.yolo.CDC.java.serde;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.yolo.CDC.java.rdd.CDCPoint;
+import org.apache.spark.SparkConf;
+import org.apache.spark.SparkEnv;
+
+/**
+ * Compact Kryo serializer for {@link CDCPoint}.
+ * <p>
+ * The first byte is the layout version, the second one a set of presence
+ * bits and the third one the ordinal of the flag. Then go the index, grid
+ * and cluster ids as varints, the coordinates, the number of neighbours, the
+ * arrays announced by the presence bits, the DCM value and the reachable
+ * distance. X and Y are only written when they differ from the coordinates.
+ * <p>
+ * Arrays that are null are not written, so a stage that has no more use for
+ * them (e.g. the angles once the DCM value is known) can drop them to shrink
+ * cached and shuffled points.
+ */
+public class CDCPointSerializer
+        extends Serializer<CDCPoint>
+{
+    /**
+     * Store coordinates as floats instead of doubles; lossy, off by default.
+     */
+    public static final String FLOAT_COORDINATES = "spark.cdc.kryo.floatCoordinates";
+    /**
+     * Store each neighbour id as the difference to the previous one, which
+     * is shorter when ids follow the spatial order of the points.
+     */
+    public static final String DELTA_NEIGHBOR_IDS = "spark.cdc.kryo.deltaNeighborIds";
+
+    private static final int VERSION = 1;
+
+    private static final int HAS_FLOAT_COORDINATES = 1;
+    private static final int HAS_NEIGHBOR_IDS = 1 << 1;
+    private static final int HAS_DELTA_NEIGHBOR_IDS = 1 << 2;
+    private static final int HAS_NEIGHBOR_DISTANCES = 1 << 3;
+    private static final int HAS_ANGLES = 1 << 4;
+    private static final int HAS_SEPARATE_XY = 1 << 5;
+    private static final int IS_VISITED = 1 << 6;
+    private static final int HAS_COORDINATES = 1 << 7;
+
+    private static final CDCPoint.Flag[] FLAGS = CDCPoint.Flag.values();
+
+    private final boolean floatCoordinates;
+    private final boolean deltaNeighborIds;
+
+    public CDCPointSerializer(boolean floatCoordinates, boolean deltaNeighborIds)
+    {
+        this.floatCoordinates = floatCoordinates;
+        this.deltaNeighborIds = deltaNeighborIds;
+    }
+
+    /**
+     * Serializer configured by {@link #FLOAT_COORDINATES} and
+     * {@link #DELTA_NEIGHBOR_IDS} of the running Spark application, or with
+     * both off outside of one.
+     */
+    public static CDCPointSerializer fromSparkConf()
+    {
+        SparkEnv env = SparkEnv.get();
+        if (env == null) {
+            return new CDCPointSerializer(false, false);
+        }
+        SparkConf conf = env.conf();
+        return new CDCPointSerializer(conf.getBoolean(FLOAT_COORDINATES, false),
+                conf.getBoolean(DELTA_NEIGHBOR_IDS, false));
+    }
+
+    @Override
+    public void write(Kryo kryo, Output out, CDCPoint point)
+    {
+        double[] coordinates = point.getCoordinates();
+        int[] neighborIds = point.getNeighborsIndexID();
+        double[] neighborDistances = point.getNeighborsDistance();
+        double[] angles = point.getAngleArray();
+        boolean separateXY = coordinates == null || coordinates.length < 2
+                || Double.doubleToLongBits(coordinates[0]) != Double.doubleToLongBits(point.getX())
+                || Double.doubleToLongBits(coordinates[1]) != Double.doubleToLongBits(point.getY());
+
+        int bits = 0;
+        if (coordinates != null) {
+            bits |= HAS_COORDINATES;
+            if (floatCoordinates) {
+                bits |= HAS_FLOAT_COORDINATES;
+            }
+        }
+        if (neighborIds != null) {
+            bits |= HAS_NEIGHBOR_IDS;
+            if (deltaNeighborIds) {
+                bits |= HAS_DELTA_NEIGHBOR_IDS;
+            }
+        }
+        if (neighborDistances != null) {
+            bits |= HAS_NEIGHBOR_DISTANCES;
+        }
+        if (angles != null) {
+            bits |= HAS_ANGLES;
+        }
+        if (separateXY) {
+            bits |= HAS_SEPARATE_XY;
+        }
+        if (point.isVisited()) {
+            bits |= IS_VISITED;
+        }
+
+        out.writeByte(VERSION);
+        out.writeByte(bits);
+        out.writeByte(point.getFlag().ordinal());
+        out.writeVarInt(point.getIndexID(), true);
+        out.writeVarInt(point.getGridID(), false);
+        out.writeVarInt(point.getClusterID(), false);
+        if (coordinates != null) {
+            out.writeVarInt(coordinates.length, true);
+            for (double coordinate : coordinates) {
+                if (floatCoordinates) {
+                    out.writeFloat((float) coordinate);
+                }
+                else {
+                    out.writeDouble(coordinate);
+                }
+            }
+        }
+        if (separateXY) {
+            out.writeDouble(point.getX());
+            out.writeDouble(point.getY());
+        }
+        out.writeVarInt(point.getNeighborsNum(), true);
+        if (neighborIds != null) {
+            out.writeVarInt(neighborIds.length, true);
+            int previous = 0;
+            for (int id : neighborIds) {
+                // Ids may be -1 for missing neighbours, hence zig-zag.
+                out.writeVarInt(deltaNeighborIds ? id - previous : id, false);
+                previous = id;
+            }
+        }
+        if (neighborDistances != null) {
+            writeDoubles(out, neighborDistances);
+        }
+        if (angles != null) {
+            writeDoubles(out, angles);
+        }
+        out.writeDouble(point.getDcmValue());
+        out.writeDouble(point.getReachDistance());
+    }
+
+    @Override
+    public CDCPoint read(Kryo kryo, Input in, Class<CDCPoint> type)
+    {
+        int version = in.readByte();
+        if (version != VERSION) {
+            throw new KryoException("Unsupported CDCPoint layout version: " + version);
+        }
+        int bits = in.readByte() & 0xFF;
+        CDCPoint point = new CDCPoint();
+        point.setFlag(FLAGS[in.readByte()]);
+        point.setVisited((bits & IS_VISITED) != 0);
+        point.setIndexID(in.readVarInt(true));
+        point.setGridID(in.readVarInt(false));
+        point.setClusterID(in.readVarInt(false));
+        double[] coordinates = null;
+        if ((bits & HAS_COORDINATES) != 0) {
+            coordinates = new double[in.readVarInt(true)];
+            for (int i = 0; i < coordinates.length; i++) {
+                coordinates[i] = (bits & HAS_FLOAT_COORDINATES) != 0 ? in.readFloat() : in.readDouble();
+            }
+        }
+        point.setCoordinates(coordinates);
+        if ((bits & HAS_SEPARATE_XY) != 0) {
+            point.setX(in.readDouble());
+            point.setY(in.readDouble());
+        }
+        else {
+            point.setX(coordinates[0]);
+            point.setY(coordinates[1]);
+        }
+        point.setNeighborsNum(in.readVarInt(true));
+        int[] neighborIds = null;
+        if ((bits & HAS_NEIGHBOR_IDS) != 0) {
+            boolean delta = (bits & HAS_DELTA_NEIGHBOR_IDS) != 0;
+            neighborIds = new int[in.readVarInt(true)];
+            int previous = 0;
+            for (int i = 0; i < neighborIds.length; i++) {
+                int value = in.readVarInt(false);
+                neighborIds[i] = delta ? previous + value : value;
+                previous = neighborIds[i];
+            }
+        }
+        point.setNeighborsIndexID(neighborIds);
+        point.setNeighborsDistance((bits & HAS_NEIGHBOR_DISTANCES) != 0 ? readDoubles(in) : null);
+        point.setAngleArray((bits & HAS_ANGLES) != 0 ? readDoubles(in) : null);
+        point.setDcmValue(in.readDouble());
+        point.setReachDistance(in.readDouble());
+        return point;
+    }
+
+    private static void writeDoubles(Output out, double[] values)
+    {
+        out.writeVarInt(values.length, true);
+        for (double value : values) {
+            out.writeDouble(value);
+        }
+    }
+
+    private static double[] readDoubles(Input in)
+    {
+        double[] values = new double[in.readVarInt(true)];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readDouble();
+        }
+        return values;
+    }
+}
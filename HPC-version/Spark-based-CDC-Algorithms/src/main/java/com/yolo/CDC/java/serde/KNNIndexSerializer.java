@@ -0,0 +1,199 @@
+package com.yolo.CDC.java.serde;
+
+import com.esotericsoftware.kryo.Kryo;
+import com.esotericsoftware.kryo.KryoException;
+import com.esotericsoftware.kryo.Serializer;
+import com.esotericsoftware.kryo.io.Input;
+import com.esotericsoftware.kryo.io.Output;
+import com.yolo.CDC.java.knnsearch.index.CenterChooser;
+import com.yolo.CDC.java.knnsearch.index.FlatIndex;
+import com.yolo.CDC.java.knnsearch.index.IndexBase;
+import com.yolo.CDC.java.knnsearch.index.IndexGrid2D;
+import com.yolo.CDC.java.knnsearch.index.IndexKDTree;
+import com.yolo.CDC.java.knnsearch.index.IndexKDTreeSingle;
+import com.yolo.CDC.java.knnsearch.index.IndexKMeans;
+import com.yolo.CDC.java.knnsearch.index.IndexLinear;
+import com.yolo.CDC.java.knnsearch.metric.Metric;
+
+/**
+ * Kryo serializer for the kNN indexes that have a flat form
+ * ({@link IndexLinear}, {@link IndexGrid2D}, {@link IndexKDTreeSingle},
+ * {@link IndexKDTree} and {@link IndexKMeans}), so that broadcasting an index
+ * writes a few large primitive arrays instead of a graph of tree nodes.
+ * <p>
+ * The first byte is the layout version. Then go the metric, the number of
+ * dimensions, the points and the permutation of their indices, followed by
+ * the scalars and arrays of the flat form of the index, each array preceded
+ * by its length plus one (zero for null). The searches of the read index give
+ * the same results as those of the written one.
+ */
+public class KNNIndexSerializer
+        extends Serializer<IndexBase>
+{
+    private static final int VERSION = 1;
+
+    private static final CenterChooser.Algorithm[] CENTERS_INIT = CenterChooser.Algorithm.values();
+
+    @Override
+    public void write(Kryo kryo, Output out, IndexBase index)
+    {
+        out.writeByte(VERSION);
+        kryo.writeClassAndObject(out, index.getMetric());
+        if (index instanceof IndexLinear) {
+            writeBase(out, ((IndexLinear) index).toFlat());
+        }
+        else if (index instanceof IndexGrid2D) {
+            IndexGrid2D.Flat flat = ((IndexGrid2D) index).toFlat();
+            writeBase(out, flat);
+            out.writeVarInt(flat.pointsPerCell, true);
+            out.writeDouble(flat.minX);
+            out.writeDouble(flat.minY);
+            out.writeDouble(flat.cellSize);
+            out.writeVarInt(flat.cols, true);
+            out.writeVarInt(flat.rows, true);
+            writeInts(out, flat.cellStart);
+        }
+        else if (index instanceof IndexKDTreeSingle) {
+            IndexKDTreeSingle.Flat flat = ((IndexKDTreeSingle) index).toFlat();
+            writeBase(out, flat);
+            out.writeVarInt(flat.maxPointsInOneLeafNode, true);
+            writeInts(out, flat.rightChildren);
+            writeInts(out, flat.cutDimensions);
+            writeInts(out, flat.leafRanges);
+        }
+        else if (index instanceof IndexKDTree) {
+            IndexKDTree.Flat flat = ((IndexKDTree) index).toFlat();
+            writeBase(out, flat);
+            writeInts(out, flat.roots);
+            writeInts(out, flat.rightChildren);
+            writeInts(out, flat.cutDimensions);
+            writeDoubles(out, flat.cutValues);
+        }
+        else if (index instanceof IndexKMeans) {
+            IndexKMeans.Flat flat = ((IndexKMeans) index).toFlat();
+            writeBase(out, flat);
+            out.writeVarInt(flat.branching, true);
+            out.writeVarInt(flat.iterations, true);
+            out.writeFloat(flat.cbIndex);
+            out.writeByte(flat.centersInit.ordinal());
+            out.writeBoolean(flat.reorder);
+            out.writeLong(flat.seed);
+            out.writeVarInt(flat.buildThreads, true);
+            writeDoubles(out, flat.pivots);
+            writeDoubles(out, flat.radii);
+            writeDoubles(out, flat.variances);
+            writeInts(out, flat.sizes);
+            writeInts(out, flat.childStart);
+            writeInts(out, flat.pointsStart);
+        }
+        else {
+            throw new KryoException("No flat form for " + index.getClass().getName());
+        }
+    }
+
+    @Override
+    public IndexBase read(Kryo kryo, Input in, Class<IndexBase> type)
+    {
+        int version = in.readByte();
+        if (version != VERSION) {
+            throw new KryoException("Unsupported index layout version: " + version);
+        }
+        Metric metric = (Metric) kryo.readClassAndObject(in);
+        Class<?> indexClass = type;
+        if (indexClass == IndexLinear.class) {
+            return new IndexLinear(metric, readBase(in, new FlatIndex()));
+        }
+        if (indexClass == IndexGrid2D.class) {
+            IndexGrid2D.Flat flat = readBase(in, new IndexGrid2D.Flat());
+            flat.pointsPerCell = in.readVarInt(true);
+            flat.minX = in.readDouble();
+            flat.minY = in.readDouble();
+            flat.cellSize = in.readDouble();
+            flat.cols = in.readVarInt(true);
+            flat.rows = in.readVarInt(true);
+            flat.cellStart = readInts(in);
+            return new IndexGrid2D(metric, flat);
+        }
+        if (indexClass == IndexKDTreeSingle.class) {
+            IndexKDTreeSingle.Flat flat = readBase(in, new IndexKDTreeSingle.Flat());
+            flat.maxPointsInOneLeafNode = in.readVarInt(true);
+            flat.rightChildren = readInts(in);
+            flat.cutDimensions = readInts(in);
+            flat.leafRanges = readInts(in);
+            return new IndexKDTreeSingle(metric, flat);
+        }
+        if (indexClass == IndexKDTree.class) {
+            IndexKDTree.Flat flat = readBase(in, new IndexKDTree.Flat());
+            flat.roots = readInts(in);
+            flat.rightChildren = readInts(in);
+            flat.cutDimensions = readInts(in);
+            flat.cutValues = readDoubles(in);
+            return new IndexKDTree(metric, flat);
+        }
+        if (indexClass == IndexKMeans.class) {
+            IndexKMeans.Flat flat = readBase(in, new IndexKMeans.Flat());
+            flat.branching = in.readVarInt(true);
+            flat.iterations = in.readVarInt(true);
+            flat.cbIndex = in.readFloat();
+            flat.centersInit = CENTERS_INIT[in.readByte()];
+            flat.reorder = in.readBoolean();
+            flat.seed = in.readLong();
+            flat.buildThreads = in.readVarInt(true);
+            flat.pivots = readDoubles(in);
+            flat.radii = readDoubles(in);
+            flat.variances = readDoubles(in);
+            flat.sizes = readInts(in);
+            flat.childStart = readInts(in);
+            flat.pointsStart = readInts(in);
+            return new IndexKMeans(metric, flat);
+        }
+        throw new KryoException("No flat form for " + type.getName());
+    }
+
+    private static void writeBase(Output out, FlatIndex flat)
+    {
+        out.writeVarInt(flat.numberOfDimensions, true);
+        writeDoubles(out, flat.data);
+        writeInts(out, flat.objectsIndices);
+    }
+
+    private static <F extends FlatIndex> F readBase(Input in, F flat)
+    {
+        flat.numberOfDimensions = in.readVarInt(true);
+        flat.data = readDoubles(in);
+        flat.objectsIndices = readInts(in);
+        return flat;
+    }
+
+    private static void writeInts(Output out, int[] values)
+    {
+        if (values == null) {
+            out.writeVarInt(0, true);
+            return;
+        }
+        out.writeVarInt(values.length + 1, true);
+        out.writeInts(values);
+    }
+
+    private static int[] readInts(Input in)
+    {
+        int length = in.readVarInt(true) - 1;
+        return length < 0 ? null : in.readInts(length);
+    }
+
+    private static void writeDoubles(Output out, double[] values)
+    {
+        if (values == null) {
+            out.writeVarInt(0, true);
+            return;
+        }
+        out.writeVarInt(values.length + 1, true);
+        out.writeDoubles(values);
+    }
+
+    private static double[] readDoubles(Input in)
+    {
+        int length = in.readVarInt(true) - 1;
+        return length < 0 ? null : in.readDoubles(length);
+    }
+}
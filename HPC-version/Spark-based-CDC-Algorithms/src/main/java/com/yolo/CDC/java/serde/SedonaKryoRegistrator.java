@@ -1,7 +1,12 @@
 package com.yolo.CDC.java.serde;
 
 import com.esotericsoftware.kryo.Kryo;
-import com.yolo.CDC.java.knnsearch.index.IndexBase;
+import com.yolo.CDC.java.knnsearch.index.IndexGrid2D;
+import com.yolo.CDC.java.knnsearch.index.IndexKDTree;
+import com.yolo.CDC.java.knnsearch.index.IndexKDTreeSingle;
+import com.yolo.CDC.java.knnsearch.index.IndexKMeans;
+import com.yolo.CDC.java.knnsearch.index.IndexLinear;
+import com.yolo.CDC.java.rdd.CDCPoint;
 import org.apache.log4j.Logger;
 import com.yolo.CDC.java.geometryObjects.Circle;
 import com.yolo.CDC.java.geometryObjects.GeometrySerde;
@@ -37,5 +42,18 @@ public class SedonaKryoRegistrator
         // TODO: Replace the default serializer with default spatial index serializer
         kryo.register(Quadtree.class, indexSerializer);
         kryo.register(STRtree.class, indexSerializer);
+
+        log.info("Registering custom serializer for CDCPoint");
+
+        kryo.register(CDCPoint.class, CDCPointSerializer.fromSparkConf());
+
+        log.info("Registering custom serializer for kNN indexes");
+
+        KNNIndexSerializer knnIndexSerializer = new KNNIndexSerializer();
+        kryo.register(IndexLinear.class, knnIndexSerializer);
+        kryo.register(IndexGrid2D.class, knnIndexSerializer);
+        kryo.register(IndexKDTreeSingle.class, knnIndexSerializer);
+        kryo.register(IndexKDTree.class, knnIndexSerializer);
+        kryo.register(IndexKMeans.class, knnIndexSerializer);
     }
 }
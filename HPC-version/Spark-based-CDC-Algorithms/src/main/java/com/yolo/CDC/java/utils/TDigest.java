@@ -0,0 +1,178 @@
+package com.yolo.CDC.java.utils;
+
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Mergeable quantile sketch (merging t-digest, Dunning and Ertl).
+ * <p>
+ * Values are buffered and periodically folded into a sorted list of weighted
+ * centroids. A centroid may only grow while it spans at most one unit of the
+ * scale function {@code k(q) = compression / (2 pi) * asin(2q - 1)}, so the
+ * centroids near the tails stay small and extreme quantiles are accurate,
+ * while the sketch keeps O(compression) centroids. Two sketches are merged by
+ * folding the centroids of one into the other, which is what
+ * {@code treeAggregate} needs.
+ */
+public class TDigest implements Serializable {
+    private final double compression;
+    private double[] mean;
+    private double[] weight;
+    private int centroids;
+    private final double[] buffer;
+    private int buffered;
+    private long count;
+    private double min = Double.POSITIVE_INFINITY;
+    private double max = Double.NEGATIVE_INFINITY;
+
+    /**
+     * @param compression number of centroids kept is about this value; 100
+     *                    gives quantiles within about 1% of the rank
+     */
+    public TDigest(double compression) {
+        if (!(compression >= 10)) {
+            throw new IllegalArgumentException("compression must be at least 10: " + compression);
+        }
+        this.compression = compression;
+        int capacity = (int) Math.ceil(compression) + 1;
+        this.mean = new double[capacity];
+        this.weight = new double[capacity];
+        this.buffer = new double[5 * capacity];
+    }
+
+    public TDigest add(double value) {
+        if (Double.isNaN(value)) {
+            throw new IllegalArgumentException("cannot add NaN");
+        }
+        if (buffered == buffer.length) {
+            compress(null);
+        }
+        buffer[buffered++] = value;
+        count++;
+        min = Math.min(min, value);
+        max = Math.max(max, value);
+        return this;
+    }
+
+    /**
+     * Folds the other sketch into this one.
+     *
+     * @return this sketch
+     */
+    public TDigest merge(TDigest other) {
+        if (other.count == 0) {
+            return this;
+        }
+        other.compress(null);
+        compress(other);
+        count += other.count;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        return this;
+    }
+
+    public long size() {
+        return count;
+    }
+
+    /**
+     * Folds the buffer, and the centroids of other if given, into the
+     * centroids of this sketch.
+     */
+    private void compress(TDigest other) {
+        int incoming = buffered + (other == null ? 0 : other.centroids);
+        if (incoming == 0) {
+            return;
+        }
+        int total = centroids + incoming;
+        double[] m = new double[total];
+        double[] w = new double[total];
+        System.arraycopy(mean, 0, m, 0, centroids);
+        System.arraycopy(weight, 0, w, 0, centroids);
+        int n = centroids;
+        for (int i = 0; i < buffered; i++, n++) {
+            m[n] = buffer[i];
+            w[n] = 1;
+        }
+        if (other != null) {
+            System.arraycopy(other.mean, 0, m, n, other.centroids);
+            System.arraycopy(other.weight, 0, w, n, other.centroids);
+        }
+        buffered = 0;
+
+        Integer[] order = new Integer[total];
+        for (int i = 0; i < total; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> Double.compare(m[a], m[b]));
+        double totalWeight = 0;
+        for (int i = 0; i < total; i++) {
+            totalWeight += w[i];
+        }
+
+        double[] newMean = new double[Math.max(mean.length, total)];
+        double[] newWeight = new double[newMean.length];
+        int c = 0;
+        newMean[0] = m[order[0]];
+        newWeight[0] = w[order[0]];
+        double weightSoFar = 0;
+        double kLow = scale(0, totalWeight);
+        for (int i = 1; i < total; i++) {
+            int j = order[i];
+            double kHigh = scale(weightSoFar + newWeight[c] + w[j], totalWeight);
+            if (kHigh - kLow <= 1) {
+                newWeight[c] += w[j];
+                newMean[c] += (m[j] - newMean[c]) * w[j] / newWeight[c];
+            } else {
+                weightSoFar += newWeight[c];
+                kLow = scale(weightSoFar, totalWeight);
+                c++;
+                newMean[c] = m[j];
+                newWeight[c] = w[j];
+            }
+        }
+        centroids = c + 1;
+        mean = newMean;
+        weight = newWeight;
+    }
+
+    private double scale(double cumulativeWeight, double totalWeight) {
+        double q = Math.min(1, Math.max(0, cumulativeWeight / totalWeight));
+        return compression / (2 * Math.PI) * Math.asin(2 * q - 1);
+    }
+
+    /**
+     * Estimated value at quantile q, interpolating between the centres of
+     * adjacent centroids.
+     *
+     * @param q quantile in [0, 1]
+     */
+    public double quantile(double q) {
+        if (q < 0 || q > 1) {
+            throw new IllegalArgumentException("q must be in [0, 1]: " + q);
+        }
+        if (count == 0) {
+            return Double.NaN;
+        }
+        compress(null);
+        if (centroids == 1) {
+            return mean[0];
+        }
+        double index = q * count;
+        if (index < weight[0] / 2) {
+            // Between the minimum and the centre of the first centroid.
+            return min + (mean[0] - min) * index / (weight[0] / 2);
+        }
+        double weightSoFar = weight[0] / 2;
+        for (int i = 0; i < centroids - 1; i++) {
+            double gap = (weight[i] + weight[i + 1]) / 2;
+            if (weightSoFar + gap > index) {
+                return mean[i] + (mean[i + 1] - mean[i]) * (index - weightSoFar) / gap;
+            }
+            weightSoFar += gap;
+        }
+        double last = weight[centroids - 1] / 2;
+        double fraction = last == 0 ? 1 : Math.min(1, (index - weightSoFar) / last);
+        return mean[centroids - 1] + (max - mean[centroids - 1]) * fraction;
+    }
+}
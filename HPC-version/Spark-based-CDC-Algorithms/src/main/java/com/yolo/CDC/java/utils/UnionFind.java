@@ -0,0 +1,73 @@
+package com.yolo.CDC.java.utils;
+
+import java.io.Serializable;
+
+/**
+ * Disjoint-set forest over the integers [0, n) with path compression and
+ * union by rank.
+ */
+public class UnionFind implements Serializable {
+    private final int[] parent;
+    private final byte[] rank;
+    private int count;
+
+    public UnionFind(int n) {
+        parent = new int[n];
+        rank = new byte[n];
+        for (int i = 0; i < n; i++) {
+            parent[i] = i;
+        }
+        count = n;
+    }
+
+    /**
+     * Returns the representative of the set containing x. Every node on the
+     * path is re-pointed to its grandparent (path halving), which gives the
+     * same amortised bound as full compression without recursion.
+     */
+    public int find(int x) {
+        while (parent[x] != x) {
+            parent[x] = parent[parent[x]];
+            x = parent[x];
+        }
+        return x;
+    }
+
+    /**
+     * Merges the sets containing x and y.
+     *
+     * @return the representative of the merged set
+     */
+    public int union(int x, int y) {
+        int rootX = find(x);
+        int rootY = find(y);
+        if (rootX == rootY) {
+            return rootX;
+        }
+        count--;
+        if (rank[rootX] < rank[rootY]) {
+            parent[rootX] = rootY;
+            return rootY;
+        }
+        if (rank[rootX] == rank[rootY]) {
+            rank[rootX]++;
+        }
+        parent[rootY] = rootX;
+        return rootX;
+    }
+
+    public boolean connected(int x, int y) {
+        return find(x) == find(y);
+    }
+
+    /**
+     * Number of disjoint sets.
+     */
+    public int count() {
+        return count;
+    }
+
+    public int size() {
+        return parent.length;
+    }
+}
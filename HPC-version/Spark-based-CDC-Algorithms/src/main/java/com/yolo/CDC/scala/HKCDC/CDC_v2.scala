@@ -1,6 +1,7 @@
 package com.yolo.CDC.scala.HKCDC
 
-import com.yolo.CDC.java.knnsearch.index.{IndexBase, IndexKMeans}
+import com.yolo.CDC.java.cdc.{CDCLocalParallel, InnerPointConnector, NearestPointLookup}
+import com.yolo.CDC.java.knnsearch.index.{IndexBase, IndexKDTreeSingle, IndexKMeans}
 import com.yolo.CDC.java.knnsearch.metric.{Metric, MetricEuclideanSquared}
 import com.yolo.CDC.java.rdd.PointRDD
 import com.yolo.CDC.java.serde.SedonaKryoRegistrator
@@ -55,6 +56,14 @@ object CDC_v2 {
   var dcmThreshold: Double = 0.1
   //(Default: 0.1, Recommended: 0.05~0.25)
   var dcmRatio: Double = 0.1
+  //查找最近异类点使用的索引 (KDTreeSingle, Linear)
+  var reachLookupType: String = NearestPointLookup.KD_TREE_SINGLE
+  //kNN、角度与DCM计算使用的线程数
+  var parallelism: Int = Runtime.getRuntime.availableProcessors()
+  //KMeans索引的随机种子（负数表示随机）
+  var indexSeed: Long = -1L
+  //kNN搜索方式 (KMeans: 逐点查询KMeans索引, DualTree: kd树双树遍历一次求出全部点的近邻)
+  var knnSearchType: String = "KMeans"
 
   def main(args: Array[String]): Unit = {
     //配置环境与序列化
@@ -113,66 +122,55 @@ object CDC_v2 {
     mapRDD
   }
 
-  def csvCDCCluster() = {
-    //读取数据
-    val mapRDD: RDD[Array[Double]] = readCsvData(csvDataInputLocation)
-    val clusteStart: Long = System.currentTimeMillis()
-    val dataArray: Array[Array[Double]] = mapRDD.collect()
+  def searchNeighbors(dataArray: Array[Array[Double]], engine: CDCLocalParallel): (Array[Array[Int]], Array[Array[Double]]) = {
     val length: Int = dataArray.length
     val metric: Metric = new MetricEuclideanSquared()
-
-    val buildParams: IndexKMeans.BuildParams = new IndexKMeans.BuildParams()
-    val indexKMeans: IndexBase = new IndexKMeans(metric, dataArray, buildParams)
-    indexKMeans.buildIndex()
-    val searchParams: IndexKMeans.SearchParams = new IndexKMeans.SearchParams()
-    searchParams.maxNeighbors = k
-    searchParams.eps = 0.0f
-
     val indices: Array[Array[Int]] = Array.ofDim[Int](length, k)
     val distances: Array[Array[Double]] = Array.ofDim[Double](length, k)
-    indexKMeans.knnSearch(dataArray, indices, distances, searchParams)
-
-    //计算角度
-    val caculateAngleStart = System.currentTimeMillis()
-    val angleArray: Array[Array[Double]] = Array.ofDim[Double](length, k)
-    for (i <- 0 until length) {
-      for (j <- 0 until k) {
-        val deltaX: Double = dataArray(indices(i)(j))(0) - dataArray(i)(0)
-        val deltaY: Double = dataArray(indices(i)(j))(1) - dataArray(i)(1)
-        if (deltaX == 0) {
-          if (deltaY == 0) {
-            angleArray(i)(j) = 0
-          } else if (deltaY > 0) {
-            angleArray(i)(j) = math.Pi / 2
-          } else {
-            angleArray(i)(j) = 3 * math.Pi / 2
-          }
-        } else if (deltaX > 0) {
-          if (math.atan(deltaY / deltaX) >= 0) {
-            angleArray(i)(j) = math.atan(deltaY / deltaX)
-          } else {
-            angleArray(i)(j) = 2 * math.Pi + math.atan(deltaY / deltaX)
-          }
-        } else {
-          angleArray(i)(j) = math.Pi + math.atan(deltaY / deltaX)
+    knnSearchType match {
+      case "DualTree" => {
+        //查询点即索引点，自连接用双树遍历，结果为扁平数组，第i个点的近邻位于[i * k, i * k + k)
+        val indexKDTree: IndexKDTreeSingle = new IndexKDTreeSingle(metric, dataArray, new IndexKDTreeSingle.BuildParams())
+        indexKDTree.buildIndex()
+        val flatIndices: Array[Int] = new Array[Int](length * k)
+        val flatDistances: Array[Double] = new Array[Double](length * k)
+        indexKDTree.allKnnDualTree(k, flatIndices, flatDistances, parallelism)
+        for (i <- 0 until length) {
+          System.arraycopy(flatIndices, i * k, indices(i), 0, k)
+          System.arraycopy(flatDistances, i * k, distances(i), 0, k)
         }
       }
-
-    }
-
-    //计算标准化DCM
-    val caculateDCMStart = System.currentTimeMillis()
-    val dcmValue: Array[Double] = new Array[Double](length)
-    for (i <- 0 until length) {
-      val angleOrder: Array[Double] = angleArray(i).sorted
-      //      println(angleOrder.mkString("Array(", ", ", ")"))
-      dcmValue(i) = 0
-      for (j <- 1 until k - 1) {
-        dcmValue(i) += math.pow(angleOrder(j + 1) - angleOrder(j) - 2 * math.Pi / k, 2)
+      case "KMeans" => {
+        val buildParams: IndexKMeans.BuildParams = new IndexKMeans.BuildParams()
+        // 叶子节点的点坐标连续存放
+        buildParams.reorder = true
+        buildParams.buildThreads = parallelism
+        buildParams.seed = indexSeed
+        val indexKMeans: IndexBase = new IndexKMeans(metric, dataArray, buildParams)
+        indexKMeans.buildIndex()
+        val searchParams: IndexKMeans.SearchParams = new IndexKMeans.SearchParams()
+        searchParams.maxNeighbors = k
+        searchParams.eps = 0.0f
+        engine.knnSearch(indexKMeans, dataArray, indices, distances, searchParams)
       }
-      dcmValue(i) += math.pow(angleOrder(1) - angleOrder(k - 1) + 2 * math.Pi - 2 * math.Pi / (k - 1), 2)
-      dcmValue(i) /= ((k - 2) * 4 * math.pow(math.Pi, 2) / (k - 1))
     }
+    (indices, distances)
+  }
+
+  def csvCDCCluster() = {
+    //读取数据
+    val mapRDD: RDD[Array[Double]] = readCsvData(csvDataInputLocation)
+    val clusteStart: Long = System.currentTimeMillis()
+    val dataArray: Array[Array[Double]] = mapRDD.collect()
+    val length: Int = dataArray.length
+    val engine: CDCLocalParallel = new CDCLocalParallel(parallelism)
+    val (indices, distances) = searchNeighbors(dataArray, engine)
+
+    //计算角度与标准化DCM：角度在DCM核函数内计算，不单独保存，计时并入DCM阶段
+    val caculateAngleStart = System.currentTimeMillis()
+    val caculateDCMStart = caculateAngleStart
+    val dcmValue: Array[Double] = engine.computeDCM(dataArray, indices)
+    engine.shutdown()
 
     //划分内部点与边界点
     val divideStart = System.currentTimeMillis()
@@ -189,6 +187,9 @@ object CDC_v2 {
     //计算可达距离
     val calculateReachDistanceStart = System.currentTimeMillis()
     val reachDistance: Array[Double] = new Array[Double](length)
+    //k近邻中没有异类点的点，之后统一通过索引查找最近的异类点
+    val innerWithoutBorder: ArrayBuffer[Int] = new ArrayBuffer[Int]()
+    val borderWithoutInner: ArrayBuffer[Int] = new ArrayBuffer[Int]()
     val loop1: Breaks = new Breaks;
     for (i <- 0 until length) {
       //内部点
@@ -200,17 +201,7 @@ object CDC_v2 {
               //              println(reachDistance(i))
               loop1.break()
             } else if (j == k - 1 && categary(indices(i)(j)) == 1) {
-              reachDistance(i) = Short.MaxValue
-              var temp: Double = 0.0
-              for (m <- 0 until length) {
-                if (categary(m) == 0) {
-                  temp = math.pow(dataArray(i)(0) - dataArray(m)(0), 2) + math.pow(dataArray(i)(1) - dataArray(m)(1), 2)
-                  //                  println(temp)
-                  if (temp < reachDistance(i)) {
-                    reachDistance(i) = temp
-                  }
-                }
-              }
+              innerWithoutBorder.append(i)
             }
           }
         }
@@ -222,48 +213,17 @@ object CDC_v2 {
               reachDistance(i) = indices(i)(j)
               loop2.break()
             } else if (j == k - 1 && categary(indices(i)(j)) == 0) {
-              var tempDistance: Double = Double.MaxValue
-              var temp2: Double = 0.0
-              for (m <- 0 until length) {
-                if (categary(m) == 1) {
-                  temp2 = math.pow(dataArray(i)(0) - dataArray(m)(0), 2) + math.pow(dataArray(i)(1) - dataArray(m)(1), 2)
-                  if (temp2 < tempDistance) {
-                    tempDistance = temp2
-                    reachDistance(i) = m
-                  }
-                }
-              }
+              borderWithoutInner.append(i)
             }
           }
         }
       }
     }
+    findNearestOppositePoint(dataArray, categary, innerWithoutBorder.toArray, borderWithoutInner.toArray, reachDistance)
 
     // 连接、合并聚类
     val connectStart = System.currentTimeMillis()
-    val clusterArray: Array[Int] = new Array[Int](length)
-    var mark: Int = 1
-    for (i <- 0 until length) {
-      if (categary(i) == 1 && clusterArray(i) == 0) {
-        clusterArray(i) = mark
-        for (j <- 0 until length) {
-          if (categary(j) == 1 && math.sqrt(math.pow(dataArray(i)(0) - dataArray(j)(0), 2) + math.pow(dataArray(i)(1) - dataArray(j)(1), 2)) <= (math.sqrt(reachDistance(i)) + math.sqrt(reachDistance(j)))) {
-            if (clusterArray(j) == 0) {
-              clusterArray(j) = mark
-            } else {
-              var tempCluster = clusterArray(j)
-              for (m <- 0 until length) {
-                if (clusterArray(m) == tempCluster) {
-                  clusterArray(m) = mark
-                }
-              }
-            }
-          }
-        }
-        //        println(mark)
-        mark += 1
-      }
-    }
+    val clusterArray: Array[Int] = InnerPointConnector.connect(dataArray, categary, reachDistance)
     for (i <- 0 until length) {
       if (categary(i) == 0) {
         clusterArray(i) = clusterArray(reachDistance(i).toInt)
@@ -300,60 +260,14 @@ object CDC_v2 {
     val clusteStart: Long = System.currentTimeMillis()
     val dataArray: Array[Array[Double]] = mapRDD.collect()
     val length: Int = dataArray.length
-    val metric: Metric = new MetricEuclideanSquared()
-
-    val buildParams: IndexKMeans.BuildParams = new IndexKMeans.BuildParams()
-    val indexKMeans: IndexBase = new IndexKMeans(metric, dataArray, buildParams)
-    indexKMeans.buildIndex()
-    val searchParams: IndexKMeans.SearchParams = new IndexKMeans.SearchParams()
-    searchParams.maxNeighbors = k
-    searchParams.eps = 0.0f
+    val engine: CDCLocalParallel = new CDCLocalParallel(parallelism)
+    val (indices, distances) = searchNeighbors(dataArray, engine)
 
-    val indices: Array[Array[Int]] = Array.ofDim[Int](length, k)
-    val distances: Array[Array[Double]] = Array.ofDim[Double](length, k)
-    indexKMeans.knnSearch(dataArray, indices, distances, searchParams)
-
-    //计算角度
+    //计算角度与标准化DCM：角度在DCM核函数内计算，不单独保存，计时并入DCM阶段
     val caculateAngleStart = System.currentTimeMillis()
-    val angleArray: Array[Array[Double]] = Array.ofDim[Double](length, k)
-    for (i <- 0 until length) {
-      for (j <- 0 until k) {
-        val deltaX: Double = dataArray(indices(i)(j))(0) - dataArray(i)(0)
-        val deltaY: Double = dataArray(indices(i)(j))(1) - dataArray(i)(1)
-        if (deltaX == 0) {
-          if (deltaY == 0) {
-            angleArray(i)(j) = 0
-          } else if (deltaY > 0) {
-            angleArray(i)(j) = math.Pi / 2
-          } else {
-            angleArray(i)(j) = 3 * math.Pi / 2
-          }
-        } else if (deltaX > 0) {
-          if (math.atan(deltaY / deltaX) >= 0) {
-            angleArray(i)(j) = math.atan(deltaY / deltaX)
-          } else {
-            angleArray(i)(j) = 2 * math.Pi + math.atan(deltaY / deltaX)
-          }
-        } else {
-          angleArray(i)(j) = math.Pi + math.atan(deltaY / deltaX)
-        }
-      }
-
-    }
-
-    //计算标准化DCM
-    val caculateDCMStart = System.currentTimeMillis()
-    val dcmValue: Array[Double] = new Array[Double](length)
-    for (i <- 0 until length) {
-      val angleOrder: Array[Double] = angleArray(i).sorted
-      //      println(angleOrder.mkString("Array(", ", ", ")"))
-      dcmValue(i) = 0
-      for (j <- 1 until k - 1) {
-        dcmValue(i) += math.pow(angleOrder(j + 1) - angleOrder(j) - 2 * math.Pi / k, 2)
-      }
-      dcmValue(i) += math.pow(angleOrder(1) - angleOrder(k - 1) + 2 * math.Pi - 2 * math.Pi / (k - 1), 2)
-      dcmValue(i) /= ((k - 2) * 4 * math.pow(math.Pi, 2) / (k - 1))
-    }
+    val caculateDCMStart = caculateAngleStart
+    val dcmValue: Array[Double] = engine.computeDCM(dataArray, indices)
+    engine.shutdown()
 
     //划分内部点与边界点
     val divideStart = System.currentTimeMillis()
@@ -370,6 +284,9 @@ object CDC_v2 {
     //计算可达距离
     val calculateReachDistanceStart = System.currentTimeMillis()
     val reachDistance: Array[Double] = new Array[Double](length)
+    //k近邻中没有异类点的点，之后统一通过索引查找最近的异类点
+    val innerWithoutBorder: ArrayBuffer[Int] = new ArrayBuffer[Int]()
+    val borderWithoutInner: ArrayBuffer[Int] = new ArrayBuffer[Int]()
     val loop1: Breaks = new Breaks;
     for (i <- 0 until length) {
       //内部点
@@ -381,17 +298,7 @@ object CDC_v2 {
               //              println(reachDistance(i))
               loop1.break()
             } else if (j == k - 1 && categary(indices(i)(j)) == 1) {
-              reachDistance(i) = Short.MaxValue
-              var temp: Double = 0.0
-              for (m <- 0 until length) {
-                if (categary(m) == 0) {
-                  temp = math.pow(dataArray(i)(0) - dataArray(m)(0), 2) + math.pow(dataArray(i)(1) - dataArray(m)(1), 2)
-                  //                  println(temp)
-                  if (temp < reachDistance(i)) {
-                    reachDistance(i) = temp
-                  }
-                }
-              }
+              innerWithoutBorder.append(i)
             }
           }
         }
@@ -403,48 +310,17 @@ object CDC_v2 {
               reachDistance(i) = indices(i)(j)
               loop2.break()
             } else if (j == k - 1 && categary(indices(i)(j)) == 0) {
-              var tempDistance: Double = Double.MaxValue
-              var temp2: Double = 0.0
-              for (m <- 0 until length) {
-                if (categary(m) == 1) {
-                  temp2 = math.pow(dataArray(i)(0) - dataArray(m)(0), 2) + math.pow(dataArray(i)(1) - dataArray(m)(1), 2)
-                  if (temp2 < tempDistance) {
-                    tempDistance = temp2
-                    reachDistance(i) = m
-                  }
-                }
-              }
+              borderWithoutInner.append(i)
             }
           }
         }
       }
     }
+    findNearestOppositePoint(dataArray, categary, innerWithoutBorder.toArray, borderWithoutInner.toArray, reachDistance)
 
     // 连接、合并聚类
     val connectStart = System.currentTimeMillis()
-    val clusterArray: Array[Int] = new Array[Int](length)
-    var mark: Int = 1
-    for (i <- 0 until length) {
-      if (categary(i) == 1 && clusterArray(i) == 0) {
-        clusterArray(i) = mark
-        for (j <- 0 until length) {
-          if (categary(j) == 1 && math.sqrt(math.pow(dataArray(i)(0) - dataArray(j)(0), 2) + math.pow(dataArray(i)(1) - dataArray(j)(1), 2)) <= (math.sqrt(reachDistance(i)) + math.sqrt(reachDistance(j)))) {
-            if (clusterArray(j) == 0) {
-              clusterArray(j) = mark
-            } else {
-              var tempCluster = clusterArray(j)
-              for (m <- 0 until length) {
-                if (clusterArray(m) == tempCluster) {
-                  clusterArray(m) = mark
-                }
-              }
-            }
-          }
-        }
-        //        println(mark)
-        mark += 1
-      }
-    }
+    val clusterArray: Array[Int] = InnerPointConnector.connect(dataArray, categary, reachDistance)
     for (i <- 0 until length) {
       if (categary(i) == 0) {
         clusterArray(i) = clusterArray(reachDistance(i).toInt)
@@ -475,6 +351,31 @@ object CDC_v2 {
     evaluateTime(timeArray.toArray, timeEvaluationOutPutLocation)
   }
 
+  /**
+   * 为k近邻中没有异类点的点查找最近的异类点：内部点记录到最近边界点的距离（上限Short.MaxValue），
+   * 边界点记录最近内部点的编号
+   */
+  def findNearestOppositePoint(dataArray: Array[Array[Double]], categary: Array[Int], innerQueryIds: Array[Int], borderQueryIds: Array[Int], reachDistance: Array[Double]): Unit = {
+    val innerIds: Array[Int] = categary.indices.filter(categary(_) == 1).toArray
+    val borderIds: Array[Int] = categary.indices.filter(categary(_) == 0).toArray
+    if (innerQueryIds.nonEmpty) {
+      val nearestIds: Array[Int] = new Array[Int](innerQueryIds.length)
+      val nearestDistances: Array[Double] = Array.fill(innerQueryIds.length)(Short.MaxValue.toDouble)
+      NearestPointLookup.create(reachLookupType, dataArray, borderIds).nearest(innerQueryIds, nearestIds, nearestDistances)
+      for (q <- innerQueryIds.indices) {
+        reachDistance(innerQueryIds(q)) = math.min(Short.MaxValue, nearestDistances(q))
+      }
+    }
+    if (borderQueryIds.nonEmpty && innerIds.nonEmpty) {
+      val nearestIds: Array[Int] = new Array[Int](borderQueryIds.length)
+      val nearestDistances: Array[Double] = new Array[Double](borderQueryIds.length)
+      NearestPointLookup.create(reachLookupType, dataArray, innerIds).nearest(borderQueryIds, nearestIds, nearestDistances)
+      for (q <- borderQueryIds.indices) {
+        reachDistance(borderQueryIds(q)) = nearestIds(q)
+      }
+    }
+  }
+
   def evaluateCluster(labelsTrue: Array[Int], labelsPred: Array[Int], outputPath: String) = {
     createFile(outputPath)
     val filterNan = labelsTrue.zip(labelsPred).filter((filter: (Int, Int)) => filter._1 != (-1))
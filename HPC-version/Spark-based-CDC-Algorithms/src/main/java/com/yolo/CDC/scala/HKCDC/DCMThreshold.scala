@@ -0,0 +1,85 @@
+package com.yolo.CDC.scala.HKCDC
+
+import com.yolo.CDC.java.utils.TDigest
+import org.apache.spark.rdd.RDD
+import org.apache.spark.storage.StorageLevel
+
+/**
+ * 分布式计算DCM阈值：DCM值从大到小排在第 (n * ratio) 位的值，DCM值不小于阈值的点为边界点
+ * Sketch：每个分区构建t-digest，用treeAggregate合并后估计分位数，只传输O(compression)个质心
+ * Exact：按DCM值的二进制位逐段统计直方图（基数选择），4轮treeAggregate得到精确值
+ * 两种方式都不在driver端收集全部DCM值
+ */
+object DCMThreshold {
+  //t-digest的压缩参数，越大越精确
+  var compression: Double = 200
+  //基数选择每轮确定的二进制位数
+  private val radixBits: Int = 16
+
+  /**
+   * @param thresholdType Sketch: t-digest估计, Exact: 分布式精确选择
+   */
+  def threshold(dcmRDD: RDD[Double], ratio: Double, thresholdType: String): Double = {
+    dcmRDD.persist(StorageLevel.MEMORY_ONLY)
+    val count: Long = dcmRDD.count()
+    val rank: Long = math.max(1L, (count * ratio).toLong)
+    val dcmThreshold: Double = thresholdType match {
+      case "Exact" => kthLargest(dcmRDD, rank)
+      case _ =>
+        val digest: TDigest = dcmRDD.treeAggregate(new TDigest(compression))(
+          (digest, value) => digest.add(value),
+          (digest1, digest2) => digest1.merge(digest2))
+        //从大到小第rank个值即从小到大下标为count - rank的值，其中心位于count - rank + 0.5
+        digest.quantile((count - rank + 0.5) / count)
+    }
+    dcmRDD.unpersist()
+    dcmThreshold
+  }
+
+  /**
+   * 第k大的值（k从1开始），每轮统计前缀已确定的值在接下来radixBits位上的直方图
+   */
+  def kthLargest(rdd: RDD[Double], k: Long): Double = {
+    val mask: Long = (1L << radixBits) - 1
+    var prefix: Long = 0L
+    var remaining: Long = k
+    var fixedBits: Int = 0
+    while (fixedBits < 64) {
+      val knownPrefix: Long = prefix
+      val knownBits: Int = fixedBits
+      val shift: Int = 64 - fixedBits - radixBits
+      val histogram: Array[Long] = rdd.treeAggregate(new Array[Long](1 << radixBits))(
+        (histogram, value) => {
+          val key: Long = sortableKey(value)
+          if (knownBits == 0 || (key >>> (64 - knownBits)) == knownPrefix) {
+            histogram(((key >>> shift) & mask).toInt) += 1
+          }
+          histogram
+        },
+        (histogram1, histogram2) => {
+          for (i <- histogram1.indices) {
+            histogram1(i) += histogram2(i)
+          }
+          histogram1
+        })
+      var bin: Int = histogram.length - 1
+      while (histogram(bin) < remaining) {
+        remaining -= histogram(bin)
+        bin -= 1
+      }
+      prefix = (prefix << radixBits) | bin
+      fixedBits += radixBits
+    }
+    fromSortableKey(prefix)
+  }
+
+  //把double映射为按无符号比较时与数值同序的long
+  private def sortableKey(value: Double): Long = {
+    val bits: Long = java.lang.Double.doubleToLongBits(value)
+    if (bits < 0) ~bits else bits | Long.MinValue
+  }
+
+  private def fromSortableKey(key: Long): Double = {
+    java.lang.Double.longBitsToDouble(if (key < 0) key & Long.MaxValue else ~key)
+  }
+}
@@ -0,0 +1,194 @@
+package com.yolo.CDC.scala.HKCDC
+
+import com.yolo.CDC.java.cdc.{CDCPartitionBlock, PartitionConnectionBlock}
+import org.apache.log4j.Logger
+import org.apache.spark.broadcast.Broadcast
+import org.apache.spark.rdd.RDD
+import org.apache.spark.storage.StorageLevel
+import org.apache.spark.{HashPartitioner, TaskContext}
+import org.locationtech.jts.geom.Envelope
+
+import scala.collection.JavaConverters._
+
+/**
+ * 分布式连接内部点
+ * 可达圆相交的内部点之间有连接，每个分区把可达圆可能与其他分区内部点相交的点作为探测点发送过去，
+ * 分区内用网格找到本分区点的所有连接（包括跨分区的连接）；
+ * 然后按CDC_v2的规则（按编号顺序，未被之前的种子点到达的点成为种子点并连接与它相交的点）
+ * 在分区间交换边界点的种子状态，直到所有点的状态确定；
+ * 最后分区内合并局部簇，跨分区的局部簇用标签传播求连通分量，
+ * 全程不在driver端收集内部点，结果与单机CDC_v2的聚类标记相同
+ */
+object DistributedConnection {
+  private val log: Logger = Logger.getLogger(getClass)
+
+  //迭代中每隔多少轮截断一次RDD血缘（需要设置checkpoint目录）
+  var checkpointInterval: Int = 10
+
+  /**
+   * 找到内部点之间的所有连接并确定种子点，返回每个分区一个、已合并局部簇的PartitionConnectionBlock
+   * 只使用分区块中的内部点，分区块RDD需已持久化，返回的RDD已持久化
+   */
+  def linkInnerPoints(pointRDD: RDD[CDCPartitionBlock]): RDD[PartitionConnectionBlock] = {
+    val sc = pointRDD.sparkContext
+    val numPartitions: Int = pointRDD.getNumPartitions
+
+    //各分区内部点的包络和最大可达半径，按分区号排列
+    val summaries: Array[(Envelope, Double)] = pointRDD.map(points => {
+      val envelope: Envelope = new Envelope()
+      var maxReachRadius: Double = 0.0
+      val xy: Array[Double] = points.getXy
+      val reach: Array[Double] = points.getReach
+      for (i <- 0 until points.size() if points.isInner(i)) {
+        envelope.expandToInclude(xy(2 * i), xy(2 * i + 1))
+        maxReachRadius = math.max(maxReachRadius, math.sqrt(reach(i)))
+      }
+      (envelope, maxReachRadius)
+    }).collect()
+    val envelopesBc: Broadcast[Array[Envelope]] = sc.broadcast(summaries.map(_._1))
+    val maxReachRadiusBc: Broadcast[Array[Double]] = sc.broadcast(summaries.map(_._2))
+
+    //把可达圆可能与其他分区内部点相交的点作为探测点发送过去
+    val probeRDD: RDD[(Int, PartitionConnectionBlock.Probes)] = pointRDD.mapPartitionsWithIndex((partitionId, iter) => {
+      iter.flatMap(points => {
+        PartitionConnectionBlock.probes(points, envelopesBc.value, maxReachRadiusBc.value, partitionId)
+          .zipWithIndex.filter(_._1 != null).map(_.swap)
+      })
+    }).partitionBy(new HashPartitioner(numPartitions))
+
+    var blockRDD: RDD[PartitionConnectionBlock] = pointRDD.zipPartitions(probeRDD)((pointIter, probeIter) => {
+      val partitionId: Int = TaskContext.getPartitionId()
+      val probes: java.util.List[PartitionConnectionBlock.Probes] = probeIter.map(_._2).toList.asJava
+      pointIter.map(points => PartitionConnectionBlock.link(points, partitionId, numPartitions, probes))
+    })
+    blockRDD.persist(StorageLevel.MEMORY_ONLY)
+    blockRDD.count()
+    //probeRDD仍是之后每轮blockRDD和clusteredRDD的血统，重算时还要读取这两个广播变量，
+    //所以只释放executor上的副本（unpersist），不能destroy
+    envelopesBc.unpersist()
+    maxReachRadiusBc.unpersist()
+
+    //逐轮确定种子点，每轮把新确定的状态发送给有连接点的分区
+    var messageRDD: RDD[(Int, PartitionConnectionBlock.StatusMessages)] = null
+    var undecided: Long = 1L
+    var round: Int = 0
+    while (undecided > 0) {
+      val received: RDD[(Int, PartitionConnectionBlock.StatusMessages)] = messageRDD
+      val nextRDD: RDD[PartitionConnectionBlock] =
+        if (received == null) {
+          blockRDD.map(_.sweep(java.util.Collections.emptyList[PartitionConnectionBlock.StatusMessages]()))
+        } else {
+          blockRDD.zipPartitions(received)((blockIter, messageIter) => {
+            val messages: java.util.List[PartitionConnectionBlock.StatusMessages] = messageIter.map(_._2).toList.asJava
+            blockIter.map(_.sweep(messages))
+          })
+        }
+      nextRDD.persist(StorageLevel.MEMORY_ONLY)
+      round += 1
+      if (round % checkpointInterval == 0 && sc.getCheckpointDir.isDefined) {
+        nextRDD.checkpoint()
+      }
+      undecided = nextRDD.map(_.undecidedCount.toLong).fold(0L)(_ + _)
+      blockRDD.unpersist()
+      blockRDD = nextRDD
+      messageRDD = statusMessages(blockRDD, numPartitions)
+    }
+    log.info("确定种子点轮数：" + round)
+
+    //收到最后一轮的状态后合并分区内的局部簇
+    val lastMessageRDD: RDD[(Int, PartitionConnectionBlock.StatusMessages)] = messageRDD
+    val clusteredRDD: RDD[PartitionConnectionBlock] = blockRDD.zipPartitions(lastMessageRDD)((blockIter, messageIter) => {
+      val messages: java.util.List[PartitionConnectionBlock.StatusMessages] = messageIter.map(_._2).toList.asJava
+      blockIter.map(_.cluster(messages))
+    })
+    clusteredRDD.persist(StorageLevel.MEMORY_ONLY)
+    clusteredRDD.count()
+    blockRDD.unpersist()
+    clusteredRDD
+  }
+
+  def statusMessages(blockRDD: RDD[PartitionConnectionBlock], numPartitions: Int): RDD[(Int, PartitionConnectionBlock.StatusMessages)] = {
+    blockRDD.flatMap(block => block.statusMessages().zipWithIndex.filter(_._1 != null).map(_.swap))
+      .partitionBy(new HashPartitioner(numPartitions))
+  }
+
+  /**
+   * 用标签传播合并跨分区的局部簇，给每个内部点写入簇标记
+   * 簇标记按簇的最后一个种子点排序后为-1, -2, ...，取反即为CDC_v2的聚类标记
+   * pointRDD为linkInnerPoints使用的分区块，返回写入簇标记的分区块，已持久化
+   */
+  def mergeClusters(blockRDD: RDD[PartitionConnectionBlock], pointRDD: RDD[CDCPartitionBlock]): RDD[CDCPartitionBlock] = {
+    val sc = blockRDD.sparkContext
+    val numPartitions: Int = blockRDD.getNumPartitions
+    val partitioner: HashPartitioner = new HashPartitioner(numPartitions)
+
+    //跨分区簇图的边（两个方向）和有跨分区连接的局部簇：(局部簇, (标签, 分区号))
+    val edgeRDD: RDD[(Int, Int)] = blockRDD.flatMap(block => {
+      block.clusterEdges().grouped(2).flatMap(edge => Iterator((edge(0), edge(1)), (edge(1), edge(0))))
+    }).partitionBy(partitioner)
+    edgeRDD.persist(StorageLevel.MEMORY_ONLY)
+    val boundaryRDD: RDD[(Int, (Int, Int))] = blockRDD.mapPartitionsWithIndex((partitionId, iter) => {
+      iter.flatMap(block => block.boundaryClusters().grouped(2).map(cluster => (cluster(0), (cluster(1), partitionId))))
+    })
+
+    //标签传播：每个连通分量取其中最大的标签（最后一个种子点的编号），只从上一轮改变的顶点传播
+    var labelRDD: RDD[(Int, Int)] = edgeRDD.mapValues(_ => -1).union(boundaryRDD.mapValues(_._1)).reduceByKey(partitioner, math.max(_, _))
+    labelRDD.persist(StorageLevel.MEMORY_ONLY)
+    var frontierRDD: RDD[(Int, Int)] = labelRDD
+    var changed: Long = labelRDD.count()
+    var round: Int = 0
+    while (changed > 0) {
+      val proposalRDD: RDD[(Int, Int)] = edgeRDD.join(frontierRDD).map(_._2).reduceByKey(partitioner, math.max(_, _))
+      val updateRDD: RDD[(Int, Int)] = proposalRDD.join(labelRDD).filter(label => label._2._1 > label._2._2).mapValues(_._1)
+      updateRDD.persist(StorageLevel.MEMORY_ONLY)
+      changed = updateRDD.count()
+      round += 1
+      if (frontierRDD ne labelRDD) {
+        frontierRDD.unpersist()
+      }
+      if (changed > 0) {
+        val nextRDD: RDD[(Int, Int)] = labelRDD.leftOuterJoin(updateRDD).mapValues(label => label._2.getOrElse(label._1))
+        nextRDD.persist(StorageLevel.MEMORY_ONLY)
+        if (round % checkpointInterval == 0 && sc.getCheckpointDir.isDefined) {
+          nextRDD.checkpoint()
+        }
+        nextRDD.count()
+        labelRDD.unpersist()
+        labelRDD = nextRDD
+      }
+      frontierRDD = updateRDD
+    }
+    log.info("合并跨分区簇轮数：" + round)
+
+    //合并后的标签发回局部簇所在分区，得到每个内部点的标签：(内部点编号, 标签)
+    val mergedRDD: RDD[(Int, (Int, Int))] = boundaryRDD.join(labelRDD)
+      .map(cluster => (cluster._2._1._2, (cluster._1, cluster._2._2)))
+      .partitionBy(new HashPartitioner(numPartitions))
+    val labelledRDD: RDD[(Array[Int], Array[Int])] = blockRDD.zipPartitions(mergedRDD)((blockIter, mergedIter) => {
+      val merged: Array[(Int, Int)] = mergedIter.map(_._2).toArray
+      blockIter.map(block => (block.getIds, block.label(merged.map(_._1), merged.map(_._2))))
+    })
+    labelledRDD.persist(StorageLevel.MEMORY_ONLY)
+
+    //按标签排序得到簇标记，只收集每个簇的标签，写入分区块的内部点
+    val labels: Array[Int] = labelledRDD.flatMap(_._2).distinct().collect().sorted
+    val labelsBc: Broadcast[Array[Int]] = sc.broadcast(labels)
+    val clusterRDD: RDD[CDCPartitionBlock] = pointRDD.zipPartitions(labelledRDD)((pointIter, labelIter) => {
+      pointIter.zip(labelIter).map(block => {
+        val clusterIds: Array[Int] = block._2._2.map(label => -(java.util.Arrays.binarySearch(labelsBc.value, label) + 1))
+        block._1.withInnerClusters(block._2._1, clusterIds)
+      })
+    })
+    clusterRDD.persist(StorageLevel.MEMORY_ONLY)
+    clusterRDD.count()
+
+    labelledRDD.unpersist()
+    labelRDD.unpersist()
+    frontierRDD.unpersist()
+    edgeRDD.unpersist()
+    blockRDD.unpersist()
+    //返回的clusterRDD在重算时仍读取labelsBc
+    labelsBc.unpersist()
+    clusterRDD
+  }
+}
@@ -0,0 +1,67 @@
+package com.yolo.CDC.scala.HKCDC
+
+import com.yolo.CDC.java.cdc.{CDCPartitionBlock, PartitionKNNBlock}
+import org.apache.spark.broadcast.Broadcast
+import org.apache.spark.rdd.RDD
+import org.apache.spark.storage.StorageLevel
+import org.apache.spark.{HashPartitioner, TaskContext}
+import org.locationtech.jts.geom.Envelope
+
+import scala.collection.JavaConverters._
+
+/**
+ * 分布式精确kNN图
+ * 每个空间分区只用本分区的点构建局部索引并计算kNN，第k近邻圆越过其他分区包络的边界点
+ * 通过halo交换（把其他分区中落在halo范围内的点作为ghost点发送过来）补全，
+ * 不需要在driver端收集全部坐标，也不需要广播全局索引
+ */
+object DistributedKNN {
+
+  /**
+   * 计算每个点的k个最近邻（包括点本身），结果与在全局索引上精确搜索相同
+   * 返回每个分区一个带邻居编号、距离平方和DCM值的CDCPartitionBlock，返回的RDD已持久化
+   */
+  def knnGraph(rdd: RDD[CDCPartitionBlock], k: Int): RDD[CDCPartitionBlock] = {
+    val sc = rdd.sparkContext
+    val numPartitions: Int = rdd.getNumPartitions
+
+    //每个分区构建局部索引并计算局部kNN
+    val blockRDD: RDD[PartitionKNNBlock] = rdd.map(points => PartitionKNNBlock.search(points, k))
+    blockRDD.persist(StorageLevel.MEMORY_ONLY)
+
+    //各分区的包络，按分区号排列
+    val envelopes: Array[Envelope] = blockRDD.map(_.getEnvelope).collect()
+    val envelopesBc: Broadcast[Array[Envelope]] = sc.broadcast(envelopes)
+
+    //halos(p)(j)：分区p的边界点在分区j中需要的范围
+    val halos: Array[Array[Envelope]] = blockRDD.mapPartitionsWithIndex((partitionId, iter) => {
+      iter.map(_.haloEnvelopes(envelopesBc.value, partitionId))
+    }).collect()
+    val halosBc: Broadcast[Array[Array[Envelope]]] = sc.broadcast(halos)
+
+    //把落在halo范围内的点作为ghost点发送到需要它们的分区
+    val ghostRDD: RDD[(Int, PartitionKNNBlock.GhostPoints)] = blockRDD.mapPartitionsWithIndex((partitionId, iter) => {
+      iter.flatMap(block => {
+        halosBc.value.indices.iterator
+          .filter(_ != partitionId)
+          .flatMap(target => Option(block.ghostsIn(halosBc.value(target)(partitionId))).map(ghosts => (target, ghosts)))
+      })
+    }).partitionBy(new HashPartitioner(numPartitions))
+
+    //合并ghost点中的近邻，得到精确的kNN
+    val graphRDD: RDD[CDCPartitionBlock] = blockRDD.zipPartitions(ghostRDD)((blockIter, ghostIter) => {
+      val partitionId: Int = TaskContext.getPartitionId()
+      val ghosts: java.util.List[PartitionKNNBlock.GhostPoints] = ghostIter.map(_._2).toList.asJava
+      blockIter.map(block => block.resolve(envelopesBc.value, partitionId, ghosts))
+    })
+    graphRDD.persist(StorageLevel.MEMORY_ONLY)
+    graphRDD.count()
+
+    //graphRDD的血统仍读取envelopesBc，缓存被驱逐或executor丢失后需要重算，
+    //所以只释放executor上的副本（unpersist），不能destroy
+    blockRDD.unpersist()
+    envelopesBc.unpersist()
+    halosBc.unpersist()
+    graphRDD
+  }
+}
@@ -1,19 +1,21 @@
 package com.yolo.CDC.scala.HKCDC
 
 import com.yolo.CDC.java.`type`.{FileDataSplitter, GridType}
-import com.yolo.CDC.java.knnsearch.index.{IndexBase, IndexKMeans, SearchParamsBase}
+import com.yolo.CDC.java.cdc.{CDCPartitionBlock, PartitionConnectionBlock, PartitionKNNBlock}
+import com.yolo.CDC.java.knnsearch.index.{IndexBase, IndexGrid2D, IndexKMeans, SearchParamsBase}
 import com.yolo.CDC.java.knnsearch.metric.{Metric, MetricEuclideanSquared}
+import com.yolo.CDC.java.partitioner.DedupParams
 import com.yolo.CDC.java.rdd.{CDCPoint, PointRDD}
 import com.yolo.CDC.java.serde.SedonaKryoRegistrator
 import com.yolo.CDC.java.utils.Evaluation._
-import com.yolo.CDC.java.utils.SortUtils
 import org.apache.hadoop.fs.{FileSystem, Path}
 import org.apache.log4j.{Level, Logger}
 import org.apache.spark.broadcast.Broadcast
 import org.apache.spark.rdd.RDD
 import org.apache.spark.serializer.KryoSerializer
 import org.apache.spark.storage.StorageLevel
-import org.apache.spark.{SparkConf, SparkContext, TaskContext}
+import org.apache.spark.util.LongAccumulator
+import org.apache.spark.{HashPartitioner, SparkConf, SparkContext}
 import org.jfree.chart.annotations.XYShapeAnnotation
 import org.jfree.chart.axis.{NumberAxis, ValueAxis}
 import org.jfree.chart.plot.{PlotOrientation, XYPlot}
@@ -22,6 +24,7 @@ import org.jfree.chart.ui.Layer
 import org.jfree.chart.{ChartFactory, ChartUtils, JFreeChart}
 import org.jfree.data.xy.DefaultXYDataset
 import org.locationtech.jts.geom.{Envelope, Point}
+import org.roaringbitmap.RoaringBitmap
 
 import java.awt.geom.Rectangle2D
 import java.awt.{BasicStroke, Color}
@@ -30,7 +33,6 @@ import java.text.DecimalFormat
 import scala.collection.JavaConverters._
 import scala.collection.mutable
 import scala.collection.mutable.{ArrayBuffer, ListBuffer}
-import scala.util.control.Breaks
 
 
 object HKCDC_parallel_v2 {
@@ -79,6 +81,16 @@ object HKCDC_parallel_v2 {
   var dcmThreshold: Double = 0.1
   //(Default: 0.1, Recommended: 0.05~0.25)
   var dcmRatio: Double = 0.1
+  //DCM阈值计算方式 (Sketch: t-digest估计, Exact: 分布式精确选择)
+  var dcmThresholdType: String = "Sketch"
+  //驱动端构建KMeans索引使用的线程数
+  var indexBuildThreads: Int = Runtime.getRuntime.availableProcessors()
+  //KMeans索引的随机种子（负数表示随机）
+  var indexSeed: Long = -1L
+  //近邻搜索方式 (Halo: 分区局部索引+halo交换, Replicate: 分区时复制halo距离内的点, Broadcast: 广播全局索引)
+  var knnStageType: String = "Halo"
+  //Replicate方式的halo距离（<=0时按数据密度估计）
+  var haloDistance: Double = 0.0
 
   def main(args: Array[String]): Unit = {
     //配置环境与序列化
@@ -95,7 +107,7 @@ object HKCDC_parallel_v2 {
     PointRDDGridType = GridType.Hilbert
     PointRDDNumPartitions = 80
 
-    //设置近邻搜索参数
+    //设置近邻搜索参数（"Kmeans"，或二维数据用均匀网格索引"Grid2D"）
     PointRDDIndexType = "Kmeans"
 
     //设置io参数
@@ -114,18 +126,46 @@ object HKCDC_parallel_v2 {
     sc.stop()
   }
 
-  def pointToCDCPoint(rdd: RDD[Point]): RDD[(Int, CDCPoint)] = {
-    rdd.zipWithIndex().map((pointIndex: (Point, Long)) => {
-      val cdcPoint: CDCPoint = new CDCPoint(pointIndex._1.getX, pointIndex._1.getY, k)
-      cdcPoint.setGridID(TaskContext.get.partitionId)
-      cdcPoint.setIndexID(pointIndex._2.toInt)
-      (cdcPoint.getIndexID, cdcPoint)
+  def pointToPartitionBlock(rdd: RDD[Point]): RDD[CDCPartitionBlock] = {
+    //按全局顺序为每个点编号，每个分区的点组成一个分区块
+    rdd.zipWithIndex().mapPartitions(iter => {
+      val points: Array[(Point, Long)] = iter.toArray
+      Iterator(CDCPartitionBlock.of(points.map(_._2.toInt), points.flatMap(point => Array(point._1.getX, point._1.getY)), k))
     })
   }
 
-  def persistRDD(rdd: RDD[(Int, CDCPoint)]) = {
-    rdd.cache()
-    rdd.checkpoint()
+  def indexRawPoints(objectRDD: PointRDD): Unit = {
+    //分区前为每个点编号并存入userData，使同一个点的所有副本编号相同
+    objectRDD.rawSpatialRDD = objectRDD.rawSpatialRDD.rdd.zipWithIndex().map((pointIndex: (Point, Long)) => {
+      val point: Point = pointIndex._1.getFactory.createPoint(pointIndex._1.getCoordinate)
+      point.setUserData(pointIndex._2.toInt)
+      point
+    }).cache().toJavaRDD()
+  }
+
+  def estimateHaloDistance(objectRDD: PointRDD): Double = {
+    //按均匀密度估计第k近邻距离，取其两倍
+    val boundary: Envelope = objectRDD.boundaryEnvelope
+    2 * math.sqrt(k * boundary.getArea / (math.Pi * objectRDD.approximateTotalCount))
+  }
+
+  def spatialPartitioning(objectRDD: PointRDD): Unit = {
+    if (knnStageType == "Replicate") {
+      indexRawPoints(objectRDD)
+      val halo: Double = if (haloDistance > 0) haloDistance else estimateHaloDistance(objectRDD)
+      println("haloDistance:" + halo)
+      objectRDD.spatialPartitioning(PointRDDGridType, PointRDDNumPartitions, halo)
+    } else {
+      objectRDD.spatialPartitioning(PointRDDGridType, PointRDDNumPartitions)
+    }
+  }
+
+  def pointToPartitionBlockReplicated(rdd: RDD[Point]): RDD[CDCPartitionBlock] = {
+    //编号取自userData，副本与原点编号相同
+    rdd.mapPartitions(iter => {
+      val points: Array[Point] = iter.toArray
+      Iterator(CDCPartitionBlock.of(points.map(_.getUserData.asInstanceOf[Int]), points.flatMap(point => Array(point.getX, point.getY)), k))
+    })
   }
 
   def deleteExistingDir(directory: String): AnyVal = {
@@ -145,261 +185,125 @@ object HKCDC_parallel_v2 {
 
   def createBroadcastIndex(data: Array[Array[Double]]): Broadcast[IndexBase] = {
     val metric: Metric = new MetricEuclideanSquared()
-    val buildParams: IndexKMeans.BuildParams = new IndexKMeans.BuildParams()
-    val indexKMeans: IndexBase = new IndexKMeans(metric, data, buildParams)
-    indexKMeans.buildIndex()
-    //    println((indexKMeans.objectsIndices).size())
-    sc.broadcast(indexKMeans)
+    PointRDDIndexType match {
+      case "Kmeans" => {
+        val buildParams: IndexKMeans.BuildParams = new IndexKMeans.BuildParams()
+        buildParams.buildThreads = indexBuildThreads
+        buildParams.seed = indexSeed
+        val indexKMeans: IndexBase = new IndexKMeans(metric, data, buildParams)
+        indexKMeans.buildIndex()
+        //    println((indexKMeans.objectsIndices).size())
+        sc.broadcast(indexKMeans)
+      }
+      case "Grid2D" => {
+        val buildParams: IndexGrid2D.BuildParams = new IndexGrid2D.BuildParams()
+        val indexGrid2D: IndexBase = new IndexGrid2D(metric, data, buildParams)
+        indexGrid2D.buildIndex()
+        sc.broadcast(indexGrid2D)
+      }
+    }
   }
 
-  def calculateDCM(dataArray: Array[Array[Double]], point: (Int, CDCPoint), indices: Array[Int]): Double = {
-    val angleArray: Array[Double] = point._2.getAngleArray
-    //计算角度
-    for (j <- 0 until k) {
-      val deltaX: Double = dataArray(indices(j))(0) - point._2.getX
-      val deltaY: Double = dataArray(indices(j))(1) - point._2.getY
-      if (deltaX == 0) {
-        if (deltaY == 0) {
-          angleArray(j) = 0
-        } else if (deltaY > 0) {
-          angleArray(j) = math.Pi / 2
-        } else {
-          angleArray(j) = 3 * math.Pi / 2
-        }
-      } else if (deltaX > 0) {
-        if (math.atan(deltaY / deltaX) >= 0) {
-          angleArray(j) = math.atan(deltaY / deltaX)
-        } else {
-          angleArray(j) = 2 * math.Pi + math.atan(deltaY / deltaX)
-        }
-      } else {
-        angleArray(j) = math.Pi + math.atan(deltaY / deltaX)
+  def collectDataArray(rdd: RDD[CDCPartitionBlock]): Array[Array[Double]] = {
+    //按indexID排列的全部坐标，分区块已按编号排序，不需要全局排序
+    val blocks: Array[(Array[Int], Array[Double])] = rdd.map(block => (block.getIndexId, block.getXy)).collect()
+    val dataArray: Array[Array[Double]] = new Array[Array[Double]](blocks.map(_._1.length).sum)
+    blocks.foreach(block => {
+      for (i <- block._1.indices) {
+        dataArray(block._1(i)) = Array(block._2(2 * i), block._2(2 * i + 1))
       }
-    }
+    })
+    dataArray
+  }
 
-    //计算标准化DCM
-    val angleOrder: Array[Double] = angleArray.sorted
-    point._2.setAngleArray(angleOrder)
-    var dcmValue: Double = 0
-    for (j <- 1 until k - 1) {
-      dcmValue += math.pow(angleOrder(j + 1) - angleOrder(j) - 2 * math.Pi / (k - 1), 2)
-    }
-    dcmValue += math.pow(angleOrder(1) - angleOrder(k - 1) + 2 * math.Pi - 2 * math.Pi / (k - 1), 2)
-    dcmValue /= ((k - 2) * 4 * math.pow(math.Pi, 2) / (k - 1))
-    point._2.setDcmValue(dcmValue)
-    dcmValue
+  def dividePoint(rdd: RDD[CDCPartitionBlock], dataArray: Array[Array[Double]], index: Broadcast[IndexBase], searchParams: SearchParamsBase): RDD[CDCPartitionBlock] = {
+    //近邻搜索并计算DCM值
+    rdd.map(block => block.searchNeighbors(index.value, dataArray, searchParams))
   }
 
-  class PartitionIterator(iter: Iterator[(Int, CDCPoint)], dataArray: Array[Array[Double]], index: Broadcast[IndexBase], searchParams: SearchParamsBase) extends Iterator[(Int, CDCPoint)] {
-    override def hasNext: Boolean = {
-      iter.hasNext
-    }
+  def dividePointHalo(rdd: RDD[CDCPartitionBlock]): RDD[CDCPartitionBlock] = {
+    //分布式kNN，DCM值已在kNN阶段计算
+    DistributedKNN.knnGraph(rdd, k)
+  }
 
-    override def next(): (Int, CDCPoint) = {
-      val point: (Int, CDCPoint) = iter.next()
-      val indices: Array[Int] = point._2.getNeighborsIndexID
-      val distances: Array[Double] = point._2.getNeighborsDistance
-      //近邻搜索
-      index.value.knnSearch(point._2.getCoordinates, indices, distances, searchParams)
-      point._2.setNeighborsIndexID(indices)
-      point._2.setNeighborsDistance(distances)
-      //计算DCM值
-      calculateDCM(dataArray, point, indices)
-      //划分内部点与边界点
-      if (point._2.getDcmValue < dcmThreshold) {
-        point._2.setFlag(CDCPoint.Flag.Inner)
-      } else {
-        point._2.setFlag(CDCPoint.Flag.Border)
-      }
-      point
+  def dividePointReplicated(rdd: RDD[CDCPartitionBlock], dedupParams: Broadcast[DedupParams]): RDD[CDCPartitionBlock] = {
+    //第k近邻超出halo距离的点数，在driver端检查
+    val beyondHalo: LongAccumulator = sc.longAccumulator("beyondHalo")
+    val ownedRDD: RDD[CDCPartitionBlock] = rdd.mapPartitionsWithIndex((partitionIndex, partition) => {
+      //分区内已有halo距离内的全部点，局部kNN即可得到本分区所属点的近邻，副本计算后丢弃
+      partition.map(points => {
+        val block: PartitionKNNBlock = PartitionKNNBlock.search(points, k)
+        val ownedPoints: CDCPartitionBlock = block.resolveOwned(dedupParams.value, partitionIndex)
+        beyondHalo.add(block.getBeyondHaloCount)
+        ownedPoints
+      })
+    })
+    ownedRDD.persist(StorageLevel.MEMORY_ONLY)
+    ownedRDD.count()
+    if (beyondHalo.value == 0) {
+      ownedRDD
+    } else {
+      //halo距离是按密度估计的，稀疏或倾斜区域的点近邻可能不精确：对去重后的点改用halo交换计算精确kNN
+      println(beyondHalo.value + "个点的第k近邻超出halo距离，改用halo交换计算精确近邻")
+      val exactRDD: RDD[CDCPartitionBlock] = DistributedKNN.knnGraph(ownedRDD, k)
+      ownedRDD.unpersist()
+      exactRDD
     }
   }
 
-  def dividePoint(rdd: RDD[(Int, CDCPoint)], dataArray: Array[Array[Double]], index: Broadcast[IndexBase], searchParams: SearchParamsBase): RDD[(Int, CDCPoint)] = {
-    //    rdd.mapPartitionsWithIndex(
-    //      (partitionIndex, partition) => {
-    //        val pointList: ArrayBuffer[(Int, CDCPoint)] = new ArrayBuffer[(Int, CDCPoint)]()
-    //        while (partition.hasNext) {
-    //          val point: (Int, CDCPoint) = partition.next()
-    //          val indices: Array[Int] = point._2.getNeighborsIndexID
-    //          val distances: Array[Double] = point._2.getNeighborsDistance
-    //          //近邻搜索
-    //          index.value.knnSearch(point._2.getCoordinates, indices, distances, searchParams)
-    //          point._2.setNeighborsIndexID(indices)
-    //          point._2.setNeighborsDistance(distances)
-    //          //计算DCM值
-    //          calculateDCM(dataArray, point, indices, searchParams.maxNeighbors)
-    //          //划分内部点与边界点
-    //          if (point._2.getDcmValue < dcmThreshold) {
-    //            point._2.setFlag(CDCPoint.Flag.Inner)
-    //          } else {
-    //            point._2.setFlag(CDCPoint.Flag.Border)
-    //          }
-    //          pointList.append(point)
-    //        }
-    //        println("partition" + partitionIndex + ":" + pointList.length)
-    //        pointList.iterator
-    //      }
-    //    )
-    rdd.mapPartitions(iter => new PartitionIterator(iter, dataArray, index, searchParams))
+  def calculateReachDistance(rdd: RDD[CDCPartitionBlock], innerPoints: Broadcast[RoaringBitmap], dcmThreshold: Double, index1: Broadcast[IndexBase], index2: Broadcast[IndexBase], innerIds: Broadcast[Array[Int]]): RDD[CDCPartitionBlock] = {
+    //划分内部点与边界点，计算内部点的可达距离和边界点的最近内部点，之后的阶段不再需要近邻
+    rdd.map(block => block.reach(dcmThreshold, innerPoints.value, index1.value, index2.value, innerIds.value))
   }
 
-  class PartitionIterator_(iter: Iterator[(Int, CDCPoint)], flagArray: Array[CDCPoint.Flag], index1: Broadcast[IndexBase], index2: Broadcast[IndexBase]) extends Iterator[(Int, CDCPoint)] {
-    override def hasNext: Boolean = {
-      iter.hasNext
-    }
-
-    override def next(): (Int, CDCPoint) = {
-      val point: (Int, CDCPoint) = iter.next()
-      val indices: Array[Int] = new Array[Int](1)
-      val distances: Array[Double] = new Array[Double](1)
-      if (point._2.getFlag == CDCPoint.Flag.Inner) {
-        var count: Int = 0
-        val loop: Breaks = new Breaks;
-        loop.breakable {
-          for (i <- point._2.getNeighborsIndexID) {
-            if (flagArray(i) == CDCPoint.Flag.Border) {
-              distances(0) = point._2.getNeighborsDistance()(count)
-              loop.break
-            } else if (flagArray(i) == CDCPoint.Flag.Inner && count == point._2.getNeighborsNum - 1) {
-              index1.value.knnSearch(point._2.getCoordinates, indices, distances)
-            }
-            count += 1
-          }
-        }
-        point._2.setReachDistance(distances(0))
-      } else {
-        var count: Int = 0
-        val loop: Breaks = new Breaks;
-        loop.breakable {
-          for (i <- point._2.getNeighborsIndexID) {
-            if (flagArray(i) == CDCPoint.Flag.Inner) {
-              point._2.setClusterID(i)
-              loop.break
-            } else if (flagArray(i) == CDCPoint.Flag.Border && count == point._2.getNeighborsNum - 1) {
-              index2.value.knnSearch(point._2.getCoordinates, indices, distances)
-              point._2.setClusterID(indices(0))
-            }
-            count += 1
-          }
-        }
-      }
-      point
-    }
+  def connectInnerPointInPartition(rdd: RDD[CDCPartitionBlock]): RDD[PartitionConnectionBlock] = {
+    DistributedConnection.linkInnerPoints(rdd)
   }
 
-  def calculateReachDistance(rdd: RDD[(Int, CDCPoint)], flagArray: Array[CDCPoint.Flag], index1: Broadcast[IndexBase], index2: Broadcast[IndexBase]): RDD[(Int, CDCPoint)] = {
-    //    rdd.mapPartitions((partition: Iterator[(Int, CDCPoint)]) => {
-    //      val pointList: ArrayBuffer[(Int, CDCPoint)] = new ArrayBuffer[(Int, CDCPoint)]()
-    //      while (partition.hasNext) {
-    //        val point: (Int, CDCPoint) = partition.next()
-    //        val indices: Array[Int] = new Array[Int](1)
-    //        val distances: Array[Double] = new Array[Double](1)
-    //        if (point._2.getFlag == CDCPoint.Flag.Inner) {
-    //          var count: Int = 0
-    //          val loop: Breaks = new Breaks;
-    //          loop.breakable {
-    //            for (i <- point._2.getNeighborsIndexID) {
-    //              if (flagArray(i) == CDCPoint.Flag.Border) {
-    //                distances(0) = point._2.getNeighborsDistance()(count)
-    //                loop.break
-    //              } else if (flagArray(i) == CDCPoint.Flag.Inner && count == point._2.getNeighborsNum - 1) {
-    //                index1.value.knnSearch(point._2.getCoordinates, indices, distances)
-    //              }
-    //              count += 1
-    //            }
-    //          }
-    //          point._2.setReachDistance(distances(0))
-    //        } else {
-    //          var count: Int = 0
-    //          val loop: Breaks = new Breaks;
-    //          loop.breakable {
-    //            for (i <- point._2.getNeighborsIndexID) {
-    //              if (flagArray(i) == CDCPoint.Flag.Inner) {
-    //                point._2.setClusterID(i)
-    //                loop.break
-    //              } else if (flagArray(i) == CDCPoint.Flag.Border && count == point._2.getNeighborsNum - 1) {
-    //                index2.value.knnSearch(point._2.getCoordinates, indices, distances)
-    //                point._2.setClusterID(indices(0))
-    //              }
-    //              count += 1
-    //            }
-    //          }
-    //        }
-    //        pointList.append(point)
-    //      }
-    //      pointList.iterator
-    //    })
-    rdd.mapPartitions(iter => new PartitionIterator_(iter, flagArray, index1, index2))
+  def connectInnerPointBetweenPartition(rdd: RDD[PartitionConnectionBlock], pointRDD: RDD[CDCPartitionBlock]): RDD[CDCPartitionBlock] = {
+    DistributedConnection.mergeClusters(rdd, pointRDD)
   }
 
-  def connectInnerPointInPartition(rdd: RDD[(Int, CDCPoint)]): RDD[(Int, ListBuffer[CDCPoint])] = {
-    rdd.mapPartitions((partition: Iterator[(Int, CDCPoint)]) => {
-      val pointList: List[(Int, CDCPoint)] = partition.toList.sortBy(point => point._2.getReachDistance).reverse
-      val clusterPointList: List[(Int, ListBuffer[CDCPoint])] = pointList.map((point: (Int, CDCPoint)) => {
-        if (point._2.getFlag == CDCPoint.Flag.Inner && (!point._2.isVisited)) {
-          val reachPoint: Iterable[(Int, CDCPoint)] = pointList.view.filter(other => {
-            math.sqrt(point._2.getDistanceSquared(other._2)) <= math.sqrt(point._2.getReachDistance) + math.sqrt(other._2.getReachDistance)
-          })
-          val clusterID: Int = point._2.getIndexID
-          point._2.setClusterID(clusterID)
-          val allReachPoint: mutable.Queue[Iterable[(Int, CDCPoint)]] = mutable.Queue(reachPoint)
-          while (allReachPoint.nonEmpty) {
-            // 返回队列的第一个元素 并且删除
-            allReachPoint.dequeue().foreach((point: (Int, CDCPoint)) => {
-              if (point._2.getFlag == CDCPoint.Flag.Inner && (!point._2.isVisited)) { //如果点没有访问过
-                point._2.setVisited(true)
-                point._2.setClusterID(clusterID)
-                val moreReachPoint: Iterable[(Int, CDCPoint)] = pointList.view.filter(other => {
-                  math.sqrt(point._2.getDistanceSquared(other._2)) <= math.sqrt(point._2.getReachDistance) + math.sqrt(other._2.getReachDistance)
-                })
-                allReachPoint.enqueue(moreReachPoint)
-              }
-            })
-          }
-        }
-        (point._2.getClusterID, ListBuffer(point._2))
-      })
-      clusterPointList.iterator
+  //边界点的clusterID是最近内部点的编号，取该内部点的簇标记；最近内部点在本分区时直接读取，否则按编号join
+  def labelBorderPoint(rdd: RDD[CDCPartitionBlock]): RDD[CDCPartitionBlock] = {
+    val numPartitions: Int = rdd.getNumPartitions
+    //最近内部点在其他分区的边界点：(内部点编号, (分区号, 行号))
+    val requestRDD: RDD[(Int, (Int, Int))] = rdd.mapPartitionsWithIndex((partitionId, iter) => {
+      iter.flatMap(block => block.remoteBorderRows().iterator.map(row => (block.getCluster()(row), (partitionId, row))))
+    })
+    requestRDD.persist(StorageLevel.MEMORY_ONLY)
+    //只取被请求的内部点的簇标记参与join
+    val requested: RoaringBitmap = InnerPointBitmap.union(requestRDD.mapPartitions(iter => {
+      val partitionBitmap: RoaringBitmap = new RoaringBitmap()
+      iter.foreach(request => partitionBitmap.add(request._1))
+      Iterator(partitionBitmap)
+    }))
+    val requestedBc: Broadcast[RoaringBitmap] = rdd.sparkContext.broadcast(requested)
+    val labelRDD: RDD[(Int, Int)] = rdd.flatMap(block => {
+      val indexIds: Array[Int] = block.getIndexId
+      val clusterIds: Array[Int] = block.getCluster
+      (0 until block.size()).iterator
+        .filter(row => block.isInner(row) && requestedBc.value.contains(indexIds(row)))
+        .map(row => (indexIds(row), clusterIds(row)))
+    })
+    //簇标记发回边界点所在分区，没有找到的边界点标记为0
+    val answerRDD: RDD[(Int, (Int, Int))] = requestRDD.join(labelRDD)
+      .map(request => (request._2._1._1, (request._2._1._2, request._2._2)))
+      .partitionBy(new HashPartitioner(numPartitions))
+    val labelledRDD: RDD[CDCPartitionBlock] = rdd.zipPartitions(answerRDD)((blockIter, answerIter) => {
+      val answers: Array[(Int, Int)] = answerIter.map(_._2).toArray
+      blockIter.map(block => block.labelBorderPoints(answers.map(_._1), answers.map(_._2)))
     })
+    labelledRDD.persist(StorageLevel.MEMORY_ONLY)
+    labelledRDD.count()
+    requestRDD.unpersist()
+    //labelledRDD只是MEMORY_ONLY缓存，重算时仍读取requestedBc，所以只释放executor上的副本
+    requestedBc.unpersist()
+    labelledRDD
   }
 
-  def connectInnerPointBetweenPartition(rdd: RDD[(Int, ListBuffer[CDCPoint])]): Array[(Int, ListBuffer[CDCPoint])] = {
-    val clusterInnerPointListRDD: RDD[(Int, ListBuffer[CDCPoint])] = rdd.reduceByKey((point1, point2) => point1 ++ point2)
-    val clusterInnerPointArray: Array[(Int, ListBuffer[CDCPoint])] = clusterInnerPointListRDD.collect()
-    clusterInnerPointArray.foldLeft(-1)((cluster: Int, pointList: (Int, ListBuffer[CDCPoint])) => {
-      if (pointList._2.last.getClusterID >= 0) {
-        val point1: CDCPoint = pointList._2.sortBy((point: CDCPoint) => point.getReachDistance).last
-        for (point <- pointList._2) {
-          point.setClusterID(cluster)
-        }
-        val reachPointList: Iterable[(Int, ListBuffer[CDCPoint])] = clusterInnerPointArray.view.filter(other => {
-          val otherPoint: CDCPoint = other._2.sortBy((point: CDCPoint) => point.getReachDistance).last
-          math.sqrt(point1.getDistanceSquared(otherPoint)) <= math.sqrt(point1.getReachDistance) + math.sqrt(otherPoint.getReachDistance)
-        })
-        val allReachPointList: mutable.Queue[Iterable[(Int, ListBuffer[CDCPoint])]] = mutable.Queue(reachPointList)
-        while (allReachPointList.nonEmpty) {
-          // 返回队列的第一个元素 并且删除
-          allReachPointList.dequeue().foreach((pointList: (Int, ListBuffer[CDCPoint])) => {
-            if (pointList._2.last.getClusterID >= 0) { //如果点没有访问过
-              val point2: CDCPoint = pointList._2.sortBy((point: CDCPoint) => point.getReachDistance).last
-              for (point <- pointList._2) {
-                point.setClusterID(cluster)
-              }
-              val morePointList: Iterable[(Int, ListBuffer[CDCPoint])] = clusterInnerPointArray.view.filter(other => {
-                val otherPoint: CDCPoint = other._2.sortBy((point: CDCPoint) => point.getReachDistance).last
-                math.sqrt(point2.getDistanceSquared(otherPoint)) <= math.sqrt(point2.getReachDistance) + math.sqrt(otherPoint.getReachDistance)
-              })
-              allReachPointList.enqueue(morePointList)
-            }
-          })
-        }
-        cluster - 1
-      } else {
-        cluster
-      }
-    })
-    clusterInnerPointArray
+  def partitionBlockToCDCPoint(rdd: RDD[CDCPartitionBlock]): RDD[CDCPoint] = {
+    rdd.mapPartitionsWithIndex((partitionIndex, iter) => iter.flatMap(block => block.toPoints(partitionIndex).iterator))
   }
 
   def paintClusterResult(list: List[CDCPoint], outputPath: String) = {
@@ -626,6 +530,7 @@ object HKCDC_parallel_v2 {
   def csvCDCCluster(searchParams: SearchParamsBase) = {
     deleteExistingDir("CheckPointDir")
     sc.setCheckpointDir("CheckPointDir")
+    PersistencePolicy.reset()
     PointRDDSplitter = FileDataSplitter.COMMA
 
     //读取数据
@@ -639,51 +544,58 @@ object HKCDC_parallel_v2 {
     //空间分区
     println("空间分区开始----------")
     val partitionStart: Long = System.currentTimeMillis()
-    objectRDD.spatialPartitioning(PointRDDGridType, PointRDDNumPartitions)
+    spatialPartitioning(objectRDD)
     val partitionEnd: Long = System.currentTimeMillis()
     println("空间分区结束----------")
     println("时间：" + (partitionEnd - partitionStart) / 1000.0 + "秒")
 
     //转换数据结构，并标记index
-    val spatialPartitionedRDD: RDD[(Int, CDCPoint)] = pointToCDCPoint(objectRDD.spatialPartitionedRDD)
+    val spatialPartitionedRDD: RDD[CDCPartitionBlock] = if (knnStageType == "Replicate") pointToPartitionBlockReplicated(objectRDD.spatialPartitionedRDD) else pointToPartitionBlock(objectRDD.spatialPartitionedRDD)
     //性能优化——数据持久化
-    persistRDD(spatialPartitionedRDD)
+    PersistencePolicy.persist("partition", spatialPartitionedRDD)
     //    deleteExistingDir(spatialPartitionedRDDOutputLocation)
     //    spatialPartitionedRDD.saveAsTextFile(spatialPartitionedRDDOutputLocation)
-    // 获得数组数据，用于构建索引
-    val dataArray: Array[Array[Double]] = spatialPartitionedRDD.sortBy((point: (Int, CDCPoint)) => point._2.getIndexID).map(point => point._2.getCoordinates).collect()
+    // 获得数组数据，用于构建索引（Halo与Replicate方式不需要）
+    val dataArray: Array[Array[Double]] = if (knnStageType == "Halo" || knnStageType == "Replicate") null else collectDataArray(spatialPartitionedRDD)
 
     //构建全局索引并广播
     println("构建索引开始----------")
     val indexStart: Long = System.currentTimeMillis()
-    val indexKMeansBc: Broadcast[IndexBase] = createBroadcastIndex(dataArray)
+    val indexKMeansBc: Broadcast[IndexBase] = if (knnStageType == "Halo" || knnStageType == "Replicate") null else createBroadcastIndex(dataArray)
     val indexEnd: Long = System.currentTimeMillis()
     println("构建索引结束----------")
     println("时间：" + (indexEnd - indexStart) / 1000.0 + "秒")
 
-    //对分区中每个数据进行近邻搜索并计算其DCM值，根据DCM阈值划分边界点与内部点
+    //对分区中每个数据进行近邻搜索并计算其DCM值
     println("划分开始----------")
     val divideStart: Long = System.currentTimeMillis()
-    val dividePointRDD: RDD[(Int, CDCPoint)] = dividePoint(spatialPartitionedRDD, dataArray, indexKMeansBc, searchParams)
-    persistRDD(dividePointRDD)
+    val dividePointRDD: RDD[CDCPartitionBlock] = knnStageType match {
+      case "Halo" => dividePointHalo(spatialPartitionedRDD)
+      case "Replicate" => dividePointReplicated(spatialPartitionedRDD, sc.broadcast(objectRDD.getPartitioner.getHaloDedupParams))
+      case _ => dividePoint(spatialPartitionedRDD, dataArray, indexKMeansBc, searchParams)
+    }
+    PersistencePolicy.persist("divide", dividePointRDD, "partition")
     val divideEnd: Long = System.currentTimeMillis()
     println("划分结束----------")
     println("时间：" + (divideEnd - divideStart) / 1000.0 + "秒")
 
-    //获得划分结果数组
-    val flagArray: Array[CDCPoint.Flag] = dividePointRDD.sortBy(point => point._2.getIndexID).map(point => point._2.getFlag).collect()
-    val dcmArray: Array[Double] = dividePointRDD.map(point => point._2.getDcmValue).collect()
-    dcmThreshold = SortUtils.findKthLargest(dcmArray, (dcmArray.length * dcmRatio).toInt)
+    //由DCM值的分布计算阈值，不收集DCM值；点的划分在计算可达距离时进行
+    dcmThreshold = DCMThreshold.threshold(dividePointRDD.flatMap(_.getDcm), dcmRatio, dcmThresholdType)
     println("dcmThreshold:" + dcmThreshold)
+    val threshold: Double = dcmThreshold
+
+    //获得内部点位图（按indexID）
+    val innerPointsBc: Broadcast[RoaringBitmap] = InnerPointBitmap.broadcast(dividePointRDD, threshold)
     println("构建索引开始----------")
     val reachIndexStart: Long = System.currentTimeMillis()
     //构建边界点索引，用于内部点寻找最近的边界点
-    val borderPointArray: Array[Array[Double]] = dividePointRDD.filter(point => point._2.getFlag == CDCPoint.Flag.Border).map(point => point._2.getCoordinates).collect()
+    val borderPointArray: Array[Array[Double]] = dividePointRDD.flatMap(_.coordinates(threshold, false)).collect()
     val borderIndexKMeansBc: Broadcast[IndexBase] = createBroadcastIndex(borderPointArray)
 
-    //构建内部点索引，用于边界点寻找最近的内部点
-    val innerPointArray: Array[Array[Double]] = dividePointRDD.filter(point => point._2.getFlag == CDCPoint.Flag.Inner).map(point => point._2.getCoordinates).collect()
-    val innerIndexKMeansBc: Broadcast[IndexBase] = createBroadcastIndex(innerPointArray)
+    //构建内部点索引，用于边界点寻找最近的内部点，innerIds为索引中每个点的indexID
+    val innerPoints: Array[(Array[Array[Double]], Array[Int])] = dividePointRDD.map(block => (block.coordinates(threshold, true), block.innerIndexIds(threshold))).collect()
+    val innerIndexKMeansBc: Broadcast[IndexBase] = createBroadcastIndex(innerPoints.flatMap(_._1))
+    val innerIdsBc: Broadcast[Array[Int]] = sc.broadcast(innerPoints.flatMap(_._2))
     val reachIndexEnd: Long = System.currentTimeMillis()
     println("构建索引结束----------")
     println("时间：" + (reachIndexEnd - reachIndexStart) / 1000.0 + "秒")
@@ -691,8 +603,8 @@ object HKCDC_parallel_v2 {
     //计算内部点的可达距离
     println("计算可达距离开始----------")
     val reachDistanceStart: Long = System.currentTimeMillis()
-    val reachPartitionedRDD: RDD[(Int, CDCPoint)] = calculateReachDistance(dividePointRDD, flagArray, borderIndexKMeansBc, innerIndexKMeansBc)
-    persistRDD(reachPartitionedRDD)
+    val reachPartitionedRDD: RDD[CDCPartitionBlock] = calculateReachDistance(dividePointRDD, innerPointsBc, threshold, borderIndexKMeansBc, innerIndexKMeansBc, innerIdsBc)
+    PersistencePolicy.persist("reach", reachPartitionedRDD, "divide")
     val reachDistanceEnd: Long = System.currentTimeMillis()
     println("计算可达距离结束----------")
     println("时间：" + (reachDistanceEnd - reachDistanceStart) / 1000.0 + "秒")
@@ -700,28 +612,22 @@ object HKCDC_parallel_v2 {
     //根据距离可达原则在分区内连接内部点
     println("分区内连接内部点开始----------")
     val connectInnerPointStart: Long = System.currentTimeMillis()
-    val clusterInnerPointRDD: RDD[(Int, ListBuffer[CDCPoint])] = connectInnerPointInPartition(reachPartitionedRDD.filter((point: (Int, CDCPoint)) => point._2.getFlag == CDCPoint.Flag.Inner))
+    val connectionBlockRDD: RDD[PartitionConnectionBlock] = connectInnerPointInPartition(reachPartitionedRDD)
     val connectInnerPointEnd: Long = System.currentTimeMillis()
     println("分区内连接内部点结束----------")
     println("时间：" + (connectInnerPointEnd - connectInnerPointStart) / 1000.0 + "秒")
 
     println("分区间连接内部点开始----------")
     val connectInnerPointBStart: Long = System.currentTimeMillis()
-    val clusterInnerPointArray: Array[(Int, ListBuffer[CDCPoint])] = connectInnerPointBetweenPartition(clusterInnerPointRDD)
+    val clusterInnerPointRDD: RDD[CDCPartitionBlock] = connectInnerPointBetweenPartition(connectionBlockRDD, reachPartitionedRDD)
     val connectInnerPointBEnd: Long = System.currentTimeMillis()
     println("分区间连接内部点结束----------")
     println("时间：" + (connectInnerPointBEnd - connectInnerPointBStart) / 1000.0 + "秒")
 
     println("标记边界点开始----------")
     val labelBoderPointStart: Long = System.currentTimeMillis()
-    val clusterInnerPoint: Array[CDCPoint] = clusterInnerPointArray.flatMap(_._2)
-    val borderPoint: Array[CDCPoint] = reachPartitionedRDD.filter((point: (Int, CDCPoint)) => point._2.getFlag == CDCPoint.Flag.Border).map(_._2).collect()
-    val clusterArray: Array[CDCPoint] = (clusterInnerPoint ++ borderPoint).sortBy(point => point.getIndexID)
-    clusterArray.foreach((point: CDCPoint) => {
-      if (point.getFlag == CDCPoint.Flag.Border) {
-        point.setClusterID(clusterArray(point.getClusterID).getClusterID)
-      }
-    })
+    val clusterRDD: RDD[CDCPartitionBlock] = labelBorderPoint(clusterInnerPointRDD)
+    PersistencePolicy.release("reach")
     val labelBoderPointEnd: Long = System.currentTimeMillis()
     println("标记边界点结束----------")
     println("时间：" + (labelBoderPointEnd - labelBoderPointStart) / 1000.0 + "秒")
@@ -729,6 +635,8 @@ object HKCDC_parallel_v2 {
     //画出聚类结果图
     println("画图开始----------")
     var t1: Long = System.currentTimeMillis()
+    //只有画图和评价需要收集全部点
+    val clusterArray: Array[CDCPoint] = partitionBlockToCDCPoint(clusterRDD).collect().sortBy(point => point.getIndexID)
     //    val grids: List[Envelope] = objectRDD.getPartitioner.getGrids.asScala.toList
     //    println("partitionSize:" + objectRDD.spatialPartitionedRDD.partitions.size())
     paintClusterResult(clusterArray.toList, clusterResultOutputLocation)
@@ -744,6 +652,7 @@ object HKCDC_parallel_v2 {
     println("本地聚类时间：" + (connectInnerPointEnd - partitionStart) / 1000.0 + "秒")
     println("聚类合并和重标记：" + (labelBoderPointEnd - connectInnerPointBStart) / 1000.0 + "秒")
     println("聚类时间：" + (labelBoderPointEnd - partitionStart) / 1000.0 + "秒")
+    PersistencePolicy.report()
     val timeArray: ArrayBuffer[Double] = new ArrayBuffer[Double]()
     //    timeArray.append(readDataStart, readDataEnd, partitionStart, partitionEnd, indexStart, indexEnd, divideStart, divideEnd,
     //      reachDistanceStart, reachDistanceEnd, connectInnerPointStart, connectInnerPointEnd, connectInnerPointBStart, connectInnerPointBEnd, labelBoderPointStart, labelBoderPointEnd)
@@ -755,6 +664,7 @@ object HKCDC_parallel_v2 {
   def txtCDCCluster(searchParams: SearchParamsBase) = {
     deleteExistingDir("CheckPointDir")
     sc.setCheckpointDir("CheckPointDir")
+    PersistencePolicy.reset()
     PointRDDSplitter = FileDataSplitter.TAB
 
     //读取数据
@@ -768,51 +678,58 @@ object HKCDC_parallel_v2 {
     //空间分区
     println("空间分区开始----------")
     val partitionStart: Long = System.currentTimeMillis()
-    objectRDD.spatialPartitioning(PointRDDGridType, PointRDDNumPartitions)
+    spatialPartitioning(objectRDD)
     val partitionEnd: Long = System.currentTimeMillis()
     println("空间分区结束----------")
     println("时间：" + (partitionEnd - partitionStart) / 1000.0 + "秒")
 
     //转换数据结构，并标记index
-    val spatialPartitionedRDD: RDD[(Int, CDCPoint)] = pointToCDCPoint(objectRDD.spatialPartitionedRDD)
+    val spatialPartitionedRDD: RDD[CDCPartitionBlock] = if (knnStageType == "Replicate") pointToPartitionBlockReplicated(objectRDD.spatialPartitionedRDD) else pointToPartitionBlock(objectRDD.spatialPartitionedRDD)
     //性能优化——数据持久化
-    persistRDD(spatialPartitionedRDD)
+    PersistencePolicy.persist("partition", spatialPartitionedRDD)
     //    deleteExistingDir(spatialPartitionedRDDOutputLocation)
     //    spatialPartitionedRDD.saveAsTextFile(spatialPartitionedRDDOutputLocation)
-    // 获得数组数据，用于构建索引
-    val dataArray: Array[Array[Double]] = spatialPartitionedRDD.sortBy((point: (Int, CDCPoint)) => point._2.getIndexID).map(point => point._2.getCoordinates).collect()
+    // 获得数组数据，用于构建索引（Halo与Replicate方式不需要）
+    val dataArray: Array[Array[Double]] = if (knnStageType == "Halo" || knnStageType == "Replicate") null else collectDataArray(spatialPartitionedRDD)
 
     //构建全局索引并广播
     println("构建索引开始----------")
     val indexStart: Long = System.currentTimeMillis()
-    val indexKMeansBc: Broadcast[IndexBase] = createBroadcastIndex(dataArray)
+    val indexKMeansBc: Broadcast[IndexBase] = if (knnStageType == "Halo" || knnStageType == "Replicate") null else createBroadcastIndex(dataArray)
     val indexEnd: Long = System.currentTimeMillis()
     println("构建索引结束----------")
     println("时间：" + (indexEnd - indexStart) / 1000.0 + "秒")
 
-    //对分区中每个数据进行近邻搜索并计算其DCM值，根据DCM阈值划分边界点与内部点
+    //对分区中每个数据进行近邻搜索并计算其DCM值
     println("划分开始----------")
     val divideStart: Long = System.currentTimeMillis()
-    val dividePointRDD: RDD[(Int, CDCPoint)] = dividePoint(spatialPartitionedRDD, dataArray, indexKMeansBc, searchParams)
-    persistRDD(dividePointRDD)
+    val dividePointRDD: RDD[CDCPartitionBlock] = knnStageType match {
+      case "Halo" => dividePointHalo(spatialPartitionedRDD)
+      case "Replicate" => dividePointReplicated(spatialPartitionedRDD, sc.broadcast(objectRDD.getPartitioner.getHaloDedupParams))
+      case _ => dividePoint(spatialPartitionedRDD, dataArray, indexKMeansBc, searchParams)
+    }
+    PersistencePolicy.persist("divide", dividePointRDD, "partition")
     val divideEnd: Long = System.currentTimeMillis()
     println("划分结束----------")
     println("时间：" + (divideEnd - divideStart) / 1000.0 + "秒")
 
-    //获得划分结果数组
-    val flagArray: Array[CDCPoint.Flag] = dividePointRDD.sortBy(point => point._2.getIndexID).map(point => point._2.getFlag).collect()
-    val dcmArray: Array[Double] = dividePointRDD.map(point => point._2.getDcmValue).collect()
-    dcmThreshold = SortUtils.findKthLargest(dcmArray, (dcmArray.length * dcmRatio).toInt)
+    //由DCM值的分布计算阈值，不收集DCM值；点的划分在计算可达距离时进行
+    dcmThreshold = DCMThreshold.threshold(dividePointRDD.flatMap(_.getDcm), dcmRatio, dcmThresholdType)
     println("dcmThreshold:" + dcmThreshold)
+    val threshold: Double = dcmThreshold
+
+    //获得内部点位图（按indexID）
+    val innerPointsBc: Broadcast[RoaringBitmap] = InnerPointBitmap.broadcast(dividePointRDD, threshold)
     println("构建索引开始----------")
     val reachIndexStart: Long = System.currentTimeMillis()
     //构建边界点索引，用于内部点寻找最近的边界点
-    val borderPointArray: Array[Array[Double]] = dividePointRDD.filter(point => point._2.getFlag == CDCPoint.Flag.Border).map(point => point._2.getCoordinates).collect()
+    val borderPointArray: Array[Array[Double]] = dividePointRDD.flatMap(_.coordinates(threshold, false)).collect()
     val borderIndexKMeansBc: Broadcast[IndexBase] = createBroadcastIndex(borderPointArray)
 
-    //构建内部点索引，用于边界点寻找最近的内部点
-    val innerPointArray: Array[Array[Double]] = dividePointRDD.filter(point => point._2.getFlag == CDCPoint.Flag.Inner).map(point => point._2.getCoordinates).collect()
-    val innerIndexKMeansBc: Broadcast[IndexBase] = createBroadcastIndex(innerPointArray)
+    //构建内部点索引，用于边界点寻找最近的内部点，innerIds为索引中每个点的indexID
+    val innerPoints: Array[(Array[Array[Double]], Array[Int])] = dividePointRDD.map(block => (block.coordinates(threshold, true), block.innerIndexIds(threshold))).collect()
+    val innerIndexKMeansBc: Broadcast[IndexBase] = createBroadcastIndex(innerPoints.flatMap(_._1))
+    val innerIdsBc: Broadcast[Array[Int]] = sc.broadcast(innerPoints.flatMap(_._2))
     val reachIndexEnd: Long = System.currentTimeMillis()
     println("构建索引结束----------")
     println("时间：" + (reachIndexEnd - reachIndexStart) / 1000.0 + "秒")
@@ -820,8 +737,8 @@ object HKCDC_parallel_v2 {
     //计算内部点的可达距离
     println("计算可达距离开始----------")
     val reachDistanceStart: Long = System.currentTimeMillis()
-    val reachPartitionedRDD: RDD[(Int, CDCPoint)] = calculateReachDistance(dividePointRDD, flagArray, borderIndexKMeansBc, innerIndexKMeansBc)
-    persistRDD(reachPartitionedRDD)
+    val reachPartitionedRDD: RDD[CDCPartitionBlock] = calculateReachDistance(dividePointRDD, innerPointsBc, threshold, borderIndexKMeansBc, innerIndexKMeansBc, innerIdsBc)
+    PersistencePolicy.persist("reach", reachPartitionedRDD, "divide")
     val reachDistanceEnd: Long = System.currentTimeMillis()
     println("计算可达距离结束----------")
     println("时间：" + (reachDistanceEnd - reachDistanceStart) / 1000.0 + "秒")
@@ -829,28 +746,22 @@ object HKCDC_parallel_v2 {
     //根据距离可达原则在分区内连接内部点
     println("分区内连接内部点开始----------")
     val connectInnerPointStart: Long = System.currentTimeMillis()
-    val clusterInnerPointRDD: RDD[(Int, ListBuffer[CDCPoint])] = connectInnerPointInPartition(reachPartitionedRDD.filter((point: (Int, CDCPoint)) => point._2.getFlag == CDCPoint.Flag.Inner))
+    val connectionBlockRDD: RDD[PartitionConnectionBlock] = connectInnerPointInPartition(reachPartitionedRDD)
     val connectInnerPointEnd: Long = System.currentTimeMillis()
     println("分区内连接内部点结束----------")
     println("时间：" + (connectInnerPointEnd - connectInnerPointStart) / 1000.0 + "秒")
 
     println("分区间连接内部点开始----------")
     val connectInnerPointBStart: Long = System.currentTimeMillis()
-    val clusterInnerPointArray: Array[(Int, ListBuffer[CDCPoint])] = connectInnerPointBetweenPartition(clusterInnerPointRDD)
+    val clusterInnerPointRDD: RDD[CDCPartitionBlock] = connectInnerPointBetweenPartition(connectionBlockRDD, reachPartitionedRDD)
     val connectInnerPointBEnd: Long = System.currentTimeMillis()
     println("分区间连接内部点结束----------")
     println("时间：" + (connectInnerPointBEnd - connectInnerPointBStart) / 1000.0 + "秒")
 
     println("标记边界点开始----------")
     val labelBoderPointStart: Long = System.currentTimeMillis()
-    val clusterInnerPoint: Array[CDCPoint] = clusterInnerPointArray.flatMap(_._2)
-    val borderPoint: Array[CDCPoint] = reachPartitionedRDD.filter((point: (Int, CDCPoint)) => point._2.getFlag == CDCPoint.Flag.Border).map(_._2).collect()
-    val clusterArray: Array[CDCPoint] = (clusterInnerPoint ++ borderPoint).sortBy(point => point.getIndexID)
-    clusterArray.foreach((point: CDCPoint) => {
-      if (point.getFlag == CDCPoint.Flag.Border) {
-        point.setClusterID(clusterArray(point.getClusterID).getClusterID)
-      }
-    })
+    val clusterRDD: RDD[CDCPartitionBlock] = labelBorderPoint(clusterInnerPointRDD)
+    PersistencePolicy.release("reach")
     val labelBoderPointEnd: Long = System.currentTimeMillis()
     println("标记边界点结束----------")
     println("时间：" + (labelBoderPointEnd - labelBoderPointStart) / 1000.0 + "秒")
@@ -858,6 +769,8 @@ object HKCDC_parallel_v2 {
     //画出聚类结果图
     println("画图开始----------")
     var t1: Long = System.currentTimeMillis()
+    //只有画图和评价需要收集全部点
+    val clusterArray: Array[CDCPoint] = partitionBlockToCDCPoint(clusterRDD).collect().sortBy(point => point.getIndexID)
     //    val grids: List[Envelope] = objectRDD.getPartitioner.getGrids.asScala.toList
     //    println("partitionSize:" + objectRDD.spatialPartitionedRDD.partitions.size())
     paintClusterResult(clusterArray.toList, clusterResultOutputLocation)
@@ -880,6 +793,7 @@ object HKCDC_parallel_v2 {
     println("本地聚类时间：" + (connectInnerPointEnd - partitionStart) / 1000.0 + "秒")
     println("聚类合并和重标记：" + (labelBoderPointEnd - connectInnerPointBStart) / 1000.0 + "秒")
     println("聚类时间：" + (labelBoderPointEnd - partitionStart) / 1000.0 + "秒")
+    PersistencePolicy.report()
     val timeArray: ArrayBuffer[Double] = new ArrayBuffer[Double]()
     timeArray.append((readDataEnd - readDataStart) / 1000.0, (partitionEnd - partitionStart) / 1000.0, (indexStart - partitionEnd) / 1000.0, (indexEnd - indexStart) / 1000.0, (divideEnd - divideStart) / 1000.0, (reachIndexStart - divideEnd) / 1000.0, (reachIndexEnd - reachIndexStart) / 1000.0,
       (reachDistanceEnd - reachDistanceStart) / 1000.0, (connectInnerPointEnd - connectInnerPointStart) / 1000.0, (connectInnerPointBEnd - connectInnerPointBStart) / 1000.0, (labelBoderPointEnd - labelBoderPointStart) / 1000.0, (labelBoderPointEnd - partitionStart) / 1000.0)
@@ -889,6 +803,7 @@ object HKCDC_parallel_v2 {
   def txtCDCCluster_(searchParams: SearchParamsBase) = {
     deleteExistingDir("CheckPointDir")
     sc.setCheckpointDir("CheckPointDir")
+    PersistencePolicy.reset()
     PointRDDSplitter = FileDataSplitter.TAB
 
     //读取数据
@@ -902,51 +817,58 @@ object HKCDC_parallel_v2 {
     //空间分区
     println("空间分区开始----------")
     val partitionStart: Long = System.currentTimeMillis()
-    objectRDD.spatialPartitioning(PointRDDGridType, PointRDDNumPartitions)
+    spatialPartitioning(objectRDD)
     val partitionEnd: Long = System.currentTimeMillis()
     println("空间分区结束----------")
     println("时间：" + (partitionEnd - partitionStart) / 1000.0 + "秒")
 
     //转换数据结构，并标记index
-    val spatialPartitionedRDD: RDD[(Int, CDCPoint)] = pointToCDCPoint(objectRDD.spatialPartitionedRDD)
+    val spatialPartitionedRDD: RDD[CDCPartitionBlock] = if (knnStageType == "Replicate") pointToPartitionBlockReplicated(objectRDD.spatialPartitionedRDD) else pointToPartitionBlock(objectRDD.spatialPartitionedRDD)
     //性能优化——数据持久化
-    persistRDD(spatialPartitionedRDD)
+    PersistencePolicy.persist("partition", spatialPartitionedRDD)
     //    deleteExistingDir(spatialPartitionedRDDOutputLocation)
     //    spatialPartitionedRDD.saveAsTextFile(spatialPartitionedRDDOutputLocation)
-    // 获得数组数据，用于构建索引
-    val dataArray: Array[Array[Double]] = spatialPartitionedRDD.sortBy((point: (Int, CDCPoint)) => point._2.getIndexID).map(point => point._2.getCoordinates).collect()
+    // 获得数组数据，用于构建索引（Halo与Replicate方式不需要）
+    val dataArray: Array[Array[Double]] = if (knnStageType == "Halo" || knnStageType == "Replicate") null else collectDataArray(spatialPartitionedRDD)
 
     //构建全局索引并广播
     println("构建索引开始----------")
     val indexStart: Long = System.currentTimeMillis()
-    val indexKMeansBc: Broadcast[IndexBase] = createBroadcastIndex(dataArray)
+    val indexKMeansBc: Broadcast[IndexBase] = if (knnStageType == "Halo" || knnStageType == "Replicate") null else createBroadcastIndex(dataArray)
     val indexEnd: Long = System.currentTimeMillis()
     println("构建索引结束----------")
     println("时间：" + (indexEnd - indexStart) / 1000.0 + "秒")
 
-    //对分区中每个数据进行近邻搜索并计算其DCM值，根据DCM阈值划分边界点与内部点
+    //对分区中每个数据进行近邻搜索并计算其DCM值
     println("划分开始----------")
     val divideStart: Long = System.currentTimeMillis()
-    val dividePointRDD: RDD[(Int, CDCPoint)] = dividePoint(spatialPartitionedRDD, dataArray, indexKMeansBc, searchParams)
-    persistRDD(dividePointRDD)
+    val dividePointRDD: RDD[CDCPartitionBlock] = knnStageType match {
+      case "Halo" => dividePointHalo(spatialPartitionedRDD)
+      case "Replicate" => dividePointReplicated(spatialPartitionedRDD, sc.broadcast(objectRDD.getPartitioner.getHaloDedupParams))
+      case _ => dividePoint(spatialPartitionedRDD, dataArray, indexKMeansBc, searchParams)
+    }
+    PersistencePolicy.persist("divide", dividePointRDD, "partition")
     val divideEnd: Long = System.currentTimeMillis()
     println("划分结束----------")
     println("时间：" + (divideEnd - divideStart) / 1000.0 + "秒")
 
-    //获得划分结果数组
-    val flagArray: Array[CDCPoint.Flag] = dividePointRDD.sortBy(point => point._2.getIndexID).map(point => point._2.getFlag).collect()
-    val dcmArray: Array[Double] = dividePointRDD.map(point => point._2.getDcmValue).collect()
-    dcmThreshold = SortUtils.findKthLargest(dcmArray, (dcmArray.length * dcmRatio).toInt)
+    //由DCM值的分布计算阈值，不收集DCM值；点的划分在计算可达距离时进行
+    dcmThreshold = DCMThreshold.threshold(dividePointRDD.flatMap(_.getDcm), dcmRatio, dcmThresholdType)
     println("dcmThreshold:" + dcmThreshold)
+    val threshold: Double = dcmThreshold
+
+    //获得内部点位图（按indexID）
+    val innerPointsBc: Broadcast[RoaringBitmap] = InnerPointBitmap.broadcast(dividePointRDD, threshold)
     println("构建索引开始----------")
     val reachIndexStart: Long = System.currentTimeMillis()
     //构建边界点索引，用于内部点寻找最近的边界点
-    val borderPointArray: Array[Array[Double]] = dividePointRDD.filter(point => point._2.getFlag == CDCPoint.Flag.Border).map(point => point._2.getCoordinates).collect()
+    val borderPointArray: Array[Array[Double]] = dividePointRDD.flatMap(_.coordinates(threshold, false)).collect()
     val borderIndexKMeansBc: Broadcast[IndexBase] = createBroadcastIndex(borderPointArray)
 
-    //构建内部点索引，用于边界点寻找最近的内部点
-    val innerPointArray: Array[Array[Double]] = dividePointRDD.filter(point => point._2.getFlag == CDCPoint.Flag.Inner).map(point => point._2.getCoordinates).collect()
-    val innerIndexKMeansBc: Broadcast[IndexBase] = createBroadcastIndex(innerPointArray)
+    //构建内部点索引，用于边界点寻找最近的内部点，innerIds为索引中每个点的indexID
+    val innerPoints: Array[(Array[Array[Double]], Array[Int])] = dividePointRDD.map(block => (block.coordinates(threshold, true), block.innerIndexIds(threshold))).collect()
+    val innerIndexKMeansBc: Broadcast[IndexBase] = createBroadcastIndex(innerPoints.flatMap(_._1))
+    val innerIdsBc: Broadcast[Array[Int]] = sc.broadcast(innerPoints.flatMap(_._2))
     val reachIndexEnd: Long = System.currentTimeMillis()
     println("构建索引结束----------")
     println("时间：" + (reachIndexEnd - reachIndexStart) / 1000.0 + "秒")
@@ -954,8 +876,8 @@ object HKCDC_parallel_v2 {
     //计算内部点的可达距离
     println("计算可达距离开始----------")
     val reachDistanceStart: Long = System.currentTimeMillis()
-    val reachPartitionedRDD: RDD[(Int, CDCPoint)] = calculateReachDistance(dividePointRDD, flagArray, borderIndexKMeansBc, innerIndexKMeansBc)
-    persistRDD(reachPartitionedRDD)
+    val reachPartitionedRDD: RDD[CDCPartitionBlock] = calculateReachDistance(dividePointRDD, innerPointsBc, threshold, borderIndexKMeansBc, innerIndexKMeansBc, innerIdsBc)
+    PersistencePolicy.persist("reach", reachPartitionedRDD, "divide")
     val reachDistanceEnd: Long = System.currentTimeMillis()
     println("计算可达距离结束----------")
     println("时间：" + (reachDistanceEnd - reachDistanceStart) / 1000.0 + "秒")
@@ -963,28 +885,22 @@ object HKCDC_parallel_v2 {
     //根据距离可达原则在分区内连接内部点
     println("分区内连接内部点开始----------")
     val connectInnerPointStart: Long = System.currentTimeMillis()
-    val clusterInnerPointRDD: RDD[(Int, ListBuffer[CDCPoint])] = connectInnerPointInPartition(reachPartitionedRDD.filter((point: (Int, CDCPoint)) => point._2.getFlag == CDCPoint.Flag.Inner))
+    val connectionBlockRDD: RDD[PartitionConnectionBlock] = connectInnerPointInPartition(reachPartitionedRDD)
     val connectInnerPointEnd: Long = System.currentTimeMillis()
     println("分区内连接内部点结束----------")
     println("时间：" + (connectInnerPointEnd - connectInnerPointStart) / 1000.0 + "秒")
 
     println("分区间连接内部点开始----------")
     val connectInnerPointBStart: Long = System.currentTimeMillis()
-    val clusterInnerPointArray: Array[(Int, ListBuffer[CDCPoint])] = connectInnerPointBetweenPartition(clusterInnerPointRDD)
+    val clusterInnerPointRDD: RDD[CDCPartitionBlock] = connectInnerPointBetweenPartition(connectionBlockRDD, reachPartitionedRDD)
     val connectInnerPointBEnd: Long = System.currentTimeMillis()
     println("分区间连接内部点结束----------")
     println("时间：" + (connectInnerPointBEnd - connectInnerPointBStart) / 1000.0 + "秒")
 
     println("标记边界点开始----------")
     val labelBoderPointStart: Long = System.currentTimeMillis()
-    val clusterInnerPoint: Array[CDCPoint] = clusterInnerPointArray.flatMap(_._2)
-    val borderPoint: Array[CDCPoint] = reachPartitionedRDD.filter((point: (Int, CDCPoint)) => point._2.getFlag == CDCPoint.Flag.Border).map(_._2).collect()
-    val clusterArray: Array[CDCPoint] = (clusterInnerPoint ++ borderPoint).sortBy(point => point.getIndexID)
-    clusterArray.foreach((point: CDCPoint) => {
-      if (point.getFlag == CDCPoint.Flag.Border) {
-        point.setClusterID(clusterArray(point.getClusterID).getClusterID)
-      }
-    })
+    val clusterRDD: RDD[CDCPartitionBlock] = labelBorderPoint(clusterInnerPointRDD)
+    PersistencePolicy.release("reach")
     val labelBoderPointEnd: Long = System.currentTimeMillis()
     println("标记边界点结束----------")
     println("时间：" + (labelBoderPointEnd - labelBoderPointStart) / 1000.0 + "秒")
@@ -992,6 +908,8 @@ object HKCDC_parallel_v2 {
     //画出聚类结果图
     println("画图开始----------")
     var t1: Long = System.currentTimeMillis()
+    //只有画图和评价需要收集全部点
+    val clusterArray: Array[CDCPoint] = partitionBlockToCDCPoint(clusterRDD).collect().sortBy(point => point.getIndexID)
     //    val grids: List[Envelope] = objectRDD.getPartitioner.getGrids.asScala.toList
     //    println("partitionSize:" + objectRDD.spatialPartitionedRDD.partitions.size())
     paintClusterResult(clusterArray.toList, clusterResultOutputLocation)
@@ -1014,6 +932,7 @@ object HKCDC_parallel_v2 {
     println("本地聚类时间：" + (connectInnerPointEnd - partitionStart) / 1000.0 + "秒")
     println("聚类合并和重标记：" + (labelBoderPointEnd - connectInnerPointBStart) / 1000.0 + "秒")
     println("聚类时间：" + (labelBoderPointEnd - partitionStart) / 1000.0 + "秒")
+    PersistencePolicy.report()
     val timeArray: ArrayBuffer[Double] = new ArrayBuffer[Double]()
     timeArray.append((readDataEnd - readDataStart) / 1000.0, (partitionEnd - partitionStart) / 1000.0, (indexStart - partitionEnd) / 1000.0, (indexEnd - indexStart) / 1000.0, (divideEnd - divideStart) / 1000.0, (reachIndexStart - divideEnd) / 1000.0, (reachIndexEnd - reachIndexStart) / 1000.0,
       (reachDistanceEnd - reachDistanceStart) / 1000.0, (connectInnerPointEnd - connectInnerPointStart) / 1000.0, (connectInnerPointBEnd - connectInnerPointBStart) / 1000.0, (labelBoderPointEnd - labelBoderPointStart) / 1000.0, (labelBoderPointEnd - partitionStart) / 1000.0)
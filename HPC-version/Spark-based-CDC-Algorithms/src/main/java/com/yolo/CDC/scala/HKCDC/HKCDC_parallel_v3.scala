@@ -1,12 +1,12 @@
 package com.yolo.CDC.scala.HKCDC
 
 import com.yolo.CDC.java.`type`.{FileDataSplitter, GridType}
-import com.yolo.CDC.java.knnsearch.index.{IndexBase, IndexKMeans, SearchParamsBase}
+import com.yolo.CDC.java.cdc.{DirectionCentrality, InnerPointConnector, PartialClusterSummary}
+import com.yolo.CDC.java.knnsearch.index.{IndexBase, IndexGrid2D, IndexKMeans, SearchParamsBase}
 import com.yolo.CDC.java.knnsearch.metric.{Metric, MetricEuclideanSquared}
 import com.yolo.CDC.java.rdd.{CDCPoint, PointRDD}
 import com.yolo.CDC.java.serde.SedonaKryoRegistrator
 import com.yolo.CDC.java.utils.Evaluation._
-import com.yolo.CDC.java.utils.SortUtils
 import com.yolo.CDC.java.utils.WriteArray.writeArrayToExcel
 import org.apache.hadoop.fs.{FileSystem, Path}
 import org.apache.log4j.{Level, Logger}
@@ -23,6 +23,7 @@ import org.jfree.chart.ui.Layer
 import org.jfree.chart.{ChartFactory, ChartUtils, JFreeChart}
 import org.jfree.data.xy.DefaultXYDataset
 import org.locationtech.jts.geom.{Envelope, Point}
+import org.roaringbitmap.RoaringBitmap
 
 import java.awt.geom.Rectangle2D
 import java.awt.{BasicStroke, Color}
@@ -77,6 +78,12 @@ object HKCDC_parallel_v3 {
   var dcmThreshold: Double = 0.1
   //(Default: 0.1, Recommended: 0.05~0.25)
   var dcmRatio: Double = 0.1
+  //DCM阈值计算方式 (Sketch: t-digest估计, Exact: 分布式精确选择)
+  var dcmThresholdType: String = "Sketch"
+  //驱动端构建KMeans索引使用的线程数
+  var indexBuildThreads: Int = Runtime.getRuntime.availableProcessors()
+  //KMeans索引的随机种子（负数表示随机）
+  var indexSeed: Long = -1L
 
   def main(args: Array[String]): Unit = {
     //配置环境与序列化
@@ -94,7 +101,7 @@ object HKCDC_parallel_v3 {
     PointRDDGridType = GridType.Hilbert
     PointRDDNumPartitions = 80
 
-    //设置近邻搜索参数
+    //设置近邻搜索参数（"Kmeans"，或二维数据用均匀网格索引"Grid2D"）
     PointRDDIndexType = "Kmeans"
 
     //设置io参数
@@ -120,11 +127,6 @@ object HKCDC_parallel_v3 {
     })
   }
 
-  def persistRDD(rdd: RDD[(Int, CDCPoint)]) = {
-    rdd.cache()
-    rdd.checkpoint()
-  }
-
   def deleteExistingDir(directory: String): AnyVal = {
     //获取文件系统
     val filePath: Path = new org.apache.hadoop.fs.Path(directory)
@@ -142,52 +144,41 @@ object HKCDC_parallel_v3 {
 
   def createBroadcastIndex(data: Array[Array[Double]]): Broadcast[IndexBase] = {
     val metric: Metric = new MetricEuclideanSquared()
-    val buildParams: IndexKMeans.BuildParams = new IndexKMeans.BuildParams()
-    val indexKMeans: IndexBase = new IndexKMeans(metric, data, buildParams)
-    indexKMeans.buildIndex()
-    //    println((indexKMeans.objectsIndices).size())
-    sc.broadcast(indexKMeans)
+    PointRDDIndexType match {
+      case "Kmeans" => {
+        val buildParams: IndexKMeans.BuildParams = new IndexKMeans.BuildParams()
+        buildParams.buildThreads = indexBuildThreads
+        buildParams.seed = indexSeed
+        val indexKMeans: IndexBase = new IndexKMeans(metric, data, buildParams)
+        indexKMeans.buildIndex()
+        //    println((indexKMeans.objectsIndices).size())
+        sc.broadcast(indexKMeans)
+      }
+      case "Grid2D" => {
+        val buildParams: IndexGrid2D.BuildParams = new IndexGrid2D.BuildParams()
+        val indexGrid2D: IndexBase = new IndexGrid2D(metric, data, buildParams)
+        indexGrid2D.buildIndex()
+        sc.broadcast(indexGrid2D)
+      }
+    }
   }
 
-  def calculateDCM(dataArray: Array[Array[Double]], point: (Int, CDCPoint), indices: Array[Int]): Double = {
-    val angleArray: Array[Double] = point._2.getAngleArray
-    //计算角度
+  def calculateDCM(dataArray: Array[Array[Double]], point: (Int, CDCPoint), indices: Array[Int], centrality: DirectionCentrality): Double = {
+    //计算角度，角度只写入分区内复用的缓冲区，不随点缓存与传输
     for (j <- 0 until k) {
-      val deltaX: Double = dataArray(indices(j))(0) - point._2.getX
-      val deltaY: Double = dataArray(indices(j))(1) - point._2.getY
-      if (deltaX == 0) {
-        if (deltaY == 0) {
-          angleArray(j) = 0
-        } else if (deltaY > 0) {
-          angleArray(j) = math.Pi / 2
-        } else {
-          angleArray(j) = 3 * math.Pi / 2
-        }
-      } else if (deltaX > 0) {
-        if (math.atan(deltaY / deltaX) >= 0) {
-          angleArray(j) = math.atan(deltaY / deltaX)
-        } else {
-          angleArray(j) = 2 * math.Pi + math.atan(deltaY / deltaX)
-        }
-      } else {
-        angleArray(j) = math.Pi + math.atan(deltaY / deltaX)
-      }
+      centrality.setAngle(j, dataArray(indices(j))(0) - point._2.getX, dataArray(indices(j))(1) - point._2.getY)
     }
+    point._2.setAngleArray(null)
 
     //计算标准化DCM
-    val angleOrder: Array[Double] = angleArray.sorted
-    point._2.setAngleArray(angleOrder)
-    var dcmValue: Double = 0
-    for (j <- 1 until k - 1) {
-      dcmValue += math.pow(angleOrder(j + 1) - angleOrder(j) - 2 * math.Pi / (k - 1), 2)
-    }
-    dcmValue += math.pow(angleOrder(1) - angleOrder(k - 1) + 2 * math.Pi - 2 * math.Pi / (k - 1), 2)
-    dcmValue /= ((k - 2) * 4 * math.pow(math.Pi, 2) / (k - 1))
+    val dcmValue: Double = centrality.dcm()
     point._2.setDcmValue(dcmValue)
     dcmValue
   }
 
   class PartitionIterator(iter: Iterator[(Int, CDCPoint)], dataArray: Array[Array[Double]], index: Broadcast[IndexBase], searchParams: SearchParamsBase) extends Iterator[(Int, CDCPoint)] {
+    private val centrality: DirectionCentrality = new DirectionCentrality(k)
+
     override def hasNext: Boolean = {
       iter.hasNext
     }
@@ -202,7 +193,7 @@ object HKCDC_parallel_v3 {
       point._2.setNeighborsIndexID(indices)
       point._2.setNeighborsDistance(distances)
       //计算DCM值
-      calculateDCM(dataArray, point, indices)
+      calculateDCM(dataArray, point, indices, centrality)
       point
     }
   }
@@ -211,30 +202,21 @@ object HKCDC_parallel_v3 {
     rdd.mapPartitions(iter => new PartitionIterator(iter, dataArray, index, searchParams))
   }
 
-  class PartitionIterator2(iter: Iterator[(Int, CDCPoint)],dcmThreshold:Broadcast[Double]) extends Iterator[(Int, CDCPoint)] {
-    override def hasNext: Boolean = {
-      iter.hasNext
-    }
-
-    override def next(): (Int, CDCPoint) = {
-      val point: (Int, CDCPoint) = iter.next()
-      //划分内部点与边界点
-      if (point._2.getDcmValue < dcmThreshold.value) {
-        point._2.setFlag(CDCPoint.Flag.Inner)
-      } else {
-        point._2.setFlag(CDCPoint.Flag.Border)
-      }
-      point
-    }
+  def flagOf(dcmValue: Double, dcmThreshold: Double): CDCPoint.Flag = {
+    if (dcmValue < dcmThreshold) CDCPoint.Flag.Inner else CDCPoint.Flag.Border
   }
 
-  class PartitionIterator3(iter: Iterator[(Int, CDCPoint)], flagArray: Array[CDCPoint.Flag], index1: Broadcast[IndexBase], index2: Broadcast[IndexBase]) extends Iterator[(Int, CDCPoint)] {
+  class PartitionIterator3(iter: Iterator[(Int, CDCPoint)], innerPoints: Broadcast[RoaringBitmap], dcmThreshold: Double, index1: Broadcast[IndexBase], index2: Broadcast[IndexBase], releaseNeighbors: Boolean) extends Iterator[(Int, CDCPoint)] {
+    private val innerPointBitmap: RoaringBitmap = innerPoints.value
+
     override def hasNext: Boolean = {
       iter.hasNext
     }
 
     override def next(): (Int, CDCPoint) = {
       val point: (Int, CDCPoint) = iter.next()
+      //划分内部点与边界点
+      point._2.setFlag(flagOf(point._2.getDcmValue, dcmThreshold))
       val indices: Array[Int] = new Array[Int](1)
       val distances: Array[Double] = new Array[Double](1)
       if (point._2.getFlag == CDCPoint.Flag.Inner) {
@@ -242,10 +224,10 @@ object HKCDC_parallel_v3 {
         val loop: Breaks = new Breaks;
         loop.breakable {
           for (i <- point._2.getNeighborsIndexID) {
-            if (flagArray(i) == CDCPoint.Flag.Border) {
+            if (!innerPointBitmap.contains(i)) {
               distances(0) = point._2.getNeighborsDistance()(count)
               loop.break
-            } else if (flagArray(i) == CDCPoint.Flag.Inner && count == point._2.getNeighborsNum - 1) {
+            } else if (count == point._2.getNeighborsNum - 1) {
               index1.value.knnSearch(point._2.getCoordinates, indices, distances)
             }
             count += 1
@@ -257,10 +239,10 @@ object HKCDC_parallel_v3 {
         val loop: Breaks = new Breaks;
         loop.breakable {
           for (i <- point._2.getNeighborsIndexID) {
-            if (flagArray(i) == CDCPoint.Flag.Inner) {
+            if (innerPointBitmap.contains(i)) {
               point._2.setClusterID(i)
               loop.break
-            } else if (flagArray(i) == CDCPoint.Flag.Border && count == point._2.getNeighborsNum - 1) {
+            } else if (count == point._2.getNeighborsNum - 1) {
               index2.value.knnSearch(point._2.getCoordinates, indices, distances)
               point._2.setClusterID(indices(0))
             }
@@ -268,81 +250,52 @@ object HKCDC_parallel_v3 {
           }
         }
       }
+      if (releaseNeighbors) {
+        //之后的阶段不再需要近邻
+        point._2.setNeighborsIndexID(null)
+        point._2.setNeighborsDistance(null)
+      }
       point
     }
   }
 
-  def calculateReachDistance(rdd: RDD[(Int, CDCPoint)], flagArray: Array[CDCPoint.Flag], index1: Broadcast[IndexBase], index2: Broadcast[IndexBase]): RDD[(Int, CDCPoint)] = {
-    rdd.mapPartitions(iter => new PartitionIterator3(iter, flagArray, index1, index2))
+  def calculateReachDistance(rdd: RDD[(Int, CDCPoint)], innerPoints: Broadcast[RoaringBitmap], dcmThreshold: Double, index1: Broadcast[IndexBase], index2: Broadcast[IndexBase]): RDD[(Int, CDCPoint)] = {
+    //序列化缓存时每次读取缓存都得到新的对象，此时才能丢弃缓存中的点的近邻
+    val releaseNeighbors: Boolean = !PersistencePolicy.storageLevel("divide").deserialized
+    rdd.mapPartitions(iter => new PartitionIterator3(iter, innerPoints, dcmThreshold, index1, index2, releaseNeighbors))
   }
 
   def connectInnerPointInPartition(rdd: RDD[(Int, CDCPoint)]): RDD[(Int, ListBuffer[CDCPoint])] = {
     rdd.mapPartitions((partition: Iterator[(Int, CDCPoint)]) => {
-      val pointList: List[(Int, CDCPoint)] = partition.toList.sortBy(point => point._2.getReachDistance).reverse
-      val clusterPointList: List[(Int, ListBuffer[CDCPoint])] = pointList.map((point: (Int, CDCPoint)) => {
-        if (point._2.getFlag == CDCPoint.Flag.Inner && (!point._2.isVisited)) {
-          val reachPoint: Iterable[(Int, CDCPoint)] = pointList.view.filter(other => {
-            math.sqrt(point._2.getDistanceSquared(other._2)) <= math.sqrt(point._2.getReachDistance) + math.sqrt(other._2.getReachDistance)
-          })
-          val clusterID: Int = point._2.getIndexID
-          point._2.setClusterID(clusterID)
-          val allReachPoint: mutable.Queue[Iterable[(Int, CDCPoint)]] = mutable.Queue(reachPoint)
-          while (allReachPoint.nonEmpty) {
-            // 返回队列的第一个元素 并且删除
-            allReachPoint.dequeue().foreach((point: (Int, CDCPoint)) => {
-              if (point._2.getFlag == CDCPoint.Flag.Inner && (!point._2.isVisited)) { //如果点没有访问过
-                point._2.setVisited(true)
-                point._2.setClusterID(clusterID)
-                val moreReachPoint: Iterable[(Int, CDCPoint)] = pointList.view.filter(other => {
-                  math.sqrt(point._2.getDistanceSquared(other._2)) <= math.sqrt(point._2.getReachDistance) + math.sqrt(other._2.getReachDistance)
-                })
-                allReachPoint.enqueue(moreReachPoint)
-              }
-            })
-          }
+      val pointList: Array[(Int, CDCPoint)] = partition.toArray.sortBy(point => point._2.getReachDistance).reverse
+      //按可达距离从大到小的顺序从内部点开始广度优先扩展，用网格查询可达圆相交的点
+      val innerIds: Array[Int] = pointList.indices.filter(i => pointList(i)._2.getFlag == CDCPoint.Flag.Inner).toArray
+      val component: Array[Int] = InnerPointConnector.components(pointList.map(_._2.getCoordinates), innerIds, pointList.map(_._2.getReachDistance))
+      pointList.indices.iterator.map(i => {
+        if (component(i) >= 0) {
+          pointList(i)._2.setClusterID(pointList(component(i))._2.getIndexID)
         }
-        (point._2.getClusterID, ListBuffer(point._2))
+        (pointList(i)._2.getClusterID, ListBuffer(pointList(i)._2))
       })
-      clusterPointList.iterator
     })
   }
 
-  def connectInnerPointBetweenPartition(rdd: RDD[(Int, ListBuffer[CDCPoint])]): Array[(Int, ListBuffer[CDCPoint])] = {
-    val clusterInnerPointListRDD: RDD[(Int, ListBuffer[CDCPoint])] = rdd.reduceByKey((point1, point2) => point1 ++ point2)
-    val clusterInnerPointArray: Array[(Int, ListBuffer[CDCPoint])] = clusterInnerPointListRDD.collect()
-    clusterInnerPointArray.foldLeft(-1)((cluster: Int, pointList: (Int, ListBuffer[CDCPoint])) => {
-      if (pointList._2.last.getClusterID >= 0) {
-        val point1: CDCPoint = pointList._2.sortBy((point: CDCPoint) => point.getReachDistance).last
-        for (point <- pointList._2) {
-          point.setClusterID(cluster)
-        }
-        val reachPointList: Iterable[(Int, ListBuffer[CDCPoint])] = clusterInnerPointArray.view.filter(other => {
-          val otherPoint: CDCPoint = other._2.sortBy((point: CDCPoint) => point.getReachDistance).last
-          math.sqrt(point1.getDistanceSquared(otherPoint)) <= math.sqrt(point1.getReachDistance) + math.sqrt(otherPoint.getReachDistance)
-        })
-        val allReachPointList: mutable.Queue[Iterable[(Int, ListBuffer[CDCPoint])]] = mutable.Queue(reachPointList)
-        while (allReachPointList.nonEmpty) {
-          // 返回队列的第一个元素 并且删除
-          allReachPointList.dequeue().foreach((pointList: (Int, ListBuffer[CDCPoint])) => {
-            if (pointList._2.last.getClusterID >= 0) { //如果点没有访问过
-              val point2: CDCPoint = pointList._2.sortBy((point: CDCPoint) => point.getReachDistance).last
-              for (point <- pointList._2) {
-                point.setClusterID(cluster)
-              }
-              val morePointList: Iterable[(Int, ListBuffer[CDCPoint])] = clusterInnerPointArray.view.filter(other => {
-                val otherPoint: CDCPoint = other._2.sortBy((point: CDCPoint) => point.getReachDistance).last
-                math.sqrt(point2.getDistanceSquared(otherPoint)) <= math.sqrt(point2.getReachDistance) + math.sqrt(otherPoint.getReachDistance)
-              })
-              allReachPointList.enqueue(morePointList)
-            }
-          })
-        }
-        cluster - 1
-      } else {
-        cluster
-      }
+  def connectInnerPointBetweenPartition(rdd: RDD[(Int, ListBuffer[CDCPoint])]): RDD[CDCPoint] = {
+    rdd.persist(StorageLevel.MEMORY_ONLY)
+    //每个分区的局部簇只发送摘要（代表点、最大可达距离、包络、点数）到driver端合并
+    val summaries: Array[PartialClusterSummary] = rdd.mapPartitionsWithIndex((partitionId, iter) => {
+      iter.map(pointList => (pointList._1, PartialClusterSummary.of(pointList._2.head, partitionId)))
+    }).reduceByKey((summary1, summary2) => PartialClusterSummary.merge(summary1, summary2)).map(_._2).collect()
+    val labels: Array[Int] = PartialClusterSummary.label(summaries)
+    val labelsBc: Broadcast[Map[Int, Int]] = sc.broadcast(summaries.map(_.getClusterId).zip(labels).toMap)
+    val clusterInnerPointRDD: RDD[CDCPoint] = rdd.flatMap(_._2).map(point => {
+      point.setClusterID(labelsBc.value(point.getClusterID))
+      point
     })
-    clusterInnerPointArray
+    clusterInnerPointRDD.persist(StorageLevel.MEMORY_ONLY)
+    clusterInnerPointRDD.count()
+    rdd.unpersist()
+    clusterInnerPointRDD
   }
 
   def evaluateCluster(array: Array[CDCPoint]) = {
@@ -423,6 +376,7 @@ object HKCDC_parallel_v3 {
   def csvCDCCluster(searchParams: SearchParamsBase) = {
     deleteExistingDir("CheckPointDir")
     sc.setCheckpointDir("CheckPointDir")
+    PersistencePolicy.reset()
     PointRDDSplitter = FileDataSplitter.COMMA
 
     //读取数据
@@ -444,7 +398,7 @@ object HKCDC_parallel_v3 {
     //转换数据结构，并标记index
     val spatialPartitionedRDD: RDD[(Int, CDCPoint)] = pointToCDCPoint(objectRDD.spatialPartitionedRDD)
     //性能优化——数据持久化
-    persistRDD(spatialPartitionedRDD)
+    PersistencePolicy.persist("partition", spatialPartitionedRDD)
     //    deleteExistingDir(spatialPartitionedRDDOutputLocation)
     //    spatialPartitionedRDD.saveAsTextFile(spatialPartitionedRDDOutputLocation)
     // 获得数组数据，用于构建索引
@@ -458,32 +412,29 @@ object HKCDC_parallel_v3 {
     println("构建索引结束----------")
     println("时间：" + (indexEnd - indexStart) / 1000.0 + "秒")
 
-    //对分区中每个数据进行近邻搜索并计算其DCM值，根据DCM阈值划分边界点与内部点
+    //对分区中每个数据进行近邻搜索并计算其DCM值，在集群上计算DCM阈值，划分在计算可达距离时进行
     println("划分开始----------")
     val divideStart: Long = System.currentTimeMillis()
-    val calculateDCMRDD: RDD[(Int, CDCPoint)] = calculateDCMs(spatialPartitionedRDD, dataArray, indexKMeansBc, searchParams)
-    persistRDD(calculateDCMRDD)
-    val dcmArray: Array[Double] = calculateDCMRDD.map(point => point._2.getDcmValue).collect()
-    dcmThreshold = SortUtils.findKthLargest(dcmArray, (dcmArray.length * dcmRatio).toInt)
-    val dcmThresholdBc: Broadcast[Double] = sc.broadcast(dcmThreshold)
+    val dividePointRDD: RDD[(Int, CDCPoint)] = calculateDCMs(spatialPartitionedRDD, dataArray, indexKMeansBc, searchParams)
+    PersistencePolicy.persist("divide", dividePointRDD, "partition")
+    dcmThreshold = DCMThreshold.threshold(dividePointRDD.map(point => point._2.getDcmValue), dcmRatio, dcmThresholdType)
     println("dcmThreshold:" + dcmThreshold)
-    val dividePointRDD: RDD[(Int, CDCPoint)] = calculateDCMRDD.mapPartitions(iter => new PartitionIterator2(iter,dcmThresholdBc))
-    persistRDD(dividePointRDD)
+    val threshold: Double = dcmThreshold
     val divideEnd: Long = System.currentTimeMillis()
     println("划分结束----------")
     println("时间：" + (divideEnd - divideStart) / 1000.0 + "秒")
 
-    //获得划分结果数组
-    val flagArray: Array[CDCPoint.Flag] = dividePointRDD.sortBy(point => point._2.getIndexID).map(point => point._2.getFlag).collect()
+    //获得内部点位图（按indexID）
+    val innerPointsBc: Broadcast[RoaringBitmap] = InnerPointBitmap.broadcast(dividePointRDD, point => flagOf(point.getDcmValue, threshold) == CDCPoint.Flag.Inner)
 
     println("构建索引开始----------")
     val reachIndexStart: Long = System.currentTimeMillis()
     //构建边界点索引，用于内部点寻找最近的边界点
-    val borderPointArray: Array[Array[Double]] = dividePointRDD.filter(point => point._2.getFlag == CDCPoint.Flag.Border).map(point => point._2.getCoordinates).collect()
+    val borderPointArray: Array[Array[Double]] = dividePointRDD.filter(point => flagOf(point._2.getDcmValue, threshold) == CDCPoint.Flag.Border).map(point => point._2.getCoordinates).collect()
     val borderIndexKMeansBc: Broadcast[IndexBase] = createBroadcastIndex(borderPointArray)
 
     //构建内部点索引，用于边界点寻找最近的内部点
-    val innerPointArray: Array[Array[Double]] = dividePointRDD.filter(point => point._2.getFlag == CDCPoint.Flag.Inner).map(point => point._2.getCoordinates).collect()
+    val innerPointArray: Array[Array[Double]] = dividePointRDD.filter(point => flagOf(point._2.getDcmValue, threshold) == CDCPoint.Flag.Inner).map(point => point._2.getCoordinates).collect()
     val innerIndexKMeansBc: Broadcast[IndexBase] = createBroadcastIndex(innerPointArray)
     val reachIndexEnd: Long = System.currentTimeMillis()
     println("构建索引结束----------")
@@ -492,8 +443,8 @@ object HKCDC_parallel_v3 {
     //计算内部点的可达距离
     println("计算可达距离开始----------")
     val reachDistanceStart: Long = System.currentTimeMillis()
-    val reachPartitionedRDD: RDD[(Int, CDCPoint)] = calculateReachDistance(dividePointRDD, flagArray, borderIndexKMeansBc, innerIndexKMeansBc)
-    persistRDD(reachPartitionedRDD)
+    val reachPartitionedRDD: RDD[(Int, CDCPoint)] = calculateReachDistance(dividePointRDD, innerPointsBc, threshold, borderIndexKMeansBc, innerIndexKMeansBc)
+    PersistencePolicy.persist("reach", reachPartitionedRDD, "divide")
     val reachDistanceEnd: Long = System.currentTimeMillis()
     println("计算可达距离结束----------")
     println("时间：" + (reachDistanceEnd - reachDistanceStart) / 1000.0 + "秒")
@@ -508,15 +459,16 @@ object HKCDC_parallel_v3 {
 
     println("分区间连接内部点开始----------")
     val connectInnerPointBStart: Long = System.currentTimeMillis()
-    val clusterInnerPointArray: Array[(Int, ListBuffer[CDCPoint])] = connectInnerPointBetweenPartition(clusterInnerPointRDD)
+    val mergedInnerPointRDD: RDD[CDCPoint] = connectInnerPointBetweenPartition(clusterInnerPointRDD)
     val connectInnerPointBEnd: Long = System.currentTimeMillis()
     println("分区间连接内部点结束----------")
     println("时间：" + (connectInnerPointBEnd - connectInnerPointBStart) / 1000.0 + "秒")
 
     println("标记边界点开始----------")
     val labelBoderPointStart: Long = System.currentTimeMillis()
-    val clusterInnerPoint: Array[CDCPoint] = clusterInnerPointArray.flatMap(_._2)
+    val clusterInnerPoint: Array[CDCPoint] = mergedInnerPointRDD.collect()
     val borderPoint: Array[CDCPoint] = reachPartitionedRDD.filter((point: (Int, CDCPoint)) => point._2.getFlag == CDCPoint.Flag.Border).map(_._2).collect()
+    PersistencePolicy.release("reach")
     val clusterArray: Array[CDCPoint] = (clusterInnerPoint ++ borderPoint).sortBy(point => point.getIndexID)
     clusterArray.foreach((point: CDCPoint) => {
       if (point.getFlag == CDCPoint.Flag.Border) {
@@ -552,6 +504,7 @@ object HKCDC_parallel_v3 {
     println("本地聚类时间：" + (connectInnerPointEnd - partitionStart) / 1000.0 + "秒")
     println("聚类合并和重标记：" + (labelBoderPointEnd - connectInnerPointBStart) / 1000.0 + "秒")
     println("聚类时间：" + (labelBoderPointEnd - partitionStart) / 1000.0 + "秒")
+    PersistencePolicy.report()
     val timeArray: ArrayBuffer[Double] = new ArrayBuffer[Double]()
     //    timeArray.append(readDataStart, readDataEnd, partitionStart, partitionEnd, indexStart, indexEnd, divideStart, divideEnd,
     //      reachDistanceStart, reachDistanceEnd, connectInnerPointStart, connectInnerPointEnd, connectInnerPointBStart, connectInnerPointBEnd, labelBoderPointStart, labelBoderPointEnd)
@@ -563,6 +516,7 @@ object HKCDC_parallel_v3 {
   def txtCDCCluster(searchParams: SearchParamsBase) = {
     deleteExistingDir("CheckPointDir")
     sc.setCheckpointDir("CheckPointDir")
+    PersistencePolicy.reset()
     PointRDDSplitter = FileDataSplitter.TAB
 
     //读取数据
@@ -584,7 +538,7 @@ object HKCDC_parallel_v3 {
     //转换数据结构，并标记index
     val spatialPartitionedRDD: RDD[(Int, CDCPoint)] = pointToCDCPoint(objectRDD.spatialPartitionedRDD)
     //性能优化——数据持久化
-    persistRDD(spatialPartitionedRDD)
+    PersistencePolicy.persist("partition", spatialPartitionedRDD)
     //    deleteExistingDir(spatialPartitionedRDDOutputLocation)
     //    spatialPartitionedRDD.saveAsTextFile(spatialPartitionedRDDOutputLocation)
     // 获得数组数据，用于构建索引
@@ -598,32 +552,29 @@ object HKCDC_parallel_v3 {
     println("构建索引结束----------")
     println("时间：" + (indexEnd - indexStart) / 1000.0 + "秒")
 
-    //对分区中每个数据进行近邻搜索并计算其DCM值，根据DCM阈值划分边界点与内部点
+    //对分区中每个数据进行近邻搜索并计算其DCM值，在集群上计算DCM阈值，划分在计算可达距离时进行
     println("划分开始----------")
     val divideStart: Long = System.currentTimeMillis()
-    val calculateDCMRDD: RDD[(Int, CDCPoint)] = calculateDCMs(spatialPartitionedRDD, dataArray, indexKMeansBc, searchParams)
-    persistRDD(calculateDCMRDD)
-    val dcmArray: Array[Double] = calculateDCMRDD.map(point => point._2.getDcmValue).collect()
-    dcmThreshold = SortUtils.findKthLargest(dcmArray, (dcmArray.length * dcmRatio).toInt)
-    val dcmThresholdBc: Broadcast[Double] = sc.broadcast(dcmThreshold)
+    val dividePointRDD: RDD[(Int, CDCPoint)] = calculateDCMs(spatialPartitionedRDD, dataArray, indexKMeansBc, searchParams)
+    PersistencePolicy.persist("divide", dividePointRDD, "partition")
+    dcmThreshold = DCMThreshold.threshold(dividePointRDD.map(point => point._2.getDcmValue), dcmRatio, dcmThresholdType)
     println("dcmThreshold:" + dcmThreshold)
-    val dividePointRDD: RDD[(Int, CDCPoint)] = calculateDCMRDD.mapPartitions(iter => new PartitionIterator2(iter,dcmThresholdBc))
-    persistRDD(dividePointRDD)
+    val threshold: Double = dcmThreshold
     val divideEnd: Long = System.currentTimeMillis()
     println("划分结束----------")
     println("时间：" + (divideEnd - divideStart) / 1000.0 + "秒")
 
-    //获得划分结果数组
-    val flagArray: Array[CDCPoint.Flag] = dividePointRDD.sortBy(point => point._2.getIndexID).map(point => point._2.getFlag).collect()
+    //获得内部点位图（按indexID）
+    val innerPointsBc: Broadcast[RoaringBitmap] = InnerPointBitmap.broadcast(dividePointRDD, point => flagOf(point.getDcmValue, threshold) == CDCPoint.Flag.Inner)
 
     println("构建索引开始----------")
     val reachIndexStart: Long = System.currentTimeMillis()
     //构建边界点索引，用于内部点寻找最近的边界点
-    val borderPointArray: Array[Array[Double]] = dividePointRDD.filter(point => point._2.getFlag == CDCPoint.Flag.Border).map(point => point._2.getCoordinates).collect()
+    val borderPointArray: Array[Array[Double]] = dividePointRDD.filter(point => flagOf(point._2.getDcmValue, threshold) == CDCPoint.Flag.Border).map(point => point._2.getCoordinates).collect()
     val borderIndexKMeansBc: Broadcast[IndexBase] = createBroadcastIndex(borderPointArray)
 
     //构建内部点索引，用于边界点寻找最近的内部点
-    val innerPointArray: Array[Array[Double]] = dividePointRDD.filter(point => point._2.getFlag == CDCPoint.Flag.Inner).map(point => point._2.getCoordinates).collect()
+    val innerPointArray: Array[Array[Double]] = dividePointRDD.filter(point => flagOf(point._2.getDcmValue, threshold) == CDCPoint.Flag.Inner).map(point => point._2.getCoordinates).collect()
     val innerIndexKMeansBc: Broadcast[IndexBase] = createBroadcastIndex(innerPointArray)
     val reachIndexEnd: Long = System.currentTimeMillis()
     println("构建索引结束----------")
@@ -632,8 +583,8 @@ object HKCDC_parallel_v3 {
     //计算内部点的可达距离
     println("计算可达距离开始----------")
     val reachDistanceStart: Long = System.currentTimeMillis()
-    val reachPartitionedRDD: RDD[(Int, CDCPoint)] = calculateReachDistance(dividePointRDD, flagArray, borderIndexKMeansBc, innerIndexKMeansBc)
-    persistRDD(reachPartitionedRDD)
+    val reachPartitionedRDD: RDD[(Int, CDCPoint)] = calculateReachDistance(dividePointRDD, innerPointsBc, threshold, borderIndexKMeansBc, innerIndexKMeansBc)
+    PersistencePolicy.persist("reach", reachPartitionedRDD, "divide")
     val reachDistanceEnd: Long = System.currentTimeMillis()
     println("计算可达距离结束----------")
     println("时间：" + (reachDistanceEnd - reachDistanceStart) / 1000.0 + "秒")
@@ -648,15 +599,16 @@ object HKCDC_parallel_v3 {
 
     println("分区间连接内部点开始----------")
     val connectInnerPointBStart: Long = System.currentTimeMillis()
-    val clusterInnerPointArray: Array[(Int, ListBuffer[CDCPoint])] = connectInnerPointBetweenPartition(clusterInnerPointRDD)
+    val mergedInnerPointRDD: RDD[CDCPoint] = connectInnerPointBetweenPartition(clusterInnerPointRDD)
     val connectInnerPointBEnd: Long = System.currentTimeMillis()
     println("分区间连接内部点结束----------")
     println("时间：" + (connectInnerPointBEnd - connectInnerPointBStart) / 1000.0 + "秒")
 
     println("标记边界点开始----------")
     val labelBoderPointStart: Long = System.currentTimeMillis()
-    val clusterInnerPoint: Array[CDCPoint] = clusterInnerPointArray.flatMap(_._2)
+    val clusterInnerPoint: Array[CDCPoint] = mergedInnerPointRDD.collect()
     val borderPoint: Array[CDCPoint] = reachPartitionedRDD.filter((point: (Int, CDCPoint)) => point._2.getFlag == CDCPoint.Flag.Border).map(_._2).collect()
+    PersistencePolicy.release("reach")
     val clusterArray: Array[CDCPoint] = (clusterInnerPoint ++ borderPoint).sortBy(point => point.getIndexID)
     clusterArray.foreach((point: CDCPoint) => {
       if (point.getFlag == CDCPoint.Flag.Border) {
@@ -692,6 +644,7 @@ object HKCDC_parallel_v3 {
     println("本地聚类时间：" + (connectInnerPointEnd - partitionStart) / 1000.0 + "秒")
     println("聚类合并和重标记：" + (labelBoderPointEnd - connectInnerPointBStart) / 1000.0 + "秒")
     println("聚类时间：" + (labelBoderPointEnd - partitionStart) / 1000.0 + "秒")
+    PersistencePolicy.report()
     val timeArray: ArrayBuffer[Double] = new ArrayBuffer[Double]()
     timeArray.append((readDataEnd - readDataStart) / 1000.0, (partitionEnd - partitionStart) / 1000.0, (indexStart - partitionEnd) / 1000.0, (indexEnd - indexStart) / 1000.0, (divideEnd - divideStart) / 1000.0, (reachIndexStart - divideEnd) / 1000.0, (reachIndexEnd - reachIndexStart) / 1000.0,
       (reachDistanceEnd - reachDistanceStart) / 1000.0, (connectInnerPointEnd - connectInnerPointStart) / 1000.0, (connectInnerPointBEnd - connectInnerPointBStart) / 1000.0, (labelBoderPointEnd - labelBoderPointStart) / 1000.0, (labelBoderPointEnd - partitionStart) / 1000.0)
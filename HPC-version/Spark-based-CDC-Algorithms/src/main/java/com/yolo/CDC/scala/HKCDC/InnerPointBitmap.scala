@@ -0,0 +1,57 @@
+package com.yolo.CDC.scala.HKCDC
+
+import com.yolo.CDC.java.cdc.CDCPartitionBlock
+import com.yolo.CDC.java.rdd.CDCPoint
+import org.apache.spark.SparkContext
+import org.apache.spark.broadcast.Broadcast
+import org.apache.spark.rdd.RDD
+import org.roaringbitmap.RoaringBitmap
+
+/**
+ * 内部点的压缩位图：位图中包含内部点的indexID，不在位图中的点为边界点
+ * 每个分区构建局部位图，用treeReduce按位或合并，再显式广播一次
+ * 代替按indexID全局排序后收集的Array[CDCPoint.Flag]，无需shuffle，每个任务也不再复制一份标记数组
+ */
+object InnerPointBitmap {
+
+  def build(rdd: RDD[(Int, CDCPoint)], isInner: CDCPoint => Boolean): RoaringBitmap = {
+    union(rdd.mapPartitions(iter => {
+      val partitionBitmap: RoaringBitmap = new RoaringBitmap()
+      iter.foreach(point => if (isInner(point._2)) partitionBitmap.add(point._2.getIndexID))
+      Iterator(partitionBitmap)
+    }))
+  }
+
+  /**
+   * 分区块版本：DCM值小于阈值的点为内部点
+   */
+  def build(rdd: RDD[CDCPartitionBlock], dcmThreshold: Double): RoaringBitmap = {
+    union(rdd.map(block => RoaringBitmap.bitmapOf(block.innerIndexIds(dcmThreshold): _*)))
+  }
+
+  /**
+   * 按位或合并各分区的位图
+   */
+  def union(rdd: RDD[RoaringBitmap]): RoaringBitmap = {
+    val bitmap: RoaringBitmap = rdd.treeReduce((bitmap1, bitmap2) => {
+      bitmap1.or(bitmap2)
+      bitmap1
+    })
+    //内部点通常占大多数且indexID连续，转为run容器后体积更小
+    bitmap.runOptimize()
+    bitmap
+  }
+
+  def broadcast(rdd: RDD[(Int, CDCPoint)], isInner: CDCPoint => Boolean): Broadcast[RoaringBitmap] = {
+    broadcast(rdd.sparkContext, build(rdd, isInner))
+  }
+
+  def broadcast(rdd: RDD[CDCPartitionBlock], dcmThreshold: Double): Broadcast[RoaringBitmap] = {
+    broadcast(rdd.sparkContext, build(rdd, dcmThreshold))
+  }
+
+  private def broadcast(sc: SparkContext, bitmap: RoaringBitmap): Broadcast[RoaringBitmap] = {
+    println("内部点位图：" + bitmap.getLongCardinality + "个内部点，" + bitmap.getSizeInBytes + "字节")
+    sc.broadcast(bitmap)
+  }
+}
@@ -1,7 +1,8 @@
 package com.yolo.CDC.scala.HKCDC
 
 import com.yolo.CDC.java.`type`.{FileDataSplitter, GridType}
-import com.yolo.CDC.java.knnsearch.index.{IndexBase, IndexKMeans, SearchParamsBase}
+import com.yolo.CDC.java.cdc.{DirectionCentrality, InnerPointConnector, PartialClusterSummary}
+import com.yolo.CDC.java.knnsearch.index.{IndexBase, IndexGrid2D, IndexKMeans, SearchParamsBase}
 import com.yolo.CDC.java.knnsearch.metric.{Metric, MetricEuclideanSquared}
 import com.yolo.CDC.java.rdd.{CDCPoint, PointRDD}
 import com.yolo.CDC.java.serde.SedonaKryoRegistrator
@@ -22,6 +23,7 @@ import org.jfree.chart.ui.Layer
 import org.jfree.chart.{ChartFactory, ChartUtils, JFreeChart}
 import org.jfree.data.xy.DefaultXYDataset
 import org.locationtech.jts.geom.{Envelope, Point}
+import org.roaringbitmap.RoaringBitmap
 
 import java.awt.geom.Rectangle2D
 import java.awt.{BasicStroke, Color}
@@ -79,6 +81,10 @@ object KCDC_parallel_v2 {
   var dcmThreshold: Double = 0.1
   //(Default: 0.1, Recommended: 0.05~0.25)
   var dcmRatio: Double = 0.1
+  //驱动端构建KMeans索引使用的线程数
+  var indexBuildThreads: Int = Runtime.getRuntime.availableProcessors()
+  //KMeans索引的随机种子（负数表示随机）
+  var indexSeed: Long = -1L
 
   def main(args: Array[String]): Unit = {
     //配置环境与序列化
@@ -95,7 +101,7 @@ object KCDC_parallel_v2 {
     PointRDDGridType = GridType.None
     PointRDDNumPartitions = 80
 
-    //设置近邻搜索参数
+    //设置近邻搜索参数（"Kmeans"，或二维数据用均匀网格索引"Grid2D"）
     PointRDDIndexType = "Kmeans"
 
     //设置io参数
@@ -123,11 +129,6 @@ object KCDC_parallel_v2 {
     })
   }
 
-  def persistRDD(rdd: RDD[(Int, CDCPoint)]) = {
-    rdd.cache()
-    rdd.checkpoint()
-  }
-
   def deleteExistingDir(directory: String): AnyVal = {
     //获取文件系统
     val filePath: Path = new org.apache.hadoop.fs.Path(directory)
@@ -145,47 +146,34 @@ object KCDC_parallel_v2 {
 
   def createBroadcastIndex(data: Array[Array[Double]]): Broadcast[IndexBase] = {
     val metric: Metric = new MetricEuclideanSquared()
-    val buildParams: IndexKMeans.BuildParams = new IndexKMeans.BuildParams()
-    val indexKMeans: IndexBase = new IndexKMeans(metric, data, buildParams)
-    indexKMeans.buildIndex()
-    //    println((indexKMeans.objectsIndices).size())
-    sc.broadcast(indexKMeans)
+    PointRDDIndexType match {
+      case "Kmeans" => {
+        val buildParams: IndexKMeans.BuildParams = new IndexKMeans.BuildParams()
+        buildParams.buildThreads = indexBuildThreads
+        buildParams.seed = indexSeed
+        val indexKMeans: IndexBase = new IndexKMeans(metric, data, buildParams)
+        indexKMeans.buildIndex()
+        //    println((indexKMeans.objectsIndices).size())
+        sc.broadcast(indexKMeans)
+      }
+      case "Grid2D" => {
+        val buildParams: IndexGrid2D.BuildParams = new IndexGrid2D.BuildParams()
+        val indexGrid2D: IndexBase = new IndexGrid2D(metric, data, buildParams)
+        indexGrid2D.buildIndex()
+        sc.broadcast(indexGrid2D)
+      }
+    }
   }
 
   def calculateDCM(dataArray: Array[Array[Double]], point: (Int, CDCPoint), indices: Array[Int]): Double = {
     val angleArray: Array[Double] = point._2.getAngleArray
     //计算角度
     for (j <- 0 until k) {
-      val deltaX: Double = dataArray(indices(j))(0) - point._2.getX
-      val deltaY: Double = dataArray(indices(j))(1) - point._2.getY
-      if (deltaX == 0) {
-        if (deltaY == 0) {
-          angleArray(j) = 0
-        } else if (deltaY > 0) {
-          angleArray(j) = math.Pi / 2
-        } else {
-          angleArray(j) = 3 * math.Pi / 2
-        }
-      } else if (deltaX > 0) {
-        if (math.atan(deltaY / deltaX) >= 0) {
-          angleArray(j) = math.atan(deltaY / deltaX)
-        } else {
-          angleArray(j) = 2 * math.Pi + math.atan(deltaY / deltaX)
-        }
-      } else {
-        angleArray(j) = math.Pi + math.atan(deltaY / deltaX)
-      }
+      angleArray(j) = DirectionCentrality.angle(dataArray(indices(j))(0) - point._2.getX, dataArray(indices(j))(1) - point._2.getY)
     }
 
-    //计算标准化DCM
-    val angleOrder: Array[Double] = angleArray.sorted
-    point._2.setAngleArray(angleOrder)
-    var dcmValue: Double = 0
-    for (j <- 1 until k - 1) {
-      dcmValue += math.pow(angleOrder(j + 1) - angleOrder(j) - 2 * math.Pi / (k - 1), 2)
-    }
-    dcmValue += math.pow(angleOrder(1) - angleOrder(k - 1) + 2 * math.Pi - 2 * math.Pi / (k - 1), 2)
-    dcmValue /= ((k - 2) * 4 * math.pow(math.Pi, 2) / (k - 1))
+    //计算标准化DCM，原地排序后点上保存的即为有序角度
+    val dcmValue: Double = DirectionCentrality.dcm(angleArray)
     point._2.setDcmValue(dcmValue)
     dcmValue
   }
@@ -219,7 +207,9 @@ object KCDC_parallel_v2 {
     rdd.mapPartitions(iter => new PartitionIterator(iter, dataArray, index, searchParams))
   }
 
-  class PartitionIterator_(iter: Iterator[(Int, CDCPoint)], flagArray: Array[CDCPoint.Flag], index1: Broadcast[IndexBase], index2: Broadcast[IndexBase]) extends Iterator[(Int, CDCPoint)] {
+  class PartitionIterator_(iter: Iterator[(Int, CDCPoint)], innerPoints: Broadcast[RoaringBitmap], index1: Broadcast[IndexBase], index2: Broadcast[IndexBase]) extends Iterator[(Int, CDCPoint)] {
+    private val innerPointBitmap: RoaringBitmap = innerPoints.value
+
     override def hasNext: Boolean = {
       iter.hasNext
     }
@@ -233,10 +223,10 @@ object KCDC_parallel_v2 {
         val loop: Breaks = new Breaks;
         loop.breakable {
           for (i <- point._2.getNeighborsIndexID) {
-            if (flagArray(i) == CDCPoint.Flag.Border) {
+            if (!innerPointBitmap.contains(i)) {
               distances(0) = point._2.getNeighborsDistance()(count)
               loop.break
-            } else if (flagArray(i) == CDCPoint.Flag.Inner && count == point._2.getNeighborsNum - 1) {
+            } else if (count == point._2.getNeighborsNum - 1) {
               index1.value.knnSearch(point._2.getCoordinates, indices, distances)
             }
             count += 1
@@ -248,10 +238,10 @@ object KCDC_parallel_v2 {
         val loop: Breaks = new Breaks;
         loop.breakable {
           for (i <- point._2.getNeighborsIndexID) {
-            if (flagArray(i) == CDCPoint.Flag.Inner) {
+            if (innerPointBitmap.contains(i)) {
               point._2.setClusterID(i)
               loop.break
-            } else if (flagArray(i) == CDCPoint.Flag.Border && count == point._2.getNeighborsNum - 1) {
+            } else if (count == point._2.getNeighborsNum - 1) {
               index2.value.knnSearch(point._2.getCoordinates, indices, distances)
               point._2.setClusterID(indices(0))
             }
@@ -263,77 +253,41 @@ object KCDC_parallel_v2 {
     }
   }
 
-  def calculateReachDistance(rdd: RDD[(Int, CDCPoint)], flagArray: Array[CDCPoint.Flag], index1: Broadcast[IndexBase], index2: Broadcast[IndexBase]): RDD[(Int, CDCPoint)] = {
-      rdd.mapPartitions(iter => new PartitionIterator_(iter, flagArray, index1, index2))
+  def calculateReachDistance(rdd: RDD[(Int, CDCPoint)], innerPoints: Broadcast[RoaringBitmap], index1: Broadcast[IndexBase], index2: Broadcast[IndexBase]): RDD[(Int, CDCPoint)] = {
+      rdd.mapPartitions(iter => new PartitionIterator_(iter, innerPoints, index1, index2))
   }
 
   def connectInnerPointInPartition(rdd: RDD[(Int, CDCPoint)]): RDD[(Int, ListBuffer[CDCPoint])] = {
     rdd.mapPartitions((partition: Iterator[(Int, CDCPoint)]) => {
-      val pointList: List[(Int, CDCPoint)] = partition.toList.sortBy(point => point._2.getReachDistance).reverse
-      val clusterPointList: List[(Int, ListBuffer[CDCPoint])] = pointList.map((point: (Int, CDCPoint)) => {
-        if (point._2.getFlag == CDCPoint.Flag.Inner && (!point._2.isVisited)) {
-          val reachPoint: Iterable[(Int, CDCPoint)] = pointList.view.filter(other => {
-            math.sqrt(point._2.getDistanceSquared(other._2)) <= math.sqrt(point._2.getReachDistance) + math.sqrt(other._2.getReachDistance)
-          })
-          val clusterID: Int = point._2.getIndexID
-          point._2.setClusterID(clusterID)
-          val allReachPoint: mutable.Queue[Iterable[(Int, CDCPoint)]] = mutable.Queue(reachPoint)
-          while (allReachPoint.nonEmpty) {
-            // 返回队列的第一个元素 并且删除
-            allReachPoint.dequeue().foreach((point: (Int, CDCPoint)) => {
-              if (point._2.getFlag == CDCPoint.Flag.Inner && (!point._2.isVisited)) { //如果点没有访问过
-                point._2.setVisited(true)
-                point._2.setClusterID(clusterID)
-                val moreReachPoint: Iterable[(Int, CDCPoint)] = pointList.view.filter(other => {
-                  math.sqrt(point._2.getDistanceSquared(other._2)) <= math.sqrt(point._2.getReachDistance) + math.sqrt(other._2.getReachDistance)
-                })
-                allReachPoint.enqueue(moreReachPoint)
-              }
-            })
-          }
+      val pointList: Array[(Int, CDCPoint)] = partition.toArray.sortBy(point => point._2.getReachDistance).reverse
+      //按可达距离从大到小的顺序从内部点开始广度优先扩展，用网格查询可达圆相交的点
+      val innerIds: Array[Int] = pointList.indices.filter(i => pointList(i)._2.getFlag == CDCPoint.Flag.Inner).toArray
+      val component: Array[Int] = InnerPointConnector.components(pointList.map(_._2.getCoordinates), innerIds, pointList.map(_._2.getReachDistance))
+      pointList.indices.iterator.map(i => {
+        if (component(i) >= 0) {
+          pointList(i)._2.setClusterID(pointList(component(i))._2.getIndexID)
         }
-        (point._2.getClusterID, ListBuffer(point._2))
+        (pointList(i)._2.getClusterID, ListBuffer(pointList(i)._2))
       })
-      clusterPointList.iterator
     })
   }
 
-  def connectInnerPointBetweenPartition(rdd: RDD[(Int, ListBuffer[CDCPoint])]): Array[(Int, ListBuffer[CDCPoint])] = {
-    val clusterInnerPointListRDD: RDD[(Int, ListBuffer[CDCPoint])] = rdd.reduceByKey((point1, point2) => point1 ++ point2)
-    val clusterInnerPointArray: Array[(Int, ListBuffer[CDCPoint])] = clusterInnerPointListRDD.collect()
-    clusterInnerPointArray.foldLeft(-1)((cluster: Int, pointList: (Int, ListBuffer[CDCPoint])) => {
-      if (pointList._2.last.getClusterID >= 0) {
-        val point1: CDCPoint = pointList._2.sortBy((point: CDCPoint) => point.getReachDistance).last
-        for (point <- pointList._2) {
-          point.setClusterID(cluster)
-        }
-        val reachPointList: Iterable[(Int, ListBuffer[CDCPoint])] = clusterInnerPointArray.view.filter(other => {
-          val otherPoint: CDCPoint = other._2.sortBy((point: CDCPoint) => point.getReachDistance).last
-          math.sqrt(point1.getDistanceSquared(otherPoint)) <= math.sqrt(point1.getReachDistance) + math.sqrt(otherPoint.getReachDistance)
-        })
-        val allReachPointList: mutable.Queue[Iterable[(Int, ListBuffer[CDCPoint])]] = mutable.Queue(reachPointList)
-        while (allReachPointList.nonEmpty) {
-          // 返回队列的第一个元素 并且删除
-          allReachPointList.dequeue().foreach((pointList: (Int, ListBuffer[CDCPoint])) => {
-            if (pointList._2.last.getClusterID >= 0) { //如果点没有访问过
-              val point2: CDCPoint = pointList._2.sortBy((point: CDCPoint) => point.getReachDistance).last
-              for (point <- pointList._2) {
-                point.setClusterID(cluster)
-              }
-              val morePointList: Iterable[(Int, ListBuffer[CDCPoint])] = clusterInnerPointArray.view.filter(other => {
-                val otherPoint: CDCPoint = other._2.sortBy((point: CDCPoint) => point.getReachDistance).last
-                math.sqrt(point2.getDistanceSquared(otherPoint)) <= math.sqrt(point2.getReachDistance) + math.sqrt(otherPoint.getReachDistance)
-              })
-              allReachPointList.enqueue(morePointList)
-            }
-          })
-        }
-        cluster - 1
-      } else {
-        cluster
-      }
+  def connectInnerPointBetweenPartition(rdd: RDD[(Int, ListBuffer[CDCPoint])]): RDD[CDCPoint] = {
+    rdd.persist(StorageLevel.MEMORY_ONLY)
+    //每个分区的局部簇只发送摘要（代表点、最大可达距离、包络、点数）到driver端合并
+    val summaries: Array[PartialClusterSummary] = rdd.mapPartitionsWithIndex((partitionId, iter) => {
+      iter.map(pointList => (pointList._1, PartialClusterSummary.of(pointList._2.head, partitionId)))
+    }).reduceByKey((summary1, summary2) => PartialClusterSummary.merge(summary1, summary2)).map(_._2).collect()
+    val labels: Array[Int] = PartialClusterSummary.label(summaries)
+    val labelsBc: Broadcast[Map[Int, Int]] = sc.broadcast(summaries.map(_.getClusterId).zip(labels).toMap)
+    val clusterInnerPointRDD: RDD[CDCPoint] = rdd.flatMap(_._2).map(point => {
+      point.setClusterID(labelsBc.value(point.getClusterID))
+      point
     })
-    clusterInnerPointArray
+    clusterInnerPointRDD.persist(StorageLevel.MEMORY_ONLY)
+    clusterInnerPointRDD.count()
+    rdd.unpersist()
+    clusterInnerPointRDD
   }
 
   def paintClusterResult(list: List[CDCPoint], outputPath: String) = {
@@ -506,6 +460,7 @@ object KCDC_parallel_v2 {
   def csvCDCCluster(searchParams: SearchParamsBase) = {
     deleteExistingDir("CheckPointDir")
     sc.setCheckpointDir("CheckPointDir")
+    PersistencePolicy.reset()
     PointRDDSplitter = FileDataSplitter.COMMA
 
     //读取数据
@@ -527,7 +482,7 @@ object KCDC_parallel_v2 {
     //转换数据结构，并标记index
     val spatialPartitionedRDD: RDD[(Int, CDCPoint)] = pointToCDCPoint(objectRDD.spatialPartitionedRDD)
     //性能优化——数据持久化
-    persistRDD(spatialPartitionedRDD)
+    PersistencePolicy.persist("partition", spatialPartitionedRDD)
     //    deleteExistingDir(spatialPartitionedRDDOutputLocation)
     //    spatialPartitionedRDD.saveAsTextFile(spatialPartitionedRDDOutputLocation)
     // 获得数组数据，用于构建索引
@@ -545,13 +500,13 @@ object KCDC_parallel_v2 {
     println("划分开始----------")
     val divideStart: Long = System.currentTimeMillis()
     val dividePointRDD: RDD[(Int, CDCPoint)] = dividePoint(spatialPartitionedRDD, dataArray, indexKMeansBc, searchParams)
-    persistRDD(dividePointRDD)
+    PersistencePolicy.persist("divide", dividePointRDD, "partition")
     val divideEnd: Long = System.currentTimeMillis()
     println("划分结束----------")
     println("时间：" + (divideEnd - divideStart) / 1000.0 + "秒")
 
-    //获得划分结果数组
-    val flagArray: Array[CDCPoint.Flag] = dividePointRDD.sortBy(point => point._2.getIndexID).map(point => point._2.getFlag).collect()
+    //获得内部点位图（按indexID）
+    val innerPointsBc: Broadcast[RoaringBitmap] = InnerPointBitmap.broadcast(dividePointRDD, point => point.getFlag == CDCPoint.Flag.Inner)
     val dcmArray: Array[Double] = dividePointRDD.map(point => point._2.getDcmValue).collect()
     dcmThreshold = SortUtils.findKthLargest(dcmArray, (dcmArray.length * dcmRatio).toInt)
     println("dcmThreshold:" + dcmThreshold)
@@ -571,8 +526,8 @@ object KCDC_parallel_v2 {
     //计算内部点的可达距离
     println("计算可达距离开始----------")
     val reachDistanceStart: Long = System.currentTimeMillis()
-    val reachPartitionedRDD: RDD[(Int, CDCPoint)] = calculateReachDistance(dividePointRDD, flagArray, borderIndexKMeansBc, innerIndexKMeansBc)
-    persistRDD(reachPartitionedRDD)
+    val reachPartitionedRDD: RDD[(Int, CDCPoint)] = calculateReachDistance(dividePointRDD, innerPointsBc, borderIndexKMeansBc, innerIndexKMeansBc)
+    PersistencePolicy.persist("reach", reachPartitionedRDD, "divide")
     val reachDistanceEnd: Long = System.currentTimeMillis()
     println("计算可达距离结束----------")
     println("时间：" + (reachDistanceEnd - reachDistanceStart) / 1000.0 + "秒")
@@ -587,15 +542,16 @@ object KCDC_parallel_v2 {
 
     println("分区间连接内部点开始----------")
     val connectInnerPointBStart: Long = System.currentTimeMillis()
-    val clusterInnerPointArray: Array[(Int, ListBuffer[CDCPoint])] = connectInnerPointBetweenPartition(clusterInnerPointRDD)
+    val mergedInnerPointRDD: RDD[CDCPoint] = connectInnerPointBetweenPartition(clusterInnerPointRDD)
     val connectInnerPointBEnd: Long = System.currentTimeMillis()
     println("分区间连接内部点结束----------")
     println("时间：" + (connectInnerPointBEnd - connectInnerPointBStart) / 1000.0 + "秒")
 
     println("标记边界点开始----------")
     val labelBoderPointStart: Long = System.currentTimeMillis()
-    val clusterInnerPoint: Array[CDCPoint] = clusterInnerPointArray.flatMap(_._2)
+    val clusterInnerPoint: Array[CDCPoint] = mergedInnerPointRDD.collect()
     val borderPoint: Array[CDCPoint] = reachPartitionedRDD.filter((point: (Int, CDCPoint)) => point._2.getFlag == CDCPoint.Flag.Border).map(_._2).collect()
+    PersistencePolicy.release("reach")
     val clusterArray: Array[CDCPoint] = (clusterInnerPoint ++ borderPoint).sortBy(point => point.getIndexID)
     clusterArray.foreach((point: CDCPoint) => {
       if (point.getFlag == CDCPoint.Flag.Border) {
@@ -619,6 +575,7 @@ object KCDC_parallel_v2 {
     println("本地聚类时间：" + (connectInnerPointEnd - partitionStart) / 1000.0 + "秒")
     println("聚类合并和重标记：" + (labelBoderPointEnd - connectInnerPointBStart) / 1000.0 + "秒")
     println("聚类时间：" + (labelBoderPointEnd - partitionStart) / 1000.0 + "秒")
+    PersistencePolicy.report()
     val timeArray: ArrayBuffer[Double] = new ArrayBuffer[Double]()
     timeArray.append((readDataEnd - readDataStart) / 1000.0, (partitionEnd - partitionStart) / 1000.0, (indexStart - partitionEnd) / 1000.0, (indexEnd - indexStart) / 1000.0, (divideEnd - divideStart) / 1000.0, (reachIndexStart - divideEnd) / 1000.0, (reachIndexEnd - reachIndexStart) / 1000.0,
       (reachDistanceEnd - reachDistanceStart) / 1000.0, (connectInnerPointEnd - connectInnerPointStart) / 1000.0, (connectInnerPointBEnd - connectInnerPointBStart) / 1000.0, (labelBoderPointEnd - labelBoderPointStart) / 1000.0, (labelBoderPointEnd - partitionStart) / 1000.0)
@@ -628,6 +585,7 @@ object KCDC_parallel_v2 {
   def txtCDCCluster(searchParams: SearchParamsBase) = {
     deleteExistingDir("CheckPointDir")
     sc.setCheckpointDir("CheckPointDir")
+    PersistencePolicy.reset()
     PointRDDSplitter = FileDataSplitter.TAB
 
     //读取数据
@@ -649,7 +607,7 @@ object KCDC_parallel_v2 {
     //转换数据结构，并标记index
     val spatialPartitionedRDD: RDD[(Int, CDCPoint)] = pointToCDCPoint(objectRDD.spatialPartitionedRDD)
     //性能优化——数据持久化
-    persistRDD(spatialPartitionedRDD)
+    PersistencePolicy.persist("partition", spatialPartitionedRDD)
     //    deleteExistingDir(spatialPartitionedRDDOutputLocation)
     //    spatialPartitionedRDD.saveAsTextFile(spatialPartitionedRDDOutputLocation)
     // 获得数组数据，用于构建索引
@@ -667,13 +625,13 @@ object KCDC_parallel_v2 {
     println("划分开始----------")
     val divideStart: Long = System.currentTimeMillis()
     val dividePointRDD: RDD[(Int, CDCPoint)] = dividePoint(spatialPartitionedRDD, dataArray, indexKMeansBc, searchParams)
-    persistRDD(dividePointRDD)
+    PersistencePolicy.persist("divide", dividePointRDD, "partition")
     val divideEnd: Long = System.currentTimeMillis()
     println("划分结束----------")
     println("时间：" + (divideEnd - divideStart) / 1000.0 + "秒")
 
-    //获得划分结果数组
-    val flagArray: Array[CDCPoint.Flag] = dividePointRDD.sortBy(point => point._2.getIndexID).map(point => point._2.getFlag).collect()
+    //获得内部点位图（按indexID）
+    val innerPointsBc: Broadcast[RoaringBitmap] = InnerPointBitmap.broadcast(dividePointRDD, point => point.getFlag == CDCPoint.Flag.Inner)
     val dcmArray: Array[Double] = dividePointRDD.map(point => point._2.getDcmValue).collect()
     dcmThreshold = SortUtils.findKthLargest(dcmArray, (dcmArray.length * dcmRatio).toInt)
     println("dcmThreshold:" + dcmThreshold)
@@ -693,8 +651,8 @@ object KCDC_parallel_v2 {
     //计算内部点的可达距离
     println("计算可达距离开始----------")
     val reachDistanceStart: Long = System.currentTimeMillis()
-    val reachPartitionedRDD: RDD[(Int, CDCPoint)] = calculateReachDistance(dividePointRDD, flagArray, borderIndexKMeansBc, innerIndexKMeansBc)
-    persistRDD(reachPartitionedRDD)
+    val reachPartitionedRDD: RDD[(Int, CDCPoint)] = calculateReachDistance(dividePointRDD, innerPointsBc, borderIndexKMeansBc, innerIndexKMeansBc)
+    PersistencePolicy.persist("reach", reachPartitionedRDD, "divide")
     val reachDistanceEnd: Long = System.currentTimeMillis()
     println("计算可达距离结束----------")
     println("时间：" + (reachDistanceEnd - reachDistanceStart) / 1000.0 + "秒")
@@ -709,15 +667,16 @@ object KCDC_parallel_v2 {
 
     println("分区间连接内部点开始----------")
     val connectInnerPointBStart: Long = System.currentTimeMillis()
-    val clusterInnerPointArray: Array[(Int, ListBuffer[CDCPoint])] = connectInnerPointBetweenPartition(clusterInnerPointRDD)
+    val mergedInnerPointRDD: RDD[CDCPoint] = connectInnerPointBetweenPartition(clusterInnerPointRDD)
     val connectInnerPointBEnd: Long = System.currentTimeMillis()
     println("分区间连接内部点结束----------")
     println("时间：" + (connectInnerPointBEnd - connectInnerPointBStart) / 1000.0 + "秒")
 
     println("标记边界点开始----------")
     val labelBoderPointStart: Long = System.currentTimeMillis()
-    val clusterInnerPoint: Array[CDCPoint] = clusterInnerPointArray.flatMap(_._2)
+    val clusterInnerPoint: Array[CDCPoint] = mergedInnerPointRDD.collect()
     val borderPoint: Array[CDCPoint] = reachPartitionedRDD.filter((point: (Int, CDCPoint)) => point._2.getFlag == CDCPoint.Flag.Border).map(_._2).collect()
+    PersistencePolicy.release("reach")
     val clusterArray: Array[CDCPoint] = (clusterInnerPoint ++ borderPoint).sortBy(point => point.getIndexID)
     clusterArray.foreach((point: CDCPoint) => {
       if (point.getFlag == CDCPoint.Flag.Border) {
@@ -748,6 +707,7 @@ object KCDC_parallel_v2 {
     println("本地聚类时间：" + (connectInnerPointEnd - partitionStart) / 1000.0 + "秒")
     println("聚类合并和重标记：" + (labelBoderPointEnd - connectInnerPointBStart) / 1000.0 + "秒")
     println("聚类时间：" + (labelBoderPointEnd - partitionStart) / 1000.0 + "秒")
+    PersistencePolicy.report()
     val timeArray: ArrayBuffer[Double] = new ArrayBuffer[Double]()
     timeArray.append((readDataEnd - readDataStart) / 1000.0, (partitionEnd - partitionStart) / 1000.0, (indexStart - partitionEnd) / 1000.0, (indexEnd - indexStart) / 1000.0, (divideEnd - divideStart) / 1000.0, (reachIndexStart - divideEnd) / 1000.0, (reachIndexEnd - reachIndexStart) / 1000.0,
       (reachDistanceEnd - reachDistanceStart) / 1000.0, (connectInnerPointEnd - connectInnerPointStart) / 1000.0, (connectInnerPointBEnd - connectInnerPointBStart) / 1000.0, (labelBoderPointEnd - labelBoderPointStart) / 1000.0, (labelBoderPointEnd - partitionStart) / 1000.0)
@@ -757,6 +717,7 @@ object KCDC_parallel_v2 {
   def txtCDCCluster_(searchParams: SearchParamsBase) = {
     deleteExistingDir("CheckPointDir")
     sc.setCheckpointDir("CheckPointDir")
+    PersistencePolicy.reset()
     PointRDDSplitter = FileDataSplitter.TAB
 
     //读取数据
@@ -778,7 +739,7 @@ object KCDC_parallel_v2 {
     //转换数据结构，并标记index
     val spatialPartitionedRDD: RDD[(Int, CDCPoint)] = pointToCDCPoint(objectRDD.spatialPartitionedRDD)
     //性能优化——数据持久化
-    persistRDD(spatialPartitionedRDD)
+    PersistencePolicy.persist("partition", spatialPartitionedRDD)
     //    deleteExistingDir(spatialPartitionedRDDOutputLocation)
     //    spatialPartitionedRDD.saveAsTextFile(spatialPartitionedRDDOutputLocation)
     // 获得数组数据，用于构建索引
@@ -796,13 +757,13 @@ object KCDC_parallel_v2 {
     println("划分开始----------")
     val divideStart: Long = System.currentTimeMillis()
     val dividePointRDD: RDD[(Int, CDCPoint)] = dividePoint(spatialPartitionedRDD, dataArray, indexKMeansBc, searchParams)
-    persistRDD(dividePointRDD)
+    PersistencePolicy.persist("divide", dividePointRDD, "partition")
     val divideEnd: Long = System.currentTimeMillis()
     println("划分结束----------")
     println("时间：" + (divideEnd - divideStart) / 1000.0 + "秒")
 
-    //获得划分结果数组
-    val flagArray: Array[CDCPoint.Flag] = dividePointRDD.sortBy(point => point._2.getIndexID).map(point => point._2.getFlag).collect()
+    //获得内部点位图（按indexID）
+    val innerPointsBc: Broadcast[RoaringBitmap] = InnerPointBitmap.broadcast(dividePointRDD, point => point.getFlag == CDCPoint.Flag.Inner)
     val dcmArray: Array[Double] = dividePointRDD.map(point => point._2.getDcmValue).collect()
     dcmThreshold = SortUtils.findKthLargest(dcmArray, (dcmArray.length * dcmRatio).toInt)
     println("dcmThreshold:" + dcmThreshold)
@@ -822,8 +783,8 @@ object KCDC_parallel_v2 {
     //计算内部点的可达距离
     println("计算可达距离开始----------")
     val reachDistanceStart: Long = System.currentTimeMillis()
-    val reachPartitionedRDD: RDD[(Int, CDCPoint)] = calculateReachDistance(dividePointRDD, flagArray, borderIndexKMeansBc, innerIndexKMeansBc)
-    persistRDD(reachPartitionedRDD)
+    val reachPartitionedRDD: RDD[(Int, CDCPoint)] = calculateReachDistance(dividePointRDD, innerPointsBc, borderIndexKMeansBc, innerIndexKMeansBc)
+    PersistencePolicy.persist("reach", reachPartitionedRDD, "divide")
     val reachDistanceEnd: Long = System.currentTimeMillis()
     println("计算可达距离结束----------")
     println("时间：" + (reachDistanceEnd - reachDistanceStart) / 1000.0 + "秒")
@@ -838,15 +799,16 @@ object KCDC_parallel_v2 {
 
     println("分区间连接内部点开始----------")
     val connectInnerPointBStart: Long = System.currentTimeMillis()
-    val clusterInnerPointArray: Array[(Int, ListBuffer[CDCPoint])] = connectInnerPointBetweenPartition(clusterInnerPointRDD)
+    val mergedInnerPointRDD: RDD[CDCPoint] = connectInnerPointBetweenPartition(clusterInnerPointRDD)
     val connectInnerPointBEnd: Long = System.currentTimeMillis()
     println("分区间连接内部点结束----------")
     println("时间：" + (connectInnerPointBEnd - connectInnerPointBStart) / 1000.0 + "秒")
 
     println("标记边界点开始----------")
     val labelBoderPointStart: Long = System.currentTimeMillis()
-    val clusterInnerPoint: Array[CDCPoint] = clusterInnerPointArray.flatMap(_._2)
+    val clusterInnerPoint: Array[CDCPoint] = mergedInnerPointRDD.collect()
     val borderPoint: Array[CDCPoint] = reachPartitionedRDD.filter((point: (Int, CDCPoint)) => point._2.getFlag == CDCPoint.Flag.Border).map(_._2).collect()
+    PersistencePolicy.release("reach")
     val clusterArray: Array[CDCPoint] = (clusterInnerPoint ++ borderPoint).sortBy(point => point.getIndexID)
     clusterArray.foreach((point: CDCPoint) => {
       if (point.getFlag == CDCPoint.Flag.Border) {
@@ -877,6 +839,7 @@ object KCDC_parallel_v2 {
     println("本地聚类时间：" + (connectInnerPointEnd - partitionStart) / 1000.0 + "秒")
     println("聚类合并和重标记：" + (labelBoderPointEnd - connectInnerPointBStart) / 1000.0 + "秒")
     println("聚类时间：" + (labelBoderPointEnd - partitionStart) / 1000.0 + "秒")
+    PersistencePolicy.report()
     val timeArray: ArrayBuffer[Double] = new ArrayBuffer[Double]()
     timeArray.append((readDataEnd - readDataStart) / 1000.0, (partitionEnd - partitionStart) / 1000.0, (indexStart - partitionEnd) / 1000.0, (indexEnd - indexStart) / 1000.0, (divideEnd - divideStart) / 1000.0, (reachIndexStart - divideEnd) / 1000.0, (reachIndexEnd - reachIndexStart) / 1000.0,
       (reachDistanceEnd - reachDistanceStart) / 1000.0, (connectInnerPointEnd - connectInnerPointStart) / 1000.0, (connectInnerPointBEnd - connectInnerPointBStart) / 1000.0, (labelBoderPointEnd - labelBoderPointStart) / 1000.0, (labelBoderPointEnd - partitionStart) / 1000.0)
@@ -0,0 +1,124 @@
+package com.yolo.CDC.scala.HKCDC
+
+import org.apache.hadoop.fs.Path
+import org.apache.spark.rdd.RDD
+import org.apache.spark.storage.{RDDInfo, StorageLevel}
+
+import scala.collection.mutable
+import scala.collection.mutable.ArrayBuffer
+
+/**
+ * 各阶段RDD的持久化与血缘截断策略，代替每个阶段之后都cache()+checkpoint()
+ * 持久化方式：
+ * none：不持久化，每次使用时重新计算
+ * memory：MEMORY_ONLY
+ * memory_ser：MEMORY_ONLY_SER，CDCPoint使用CDCPointSerializer的紧凑格式
+ * off_heap：OFF_HEAP（需要设置spark.memory.offHeap.enabled与spark.memory.offHeap.size）
+ * local_checkpoint：存入executor的块管理器并截断血缘，不写文件系统
+ * reliable_checkpoint：序列化缓存后写入checkpoint目录，写入时读取缓存而不重新计算
+ * 阶段物化后立即释放它所声明的上游阶段，并记录每个阶段缓存与写入的字节数
+ * local_checkpoint截断血缘后，executor上的块是该RDD唯一的副本，下游重算时要读取它们；
+ * 若随下游物化而unpersist，下游缓存被驱逐或executor丢失时会因找不到checkpoint块而失败而不是重算，
+ * 所以local_checkpoint阶段不随下游物化释放，只在reset()时释放；需要尽早释放的阶段应使用reliable_checkpoint
+ */
+object PersistencePolicy {
+  //未单独配置的阶段使用的持久化方式
+  var defaultMode: String = "memory_ser"
+  //按阶段名配置持久化方式，如 stageModes("reach") = "local_checkpoint"
+  val stageModes: mutable.Map[String, String] = mutable.Map[String, String]()
+
+  //已持久化、尚未释放的阶段
+  private val persistedRDDs: mutable.LinkedHashMap[String, RDD[_]] = mutable.LinkedHashMap[String, RDD[_]]()
+  //等待下游阶段物化后释放的阶段
+  private val pendingRelease: mutable.LinkedHashSet[String] = mutable.LinkedHashSet[String]()
+  //(阶段, 持久化方式, 内存字节, 磁盘字节, 写入checkpoint目录的字节)
+  private val reports: ArrayBuffer[(String, String, Long, Long, Long)] = new ArrayBuffer[(String, String, Long, Long, Long)]()
+
+  def modeOf(stage: String): String = {
+    stageModes.getOrElse(stage, defaultMode)
+  }
+
+  def storageLevel(stage: String): StorageLevel = {
+    modeOf(stage) match {
+      case "none" => StorageLevel.NONE
+      case "memory" => StorageLevel.MEMORY_ONLY
+      case "memory_ser" => StorageLevel.MEMORY_ONLY_SER
+      case "off_heap" => StorageLevel.OFF_HEAP
+      //与RDD.localCheckpoint()的默认存储级别相同
+      case "local_checkpoint" => StorageLevel.MEMORY_AND_DISK
+      case "reliable_checkpoint" => StorageLevel.MEMORY_ONLY_SER
+      case mode => throw new IllegalArgumentException("未知的持久化方式：" + mode)
+    }
+  }
+
+  /**
+   * 按阶段的持久化方式持久化并物化rdd，记录其缓存与写入的字节数，然后释放releases中的上游阶段
+   * none方式不物化，上游阶段推迟到下一个物化的阶段再释放
+   */
+  def persist[T](stage: String, rdd: RDD[T], releases: String*): RDD[T] = {
+    val mode: String = modeOf(stage)
+    val level: StorageLevel = storageLevel(stage)
+    pendingRelease ++= releases
+    if (mode != "none") {
+      //已在阶段内部持久化的RDD（如分布式kNN的结果）保持原存储级别
+      if (rdd.getStorageLevel == StorageLevel.NONE) {
+        rdd.persist(level)
+      }
+      mode match {
+        case "local_checkpoint" => rdd.localCheckpoint()
+        case "reliable_checkpoint" => rdd.checkpoint()
+        case _ =>
+      }
+      rdd.count()
+      persistedRDDs.put(stage, rdd)
+      record(stage, mode, rdd)
+      pendingRelease.foreach(release)
+      pendingRelease.clear()
+    }
+    rdd
+  }
+
+  /**
+   * 释放阶段的RDD，用于最后一个阶段的结果已物化之后
+   * local_checkpoint阶段可能仍被下游的血缘引用，保留到reset()再释放
+   */
+  def release(stage: String): Unit = {
+    if (modeOf(stage) != "local_checkpoint") {
+      free(stage)
+    }
+  }
+
+  private def free(stage: String): Unit = {
+    persistedRDDs.remove(stage).foreach(_.unpersist(blocking = false))
+  }
+
+  private def record(stage: String, mode: String, rdd: RDD[_]): Unit = {
+    val sc = rdd.sparkContext
+    val info: Option[RDDInfo] = sc.getRDDStorageInfo.find(_.id == rdd.id)
+    val checkpointBytes: Long = rdd.getCheckpointFile.map(file => {
+      val path: Path = new Path(file)
+      path.getFileSystem(sc.hadoopConfiguration).getContentSummary(path).getLength
+    }).getOrElse(0L)
+    val memoryBytes: Long = info.map(_.memSize).getOrElse(0L)
+    val diskBytes: Long = info.map(_.diskSize).getOrElse(0L)
+    reports.append((stage, mode, memoryBytes, diskBytes, checkpointBytes))
+    println("持久化" + stage + "（" + mode + "）：内存" + memoryBytes + "字节，磁盘" + diskBytes + "字节，checkpoint写入" + checkpointBytes + "字节")
+  }
+
+  /**
+   * 输出每个阶段缓存与写入的字节数
+   */
+  def report(): Unit = {
+    println("阶段\t持久化方式\t内存字节\t磁盘字节\tcheckpoint写入字节")
+    reports.foreach(report => println(report._1 + "\t" + report._2 + "\t" + report._3 + "\t" + report._4 + "\t" + report._5))
+  }
+
+  /**
+   * 释放全部阶段并清空记录，每次聚类开始时调用
+   */
+  def reset(): Unit = {
+    persistedRDDs.keys.toList.foreach(free)
+    pendingRelease.clear()
+    reports.clear()
+  }
+}